@@ -29,6 +29,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The JavaBuilder main called by bazel.
@@ -50,17 +53,35 @@ public abstract class BazelJavaBuilder {
   }
 
   private static int runPersistentWorker() {
-    PrintStream originalStdOut = System.out;
+    final PrintStream originalStdOut = System.out;
     PrintStream originalStdErr = System.err;
+    // Compiles requests with a request id concurrently.
+    ExecutorService multiplexExecutor = null;
 
     while (true) {
       try {
-        WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
+        final WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
 
         if (request == null) {
           break;
         }
 
+        if (request.getRequestId() != 0) {
+          if (multiplexExecutor == null) {
+            multiplexExecutor = Executors.newCachedThreadPool();
+            // Only responses may be written to stdout, and the compilations running concurrently
+            // cannot each have their own, so anything else goes to the worker's log.
+            System.setOut(originalStdErr);
+          }
+          multiplexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+              processMultiplexedRequest(request, originalStdOut);
+            }
+          });
+          continue;
+        }
+
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         PrintStream ps = new PrintStream(baos, true);
         // Make sure that we exit nonzero in case an exception occurs during processRequest.
@@ -87,21 +108,62 @@ public abstract class BazelJavaBuilder {
         return 1;
       }
     }
+    if (multiplexExecutor != null) {
+      // Bazel closed stdin, but still waits for the requests in flight.
+      multiplexExecutor.shutdown();
+      try {
+        multiplexExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        return 1;
+      }
+    }
     return 0;
   }
 
+  /**
+   * Processes a request concurrently with others and writes the response, tagged with the id of
+   * the request, to {@code stdout}.
+   */
+  private static void processMultiplexedRequest(WorkRequest request, PrintStream stdout) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    int exitCode = 1;
+    try (PrintStream ps = new PrintStream(baos, true)) {
+      exitCode = processRequest(request.getArgumentsList(), ps);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+    WorkResponse response = WorkResponse.newBuilder()
+        .setOutput(baos.toString())
+        .setExitCode(exitCode)
+        .setRequestId(request.getRequestId())
+        .build();
+    synchronized (stdout) {
+      try {
+        response.writeDelimitedTo(stdout);
+        stdout.flush();
+      } catch (IOException e) {
+        // Bazel is gone, the main loop will notice that too.
+        e.printStackTrace();
+      }
+    }
+  }
+
   private static int processRequest(List<String> args) {
+    return processRequest(args, System.err);
+  }
+
+  private static int processRequest(List<String> args, PrintStream err) {
     try {
       JavaLibraryBuildRequest build = parse(args);
       AbstractJavaBuilder builder = build.getDependencyModule().reduceClasspath()
           ? new ReducedClasspathJavaLibraryBuilder()
           : new SimpleJavaLibraryBuilder();
-      builder.run(build, System.err);
+      builder.run(build, err);
     } catch (JavacException | InvalidCommandLineException e) {
-      System.err.println(CMDNAME + " threw exception: " + e.getMessage());
+      err.println(CMDNAME + " threw exception: " + e.getMessage());
       return 1;
     } catch (Exception e) {
-      e.printStackTrace();
+      e.printStackTrace(err);
       return 1;
     }
     return 0;
@@ -54,6 +54,9 @@ BlazeStartupOptions::BlazeStartupOptions(const BlazeStartupOptions &rhs)
       skyframe(rhs.skyframe),
       blaze_cpu(rhs.blaze_cpu),
       watchfs(rhs.watchfs),
+      compact_skyframe_graph(rhs.compact_skyframe_graph),
+      digest_function(rhs.digest_function),
+      digest_xattr_cache(rhs.digest_xattr_cache),
       allow_configurable_attributes(rhs.allow_configurable_attributes),
       option_sources(rhs.option_sources),
       webstatus_port(rhs.webstatus_port),
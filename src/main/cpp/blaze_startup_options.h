@@ -153,6 +153,16 @@ class BlazeStartupOptions {
   // If true, Blaze will listen to OS-level file change notifications.
   bool watchfs;
 
+  // If true, the server stores the Skyframe graph in its compact
+  // representation.
+  bool compact_skyframe_graph;
+
+  // The hash function used for file digests, or empty for the default.
+  string digest_function;
+
+  // If true, digests of local files are stored in their extended attributes.
+  bool digest_xattr_cache;
+
   // Temporary experimental flag that permits configurable attribute syntax
   // in BUILD files. This will be removed when configurable attributes is
   // a more stable feature.
@@ -52,6 +52,9 @@ void BlazeStartupOptions::Init() {
   max_idle_secs = testing ? 5 : (3 * 3600);
   webstatus_port = 0;
   watchfs = false;
+  compact_skyframe_graph = false;
+  digest_function = "";
+  digest_xattr_cache = false;
   invocation_policy = NULL;
 }
 
@@ -84,6 +87,9 @@ void BlazeStartupOptions::Copy(
   lhs->blaze_cpu = rhs.blaze_cpu;
   lhs->webstatus_port = rhs.webstatus_port;
   lhs->watchfs = rhs.watchfs;
+  lhs->compact_skyframe_graph = rhs.compact_skyframe_graph;
+  lhs->digest_function = rhs.digest_function;
+  lhs->digest_xattr_cache = rhs.digest_xattr_cache;
   lhs->allow_configurable_attributes = rhs.allow_configurable_attributes;
   lhs->fatal_event_bus_exceptions = rhs.fatal_event_bus_exceptions;
   lhs->option_sources = rhs.option_sources;
@@ -223,6 +229,22 @@ blaze_exit_code::ExitCode BlazeStartupOptions::ProcessArg(
   } else if (GetNullaryOption(arg, "--nowatchfs")) {
     watchfs = false;
     option_sources["watchfs"] = rcfile;
+  } else if (GetNullaryOption(arg, "--experimental_compact_skyframe_graph")) {
+    compact_skyframe_graph = true;
+    option_sources["experimental_compact_skyframe_graph"] = rcfile;
+  } else if (GetNullaryOption(arg, "--noexperimental_compact_skyframe_graph")) {
+    compact_skyframe_graph = false;
+    option_sources["experimental_compact_skyframe_graph"] = rcfile;
+  } else if ((value = GetUnaryOption(arg, next_arg,
+                                     "--digest_function")) != NULL) {
+    digest_function = value;
+    option_sources["digest_function"] = rcfile;
+  } else if (GetNullaryOption(arg, "--experimental_digest_xattr_cache")) {
+    digest_xattr_cache = true;
+    option_sources["experimental_digest_xattr_cache"] = rcfile;
+  } else if (GetNullaryOption(arg, "--noexperimental_digest_xattr_cache")) {
+    digest_xattr_cache = false;
+    option_sources["experimental_digest_xattr_cache"] = rcfile;
   } else if ((value = GetUnaryOption(
       arg, next_arg, "--use_webstatusserver")) != NULL) {
     if (!blaze_util::safe_strto32(value, &webstatus_port) ||
@@ -0,0 +1,35 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+/**
+ * Decides which of the actions that wait for local resources runs first, see
+ * {@link ResourceManager#acquireResources(ActionMetadata, ResourceSet, int)}.
+ */
+@ThreadSafe
+public interface ActionPriorities {
+
+  /** Gives all actions the same priority. */
+  ActionPriorities NONE = new ActionPriorities() {
+    @Override
+    public int getPriority(Action action) {
+      return ResourceManager.DEFAULT_PRIORITY;
+    }
+  };
+
+  /** Returns the priority of the action. Actions with higher priorities run first. */
+  int getPriority(Action action);
+}
@@ -20,14 +20,18 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
-import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
 
 /**
  * Used to keep track of resources consumed by the Blaze action execution threads and throttle them
@@ -56,10 +60,24 @@ import java.util.concurrent.CountDownLatch;
  * guarantees that at least one thread will always be able to acquire any amount of requested
  * resources (even if it is greater than amount of available resources). Therefore, assuming that
  * threads correctly release acquired resources, Blaze will never be fully blocked.
+ *
+ * <p>Acquiring and releasing resources does not take a lock while no request is waiting: the used
+ * resources are kept in an immutable snapshot that is replaced atomically. Once a request has to
+ * wait, the waiting requests are granted in order: the one with the highest priority (e.g. the
+ * action on the longest remaining path of the build) first, and among requests of equal priority,
+ * the one that was made first. While the first request waits, a later one only proceeds if it
+ * doesn't delay it: if it uses none of the resources that the first request waits for, and leaves
+ * enough of the others for it. That way a stream of small requests can't starve a large one, but a
+ * request waiting for e.g. a local test slot doesn't keep the CPU idle. Only a few requests right
+ * behind the first one are considered, so that a release doesn't take longer with more waiting
+ * requests.
  */
 @ThreadSafe
 public class ResourceManager {
 
+  /** The priority of requests made without one. */
+  public static final int DEFAULT_PRIORITY = 0;
+
   private EventBus eventBus;
 
   private final ThreadLocal<Boolean> threadLocked = new ThreadLocal<Boolean>() {
@@ -94,40 +112,46 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
   private static final double MIN_NECESSARY_IO_RATIO = 1.0;
 
-  // List of blocked threads. Associated CountDownLatch object will always
-  // be initialized to 1 during creation in the acquire() method.
-  private final List<Pair<ResourceSet, CountDownLatch>> requestList;
+  // The number of waiting requests behind the first one that are checked for whether they can be
+  // granted before it, whenever the first one has to keep waiting.
+  private static final int MAX_REQUESTS_CHECKED_BEHIND_FIRST = 16;
+
+  /** Orders requests by decreasing priority, and then by the order in which they were made. */
+  private static final Comparator<Request> REQUEST_ORDER = new Comparator<Request>() {
+    @Override
+    public int compare(Request first, Request second) {
+      if (first.priority != second.priority) {
+        return first.priority > second.priority ? -1 : 1;
+      }
+      return Long.compare(first.sequenceNumber, second.sequenceNumber);
+    }
+  };
+
+  // Blocked requests, in the order in which they are granted. Guarded by itself, like
+  // nextSequenceNumber.
+  private final TreeSet<Request> waitingRequests = new TreeSet<>(REQUEST_ORDER);
+
+  private long nextSequenceNumber = 0;
+
+  // The number of requests in waitingRequests. Lets acquisitions and releases skip the lock if
+  // nobody is waiting.
+  private final AtomicInteger waitCount = new AtomicInteger();
 
   // The total amount of resources on the local host. Must be set by
   // an explicit call to setAvailableResources(), often using
   // LocalHostCapacity.getLocalHostCapacity() as an argument.
   private ResourceSet staticResources = null;
 
-  private ResourceSet availableResources = null;
-
-  // Used amount of CPU capacity (where 1.0 corresponds to the one fully
-  // occupied CPU core. Corresponds to the CPU resource definition in the
-  // ResourceSet class.
-  private double usedCpu;
-
-  // Used amount of RAM capacity in MB. Corresponds to the RAM resource
-  // definition in the ResourceSet class.
-  private double usedRam;
-
-  // Used amount of I/O resources. Corresponds to the I/O resource
-  // definition in the ResourceSet class.
-  private double usedIo;
+  private volatile ResourceSet availableResources = null;
 
-  // Used local test count. Corresponds to the local test count definition in the ResourceSet class.
-  private int usedLocalTestCount;
+  // The currently used resources.
+  private final AtomicReference<Usage> usage = new AtomicReference<>(Usage.NONE);
 
   // Specifies how much of the RAM in staticResources we should allow to be used.
   public static final int DEFAULT_RAM_UTILIZATION_PERCENTAGE = 67;
   private int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
 
-  private ResourceManager() {
-    requestList = new LinkedList<>();
-  }
+  private ResourceManager() {}
 
   @VisibleForTesting public static ResourceManager instanceForTestingOnly() {
     return new ResourceManager();
@@ -138,53 +162,68 @@ public class ResourceManager {
    * Note - it does not reset available resources. Use
    * separate call to setAvailableResoures().
    */
-  public synchronized void resetResourceUsage() {
-    usedCpu = 0;
-    usedRam = 0;
-    usedIo = 0;
-    usedLocalTestCount = 0;
-    for (Pair<ResourceSet, CountDownLatch> request : requestList) {
-      // CountDownLatch can be set only to 0 or 1.
-      request.second.countDown();
+  public void resetResourceUsage() {
+    synchronized (waitingRequests) {
+      usage.set(Usage.NONE);
+      for (Request request : waitingRequests) {
+        // CountDownLatch can be set only to 0 or 1.
+        request.latch.countDown();
+      }
+      waitingRequests.clear();
+      waitCount.set(0);
     }
-    requestList.clear();
   }
 
   /**
    * Sets available resources using given resource set. Must be called
    * at least once before using resource manager.
    */
-  public synchronized void setAvailableResources(ResourceSet resources) {
+  public void setAvailableResources(ResourceSet resources) {
     Preconditions.checkNotNull(resources);
-    staticResources = resources;
-    availableResources = ResourceSet.create(
-        staticResources.getMemoryMb() * this.ramUtilizationPercentage / 100.0,
-        staticResources.getCpuUsage(),
-        staticResources.getIoUsage(),
-        staticResources.getLocalTestCount());
-    processWaitingThreads();
+    synchronized (waitingRequests) {
+      staticResources = resources;
+      availableResources = ResourceSet.create(
+          staticResources.getMemoryMb() * this.ramUtilizationPercentage / 100.0,
+          staticResources.getCpuUsage(),
+          staticResources.getIoUsage(),
+          staticResources.getLocalTestCount());
+      processWaitingRequests();
+    }
   }
 
   /**
    * Specify how much of the available RAM we should allow to be used.
    * This has no effect if autosensing is enabled.
    */
-  public synchronized void setRamUtilizationPercentage(int percentage) {
-    ramUtilizationPercentage = percentage;
+  public void setRamUtilizationPercentage(int percentage) {
+    synchronized (waitingRequests) {
+      ramUtilizationPercentage = percentage;
+    }
   }
 
   /**
-   * Acquires requested resource set. Will block if resource is not available.
+   * Acquires requested resource set with the default priority. Will block if resource is not
+   * available.
    * NB! This method must be thread-safe!
    */
   public void acquireResources(ActionMetadata owner, ResourceSet resources)
       throws InterruptedException {
+    acquireResources(owner, resources, DEFAULT_PRIORITY);
+  }
+
+  /**
+   * Acquires requested resource set. Will block if resource is not available. If several blocked
+   * requests could proceed, the one with the highest priority does.
+   * NB! This method must be thread-safe!
+   */
+  public void acquireResources(ActionMetadata owner, ResourceSet resources, int priority)
+      throws InterruptedException {
     Preconditions.checkNotNull(resources);
     AutoProfiler p = profiled(owner, ProfilerTask.ACTION_LOCK);
     CountDownLatch latch = null;
     try {
       waiting(owner);
-      latch = acquire(resources);
+      latch = acquire(resources, priority);
       if (latch != null) {
         latch.await();
       }
@@ -201,15 +240,18 @@ public class ResourceManager {
   }
 
   /**
-   * Acquires the given resources if available immediately. Does not block.
+   * Acquires the given resources if available immediately and they don't delay a waiting request.
+   * Does not block.
    * @return true iff the given resources were locked (all or nothing).
    */
   public boolean tryAcquire(ActionMetadata owner, ResourceSet resources) {
-    boolean acquired = false;
-    synchronized (this) {
-      if (areResourcesAvailable(resources)) {
-        incrementResources(resources);
-        acquired = true;
+    boolean acquired;
+    if (waitCount.get() == 0) {
+      acquired = tryIncrementResources(resources, null);
+    } else {
+      synchronized (waitingRequests) {
+        acquired = tryIncrementResources(resources,
+            waitingRequests.isEmpty() ? null : waitingRequests.first().resources);
       }
     }
 
@@ -222,19 +264,34 @@ public class ResourceManager {
     return acquired;
   }
 
-  private void incrementResources(ResourceSet resources) {
-    usedCpu += resources.getCpuUsage();
-    usedRam += resources.getMemoryMb();
-    usedIo += resources.getIoUsage();
-    usedLocalTestCount += resources.getLocalTestCount();
+  /**
+   * Marks the resources as used if they are available, without blocking. If {@code firstWaiting}
+   * is not null, only does so if that doesn't delay the first waiting request, which asked for
+   * {@code firstWaiting}.
+   */
+  private boolean tryIncrementResources(ResourceSet resources,
+      @Nullable ResourceSet firstWaiting) {
+    while (true) {
+      Usage current = usage.get();
+      if (!areResourcesAvailable(current, resources)) {
+        return false;
+      }
+      Usage updated = current.plus(resources);
+      if (firstWaiting != null && !canPass(current, updated, resources, firstWaiting)) {
+        return false;
+      }
+      if (usage.compareAndSet(current, updated)) {
+        profileUsage(updated);
+        return true;
+      }
+    }
   }
 
   /**
    * Return true if any resources have been claimed through this manager.
    */
-  public synchronized boolean inUse() {
-    return usedCpu != 0.0 || usedRam != 0.0 || usedIo != 0.0 || usedLocalTestCount != 0
-        || !requestList.isEmpty();
+  public boolean inUse() {
+    return !usage.get().isZero() || waitCount.get() != 0;
   }
 
 
@@ -289,64 +346,127 @@ public class ResourceManager {
     }
   }
 
-  private synchronized CountDownLatch acquire(ResourceSet resources) {
-    if (areResourcesAvailable(resources)) {
-      incrementResources(resources);
+  /**
+   * Marks the resources as used if they are available and no other request is waiting, and
+   * otherwise queues a request for them. Returns null in the former case and the latch that is
+   * released once the request is granted in the latter.
+   */
+  private CountDownLatch acquire(ResourceSet resources, int priority) {
+    // Whether the resources can be taken while others wait for them is decided in the queue.
+    if (waitCount.get() == 0 && tryIncrementResources(resources, null)) {
       return null;
     }
-    Pair<ResourceSet, CountDownLatch> request =
-      new Pair<>(resources, new CountDownLatch(1));
-    requestList.add(request);
-    return request.second;
+    synchronized (waitingRequests) {
+      Request request = new Request(resources, priority, nextSequenceNumber++);
+      waitingRequests.add(request);
+      waitCount.incrementAndGet();
+      // Resources may have been released since the attempt above by a thread that did not see this
+      // request yet.
+      processWaitingRequests();
+      return request.latch;
+    }
   }
 
-  private synchronized boolean release(ResourceSet resources) {
-    usedCpu -= resources.getCpuUsage();
-    usedRam -= resources.getMemoryMb();
-    usedIo -= resources.getIoUsage();
-    usedLocalTestCount -= resources.getLocalTestCount();
-
-    // TODO(bazel-team): (2010) rounding error can accumulate and value below can end up being
-    // e.g. 1E-15. So if it is small enough, we set it to 0. But maybe there is a better solution.
-    double epsilon = 0.0001;
-    if (usedCpu < epsilon) {
-      usedCpu = 0;
+  private boolean release(ResourceSet resources) {
+    while (true) {
+      Usage current = usage.get();
+      Usage updated = current.minus(resources);
+      if (usage.compareAndSet(current, updated)) {
+        profileUsage(updated);
+        break;
+      }
     }
-    if (usedRam < epsilon) {
-      usedRam = 0;
+    // A request queued concurrently either is seen here, or itself sees the released resources.
+    if (waitCount.get() == 0) {
+      return false;
     }
-    if (usedIo < epsilon) {
-      usedIo = 0;
+    synchronized (waitingRequests) {
+      return processWaitingRequests();
     }
-    if (!requestList.isEmpty()) {
-      processWaitingThreads();
-      return true;
+  }
+
+  /**
+   * Grants the first waiting request while there are sufficient resources available for it. Once
+   * it has to wait, grants those of the {@link #MAX_REQUESTS_CHECKED_BEHIND_FIRST} requests behind
+   * it that don't delay it. Returns true if at least one request was granted. Must be called while holding the lock on {@link #waitingRequests}.
+   */
+  private boolean processWaitingRequests() {
+    boolean granted = false;
+    while (!waitingRequests.isEmpty()) {
+      Request first = waitingRequests.first();
+      if (!tryIncrementResources(first.resources, null)) {
+        Iterator<Request> later = waitingRequests.tailSet(first, false).iterator();
+        for (int i = 0; i < MAX_REQUESTS_CHECKED_BEHIND_FIRST && later.hasNext(); i++) {
+          Request request = later.next();
+          if (tryIncrementResources(request.resources, first.resources)) {
+            later.remove();
+            grant(request);
+            granted = true;
+          }
+        }
+        break;
+      }
+      waitingRequests.pollFirst();
+      grant(first);
+      granted = true;
     }
-    return false;
+    return granted;
   }
 
+  private void grant(Request request) {
+    waitCount.decrementAndGet();
+    request.latch.countDown();
+  }
 
   /**
-   * Tries to unblock one or more waiting threads if there are sufficient resources available.
+   * Returns whether a request for {@code resources} may be granted before the first waiting
+   * request, for {@code firstWaiting}, when the used resources go from {@code current} to
+   * {@code updated}. It may if it uses none of the resources that the first request waits for, and
+   * leaves enough of the others for it, so that the first request can still proceed as soon as the
+   * resources it waits for are released.
    */
-  private synchronized void processWaitingThreads() {
-    Iterator<Pair<ResourceSet, CountDownLatch>> iterator = requestList.iterator();
-    while (iterator.hasNext()) {
-      Pair<ResourceSet, CountDownLatch> request = iterator.next();
-      if (areResourcesAvailable(request.first)) {
-        incrementResources(request.first);
-        request.second.countDown();
-        iterator.remove();
-      }
+  private boolean canPass(Usage current, Usage updated, ResourceSet resources,
+      ResourceSet firstWaiting) {
+    ResourceSet availableResources = this.availableResources;
+    return canPass(current.cpu, updated.cpu, resources.getCpuUsage(),
+            firstWaiting.getCpuUsage() * MIN_NECESSARY_CPU_RATIO, availableResources.getCpuUsage())
+        && canPass(current.ram, updated.ram, resources.getMemoryMb(),
+            firstWaiting.getMemoryMb() * MIN_NECESSARY_RAM_RATIO,
+            availableResources.getMemoryMb())
+        && canPass(current.io, updated.io, resources.getIoUsage(),
+            firstWaiting.getIoUsage() * MIN_NECESSARY_IO_RATIO, availableResources.getIoUsage())
+        && canPass(current.localTestCount, updated.localTestCount,
+            resources.getLocalTestCount(), firstWaiting.getLocalTestCount(),
+            availableResources.getLocalTestCount());
+  }
+
+  private static boolean canPass(double used, double usedAfter, double requested,
+      double neededByFirst, double available) {
+    if (isAvailable(used, neededByFirst, available)) {
+      return isAvailable(usedAfter, neededByFirst, available);
+    }
+    // The first request waits for this resource.
+    return requested == 0.0;
+  }
+
+  /**
+   * Records the used resources in the profile, so that their usage over time can be displayed.
+   * The usage is only converted to a string when the profile is saved.
+   */
+  private static void profileUsage(Usage used) {
+    Profiler profiler = Profiler.instance();
+    if (profiler.isActive() && profiler.isProfiling(ProfilerTask.RESOURCE_USAGE)) {
+      profiler.logEvent(ProfilerTask.RESOURCE_USAGE, used);
     }
   }
 
   // Method will return true if all requested resources are considered to be available.
-  private boolean areResourcesAvailable(ResourceSet resources) {
+  private boolean areResourcesAvailable(Usage used, ResourceSet resources) {
+    ResourceSet availableResources = this.availableResources;
     Preconditions.checkNotNull(availableResources);
     // Comparison below is robust, since any calculation errors will be fixed
     // by the release() method.
-    if (usedCpu == 0.0 && usedRam == 0.0 && usedIo == 0.0 && usedLocalTestCount == 0) {
+    if (used.isZero()) {
       return true;
     }
     // Use only MIN_NECESSARY_???_RATIO of the resource value to check for
@@ -371,22 +491,100 @@ public class ResourceManager {
     // ensure that at any given time, at least one thread is able to acquire
     // resources even if it requests more than available.
     // 3) If used resource amount is less than total available resource amount.
-    boolean cpuIsAvailable = cpu == 0.0 || usedCpu == 0.0 || usedCpu + cpu <= availableCpu;
-    boolean ramIsAvailable = ram == 0.0 || usedRam == 0.0 || usedRam + ram <= availableRam;
-    boolean ioIsAvailable = io == 0.0 || usedIo == 0.0 || usedIo + io <= availableIo;
-    boolean localTestCountIsAvailable = localTestCount == 0 || usedLocalTestCount == 0
-        || usedLocalTestCount + localTestCount <= availableLocalTestCount;
+    boolean cpuIsAvailable = isAvailable(used.cpu, cpu, availableCpu);
+    boolean ramIsAvailable = isAvailable(used.ram, ram, availableRam);
+    boolean ioIsAvailable = isAvailable(used.io, io, availableIo);
+    boolean localTestCountIsAvailable =
+        isAvailable(used.localTestCount, localTestCount, availableLocalTestCount);
     return cpuIsAvailable && ramIsAvailable && ioIsAvailable && localTestCountIsAvailable;
   }
 
+  private static boolean isAvailable(double used, double requested, double available) {
+    return requested == 0.0 || used == 0.0 || used + requested <= available;
+  }
+
 
   @VisibleForTesting
-  synchronized int getWaitCount() {
-    return requestList.size();
+  int getWaitCount() {
+    return waitCount.get();
   }
 
   @VisibleForTesting
-  synchronized boolean isAvailable(double ram, double cpu, double io, int localTestCount) {
-    return areResourcesAvailable(ResourceSet.create(ram, cpu, io, localTestCount));
+  boolean isAvailable(double ram, double cpu, double io, int localTestCount) {
+    return areResourcesAvailable(usage.get(), ResourceSet.create(ram, cpu, io, localTestCount));
+  }
+
+  /** A blocked request for resources. */
+  private static final class Request {
+    private final ResourceSet resources;
+    private final int priority;
+    private final long sequenceNumber;
+    // Released when the request is granted.
+    private final CountDownLatch latch = new CountDownLatch(1);
+
+    private Request(ResourceSet resources, int priority, long sequenceNumber) {
+      this.resources = resources;
+      this.priority = priority;
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+
+  /** An immutable snapshot of the used resources. */
+  private static final class Usage {
+    private static final Usage NONE = new Usage(0, 0, 0, 0);
+
+    // TODO(bazel-team): (2010) rounding error can accumulate and values can end up being e.g.
+    // 1E-15 after a release. So if they are small enough, we set them to 0. But maybe there is a
+    // better solution.
+    private static final double EPSILON = 0.0001;
+
+    // Used amount of CPU capacity (where 1.0 corresponds to the one fully
+    // occupied CPU core. Corresponds to the CPU resource definition in the
+    // ResourceSet class.
+    private final double cpu;
+
+    // Used amount of RAM capacity in MB. Corresponds to the RAM resource
+    // definition in the ResourceSet class.
+    private final double ram;
+
+    // Used amount of I/O resources. Corresponds to the I/O resource
+    // definition in the ResourceSet class.
+    private final double io;
+
+    // Used local test count. Corresponds to the local test count definition in the ResourceSet
+    // class.
+    private final int localTestCount;
+
+    private Usage(double cpu, double ram, double io, int localTestCount) {
+      this.cpu = cpu;
+      this.ram = ram;
+      this.io = io;
+      this.localTestCount = localTestCount;
+    }
+
+    private boolean isZero() {
+      return cpu == 0.0 && ram == 0.0 && io == 0.0 && localTestCount == 0;
+    }
+
+    private Usage plus(ResourceSet resources) {
+      return new Usage(cpu + resources.getCpuUsage(), ram + resources.getMemoryMb(),
+          io + resources.getIoUsage(), localTestCount + resources.getLocalTestCount());
+    }
+
+    private Usage minus(ResourceSet resources) {
+      return new Usage(roundToZero(cpu - resources.getCpuUsage()),
+          roundToZero(ram - resources.getMemoryMb()), roundToZero(io - resources.getIoUsage()),
+          localTestCount - resources.getLocalTestCount());
+    }
+
+    private static double roundToZero(double value) {
+      return value < EPSILON ? 0 : value;
+    }
+
+    /** Returns the usage as comma-separated name=value pairs, as used in the profile. */
+    @Override
+    public String toString() {
+      return "cpu=" + cpu + ",ram=" + ram + ",io=" + io + ",tests=" + localTestCount;
+    }
   }
 }
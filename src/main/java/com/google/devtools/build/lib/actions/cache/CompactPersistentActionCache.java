@@ -19,28 +19,26 @@ import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
 import com.google.devtools.build.lib.util.Clock;
 import com.google.devtools.build.lib.util.CompactStringIndexer;
-import com.google.devtools.build.lib.util.PersistentMap;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.StringIndexer;
 import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.UnixGlob;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * An implementation of the ActionCache interface that uses
  * {@link CompactStringIndexer} to reduce memory footprint and saves
- * cached actions using the {@link PersistentMap}.
+ * cached actions using a {@link MappedEntryStore}, so that only the
+ * entries that are looked up are read into memory.
  *
  * <p>This cache is not fully correct: as hashes are xor'd together, a permutation of input
  * file contents will erroneously be considered up to date.
@@ -58,95 +56,21 @@ public class CompactPersistentActionCache implements ActionCache {
 
   private static final int NO_INPUT_DISCOVERY_COUNT = -1;
 
-  private static final int VERSION = 11;
+  private static final int VERSION = 12;
 
-  private final class ActionMap extends PersistentMap<Integer, byte[]> {
-    private final Clock clock;
-    private long nextUpdate;
-
-    public ActionMap(Map<Integer, byte[]> map, Clock clock, Path mapFile, Path journalFile)
-        throws IOException {
-      super(VERSION, map, mapFile, journalFile);
-      this.clock = clock;
-      // Using nanoTime. currentTimeMillis may not provide enough granularity.
-      nextUpdate = clock.nanoTime() / NANOS_PER_SECOND + SAVE_INTERVAL_SECONDS;
-      load();
-    }
-
-    @Override
-    protected boolean updateJournal() {
-      // Using nanoTime. currentTimeMillis may not provide enough granularity.
-      long time = clock.nanoTime() / NANOS_PER_SECOND;
-      if (SAVE_INTERVAL_SECONDS == 0 || time > nextUpdate) {
-        nextUpdate = time + SAVE_INTERVAL_SECONDS;
-        // Force flushing of the PersistentStringIndexer instance. This is needed to ensure
-        // that filename index data on disk is always up-to-date when we save action cache
-        // data.
-        indexer.flush();
-        return true;
-      }
-      return false;
-    }
-
-    @Override
-    protected boolean keepJournal() {
-      // We must first flush the journal to get an accurate measure of its size.
-      forceFlush();
-      try {
-        return journalSize() * 100 < cacheSize();
-      } catch (IOException e) {
-        return false;
-      }
-    }
-
-    @Override
-    protected Integer readKey(DataInputStream in) throws IOException {
-      return in.readInt();
-    }
-
-    @Override
-    protected byte[] readValue(DataInputStream in)
-        throws IOException {
-      int size = in.readInt();
-      if (size < 0) {
-        throw new IOException("found negative array size: " + size);
-      }
-      byte[] data = new byte[size];
-      in.readFully(data);
-      return data;
-    }
-
-    @Override
-    protected void writeKey(Integer key, DataOutputStream out)
-        throws IOException {
-      out.writeInt(key);
-    }
-
-    @Override
-    // TODO(bazel-team): (2010) This method, writeKey() and related Metadata methods
-    // should really use protocol messages. Doing so would allow easy inspection
-    // of the action cache content and, more importantly, would cut down on the
-    // need to change VERSION to different number every time we touch those
-    // methods. Especially when we'll start to add stuff like statistics for
-    // each action.
-    protected void writeValue(byte[] value, DataOutputStream out)
-        throws IOException {
-      out.writeInt(value.length);
-      out.write(value);
-    }
-  }
-
-  private final PersistentMap<Integer, byte[]> map;
+  private final MappedEntryStore map;
   private final PersistentStringIndexer indexer;
+  private final Clock clock;
+  private long nextUpdate;
   static final ActionCache.Entry CORRUPTED = new ActionCache.Entry(null, false);
 
   public CompactPersistentActionCache(Path cacheRoot, Clock clock) throws IOException {
     Path cacheFile = cacheFile(cacheRoot);
     Path journalFile = journalFile(cacheRoot);
-    Path indexFile = cacheRoot.getChild("filename_index_v" + VERSION + ".blaze");
-    // we can now use normal hash map as backing map, since dependency checker
-    // will manually purge records from the action cache.
-    Map<Integer, byte[]> backingMap = new HashMap<>();
+    Path indexFile = cacheRoot.getChild("filename_index" + fileSuffix() + ".blaze");
+    this.clock = clock;
+    // Using nanoTime. currentTimeMillis may not provide enough granularity.
+    nextUpdate = clock.nanoTime() / NANOS_PER_SECOND + SAVE_INTERVAL_SECONDS;
 
     try {
       indexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
@@ -156,19 +80,24 @@ public class CompactPersistentActionCache implements ActionCache {
     }
 
     try {
-      map = new ActionMap(backingMap, clock, cacheFile, journalFile);
+      map = new MappedEntryStore(VERSION, cacheFile, journalFile);
     } catch (IOException e) {
       renameCorruptedFiles(cacheRoot);
       throw new IOException("Failed to load action cache data", e);
     }
 
     // Validate referential integrity between two collections.
-    if (!map.isEmpty()) {
-      String integrityError = validateIntegrity(indexer.size(), map.get(VALIDATION_KEY));
-      if (integrityError != null) {
-        renameCorruptedFiles(cacheRoot);
-        throw new IOException("Failed action cache referential integrity check: " + integrityError);
-      }
+    String integrityError;
+    try {
+      integrityError = map.isEmpty()
+          ? null
+          : validateIntegrity(indexer.size(), map.get(VALIDATION_KEY));
+    } catch (IOException e) {
+      integrityError = e.getMessage();
+    }
+    if (integrityError != null) {
+      renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed action cache referential integrity check: " + integrityError);
     }
   }
 
@@ -178,11 +107,11 @@ public class CompactPersistentActionCache implements ActionCache {
    */
   private static void renameCorruptedFiles(Path cacheRoot) {
     try {
-      for (Path path : UnixGlob.forPath(cacheRoot).addPattern("action_*_v" + VERSION + ".*")
+      for (Path path : UnixGlob.forPath(cacheRoot).addPattern("action_*" + fileSuffix() + ".*")
           .glob()) {
         path.renameTo(path.getParentDirectory().getChild(path.getBaseName() + ".bad"));
       }
-      for (Path path : UnixGlob.forPath(cacheRoot).addPattern("filename_*_v" + VERSION + ".*")
+      for (Path path : UnixGlob.forPath(cacheRoot).addPattern("filename_*" + fileSuffix() + ".*")
           .glob()) {
         path.renameTo(path.getParentDirectory().getChild(path.getBaseName() + ".bad"));
       }
@@ -215,12 +144,37 @@ public class CompactPersistentActionCache implements ActionCache {
     }
   }
 
+  /**
+   * Returns the suffix of the names of the cache files. Entries contain digests, so caches written
+   * with different digest functions are kept in different files.
+   */
+  private static String fileSuffix() {
+    HashFunction function = FileSystem.getDigestFunction();
+    return "_v" + VERSION + (function == HashFunction.MD5 ? "" : "_" + function);
+  }
+
   public static Path cacheFile(Path cacheRoot) {
-    return cacheRoot.getChild("action_cache_v" + VERSION + ".blaze");
+    return cacheRoot.getChild("action_cache" + fileSuffix() + ".blaze");
   }
 
   public static Path journalFile(Path cacheRoot) {
-    return cacheRoot.getChild("action_journal_v" + VERSION + ".blaze");
+    return cacheRoot.getChild("action_journal" + fileSuffix() + ".blaze");
+  }
+
+  /**
+   * Appends the changes to the journal, at most every few seconds.
+   */
+  private void updateJournal() {
+    // Using nanoTime. currentTimeMillis may not provide enough granularity.
+    long time = clock.nanoTime() / NANOS_PER_SECOND;
+    if (SAVE_INTERVAL_SECONDS == 0 || time > nextUpdate) {
+      nextUpdate = time + SAVE_INTERVAL_SECONDS;
+      // Force flushing of the PersistentStringIndexer instance. This is needed to ensure
+      // that filename index data on disk is always up-to-date when we save action cache
+      // data.
+      indexer.flush();
+      map.flushJournal();
+    }
   }
 
   @Override
@@ -234,11 +188,11 @@ public class CompactPersistentActionCache implements ActionCache {
     if (index < 0) {
       return null;
     }
-    byte[] data;
-    synchronized (this) {
-      data = map.get(index);
-    }
     try {
+      byte[] data;
+      synchronized (this) {
+        data = map.get(index);
+      }
       return data != null ? CompactPersistentActionCache.decode(indexer, data) : null;
     } catch (IOException e) {
       // return entry marked as corrupted.
@@ -265,12 +219,14 @@ public class CompactPersistentActionCache implements ActionCache {
       map.put(VALIDATION_KEY, buffer.array());
       // Now update record itself.
       map.put(index, content);
+      updateJournal();
     }
   }
 
   @Override
   public synchronized void remove(String key) {
     map.remove(indexer.getIndex(key));
+    updateJournal();
   }
 
   @Override
@@ -282,25 +238,32 @@ public class CompactPersistentActionCache implements ActionCache {
 
   @Override
   public synchronized String toString() {
-    StringBuilder builder = new StringBuilder();
-    // map.size() - 1 to avoid counting the validation key.
-    builder.append("Action cache (" + (map.size() - 1) + " records):\n");
-    int size = map.size() > 1000 ? 10 : map.size();
-    int ct = 0;
-    for (Map.Entry<Integer, byte[]> entry: map.entrySet()) {
-      if (entry.getKey() == VALIDATION_KEY) { continue; }
-      String content;
-      try {
-        content = decode(indexer, entry.getValue()).toString();
-      } catch (IOException e) {
-        content = e + "\n";
-      }
-      builder.append("-> ").append(indexer.getStringForIndex(entry.getKey())).append("\n")
-          .append(content).append("  packed_len = ").append(entry.getValue().length).append("\n");
-      if (++ct > size) {
-        builder.append("...");
-        break;
-      }
+    final StringBuilder builder = new StringBuilder();
+    try {
+      final int mapSize = map.size();
+      // map.size() - 1 to avoid counting the validation key.
+      builder.append("Action cache (" + (mapSize - 1) + " records):\n");
+      final int size = mapSize > 1000 ? 10 : mapSize;
+      map.visitEntries(new MappedEntryStore.EntryVisitor() {
+        private int ct = 0;
+
+        @Override
+        public boolean visit(int key, byte[] value) {
+          if (key == VALIDATION_KEY) {
+            return true;
+          }
+          builder.append("-> ").append(indexer.getStringForIndex(key)).append("\n")
+              .append(decodeForDump(value)).append("  packed_len = ").append(value.length)
+              .append("\n");
+          if (++ct > size) {
+            builder.append("...");
+            return false;
+          }
+          return true;
+        }
+      });
+    } catch (IOException e) {
+      builder.append(e).append("\n");
     }
     return builder.toString();
   }
@@ -309,20 +272,31 @@ public class CompactPersistentActionCache implements ActionCache {
    * Dumps action cache content.
    */
   @Override
-  public synchronized void dump(PrintStream out) {
+  public synchronized void dump(final PrintStream out) {
     out.println("String indexer content:\n");
     out.println(indexer);
-    out.println("Action cache (" + map.size() + " records):\n");
-    for (Map.Entry<Integer, byte[]> entry: map.entrySet()) {
-      if (entry.getKey() == VALIDATION_KEY) { continue; }
-      String content;
-      try {
-        content = CompactPersistentActionCache.decode(indexer, entry.getValue()).toString();
-      } catch (IOException e) {
-        content = e + "\n";
-      }
-      out.println(entry.getKey() + ", " + indexer.getStringForIndex(entry.getKey()) + ":\n"
-          +  content + "\n      packed_len = " + entry.getValue().length + "\n");
+    try {
+      out.println("Action cache (" + map.size() + " records):\n");
+      map.visitEntries(new MappedEntryStore.EntryVisitor() {
+        @Override
+        public boolean visit(int key, byte[] value) {
+          if (key != VALIDATION_KEY) {
+            out.println(key + ", " + indexer.getStringForIndex(key) + ":\n"
+                +  decodeForDump(value) + "\n      packed_len = " + value.length + "\n");
+          }
+          return true;
+        }
+      });
+    } catch (IOException e) {
+      out.println(e);
+    }
+  }
+
+  private String decodeForDump(byte[] data) {
+    try {
+      return decode(indexer, data).toString();
+    } catch (IOException e) {
+      return e + "\n";
     }
   }
 
@@ -339,10 +313,10 @@ public class CompactPersistentActionCache implements ActionCache {
       // Estimate the size of the buffer:
       //   5 bytes max for the actionKey length
       // + the actionKey itself
-      // + 16 bytes for the digest
+      // + the digest
       // + 5 bytes max for the file list length
       // + 5 bytes max for each file id
-      int maxSize = VarInt.MAX_VARINT_SIZE + actionKeyBytes.length + Digest.MD5_SIZE
+      int maxSize = VarInt.MAX_VARINT_SIZE + actionKeyBytes.length + Digest.size()
           + VarInt.MAX_VARINT_SIZE + files.size() * VarInt.MAX_VARINT_SIZE;
       ByteArrayOutputStream sink = new ByteArrayOutputStream(maxSize);
 
@@ -19,26 +19,100 @@ import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.util.LoggingUtil;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.UnixFileSystem;
+import com.google.devtools.build.lib.vfs.XattrDigestCache;
 
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import javax.annotation.Nullable;
 
 /**
- * Utility class for getting md5 digests of files.
+ * Utility class for getting digests of files, computed with the
+ * {@link FileSystem#getDigestFunction digest function}.
+ *
+ * <p>Digests of files that have to be read are computed by at most a configurable number of
+ * threads at a time, and by fewer threads per device, so that digesting many large outputs uses
+ * the available cores without making the disks seek excessively. See {@link #configure}.
  */
 public class DigestUtils {
-  // Object to synchronize on when serializing large file reads.
-  private static final Object MD5_LOCK = new Object();
+  // Files up to this size are digested without throttling. They will not likely introduce
+  // significant delays (at worst they will result in two extra disk seeks by interrupting other
+  // reads).
+  private static final long MAX_UNTHROTTLED_FILE_SIZE = 4096;
+
+  // Large files are mapped in pieces of at most this size, so that the address space used at a
+  // time stays bounded.
+  private static final long MAX_MAPPING_SIZE = 64L * 1024 * 1024;
+
+  // By default, large file reads are serialized, as they always used to be.
+  private static volatile DigestThrottle throttle = new DigestThrottle(1, 1);
+  private static volatile long mmapThresholdBytes = -1;
+
+  private static final XattrDigestCache.DigestComputer MAPPED_DIGEST_COMPUTER =
+      new XattrDigestCache.DigestComputer() {
+        @Override
+        public byte[] compute(Path path) throws IOException {
+          return getMappedDigest(path);
+        }
+      };
+
+  private static final AtomicLong bytesDigested = new AtomicLong();
+  private static final AtomicLong nanosDigesting = new AtomicLong();
 
   /** Private constructor to prevent instantiation of utility class. */
   private DigestUtils() {}
 
   /**
-   * Returns true iff using MD5 digests is appropriate for an artifact.
+   * Sets how many large files may be digested in parallel overall and per device, and the minimum
+   * size of files that are digested by memory-mapping them. Digests that are computed while this
+   * is called finish under the old limits.
+   *
+   * @param maxParallelDigests the maximum number of large files digested at a time
+   * @param maxParallelDigestsPerDevice the maximum number of large files on the same device
+   *     digested at a time
+   * @param mmapThresholdBytes files at least this large are memory-mapped for digesting, if the
+   *     file system is backed by the local disk; a negative value disables memory-mapping
+   */
+  public static void configure(int maxParallelDigests, int maxParallelDigestsPerDevice,
+      long mmapThresholdBytes) {
+    Preconditions.checkArgument(maxParallelDigests > 0, maxParallelDigests);
+    Preconditions.checkArgument(maxParallelDigestsPerDevice > 0, maxParallelDigestsPerDevice);
+    throttle = new DigestThrottle(maxParallelDigests, maxParallelDigestsPerDevice);
+    DigestUtils.mmapThresholdBytes = mmapThresholdBytes;
+  }
+
+  /**
+   * Returns the number of bytes read for computing digests so far, and resets it to 0.
+   */
+  public static long getAndResetBytesDigested() {
+    return bytesDigested.getAndSet(0);
+  }
+
+  /**
+   * Returns the total time in nanoseconds spent reading files for computing digests so far, and
+   * resets it to 0. Time spent waiting for other digests to finish is not included.
+   */
+  public static long getAndResetNanosDigesting() {
+    return nanosDigesting.getAndSet(0);
+  }
+
+  /**
+   * Returns true iff using digests is appropriate for an artifact.
    *
    * @param isFile whether or not Artifact is a file versus a directory, isFile() on its stat.
    * @param size size of Artifact on filesystem in bytes, getSize() on its stat.
@@ -49,46 +123,109 @@ public class DigestUtils {
   }
 
   /**
-   * Obtain file's MD5 metadata using synchronized method, ensuring that system
-   * is not overloaded in case when multiple threads are requesting MD5
-   * calculations and underlying file system cannot provide it via extended
-   * attribute.
+   * Obtain file's digest while holding a permit of the digest throttle, ensuring that the
+   * system is not overloaded in case when multiple threads are requesting digest calculations and
+   * underlying file system cannot provide it via extended attribute.
    */
-  private static byte[] getDigestInExclusiveMode(Path path) throws IOException {
+  private static byte[] getDigestThrottled(Path path, long fileSize) throws IOException {
     long startTime = BlazeClock.nanoTime();
-    synchronized (MD5_LOCK) {
+    DigestThrottle currentThrottle = throttle;
+    Object device = getDevice(path);
+    currentThrottle.acquire(device);
+    try {
       Profiler.instance().logSimpleTask(startTime, ProfilerTask.WAIT, path.getPathString());
-      return getDigestInternal(path);
+      return getDigestInternal(path, fileSize);
+    } finally {
+      currentThrottle.release(device);
     }
   }
 
-  private static byte[] getDigestInternal(Path path) throws IOException {
+  /**
+   * Returns an object identifying the device holding the file, for the purpose of limiting the
+   * number of files read from it in parallel.
+   */
+  private static Object getDevice(Path path) {
+    if (isOnLocalDisk(path)) {
+      try {
+        return Files.getAttribute(
+            path.getPathFile().toPath(), "unix:dev", LinkOption.NOFOLLOW_LINKS);
+      } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+        // Fall through and treat the whole file system as one device.
+      }
+    }
+    return path.getFileSystem();
+  }
+
+  private static boolean isOnLocalDisk(Path path) {
+    return path.getFileSystem() instanceof UnixFileSystem
+        || path.getFileSystem() instanceof JavaIoFileSystem;
+  }
+
+  private static byte[] getDigestInternal(Path path, long fileSize) throws IOException {
     long startTime = BlazeClock.nanoTime();
-    byte[] md5bin = path.getMD5Digest();
+    long threshold = mmapThresholdBytes;
+    // Like the file systems of the local disk, the mapped digest is stored as an extended
+    // attribute.
+    byte[] digest = threshold >= 0 && fileSize >= threshold && isOnLocalDisk(path)
+        ? XattrDigestCache.getDigest(path, FileSystem.getDigestFunction(), MAPPED_DIGEST_COMPUTER)
+        : path.getDigest();
 
-    long millis = (BlazeClock.nanoTime() - startTime) / 1000000;
+    long nanos = BlazeClock.nanoTime() - startTime;
+    bytesDigested.addAndGet(fileSize);
+    nanosDigesting.addAndGet(nanos);
+    Profiler profiler = Profiler.instance();
+    if (profiler.isActive() && profiler.isProfiling(ProfilerTask.DIGEST)) {
+      profiler.logSimpleTask(startTime, ProfilerTask.DIGEST,
+          path.getPathString() + " (" + fileSize + " bytes)");
+    }
+    long millis = nanos / 1000000;
     if (millis > 5000L) {
-      System.err.println("Slow read: a " + path.getFileSize() + "-byte read from " + path
+      System.err.println("Slow read: a " + fileSize + "-byte read from " + path
           + " took " +  millis + "ms.");
     }
-    return md5bin;
+    return digest;
+  }
+
+  /**
+   * Computes the digest of a file on the local disk by memory-mapping it, which avoids copying
+   * its content through intermediate buffers.
+   */
+  private static byte[] getMappedDigest(Path path) throws IOException {
+    MessageDigest digest = FileSystem.getDigestFunction().newMessageDigest();
+    try (FileChannel channel =
+        FileChannel.open(path.getPathFile().toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      for (long position = 0; position < size; position += MAX_MAPPING_SIZE) {
+        MappedByteBuffer buffer = channel.map(
+            FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPING_SIZE, size - position));
+        digest.update(buffer);
+      }
+    }
+    return digest.digest();
   }
 
   private static boolean binaryDigestWellFormed(byte[] digest) {
     Preconditions.checkNotNull(digest);
-    return digest.length == 16;
+    return digest.length == FileSystem.getDigestFunction().getDigestLength();
   }
 
   /**
-   * Returns the the fast md5 digest of the file, or null if not available.
+   * Returns the the fast digest of the file, or null if not available or computed with another
+   * function than the digest function.
    */
   @Nullable
   public static byte[] getFastDigest(Path path) throws IOException {
-    return path.getFastDigestFunctionType().equals("MD5") ? path.getFastDigest() : null;
+    return Objects.equals(path.getFastDigestFunctionType(), getDigestFunctionName())
+        ? path.getFastDigest()
+        : null;
+  }
+
+  private static String getDigestFunctionName() {
+    return FileSystem.getDigestFunction().toString();
   }
 
   /**
-   * Get the md5 digest of {@code path}, using a constant-time xattr call if the filesystem supports
+   * Get the digest of {@code path}, using a constant-time xattr call if the filesystem supports
    * it, and calculating the digest manually otherwise.
    *
    * @param path Path of the file.
@@ -97,32 +234,67 @@ public class DigestUtils {
    * to avoid excessive disk seeks.
    */
   public static byte[] getDigestOrFail(Path path, long fileSize) throws IOException {
-    // TODO(bazel-team): the action cache currently only works with md5 digests but it ought to
-    // work with any opaque digest.
-    byte[] md5bin = null;
-    if (Objects.equals(path.getFastDigestFunctionType(), "MD5")) {
-      md5bin = getFastDigest(path);
-    }
-    if (md5bin != null && !binaryDigestWellFormed(md5bin)) {
-      // Fail-soft in cases where md5bin is non-null, but not a valid digest.
+    byte[] digest = getFastDigest(path);
+    if (digest != null && !binaryDigestWellFormed(digest)) {
+      // Fail-soft in cases where digest is non-null, but not a valid digest.
       String msg = String.format("Malformed digest '%s' for file %s",
-                                 BaseEncoding.base16().lowerCase().encode(md5bin),
+                                 BaseEncoding.base16().lowerCase().encode(digest),
                                  path);
       LoggingUtil.logToRemote(Level.SEVERE, msg, new IllegalStateException(msg));
-      md5bin = null;
+      digest = null;
+    }
+    if (digest == null && isOnLocalDisk(path)) {
+      // A stored digest needs neither a read of the file nor a permit of the throttle, and is not
+      // counted as bytes digested.
+      digest = XattrDigestCache.getCachedDigest(path, FileSystem.getDigestFunction());
     }
-    if (md5bin != null) {
-      return md5bin;
-    } else if (fileSize > 4096) {
+    if (digest != null) {
+      return digest;
+    } else if (fileSize > MAX_UNTHROTTLED_FILE_SIZE) {
       // We'll have to read file content in order to calculate the digest. In that case
-      // it would be beneficial to serialize those calculations since there is a high
-      // probability that MD5 will be requested for multiple output files simultaneously.
-      // Exception is made for small (<=4K) files since they will not likely to introduce
-      // significant delays (at worst they will result in two extra disk seeks by
-      // interrupting other reads).
-      return getDigestInExclusiveMode(path);
+      // it would be beneficial to throttle those calculations since there is a high
+      // probability that digests will be requested for multiple output files simultaneously.
+      return getDigestThrottled(path, fileSize);
     } else {
-      return getDigestInternal(path);
+      return getDigestInternal(path, fileSize);
+    }
+  }
+
+  /**
+   * Limits the number of large files digested in parallel, overall and per device.
+   */
+  private static final class DigestThrottle {
+    private final Semaphore global;
+    private final int maxPerDevice;
+    private final ConcurrentMap<Object, Semaphore> perDevice = new ConcurrentHashMap<>();
+
+    DigestThrottle(int maxParallelDigests, int maxParallelDigestsPerDevice) {
+      this.global = new Semaphore(maxParallelDigests, true);
+      this.maxPerDevice = maxParallelDigestsPerDevice;
+    }
+
+    private Semaphore getDeviceSemaphore(Object device) {
+      Semaphore semaphore = perDevice.get(device);
+      if (semaphore == null) {
+        semaphore = new Semaphore(maxPerDevice, true);
+        Semaphore existing = perDevice.putIfAbsent(device, semaphore);
+        if (existing != null) {
+          semaphore = existing;
+        }
+      }
+      return semaphore;
+    }
+
+    void acquire(Object device) {
+      // Wait for the device first, so that threads waiting for a busy device do not hold up
+      // digests of files on other devices.
+      getDeviceSemaphore(device).acquireUninterruptibly();
+      global.acquireUninterruptibly();
+    }
+
+    void release(Object device) {
+      global.release();
+      getDeviceSemaphore(device).release();
     }
   }
 }
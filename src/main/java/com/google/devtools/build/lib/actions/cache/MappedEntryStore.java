@@ -0,0 +1,475 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.primitives.Ints;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.UnixFileSystem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A persistent map from int keys to byte array values that keeps its entries on disk and only
+ * copies the values that are looked up to the heap.
+ *
+ * <p>The entries are stored in two files. The data file contains the entries as of the last
+ * compaction, sorted by key, after an index of their keys and the positions of their values. It is
+ * memory-mapped if it is on the local disk, so opening the store takes the same time regardless of
+ * its size, and a lookup is a binary search in the index. The journal file contains the entries
+ * that were put or removed since the last compaction, in the order of the changes. It is read into
+ * the heap when the store is opened and appended to by {@link #flushJournal}.
+ *
+ * <p>{@link #save} compacts the store by merging the journal into a new data file once the journal
+ * holds more than a small fraction of the entries. Values are copied from the old data file
+ * without being decoded.
+ *
+ * <p>I/O failures when writing the journal are deferred until the next call to {@link #save}.
+ *
+ * <p>The implementation is not synchronized. If access from multiple threads is required it must
+ * be synchronized using an external object.
+ */
+final class MappedEntryStore {
+
+  private static final long MAGIC = 0x20160707L;
+  private static final int JOURNAL_ENTRY_MAGIC = 0xfe;
+
+  // The magic number, the version and, in the data file, the number of entries.
+  private static final int HEADER_SIZE = 8 + 8;
+  private static final int DATA_HEADER_SIZE = HEADER_SIZE + 4;
+  // The key and the position of the value.
+  private static final int INDEX_ENTRY_SIZE = 4 + 4;
+
+  // The journal is merged into the data file when it has more than this percentage of the number
+  // of entries or of the size of the data file.
+  private static final int MAX_JOURNAL_ENTRIES_PERCENT = 2;
+  private static final int MAX_JOURNAL_SIZE_PERCENT = 10;
+
+  // Marks removed entries in the journal.
+  private static final byte[] REMOVED = new byte[0];
+
+  private final int version;
+  private final Path dataFile;
+  private final Path journalFile;
+
+  // The content of the data file, or null if there is none.
+  private ByteBuffer data;
+  private int dataCount;
+
+  // All changes since the last compaction, and those of them that are not in the journal file yet.
+  private final Map<Integer, byte[]> journal = new HashMap<>();
+  private final Map<Integer, byte[]> unflushed = new LinkedHashMap<>();
+  private DataOutputStream journalOut;
+  // The journal file ended in a partially written entry, so it cannot be appended to.
+  private boolean rewriteJournal;
+
+  private String deferredIOFailure;
+
+  /**
+   * Receives the entries of the store in the order of their keys.
+   */
+  interface EntryVisitor {
+    /**
+     * Returns false to stop the iteration.
+     */
+    boolean visit(int key, byte[] value) throws IOException;
+  }
+
+  /**
+   * Opens the store with the given files. Files written with a different version are ignored.
+   *
+   * @throws IOException if the files cannot be read or are corrupted
+   */
+  MappedEntryStore(int version, Path dataFile, Path journalFile) throws IOException {
+    this.version = version;
+    this.dataFile = dataFile;
+    this.journalFile = journalFile;
+    mapDataFile();
+    loadJournal();
+  }
+
+  private static boolean isOnLocalDisk(Path path) {
+    return path.getFileSystem() instanceof UnixFileSystem
+        || path.getFileSystem() instanceof JavaIoFileSystem;
+  }
+
+  private void mapDataFile() throws IOException {
+    data = null;
+    dataCount = 0;
+    if (!dataFile.exists()) {
+      return;
+    }
+    long size = dataFile.getFileSize();
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException(dataFile + " is too large: " + size + " bytes");
+    }
+    ByteBuffer buffer;
+    if (isOnLocalDisk(dataFile)) {
+      try (FileChannel channel =
+          FileChannel.open(dataFile.getPathFile().toPath(), StandardOpenOption.READ)) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      }
+    } else {
+      buffer = ByteBuffer.wrap(FileSystemUtils.readContent(dataFile));
+    }
+    if (size < DATA_HEADER_SIZE || buffer.getLong(0) != MAGIC || buffer.getLong(8) != version) {
+      // Written by an incompatible version, will be replaced by the next compaction.
+      return;
+    }
+    int count = buffer.getInt(HEADER_SIZE);
+    if (count < 0 || DATA_HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE > size) {
+      throw new IOException(dataFile + " is corrupted: index of " + count + " entries");
+    }
+    data = buffer;
+    dataCount = count;
+  }
+
+  private void loadJournal() throws IOException {
+    if (!journalFile.exists()) {
+      return;
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(journalFile.getInputStream()))) {
+      if (journalFile.getFileSize() < HEADER_SIZE
+          || in.readLong() != MAGIC || in.readLong() != version) {
+        rewriteJournal = true;
+        return;
+      }
+      try {
+        while (true) {
+          int entryMagic = in.read();
+          if (entryMagic == -1) {
+            break;
+          }
+          if (entryMagic != JOURNAL_ENTRY_MAGIC) {
+            rewriteJournal = true;
+            break;
+          }
+          int key = in.readInt();
+          int length = in.readInt();
+          if (length < 0) {
+            journal.put(key, REMOVED);
+          } else {
+            byte[] value = new byte[length];
+            in.readFully(value);
+            journal.put(key, value);
+          }
+        }
+      } catch (EOFException e) {
+        // The last entry was only partially written, e.g. because the server was killed.
+        rewriteJournal = true;
+      }
+    }
+  }
+
+  /**
+   * Returns the value for the key, or null if there is none.
+   *
+   * @throws IOException if the value in the data file is corrupted
+   */
+  byte[] get(int key) throws IOException {
+    byte[] value = journal.get(key);
+    if (value != null) {
+      return value == REMOVED ? null : value;
+    }
+    int position = findValuePosition(key);
+    return position < 0 ? null : readValue(position);
+  }
+
+  void put(int key, byte[] value) {
+    Preconditions.checkNotNull(value);
+    journal.put(key, value);
+    unflushed.put(key, value);
+  }
+
+  void remove(int key) {
+    byte[] value = journal.get(key);
+    if (value == null ? findValuePosition(key) >= 0 : value != REMOVED) {
+      journal.put(key, REMOVED);
+      unflushed.put(key, REMOVED);
+    }
+  }
+
+  /**
+   * Returns the number of entries. This has to look at all entries in the data file.
+   */
+  int size() throws IOException {
+    final int[] size = new int[1];
+    merge(new MergeVisitor() {
+      @Override
+      public boolean visit(int key, ByteBuffer value) {
+        size[0]++;
+        return true;
+      }
+    });
+    return size[0];
+  }
+
+  boolean isEmpty() throws IOException {
+    // Unless the journal removes more entries than there are, some of the data file is left.
+    return journal.size() < dataCount ? false : size() == 0;
+  }
+
+  /**
+   * Passes the entries to the visitor in the order of their keys.
+   */
+  void visitEntries(final EntryVisitor visitor) throws IOException {
+    merge(new MergeVisitor() {
+      @Override
+      public boolean visit(int key, ByteBuffer value) throws IOException {
+        return visitor.visit(key, toArray(value));
+      }
+    });
+  }
+
+  private int indexPosition(int index) {
+    return DATA_HEADER_SIZE + index * INDEX_ENTRY_SIZE;
+  }
+
+  /**
+   * Returns the position of the value for the key in the data file, or -1 if there is none.
+   */
+  private int findValuePosition(int key) {
+    int low = 0;
+    int high = dataCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int middleKey = data.getInt(indexPosition(middle));
+      if (middleKey < key) {
+        low = middle + 1;
+      } else if (middleKey > key) {
+        high = middle - 1;
+      } else {
+        return data.getInt(indexPosition(middle) + 4);
+      }
+    }
+    return -1;
+  }
+
+  private ByteBuffer valueSlice(int position) throws IOException {
+    try {
+      int length = data.getInt(position);
+      if (length < 0 || position + 4L + length > data.limit()) {
+        throw new IOException("Corrupted entry of " + length + " bytes at " + position);
+      }
+      ByteBuffer value = data.duplicate();
+      value.position(position + 4);
+      value.limit(position + 4 + length);
+      return value.slice();
+    } catch (IndexOutOfBoundsException e) {
+      throw new IOException("Corrupted entry position " + position, e);
+    }
+  }
+
+  private byte[] readValue(int position) throws IOException {
+    return toArray(valueSlice(position));
+  }
+
+  private static byte[] toArray(ByteBuffer value) {
+    byte[] bytes = new byte[value.remaining()];
+    value.duplicate().get(bytes);
+    return bytes;
+  }
+
+  /** Receives the entries during a merge of the data file and the journal. */
+  private interface MergeVisitor {
+    boolean visit(int key, ByteBuffer value) throws IOException;
+  }
+
+  /**
+   * Passes the entries of the data file, as changed by the journal, to the visitor in the order of
+   * their keys.
+   */
+  private void merge(MergeVisitor visitor) throws IOException {
+    int[] journalKeys = Ints.toArray(journal.keySet());
+    Arrays.sort(journalKeys);
+    int dataIndex = 0;
+    int journalIndex = 0;
+    while (dataIndex < dataCount || journalIndex < journalKeys.length) {
+      int dataKey = dataIndex < dataCount ? data.getInt(indexPosition(dataIndex)) : 0;
+      boolean fromJournal = dataIndex == dataCount
+          || (journalIndex < journalKeys.length && journalKeys[journalIndex] <= dataKey);
+      int key;
+      ByteBuffer value;
+      if (fromJournal) {
+        key = journalKeys[journalIndex++];
+        if (dataIndex < dataCount && key == dataKey) {
+          // Overridden by the journal.
+          dataIndex++;
+        }
+        byte[] journalValue = journal.get(key);
+        value = journalValue == REMOVED ? null : ByteBuffer.wrap(journalValue);
+      } else {
+        key = dataKey;
+        value = valueSlice(data.getInt(indexPosition(dataIndex) + 4));
+        dataIndex++;
+      }
+      if (value != null && !visitor.visit(key, value)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Appends the changes since the last call to the journal file.
+   */
+  void flushJournal() {
+    if (unflushed.isEmpty() && !rewriteJournal) {
+      return;
+    }
+    try {
+      if (journalOut == null) {
+        if (rewriteJournal || !journalFile.exists()) {
+          journalOut = createFile(journalFile);
+          // All changes have to be in the new file.
+          unflushed.clear();
+          unflushed.putAll(journal);
+          rewriteJournal = false;
+        } else {
+          journalOut = new DataOutputStream(
+              new BufferedOutputStream(journalFile.getOutputStream(/*append=*/true)));
+        }
+      }
+      for (Map.Entry<Integer, byte[]> entry : unflushed.entrySet()) {
+        journalOut.writeByte(JOURNAL_ENTRY_MAGIC);
+        journalOut.writeInt(entry.getKey());
+        byte[] value = entry.getValue();
+        if (value == REMOVED) {
+          journalOut.writeInt(-1);
+        } else {
+          journalOut.writeInt(value.length);
+          journalOut.write(value);
+        }
+      }
+      journalOut.flush();
+      unflushed.clear();
+    } catch (IOException e) {
+      deferredIOFailure = e.getMessage() + " during journal append";
+    }
+  }
+
+  private DataOutputStream createFile(Path file) throws IOException {
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file.getOutputStream()));
+    out.writeLong(MAGIC);
+    out.writeLong(version);
+    return out;
+  }
+
+  /**
+   * Makes all changes persistent, either by flushing the journal or, if it is too large, by merging
+   * it into a new data file.
+   *
+   * @return the size of the files on disk
+   * @throws IOException if there was an I/O error during this call, or while writing the journal
+   *     since the last call
+   */
+  long save() throws IOException {
+    if (deferredIOFailure != null) {
+      try {
+        throw new IOException(deferredIOFailure);
+      } finally {
+        deferredIOFailure = null;
+      }
+    }
+    if (journal.isEmpty()) {
+      return dataFileSize();
+    }
+    flushJournal();
+    long journalSize = journalFileSize();
+    if (journal.size() * 100L < dataCount * (long) MAX_JOURNAL_ENTRIES_PERCENT
+        && journalSize * 100 < dataFileSize() * MAX_JOURNAL_SIZE_PERCENT
+        && deferredIOFailure == null) {
+      closeJournal();
+      return journalSize + dataFileSize();
+    }
+    compact();
+    return dataFileSize();
+  }
+
+  private long dataFileSize() throws IOException {
+    return dataFile.exists() ? dataFile.getFileSize() : 0;
+  }
+
+  private long journalFileSize() throws IOException {
+    return journalFile.exists() ? journalFile.getFileSize() : 0;
+  }
+
+  private void closeJournal() throws IOException {
+    if (journalOut != null) {
+      journalOut.close();
+      journalOut = null;
+    }
+  }
+
+  /**
+   * Writes all entries to a new data file and deletes the journal.
+   */
+  private void compact() throws IOException {
+    final int count = size();
+    Path tempFile =
+        dataFile.getRelative(FileSystemUtils.replaceExtension(dataFile.asFragment(), ".tmp"));
+    try {
+      try (final DataOutputStream out = createFile(tempFile)) {
+        out.writeInt(count);
+        final long[] position = {DATA_HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE};
+        merge(new MergeVisitor() {
+          @Override
+          public boolean visit(int key, ByteBuffer value) throws IOException {
+            if (position[0] > Integer.MAX_VALUE) {
+              throw new IOException("Too much data for " + dataFile);
+            }
+            out.writeInt(key);
+            out.writeInt((int) position[0]);
+            position[0] += 4 + value.remaining();
+            return true;
+          }
+        });
+        merge(new MergeVisitor() {
+          @Override
+          public boolean visit(int key, ByteBuffer value) throws IOException {
+            out.writeInt(value.remaining());
+            out.write(toArray(value));
+            return true;
+          }
+        });
+      }
+      tempFile.renameTo(dataFile);
+    } finally {
+      tempFile.delete();
+    }
+    closeJournal();
+    journalFile.delete();
+    journal.clear();
+    unflushed.clear();
+    rewriteJournal = false;
+    // Failures to write the journal do not matter anymore.
+    deferredIOFailure = null;
+    mapDataFile();
+  }
+}
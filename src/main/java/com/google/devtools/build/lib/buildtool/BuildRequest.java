@@ -252,6 +252,19 @@ public class BuildRequest implements OptionsClassProvider {
                 + "this flag to false to see the effect on incremental build times.")
     public boolean checkOutputFiles;
 
+    @Option(name = "experimental_skip_null_builds",
+            defaultValue = "false",
+            category = "undocumented",
+            help = "If true, a build of the same targets with the same options and client "
+                + "environment as the last successful build reuses its result without loading, "
+                + "analyzing or executing anything, if the diffs of all package path entries were "
+                + "empty, nothing else was invalidated and the top-level outputs were not "
+                + "modified since. Other files in the output tree are assumed to be unmodified, "
+                + "like with --noexperimental_check_output_files. Never applies to tests or to "
+                + "builds with a --workspace_status_command, whose volatile status would not be "
+                + "refreshed.")
+    public boolean skipNullBuilds;
+
     @Option(name = "experimental_output_tree_tracking",
             defaultValue = "false",
             category = "undocumented",
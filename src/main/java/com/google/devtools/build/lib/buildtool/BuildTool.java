@@ -34,6 +34,7 @@ import com.google.devtools.build.lib.analysis.LicensesProvider.TargetLicense;
 import com.google.devtools.build.lib.analysis.MakeEnvironmentEvent;
 import com.google.devtools.build.lib.analysis.RuleConfiguredTarget;
 import com.google.devtools.build.lib.analysis.ViewCreationFailedException;
+import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.analysis.config.BuildConfigurationCollection;
 import com.google.devtools.build.lib.analysis.config.BuildOptions;
@@ -77,6 +78,7 @@ import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
+import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
@@ -154,6 +156,9 @@ public final class BuildTool {
     try {
       env.getEventBus().post(new BuildStartingEvent(env.getOutputFileSystem(), request));
       LOG.info("Build identifier: " + request.getId());
+      if (maybeReuseLastBuild(request, result)) {
+        return;
+      }
       executionTool = new ExecutionTool(env, request);
       if (needsExecutionPhase(request.getBuildOptions())) {
         // Initialize the execution tool early if we need it. This hides the latency of setting up
@@ -241,6 +246,57 @@ public final class BuildTool {
       throw new BuildFailedException("execution phase successful, but there were errors " +
                                      "parsing the target pattern");
     }
+    // Only kept if it can be reused, since it holds on to the configured targets.
+    if (request.getBuildOptions().skipNullBuilds && !request.shouldRunTests()
+        && needsExecutionPhase(request.getBuildOptions()) && !hasWorkspaceStatusCommand(request)) {
+      try {
+        runtime.setLastBuildSummary(new LastBuildSummary(request, env.getClientEnv(),
+            runtime.getSkyframeExecutor().getChangeCount(), result));
+      } catch (IOException e) {
+        LOG.info("Not keeping the result of the build for reuse: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Returns whether the workspace status command runs on every build. Its output is volatile, so
+   * a build that does not run it would leave stale status files and stamped outputs behind.
+   */
+  private static boolean hasWorkspaceStatusCommand(BuildRequest request) {
+    WorkspaceStatusAction.Options options = request.getOptions(WorkspaceStatusAction.Options.class);
+    return options != null && !options.workspaceStatusCommand.toString().isEmpty();
+  }
+
+  /**
+   * Sets the result of the last successful build on {@code result} and returns true if
+   * --experimental_skip_null_builds is set and the build would not do anything else, because the
+   * last successful build had the same request and nothing changed since, including its top-level
+   * outputs. Otherwise forgets the last successful build, since this one may fail or change the
+   * output tree.
+   */
+  private boolean maybeReuseLastBuild(BuildRequest request, BuildResult result) {
+    LastBuildSummary lastBuild = runtime.getLastBuildSummary();
+    runtime.setLastBuildSummary(null);
+    if (lastBuild == null
+        || !request.getBuildOptions().skipNullBuilds
+        || request.shouldRunTests()
+        || !lastBuild.matches(request, env.getClientEnv(),
+            runtime.getSkyframeExecutor().getChangeCount())) {
+      return false;
+    }
+    try {
+      if (!lastBuild.outputsUnchanged()) {
+        return false;
+      }
+    } catch (IOException e) {
+      LOG.info("Could not check the outputs of the last build: " + e.getMessage());
+      return false;
+    }
+    LOG.info("Nothing changed since the last build, reusing its result");
+    lastBuild.copyTo(result);
+    runtime.setLastBuildSummary(lastBuild);
+    getReporter().handle(Event.info("Nothing changed since the last build"));
+    return true;
   }
 
   /**
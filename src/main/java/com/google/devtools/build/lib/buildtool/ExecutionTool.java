@@ -46,6 +46,7 @@ import com.google.devtools.build.lib.actions.SimpleActionContextProvider;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.TestExecException;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
+import com.google.devtools.build.lib.actions.cache.DigestUtils;
 import com.google.devtools.build.lib.analysis.BuildView;
 import com.google.devtools.build.lib.analysis.BuildView.AnalysisResult;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
@@ -422,6 +423,7 @@ public class ExecutionTool {
       }
 
       configureResourceManager(request);
+      configureDigestUtils(request);
 
       Profiler.instance().markPhase(ProfilePhase.EXECUTE);
 
@@ -457,6 +459,7 @@ public class ExecutionTool {
       for (ActionContextProvider actionContextProvider : actionContextProviders) {
         actionContextProvider.executionPhaseEnding();
       }
+      logDigestThroughput();
 
       Profiler.instance().markPhase(ProfilePhase.FINISH);
 
@@ -710,6 +713,28 @@ public class ExecutionTool {
     ));
   }
 
+  private void configureDigestUtils(BuildRequest request) {
+    ExecutionOptions options = request.getOptions(ExecutionOptions.class);
+    DigestUtils.configure(
+        options.digestJobs > 0 ? options.digestJobs : Runtime.getRuntime().availableProcessors(),
+        Math.max(1, options.digestJobsPerDevice),
+        options.mmapDigestThreshold);
+  }
+
+  /**
+   * Records how many bytes were read for computing file digests during the execution phase, and at
+   * what rate, in the profile.
+   */
+  private void logDigestThroughput() {
+    long bytes = DigestUtils.getAndResetBytesDigested();
+    long nanos = DigestUtils.getAndResetNanosDigesting();
+    if (bytes > 0 && nanos > 0) {
+      Profiler.instance().logEvent(ProfilerTask.INFO, String.format(
+          "Digested %d bytes in %d ms of digesting time (%.1f MB/s)",
+          bytes, nanos / 1000000, bytes * 1e3 / nanos));
+    }
+  }
+
   /**
    * Writes the cache files to disk, reporting any errors that occurred during
    * writing.
@@ -0,0 +1,124 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.buildtool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.analysis.ConfiguredTarget;
+import com.google.devtools.build.lib.analysis.TopLevelArtifactHelper;
+import com.google.devtools.build.lib.analysis.config.BuildConfigurationCollection;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * The request and the result of the last successful build of a server, together with the
+ * {@link com.google.devtools.build.lib.skyframe.SkyframeExecutor#getChangeCount change count} of
+ * the evaluator at its end.
+ *
+ * <p>A later build of the same targets with the same options and client environment, after which
+ * the change count is the same, would evaluate nothing: {@link BuildTool} reuses the result of
+ * this build instead. Since the evaluator does not notice changes to the output tree, the summary
+ * also keeps the change times of the top-level outputs, which must still be the same.
+ */
+@Immutable
+public final class LastBuildSummary {
+  private final String commandName;
+  private final ImmutableList<String> targets;
+  private final String optionsDescription;
+  private final ImmutableMap<String, String> clientEnv;
+  private final long changeCount;
+
+  private final BuildConfigurationCollection configurations;
+  private final Collection<ConfiguredTarget> actualTargets;
+  @Nullable private final Collection<ConfiguredTarget> testTargets;
+  @Nullable private final Collection<ConfiguredTarget> successfulTargets;
+  /** The change time of every top-level output, or -1 if it did not exist. */
+  private final ImmutableMap<Path, Long> outputChangeTimes;
+
+  LastBuildSummary(BuildRequest request, Map<String, String> clientEnv, long changeCount,
+      BuildResult result) throws IOException {
+    this.commandName = request.getCommandName();
+    this.targets = ImmutableList.copyOf(request.getTargets());
+    this.optionsDescription = request.getOptionsDescription();
+    this.clientEnv = ImmutableMap.copyOf(clientEnv);
+    this.changeCount = changeCount;
+    this.configurations = result.getBuildConfigurationCollection();
+    this.actualTargets = ImmutableList.copyOf(result.getActualTargets());
+    this.testTargets = result.getTestTargets();
+    this.successfulTargets = result.getSuccessfulTargets() == null
+        ? null : ImmutableList.copyOf(result.getSuccessfulTargets());
+    Map<Path, Long> outputs = new LinkedHashMap<>();
+    if (successfulTargets != null) {
+      for (ConfiguredTarget target : successfulTargets) {
+        for (Artifact artifact : TopLevelArtifactHelper.getAllArtifactsToBuild(
+            target, request.getTopLevelArtifactContext()).getAllArtifacts()) {
+          if (!artifact.isSourceArtifact()) {
+            outputs.put(artifact.getPath(), getChangeTime(artifact.getPath()));
+          }
+        }
+      }
+    }
+    this.outputChangeTimes = ImmutableMap.copyOf(outputs);
+  }
+
+  private static long getChangeTime(Path path) throws IOException {
+    FileStatus stat = path.statIfFound(Symlinks.NOFOLLOW);
+    return stat == null ? -1 : stat.getLastChangeTime();
+  }
+
+  /**
+   * Returns whether {@code request} would build the same as the summarized build, given the
+   * client environment and the change count of the evaluator after its sync.
+   */
+  boolean matches(BuildRequest request, Map<String, String> clientEnv, long changeCount) {
+    return this.changeCount == changeCount
+        && commandName.equals(request.getCommandName())
+        && targets.equals(request.getTargets())
+        && optionsDescription.equals(request.getOptionsDescription())
+        && this.clientEnv.equals(clientEnv);
+  }
+
+  /**
+   * Returns whether the top-level outputs of the summarized build were not modified or deleted
+   * since.
+   */
+  boolean outputsUnchanged() throws IOException {
+    for (Map.Entry<Path, Long> output : outputChangeTimes.entrySet()) {
+      if (getChangeTime(output.getKey()) != output.getValue()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Sets the configurations and targets of the summarized build on {@code result}. */
+  void copyTo(BuildResult result) {
+    result.setBuildConfigurationCollection(configurations);
+    result.setActualTargets(actualTargets);
+    result.setTestTargets(testTargets);
+    if (successfulTargets != null) {
+      result.setSuccessfulTargets(successfulTargets);
+    }
+  }
+}
@@ -18,6 +18,7 @@ import static java.nio.charset.StandardCharsets.US_ASCII;
 import com.google.common.io.BaseEncoding;
 import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
 import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.MessageLite;
 
@@ -25,11 +26,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
- * A utility class for obtaining MD5 digests.
- * Digests are represented as 32 characters in lowercase ASCII.
+ * A utility class for obtaining digests computed with the
+ * {@link FileSystem#getDigestFunction digest function}.
+ * Digests are represented as lowercase hexadecimal ASCII, e.g. 32 characters for MD5.
  */
 public class Digest {
 
@@ -161,14 +162,10 @@ public class Digest {
   }
 
   /**
-   * @return a new MD5 digest builder.
+   * @return a new digest builder.
    */
   public static MessageDigest newBuilder() {
-    try {
-      return MessageDigest.getInstance("md5");
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalStateException("MD5 not available", e);
-    }
+    return FileSystem.getDigestFunction().newMessageDigest();
   }
 
   /**
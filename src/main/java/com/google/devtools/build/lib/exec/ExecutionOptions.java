@@ -196,6 +196,36 @@ public class ExecutionOptions extends OptionsBase {
   )
   public int localTestJobs;
 
+  @Option(name = "digest_jobs",
+      defaultValue = "0",
+      category = "strategy",
+      help = "The maximum number of large files whose digests are computed in parallel. "
+          + "0 means the number of available cores.")
+  public int digestJobs;
+
+  @Option(name = "digest_jobs_per_device",
+      defaultValue = "4",
+      category = "strategy",
+      help = "The maximum number of large files on the same device whose digests are computed in "
+          + "parallel. Use 1 for spinning disks.")
+  public int digestJobsPerDevice;
+
+  @Option(name = "experimental_mmap_digest_threshold",
+      defaultValue = "-1",
+      category = "undocumented",
+      help = "Files at least this many bytes large are memory-mapped for computing their "
+          + "digests. A negative value disables memory-mapping.")
+  public long mmapDigestThreshold;
+
+  @Option(name = "experimental_critical_path_scheduling",
+      defaultValue = "false",
+      category = "strategy",
+      help = "If enabled, actions that wait for local resources run in the order of the time "
+          + "that remained after them in previous builds, so that the longest chains of actions "
+          + "start first. Only has an effect when --jobs allows more actions than the local "
+          + "resources can run at the same time.")
+  public boolean criticalPathScheduling;
+
   public boolean usingLocalTestJobs() {
     return localTestJobs != 0;
   }
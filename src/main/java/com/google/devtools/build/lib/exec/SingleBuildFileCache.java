@@ -76,7 +76,7 @@ public class SingleBuildFileCache implements ActionInputFileCache {
             path = fs.getPath(fullPath(input));
             BaseEncoding hex = BaseEncoding.base16().lowerCase();
             ByteString digest = ByteString.copyFrom(
-                hex.encode(path.getMD5Digest())
+                hex.encode(path.getDigest())
                    .getBytes(US_ASCII));
             // Inject reverse mapping. Doing this unconditionally in getDigest() showed up
             // as a hotspot in CPU profiling.
@@ -156,6 +156,35 @@ public class PackageCacheOptions extends OptionsBase {
       help = "Allows the command to fetch external dependencies")
   public boolean fetch;
 
+  @Option(name = "experimental_target_reverse_deps_index",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, the server keeps an index of the reverse dependencies of the targets of all "
+          + "loaded packages, which queries with a universe scope use for rdeps and allrdeps.")
+  public boolean targetReverseDepsIndex;
+
+  @Option(name = "experimental_skyframe_eviction_threshold",
+      defaultValue = "0",
+      category = "undocumented",
+      help = "If between 0 and 100, the server evicts Skyframe values that are cheap to recompute "
+          + "at the start of a command if more than this percentage of the heap was still in use "
+          + "after a garbage collection.")
+  public int skyframeEvictionThreshold;
+
+  @Option(name = "experimental_skyframe_blocking_evaluation",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, Skyframe functions that request dependencies that are not computed yet "
+          + "wait for them instead of being restarted.")
+  public boolean skyframeBlockingEvaluation;
+
+  @Option(name = "experimental_query_result_cache",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, the server caches the results of queries with a universe scope until a "
+          + "package or the dependencies of a target change.")
+  public boolean queryResultCache;
+
   /**
    * A converter from strings containing comma-separated names of packages to lists of strings.
    */
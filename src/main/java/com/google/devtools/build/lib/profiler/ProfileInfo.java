@@ -30,8 +30,6 @@ import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.VarInt;
 import com.google.devtools.build.lib.vfs.Path;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
@@ -49,8 +47,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
 
 /**
  * Holds parsed profile file information and provides various ways of
@@ -469,10 +467,10 @@ public class ProfileInfo {
   // create fake ACTION tasks and assign them negative ids.
   private int fakeActionId = 0;
 
-  private ProfileInfo(String comment) {
+  private ProfileInfo(String comment, List<String> descriptionList) {
     this.comment = comment;
 
-    descriptionList = Lists.newArrayListWithExpectedSize(10000);
+    this.descriptionList = descriptionList;
     tasksByThread = Maps.newHashMap();
     parallelBuilderCompletionQueueTasks = Maps.newHashMap();
     allTasksById = Lists.newArrayListWithExpectedSize(50000);
@@ -973,6 +971,13 @@ public class ProfileInfo {
     return new AggregateAttr[TASK_COUNT];
   }
 
+  /**
+   * Receives the tasks of a profile file.
+   */
+  public interface TaskVisitor {
+    void visit(Task task);
+  }
+
   /**
    * Loads and parses Blaze profile file.
    *
@@ -985,91 +990,50 @@ public class ProfileInfo {
    */
   public static ProfileInfo loadProfile(Path profileFile)
       throws IOException {
-    // It is extremely important to wrap InflaterInputStream using
-    // BufferedInputStream because majority of reads would be done using
-    // readInt()/readLong() methods and InflaterInputStream is very inefficient
-    // in handling small read requests (performance difference with 1MB buffer
-    // used below is almost 10x).
-    DataInputStream in = new DataInputStream(
-        new BufferedInputStream(new InflaterInputStream(
-        profileFile.getInputStream(), new Inflater(false), 65536), 1024 * 1024));
-
-    if (in.readInt() != Profiler.MAGIC) {
-      in.close();
-      throw new UnsupportedEncodingException("Invalid profile datafile format");
-    }
-    if (in.readInt() != Profiler.VERSION) {
-      in.close();
-      throw new UnsupportedEncodingException("Incompatible profile datafile version");
-    }
-    String fileComment = in.readUTF();
-
-    // Read list of used record types
-    int typeCount = in.readInt();
-    boolean hasUnknownTypes = false;
-    Set<String> supportedTasks = new HashSet<>();
-    for (ProfilerTask task : ProfilerTask.values()) {
-      supportedTasks.add(task.toString());
-    }
-    List<ProfilerTask> typeList = new ArrayList<>();
-    for (int i = 0; i < typeCount; i++) {
-      String name = in.readUTF();
-      if (supportedTasks.contains(name)) {
-        typeList.add(ProfilerTask.valueOf(name));
-      } else {
-        hasUnknownTypes = true;
-        typeList.add(ProfilerTask.UNKNOWN);
-      }
-    }
+    return readProfile(profileFile, null);
+  }
+
+  /**
+   * Parses Blaze profile file and passes each task to the visitor in the order
+   * in which they are stored, without keeping the tasks in memory. Tasks have
+   * no subtasks and aggregated statistics.
+   *
+   * @param profileFile profile file path
+   * @param visitor receives the tasks
+   *
+   * @return ProfileInfo object that contains no tasks
+   * @throws UnsupportedEncodingException if the file format is invalid
+   * @throws IOException if the file can't be read
+   */
+  public static ProfileInfo visitProfile(Path profileFile, TaskVisitor visitor)
+      throws IOException {
+    return readProfile(profileFile, Preconditions.checkNotNull(visitor));
+  }
 
-    ProfileInfo info = new ProfileInfo(fileComment);
+  private static ProfileInfo readProfile(Path profileFile, @Nullable TaskVisitor visitor)
+      throws IOException {
+    ProfileReader reader = new ProfileReader(profileFile.getInputStream());
+    ProfileInfo info = new ProfileInfo(reader.getComment(), reader.getDescriptions());
 
-    // Read record until we encounter end marker (-1).
-    // TODO(bazel-team): Maybe this still should handle corrupted(truncated) files.
+    // Read records until we encounter the end marker. Since chunks are
+    // written independently, all chunks before a truncated or corrupted one
+    // are still read.
     try {
-      int size;
-      while ((size = in.readInt()) != Profiler.EOF_MARKER) {
-        byte[] backingArray = new byte[size];
-        in.readFully(backingArray);
-        ByteBuffer buffer = ByteBuffer.wrap(backingArray);
-        long threadId = VarInt.getVarLong(buffer);
-        int id = VarInt.getVarInt(buffer);
-        int parentId = VarInt.getVarInt(buffer);
-        long startTime = VarInt.getVarLong(buffer);
-        long duration = VarInt.getVarLong(buffer);
-        int descIndex = VarInt.getVarInt(buffer) - 1;
-        if (descIndex == -1) {
-          String desc = in.readUTF();
-          descIndex = info.descriptionList.size();
-          info.descriptionList.add(desc);
-        }
-        ProfilerTask type = typeList.get(buffer.get());
-        byte[] stats = null;
-        if (buffer.hasRemaining()) {
-          // Copy aggregated stats.
-          int offset = buffer.position();
-          stats = Arrays.copyOfRange(backingArray, offset, size);
-          if (hasUnknownTypes) {
-            while (buffer.hasRemaining()) {
-              byte attrType = buffer.get();
-              if (typeList.get(attrType) == ProfilerTask.UNKNOWN) {
-                // We're dealing with unknown aggregated type - update stats array to
-                // use ProfilerTask.UNKNOWN.ordinal() value.
-                stats[buffer.position() - 1 - offset] = (byte) ProfilerTask.UNKNOWN.ordinal();
-              }
-              VarInt.getVarInt(buffer);
-              VarInt.getVarLong(buffer);
-            }
-          }
+      while (reader.next()) {
+        ProfileInfo.Task task = info.new Task(reader.getThreadId(), reader.getId(),
+            reader.getParentId(), reader.getStartTime(), reader.getDurationNanos(),
+            reader.getType(), reader.getDescriptionIndex(),
+            new CompactStatistics(reader.getStats()));
+        if (visitor != null) {
+          visitor.visit(task);
+        } else {
+          info.addTask(task);
         }
-        ProfileInfo.Task task =  info.new Task(threadId, id, parentId, startTime, duration, type,
-            descIndex, new CompactStatistics(stats));
-        info.addTask(task);
       }
     } catch (IOException e) {
       info.corruptedOrIncomplete = true;
     } finally {
-      in.close();
+      reader.close();
     }
 
     return info;
@@ -0,0 +1,253 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.devtools.build.lib.util.VarInt;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the task records of a profile file written by the {@link Profiler} one at a time.
+ *
+ * <p>Only the records of the current chunk and the description strings seen so far are held in
+ * memory, so a profile can be processed without loading all of its tasks.
+ *
+ * <p>Usage: call {@link #next} until it returns false, and use the getters to access the fields
+ * of the current record in between.
+ */
+public final class ProfileReader implements Closeable {
+  private final DataInputStream in;
+  private final String comment;
+  private final List<ProfilerTask> typeList = new ArrayList<>();
+  private boolean hasUnknownTypes = false;
+  private final List<String> descriptions = new ArrayList<>();
+  private final Inflater inflater = new Inflater(false);
+  private byte[] records = new byte[0];
+  private DataInputStream chunk;
+
+  private long threadId;
+  private int id;
+  private int parentId;
+  private long startTime;
+  private long durationNanos;
+  private ProfilerTask type;
+  private int descIndex;
+  private byte[] stats;
+
+  /**
+   * Reads the header of the profile from the stream.
+   *
+   * @throws UnsupportedEncodingException if the file format is invalid
+   * @throws IOException if the stream can't be read
+   */
+  public ProfileReader(InputStream stream) throws IOException {
+    in = new DataInputStream(new BufferedInputStream(stream, 1024 * 1024));
+    try {
+      if (in.readInt() != Profiler.MAGIC) {
+        throw new UnsupportedEncodingException("Invalid profile datafile format");
+      }
+      if (in.readInt() != Profiler.VERSION) {
+        throw new UnsupportedEncodingException("Incompatible profile datafile version");
+      }
+      comment = in.readUTF();
+
+      // Read list of used record types
+      int typeCount = in.readInt();
+      Set<String> supportedTasks = new HashSet<>();
+      for (ProfilerTask task : ProfilerTask.values()) {
+        supportedTasks.add(task.toString());
+      }
+      for (int i = 0; i < typeCount; i++) {
+        String name = in.readUTF();
+        if (supportedTasks.contains(name)) {
+          typeList.add(ProfilerTask.valueOf(name));
+        } else {
+          hasUnknownTypes = true;
+          typeList.add(ProfilerTask.UNKNOWN);
+        }
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  public String getComment() {
+    return comment;
+  }
+
+  /**
+   * Reads the next task record. Returns false at the end of the profile.
+   *
+   * @throws IOException if the profile can't be read, is corrupted or incomplete. Records read
+   *     before are valid.
+   */
+  public boolean next() throws IOException {
+    while (chunk == null || chunk.available() == 0) {
+      if (!readChunk()) {
+        return false;
+      }
+    }
+    int size = chunk.readInt();
+    byte[] backingArray = new byte[size];
+    chunk.readFully(backingArray);
+    ByteBuffer buffer = ByteBuffer.wrap(backingArray);
+    threadId = VarInt.getVarLong(buffer);
+    id = VarInt.getVarInt(buffer);
+    parentId = VarInt.getVarInt(buffer);
+    startTime = VarInt.getVarLong(buffer);
+    durationNanos = VarInt.getVarLong(buffer);
+    descIndex = VarInt.getVarInt(buffer) - 1;
+    if (descIndex == -1) {
+      descIndex = descriptions.size();
+      descriptions.add(chunk.readUTF());
+    } else if (descIndex >= descriptions.size()) {
+      throw new IOException("Invalid description index " + descIndex);
+    }
+    type = typeList.get(buffer.get());
+    stats = null;
+    if (buffer.hasRemaining()) {
+      // Copy aggregated stats.
+      int offset = buffer.position();
+      stats = Arrays.copyOfRange(backingArray, offset, size);
+      if (hasUnknownTypes) {
+        while (buffer.hasRemaining()) {
+          byte attrType = buffer.get();
+          if (typeList.get(attrType) == ProfilerTask.UNKNOWN) {
+            // We're dealing with unknown aggregated type - update stats array to
+            // use ProfilerTask.UNKNOWN.ordinal() value.
+            stats[buffer.position() - 1 - offset] = (byte) ProfilerTask.UNKNOWN.ordinal();
+          }
+          VarInt.getVarInt(buffer);
+          VarInt.getVarLong(buffer);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Reads and inflates the next chunk of records. Returns false at the end of the profile.
+   */
+  private boolean readChunk() throws IOException {
+    int deflatedSize = in.readInt();
+    if (deflatedSize == Profiler.EOF_MARKER) {
+      return false;
+    }
+    int size = in.readInt();
+    if (deflatedSize < 0 || size < 0) {
+      throw new IOException("Invalid chunk size");
+    }
+    byte[] deflated = new byte[deflatedSize];
+    in.readFully(deflated);
+    if (records.length < size) {
+      records = new byte[size];
+    }
+    inflater.reset();
+    inflater.setInput(deflated);
+    try {
+      int inflated = 0;
+      while (inflated < size && !inflater.finished()) {
+        int count = inflater.inflate(records, inflated, size - inflated);
+        if (count == 0 && inflater.needsInput()) {
+          throw new EOFException("Truncated chunk");
+        }
+        inflated += count;
+      }
+      if (inflated != size || !inflater.finished()) {
+        throw new IOException("Invalid chunk size");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted chunk", e);
+    }
+    chunk = new DataInputStream(new ByteArrayInputStream(records, 0, size));
+    return true;
+  }
+
+  /** Returns the id of the thread that executed the current task. */
+  public long getThreadId() {
+    return threadId;
+  }
+
+  /** Returns the id of the current task. */
+  public int getId() {
+    return id;
+  }
+
+  /** Returns the id of the parent of the current task, or 0 for root tasks. */
+  public int getParentId() {
+    return parentId;
+  }
+
+  /** Returns the start time of the current task, relative to the start of the profile. */
+  public long getStartTime() {
+    return startTime;
+  }
+
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  public ProfilerTask getType() {
+    return type;
+  }
+
+  /**
+   * Returns the index of the description of the current task. Equal indices denote the same
+   * description.
+   */
+  public int getDescriptionIndex() {
+    return descIndex;
+  }
+
+  public String getDescription() {
+    return descriptions.get(descIndex);
+  }
+
+  /**
+   * Returns the descriptions read so far, by index. The list grows as records are read.
+   */
+  List<String> getDescriptions() {
+    return descriptions;
+  }
+
+  /**
+   * Returns the aggregated statistics of the subtasks of the current task in the format used by
+   * {@link ProfileInfo}, or null if there are none.
+   */
+  byte[] getStats() {
+    return stats;
+  }
+
+  @Override
+  public void close() throws IOException {
+    inflater.end();
+    in.close();
+  }
+}
@@ -0,0 +1,317 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.devtools.build.lib.profiler.ProfilerTask.TASK_COUNT;
+
+import com.google.devtools.build.lib.profiler.ProfileInfo.CriticalPathEntry;
+import com.google.devtools.build.lib.profiler.ProfileInfo.InfoListener;
+import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * The phases and threads of a profile file and the roots of its tasks, read without keeping the
+ * tasks in memory, so that statistics and charts can be computed one task at a time with {@link
+ * #visitTasks}.
+ *
+ * <p>Only the phase tasks and the components of the recorded critical path are kept as {@link
+ * Task}s. The tree of the other tasks is kept as the id of the root of each task, in an int array
+ * indexed by task id, which is 4 bytes per task where {@link ProfileInfo#loadProfile} keeps a
+ * {@link Task} of about a hundred.
+ */
+public final class ProfileSummary {
+
+  /** Receives the tasks of a profile, together with the phase that their root belongs to. */
+  public interface PhaseTaskVisitor {
+    /**
+     * @param phaseTask the last phase task started before the root of {@code task}, which is
+     *     the task itself for root tasks, or null if the root started before the first phase or
+     *     {@code task} has no root in the profile
+     */
+    void visit(Task task, @Nullable Task phaseTask);
+  }
+
+  // Root id of tasks that are missing from the profile or whose root is.
+  private static final int NO_ROOT = -1;
+
+  private final Path profileFile;
+  private String comment;
+  private boolean corruptedOrIncomplete;
+  private int taskCount = 0;
+
+  // By task id, the id of the parent of the task while it is read, then the id of its root.
+  private int[] rootIds = new int[1024];
+  private final List<Task> phaseTasks = new ArrayList<>();
+  private Task lastRootTask;
+  private Task criticalPathTask;
+  private final List<Task> criticalPathComponents = new ArrayList<>();
+  // By thread id, the id of the first task of each type, by type ordinal, or 0 if there is none.
+  private final Map<Long, int[]> firstTaskIdsByThread = new HashMap<>();
+  // The latest end of the tasks of each type, by type ordinal.
+  private final long[] maxStops = new long[TASK_COUNT];
+
+  private ProfileSummary(Path profileFile) {
+    this.profileFile = profileFile;
+    Arrays.fill(rootIds, NO_ROOT);
+  }
+
+  /**
+   * Reads the summary of a profile file.
+   *
+   * @throws java.io.UnsupportedEncodingException if the file format is invalid
+   * @throws IOException if the file can't be read
+   */
+  public static ProfileSummary read(Path profileFile) throws IOException {
+    final ProfileSummary summary = new ProfileSummary(profileFile);
+    ProfileInfo info = ProfileInfo.visitProfile(profileFile, new ProfileInfo.TaskVisitor() {
+      @Override
+      public void visit(Task task) {
+        summary.add(task);
+      }
+    });
+    summary.comment = info.comment;
+    summary.corruptedOrIncomplete = info.isCorruptedOrIncomplete();
+    summary.resolveRoots();
+    Collections.sort(summary.phaseTasks);
+    Collections.sort(summary.criticalPathComponents);
+    return summary;
+  }
+
+  /**
+   * Reads the summary of a profile file, and reports what it is doing.
+   *
+   * @throws java.io.UnsupportedEncodingException if the file format is invalid
+   * @throws IOException if the file can't be read
+   */
+  public static ProfileSummary readVerbosely(Path profileFile, InfoListener reporter)
+      throws IOException {
+    reporter.info("Loading " + profileFile.getPathString());
+    ProfileSummary summary = read(profileFile);
+    if (summary.isCorruptedOrIncomplete()) {
+      reporter.warn("Profile file is incomplete or corrupted - not all records were parsed");
+    }
+    reporter.info(summary.comment + ", " + summary.taskCount + " record(s)");
+    return summary;
+  }
+
+  private void add(Task task) {
+    taskCount++;
+    if (task.id >= rootIds.length) {
+      int oldLength = rootIds.length;
+      rootIds = Arrays.copyOf(rootIds, Math.max(oldLength * 2, task.id + 1));
+      Arrays.fill(rootIds, oldLength, rootIds.length, NO_ROOT);
+    }
+    rootIds[task.id] = task.parentId;
+    if (task.parentId == 0) {
+      if (lastRootTask == null || task.id > lastRootTask.id) {
+        lastRootTask = task;
+      }
+      if (task.type == ProfilerTask.PHASE) {
+        phaseTasks.add(task);
+      } else if (task.type == ProfilerTask.CRITICAL_PATH
+          && (criticalPathTask == null || task.id < criticalPathTask.id)) {
+        criticalPathTask = task;
+      }
+    } else if (task.type == ProfilerTask.CRITICAL_PATH_COMPONENT) {
+      criticalPathComponents.add(task);
+    }
+
+    int[] firstTaskIds = firstTaskIdsByThread.get(task.threadId);
+    if (firstTaskIds == null) {
+      firstTaskIds = new int[TASK_COUNT];
+      firstTaskIdsByThread.put(task.threadId, firstTaskIds);
+    }
+    int type = task.type.ordinal();
+    if (firstTaskIds[type] == 0 || task.id < firstTaskIds[type]) {
+      firstTaskIds[type] = task.id;
+    }
+    maxStops[type] = Math.max(maxStops[type], task.startTime + task.durationNanos);
+  }
+
+  /**
+   * Replaces the parent ids by root ids. Tasks are started after their parent, so parents have
+   * smaller ids.
+   */
+  private void resolveRoots() {
+    for (int id = 0; id < rootIds.length; id++) {
+      int parentId = rootIds[id];
+      if (parentId == 0) {
+        rootIds[id] = id;
+      } else if (parentId != NO_ROOT) {
+        rootIds[id] = parentId < id ? rootIds[parentId] : NO_ROOT;
+      }
+    }
+  }
+
+  public Path getProfileFile() {
+    return profileFile;
+  }
+
+  public String getComment() {
+    return comment;
+  }
+
+  /**
+   * Returns true if the profile file was corrupted or incomplete and false otherwise.
+   */
+  public boolean isCorruptedOrIncomplete() {
+    return corruptedOrIncomplete;
+  }
+
+  /**
+   * Returns the id of the root task of the task with the given id, or -1 if the task or its
+   * root is not in the profile.
+   */
+  public int getRootId(int taskId) {
+    return taskId > 0 && taskId < rootIds.length ? rootIds[taskId] : NO_ROOT;
+  }
+
+  /**
+   * Returns the first phase task of the given phase, or null if the phase was not executed.
+   *
+   * @see ProfileInfo#getPhaseTask
+   */
+  @Nullable
+  public Task getPhaseTask(ProfilePhase phase) {
+    for (Task task : phaseTasks) {
+      if (task.getDescription().equals(phase.description)) {
+        return task;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the duration of the given phase in ns, which lasts until the next phase or the end of
+   * the last root task.
+   *
+   * @see ProfileInfo#getPhaseDuration
+   */
+  public long getPhaseDuration(Task phaseTask) {
+    int index = Collections.binarySearch(phaseTasks, phaseTask);
+    Preconditions.checkArgument(index >= 0, "Unsupported task %s", phaseTask);
+    long duration;
+    if (index + 1 < phaseTasks.size()) {
+      duration = phaseTasks.get(index + 1).startTime - phaseTask.startTime;
+    } else {
+      duration = lastRootTask.startTime + lastRootTask.durationNanos - phaseTask.startTime;
+    }
+    Preconditions.checkState(duration >= 0);
+    return duration;
+  }
+
+  /**
+   * Returns the critical path that the build recorded, or null if the execution phase was not
+   * executed or the build did not record a critical path. Each call returns a new path.
+   *
+   * <p>This is what {@link ProfileInfo#getCriticalPath} returns when the action graph has not
+   * been analyzed.
+   *
+   * @see ProfileInfo#getCriticalPathNewVersion
+   */
+  @Nullable
+  public CriticalPathEntry getCriticalPath() {
+    if (getPhaseTask(ProfilePhase.EXECUTE) == null || criticalPathTask == null) {
+      return null;
+    }
+    CriticalPathEntry entry = null;
+    for (Task task : criticalPathComponents) {
+      if (task.parentId == criticalPathTask.id) {
+        entry = new CriticalPathEntry(task, task.durationNanos, entry);
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Returns the ids of the threads that ran tasks of the given types, in the order of their first
+   * such task.
+   */
+  public List<Long> getThreadIds(Set<ProfilerTask> types) {
+    final Map<Long, Integer> firstIds = new HashMap<>();
+    for (Map.Entry<Long, int[]> entry : firstTaskIdsByThread.entrySet()) {
+      int first = Integer.MAX_VALUE;
+      for (ProfilerTask type : types) {
+        int id = entry.getValue()[type.ordinal()];
+        if (id != 0) {
+          first = Math.min(first, id);
+        }
+      }
+      if (first != Integer.MAX_VALUE) {
+        firstIds.put(entry.getKey(), first);
+      }
+    }
+    List<Long> threadIds = new ArrayList<>(firstIds.keySet());
+    Collections.sort(threadIds, new Comparator<Long>() {
+      @Override
+      public int compare(Long a, Long b) {
+        return Integer.compare(firstIds.get(a), firstIds.get(b));
+      }
+    });
+    return threadIds;
+  }
+
+  /**
+   * Returns the latest end of the tasks of the given types, relative to the start of the profile.
+   */
+  public long getMaxStop(Set<ProfilerTask> types) {
+    long maxStop = 0;
+    for (ProfilerTask type : types) {
+      maxStop = Math.max(maxStop, maxStops[type.ordinal()]);
+    }
+    return maxStop;
+  }
+
+  /**
+   * Reads the profile again and passes each task to the visitors, in the order in which they are
+   * stored.
+   *
+   * @throws IOException if the file can't be read
+   */
+  public void visitTasks(final PhaseTaskVisitor... visitors) throws IOException {
+    final int[] phaseTaskIds = new int[phaseTasks.size()];
+    for (int i = 0; i < phaseTaskIds.length; i++) {
+      phaseTaskIds[i] = phaseTasks.get(i).id;
+    }
+    ProfileInfo.visitProfile(profileFile, new ProfileInfo.TaskVisitor() {
+      @Override
+      public void visit(Task task) {
+        Task phaseTask = null;
+        int rootId = getRootId(task.id);
+        if (rootId != NO_ROOT) {
+          int index = Arrays.binarySearch(phaseTaskIds, rootId);
+          // The last phase that started before the root, if the root is not a phase itself.
+          index = index >= 0 ? index : -index - 2;
+          phaseTask = index >= 0 ? phaseTasks.get(index) : null;
+        }
+        for (PhaseTaskVisitor visitor : visitors) {
+          visitor.visit(task, phaseTask);
+        }
+      }
+    });
+  }
+}
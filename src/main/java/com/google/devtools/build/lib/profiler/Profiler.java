@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.profiler;
 
 import static com.google.devtools.build.lib.profiler.ProfilerTask.TASK_COUNT;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -25,6 +26,7 @@ import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.VarInt;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -52,7 +54,10 @@ import java.util.zip.DeflaterOutputStream;
  * obtain reference.
  * <p>
  * Internally, profiler uses two data structures - ThreadLocal task stack to track
- * nested tasks and single ConcurrentLinkedQueue to gather all completed tasks.
+ * nested tasks and ThreadLocal lock-free ring buffers to gather all completed
+ * tasks. Tasks of a thread whose ring buffer is full are added to a shared
+ * ConcurrentLinkedQueue instead, so that no task is lost if the save thread
+ * falls behind.
  * <p>
  * Also, due to the nature of the provided functionality (instrumentation of all
  * Blaze components), build.lib.profiler package will be used by almost every
@@ -68,10 +73,10 @@ import java.util.zip.DeflaterOutputStream;
  * would be more robust and stable solution.
  * <p>
  * <pre>
- * Profiler file consists of the deflated stream with following overall structure:
+ * Profiler file has the following overall structure:
  *   HEADER
  *   TASK_TYPE_TABLE
- *   TASK_RECORD...
+ *   CHUNK...
  *   EOF_MARKER
  *
  * HEADER:
@@ -84,6 +89,14 @@ import java.util.zip.DeflaterOutputStream;
  *   string... : type names. Each of the type names is assigned id according to
  *               their position in this table starting from 0.
  *
+ * CHUNK:
+ *   int32: size of the deflated records below
+ *   int32: size of the records below once inflated
+ *   byte[]: TASK_RECORD... deflated independently of the other chunks, so
+ *           that the file can be read (and written) one chunk at a time and
+ *           a file that was not completely written still contains all
+ *           complete chunks.
+ *
  * TASK_RECORD:
  *   int32 size: size of the encoded task record
  *   byte[size] encoded_task_record:
@@ -101,7 +114,7 @@ import java.util.zip.DeflaterOutputStream;
  *           string index above was 0. In that case this string will be
  *           assigned next sequential id so every unique description string
  *           will appear in the file only once - after that it will be
- *           referenced by id.
+ *           referenced by id, also from records of later chunks.
  *
  * AGGREGATE_STAT:
  *   byte:     stat type
@@ -109,8 +122,8 @@ import java.util.zip.DeflaterOutputStream;
  *   varint64: cumulative duration of subtask invocations in ns.
  *
  * EOF_MARKER:
- *   int64: -1 - please note that this corresponds to the thread id in the
- *               TASK_RECORD which is always > 0
+ *   int32: -1 - please note that this corresponds to the chunk size which is
+ *               always > 0
  * </pre>
  *
  * @see ProfilerTask enum for recognized task types.
@@ -122,7 +135,7 @@ public final class Profiler {
   // File version number. Note that merely adding new record types in
   // the ProfilerTask does not require bumping version number as long as original
   // enum values are not renamed or deleted.
-  static final int VERSION = 0x03;
+  static final int VERSION = 0x04;
 
   // EOF marker. Must be < 0.
   static final int EOF_MARKER = -1;
@@ -131,6 +144,12 @@ public final class Profiler {
   // separate thread every SAVE_DELAY ms.
   private static final int SAVE_DELAY = 2000; // ms
 
+  // Number of completed tasks each thread can buffer until the next save.
+  private static final int TASK_BUFFER_SIZE = 1024;
+
+  // Approximate maximum size of the records of a chunk before they are deflated.
+  private static final int CHUNK_SIZE = 1024 * 1024;
+
   /**
    * The profiler (a static singleton instance). Inactive by default.
    */
@@ -284,6 +303,32 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Gathers completed tasks for each thread.
+   *
+   * <p>Every thread records its tasks in its own {@link TaskRingBuffer}, so recording does not
+   * contend with other threads. All buffers are drained by the save() method, which is the only
+   * consumer. Tasks are therefore not saved in the order in which they were completed.
+   */
+  //@ThreadSafe - commented out to avoid cyclic dependency with lib.util.
+  private final class TaskRecorder extends ThreadLocal<TaskRingBuffer<TaskData>> {
+    private final Queue<TaskRingBuffer<TaskData>> buffers = new ConcurrentLinkedQueue<>();
+    private final Queue<TaskData> overflow = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public TaskRingBuffer<TaskData> initialValue() {
+      TaskRingBuffer<TaskData> buffer = new TaskRingBuffer<>(TASK_BUFFER_SIZE);
+      buffers.add(buffer);
+      return buffer;
+    }
+
+    public void add(TaskData data) {
+      if (!get().offer(data)) {
+        overflow.add(data);
+      }
+    }
+  }
+
   private static String toDescription(Object object) {
     return (object instanceof Describable)
         ? ((Describable) object).describe()
@@ -452,8 +497,10 @@ public final class Profiler {
   private AtomicInteger taskId = new AtomicInteger();
 
   private TaskStack taskStack;
-  private Queue<TaskData> taskQueue;
+  private TaskRecorder taskRecorder;
   private DataOutputStream out;
+  private ByteArrayOutputStream chunk;
+  private Deflater deflater;
   private Timer timer;
   private IOException saveException;
   private ObjectDescriber describer;
@@ -529,7 +576,6 @@ public final class Profiler {
       throws IOException {
     Preconditions.checkState(!isActive(), "Profiler already active");
     taskStack = new TaskStack();
-    taskQueue = new ConcurrentLinkedQueue<>();
     describer = new ObjectDescriber();
 
     this.profiledTaskKinds = profiledTaskKinds;
@@ -546,12 +592,10 @@ public final class Profiler {
     this.saveException = null;
     if (stream != null) {
       this.timer = new Timer("ProfilerTimer", true);
-      // Wrapping deflater stream in the buffered stream proved to reduce CPU consumption caused by
-      // the save() method. Values for buffer sizes were chosen by running small amount of tests
-      // and identifying point of diminishing returns - but I have not really tried to optimize
-      // them.
-      this.out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
-          stream, new Deflater(Deflater.BEST_SPEED, false), 65536), 262144));
+      this.taskRecorder = new TaskRecorder();
+      this.out = new DataOutputStream(new BufferedOutputStream(stream, 262144));
+      this.chunk = new ByteArrayOutputStream(CHUNK_SIZE + 65536);
+      this.deflater = new Deflater(Deflater.BEST_SPEED, false);
 
       this.out.writeInt(MAGIC); // magic
       this.out.writeInt(VERSION); // protocol_version
@@ -562,12 +606,14 @@ public final class Profiler {
       for (ProfilerTask type : ProfilerTask.values()) {
         this.out.writeUTF(type.toString());
       }
+      this.out.flush();
 
       // Start save thread
       timer.schedule(new TimerTask() {
         @Override public void run() { save(); }
       }, SAVE_DELAY, SAVE_DELAY);
     } else {
+      this.taskRecorder = null;
       this.out = null;
     }
 
@@ -617,6 +663,7 @@ public final class Profiler {
       out.writeInt(EOF_MARKER);
       out.close();
       out = null;
+      deflater.end();
     }
   }
 
@@ -632,53 +679,29 @@ public final class Profiler {
   }
 
   /**
-   * Saves all gathered information from taskQueue queue to the file.
-   * Method is invoked internally by the Timer-based thread and at the end of
-   * profiling session.
+   * Saves all gathered tasks to the file, in chunks of at most about CHUNK_SIZE
+   * bytes. Method is invoked internally by the Timer-based thread and at the end
+   * of profiling session.
    */
-  private synchronized void save() {
+  @VisibleForTesting
+  synchronized void save() {
     if (out == null) {
       return;
     }
     try {
       // Allocate the sink once to avoid GC
       ByteBuffer sink = ByteBuffer.allocate(1024);
-      while (!taskQueue.isEmpty()) {
-        sink.clear();
-        TaskData data = taskQueue.poll();
-
-        VarInt.putVarLong(data.threadId, sink);
-        VarInt.putVarInt(data.id, sink);
-        VarInt.putVarInt(data.parentId, sink);
-        VarInt.putVarLong(data.startTime - profileStartTime, sink);
-        VarInt.putVarLong(data.duration, sink);
-
-        // To save space (and improve performance), convert all description
-        // strings to the canonical object and use IdentityHashMap to assign
-        // unique numbers for each string.
-        int descIndex = describer.getDescriptionIndex(data.object);
-        VarInt.putVarInt(descIndex + 1, sink); // Add 1 to avoid encoding negative values.
-
-        // Save types using their ordinal() value
-        sink.put((byte) data.type.ordinal());
-
-        // Save aggregated data stats.
-        if (data.counts != null) {
-          for (int i = 0; i < TASK_COUNT; i++) {
-            if (data.counts[i] > 0) {
-              sink.put((byte) i); // aggregated type ordinal value
-              VarInt.putVarInt(data.counts[i], sink);
-              VarInt.putVarLong(data.durations[i], sink);
-            }
-          }
-        }
-
-        this.out.writeInt(sink.position());
-        this.out.write(sink.array(), 0, sink.position());
-        if (describer.isUnassigned(descIndex)) {
-          this.out.writeUTF(describer.getDescription(data.object));
+      DataOutputStream records = new DataOutputStream(chunk);
+      TaskData data;
+      for (TaskRingBuffer<TaskData> buffer : taskRecorder.buffers) {
+        while ((data = buffer.poll()) != null) {
+          saveTask(data, sink, records);
         }
       }
+      while ((data = taskRecorder.overflow.poll()) != null) {
+        saveTask(data, sink, records);
+      }
+      writeChunk();
       this.out.flush();
     } catch (IOException e) {
       saveException = e;
@@ -691,6 +714,64 @@ public final class Profiler {
     }
   }
 
+  private void saveTask(TaskData data, ByteBuffer sink, DataOutputStream records)
+      throws IOException {
+    sink.clear();
+
+    VarInt.putVarLong(data.threadId, sink);
+    VarInt.putVarInt(data.id, sink);
+    VarInt.putVarInt(data.parentId, sink);
+    VarInt.putVarLong(data.startTime - profileStartTime, sink);
+    VarInt.putVarLong(data.duration, sink);
+
+    // To save space (and improve performance), convert all description
+    // strings to the canonical object and use IdentityHashMap to assign
+    // unique numbers for each string.
+    int descIndex = describer.getDescriptionIndex(data.object);
+    VarInt.putVarInt(descIndex + 1, sink); // Add 1 to avoid encoding negative values.
+
+    // Save types using their ordinal() value
+    sink.put((byte) data.type.ordinal());
+
+    // Save aggregated data stats.
+    if (data.counts != null) {
+      for (int i = 0; i < TASK_COUNT; i++) {
+        if (data.counts[i] > 0) {
+          sink.put((byte) i); // aggregated type ordinal value
+          VarInt.putVarInt(data.counts[i], sink);
+          VarInt.putVarLong(data.durations[i], sink);
+        }
+      }
+    }
+
+    records.writeInt(sink.position());
+    records.write(sink.array(), 0, sink.position());
+    if (describer.isUnassigned(descIndex)) {
+      records.writeUTF(describer.getDescription(data.object));
+    }
+    if (chunk.size() >= CHUNK_SIZE) {
+      writeChunk();
+    }
+  }
+
+  /**
+   * Deflates the records gathered in the chunk buffer and writes them to the file.
+   */
+  private void writeChunk() throws IOException {
+    if (chunk.size() == 0) {
+      return;
+    }
+    ByteArrayOutputStream deflated = new ByteArrayOutputStream(chunk.size() / 4);
+    DeflaterOutputStream deflaterStream = new DeflaterOutputStream(deflated, deflater, 65536);
+    chunk.writeTo(deflaterStream);
+    deflaterStream.finish();
+    deflater.reset();
+    out.writeInt(deflated.size());
+    out.writeInt(chunk.size());
+    deflated.writeTo(out);
+    chunk.reset();
+  }
+
   private synchronized void clear() {
     initHistograms();
     profileStartTime = 0L;
@@ -699,7 +780,7 @@ public final class Profiler {
       timer = null;
     }
     taskStack = null;
-    taskQueue = null;
+    taskRecorder = null;
     describer = null;
 
     // Note that slowest task aggregator are not cleared here because clearing happens
@@ -740,8 +821,9 @@ public final class Profiler {
     if (wasTaskSlowEnoughToRecord(type, duration)) {
       TaskData data = taskStack.create(startTime, type, object);
       data.duration = duration;
-      if (out != null) {
-        taskQueue.add(data);
+      TaskRecorder recorder = taskRecorder;
+      if (recorder != null) {
+        recorder.add(data);
       }
 
       SlowestTaskAggregator aggregator = slowestTasks[type.ordinal()];
@@ -864,8 +946,9 @@ public final class Profiler {
         taskStack.peek().aggregateChild(data.type, data.duration);
       }
       boolean shouldRecordTask = wasTaskSlowEnoughToRecord(type, data.duration);
-      if (out != null && (shouldRecordTask || data.counts != null)) {
-        taskQueue.add(data);
+      TaskRecorder recorder = taskRecorder;
+      if (recorder != null && (shouldRecordTask || data.counts != null)) {
+        recorder.add(data);
       }
 
       if (shouldRecordTask) {
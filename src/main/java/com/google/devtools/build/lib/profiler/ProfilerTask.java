@@ -90,6 +90,9 @@ public enum ProfilerTask {
   SKYLARK_USER_FN("Skylark user function call", -1, 0xCC0033, 0),
   SKYLARK_BUILTIN_FN("Skylark builtin function call", -1, 0x990033, 0),
   SKYLARK_USER_COMPILED_FN("Skylark compiled user function call", -1, 0xCC0033, 0),
+  DIGEST("file digest", 10000000, 0x999999, 30),
+  RESOURCE_USAGE("resource usage", -1, 0x666666, 0),
+  SKYFUNCTION_STATS("skyfunction statistics", -1, 0x996600, 0),
   UNKNOWN("Unknown event", -1, 0x339966, 0);
 
   // Size of the ProfilerTask value space.
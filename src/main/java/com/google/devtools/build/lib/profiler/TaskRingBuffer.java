@@ -0,0 +1,75 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread.
+ *
+ * <p>The profiler gives every thread its own buffer to record completed tasks in, so recording a
+ * task neither takes a lock nor contends with other threads; the save thread is the only consumer.
+ */
+//@ThreadSafe - commented out to avoid cyclic dependency with lib.util package
+final class TaskRingBuffer<T> {
+  private final AtomicReferenceArray<T> slots;
+  private final int mask;
+  // Index of the next element to poll. Only written by the consumer.
+  private final AtomicLong head = new AtomicLong();
+  // Index of the next element to offer. Only written by the producer.
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * Creates a buffer that holds up to {@code capacity} elements, which must be a power of two.
+   */
+  TaskRingBuffer(int capacity) {
+    if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+    }
+    slots = new AtomicReferenceArray<>(capacity);
+    mask = capacity - 1;
+  }
+
+  /**
+   * Adds the element to the buffer, or returns false if the buffer is full. Must only be called by
+   * the producer thread.
+   */
+  boolean offer(T element) {
+    long index = tail.get();
+    if (index - head.get() > mask) {
+      return false;
+    }
+    slots.lazySet((int) index & mask, element);
+    // The ordered write publishes the element before the new tail.
+    tail.lazySet(index + 1);
+    return true;
+  }
+
+  /**
+   * Removes and returns the oldest element of the buffer, or returns null if it is empty. Must
+   * only be called by the consumer thread.
+   */
+  T poll() {
+    long index = head.get();
+    if (index == tail.get()) {
+      return null;
+    }
+    int slot = (int) index & mask;
+    T element = slots.get(slot);
+    slots.lazySet(slot, null);
+    head.lazySet(index + 1);
+    return element;
+  }
+}
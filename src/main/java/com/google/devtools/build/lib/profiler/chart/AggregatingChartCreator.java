@@ -14,10 +14,12 @@
 
 package com.google.devtools.build.lib.profiler.chart;
 
-import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
+import com.google.devtools.build.lib.profiler.ProfileSummary;
+import com.google.devtools.build.lib.profiler.ProfileSummary.PhaseTaskVisitor;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 
+import java.io.IOException;
 import java.util.EnumSet;
 import java.util.Set;
 
@@ -60,7 +62,7 @@ public class AggregatingChartCreator implements ChartCreator {
           ProfilerTask.VFS_XATTR);
 
   /** The data of the profiled build. */
-  private final ProfileInfo info;
+  private final ProfileSummary summary;
 
   /** If true, VFS related information is added to the chart. */
   private final boolean showVFS;
@@ -81,44 +83,62 @@ public class AggregatingChartCreator implements ChartCreator {
    * Creates the chart creator. The created {@link ChartCreator} does not add
    * VFS related data to the generated chart.
    *
-   * @param info the data of the profiled build
+   * @param summary the data of the profiled build
    */
-  public AggregatingChartCreator(ProfileInfo info) {
-    this(info, false);
+  public AggregatingChartCreator(ProfileSummary summary) {
+    this(summary, false);
   }
 
   /**
    * Creates the chart creator.
    *
-   * @param info the data of the profiled build
+   * @param summary the data of the profiled build
    * @param showVFS if true, VFS related information is added to the chart
    */
-  public AggregatingChartCreator(ProfileInfo info, boolean showVFS) {
-    this.info = info;
+  public AggregatingChartCreator(ProfileSummary summary, boolean showVFS) {
+    this.summary = summary;
     this.showVFS = showVFS;
   }
 
   @Override
   public Chart create() {
     Chart chart = new Chart();
-    CommonChartCreator.createCommonChartItems(chart, info);
+    CommonChartCreator.createCommonChartItems(chart, summary);
     createTypes(chart);
 
-    for (ProfileInfo.Task task : info.allTasksById) {
-      if (ACTION_TASKS.contains(task.type)) {
-        createBar(chart, task, actionType);
-      } else if (LOCK_TASKS.contains(task.type)) {
-        createBar(chart, task, lockType);
-      } else if (BLAZE_TASKS.contains(task.type)) {
-        createBar(chart, task, blazeType);
-      } else if (showVFS && VFS_TASKS.contains(task.type)) {
-        createBar(chart, task, vfsType);
-      }
+    Set<ProfilerTask> types = EnumSet.noneOf(ProfilerTask.class);
+    types.addAll(ACTION_TASKS);
+    types.addAll(LOCK_TASKS);
+    types.addAll(BLAZE_TASKS);
+    if (showVFS) {
+      types.addAll(VFS_TASKS);
     }
+    for (long threadId : summary.getThreadIds(types)) {
+      chart.addRow(threadId);
+    }
+    chart.extendTo(summary.getMaxStop(types));
 
     return chart;
   }
 
+  @Override
+  public void addBars(final Chart chart) throws IOException {
+    summary.visitTasks(new PhaseTaskVisitor() {
+      @Override
+      public void visit(Task task, Task phaseTask) {
+        if (ACTION_TASKS.contains(task.type)) {
+          createBar(chart, task, actionType);
+        } else if (LOCK_TASKS.contains(task.type)) {
+          createBar(chart, task, lockType);
+        } else if (BLAZE_TASKS.contains(task.type)) {
+          createBar(chart, task, blazeType);
+        } else if (showVFS && VFS_TASKS.contains(task.type)) {
+          createBar(chart, task, vfsType);
+        }
+      }
+    });
+  }
+
   /**
    * Creates a bar and adds it to the chart.
    *
@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.profiler.chart;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -46,6 +47,9 @@ public class Chart {
   /** The maximum stop value of any bar in the chart. */
   private long maxStop;
 
+  /** The visitor that bars are passed to instead of being added to their row, if any. */
+  private ChartVisitor barVisitor;
+
   /**
    * Adds a bar to a row of the chart. If a row with the given id already
    * exists, the bar is added to the row, otherwise a new row is created and the
@@ -62,7 +66,11 @@ public class Chart {
       String label) {
     ChartRow slot = addSlotIfAbsent(id);
     ChartBar bar = new ChartBar(slot, start, stop, type, highlight, label);
-    slot.addBar(bar);
+    if (barVisitor != null) {
+      bar.accept(barVisitor);
+    } else {
+      slot.addBar(bar);
+    }
     maxStop = Math.max(maxStop, stop);
   }
 
@@ -81,6 +89,22 @@ public class Chart {
     addBar(id, start, stop, type, false, label);
   }
 
+  /**
+   * Adds a row with the given id to the chart, if there is none yet. Rows are indexed in the
+   * order in which they are added.
+   */
+  public void addRow(long id) {
+    addSlotIfAbsent(id);
+  }
+
+  /**
+   * Makes the chart at least as long as the given stop value, so that bars ending there can be
+   * added while the chart is visited.
+   */
+  public void extendTo(long stop) {
+    maxStop = Math.max(maxStop, stop);
+  }
+
   /**
    * Adds a vertical line to the chart.
    */
@@ -163,6 +187,39 @@ public class Chart {
     for (ChartRow slot : rows.values()) {
       slot.accept(visitor);
     }
+    endAccept(visitor);
+  }
+
+  /**
+   * Accepts a {@link ChartVisitor} like {@link #accept(ChartVisitor)}, and has the creator of
+   * the chart add the bars after the rows are visited. The bars are passed to the visitor as
+   * they are added instead of being kept in the chart, so the chart must already have all its
+   * rows and be as long as its bars.
+   *
+   * @param visitor the visitor to accept
+   * @param creator the creator of the chart
+   * @throws IOException if the creator fails to read the bars
+   * @see ChartCreator#addBars(Chart)
+   */
+  public void accept(ChartVisitor visitor, ChartCreator creator) throws IOException {
+    visitor.visit(this);
+    for (ChartRow slot : rows.values()) {
+      slot.accept(visitor);
+    }
+    barVisitor = visitor;
+    try {
+      creator.addBars(this);
+    } finally {
+      barVisitor = null;
+    }
+    endAccept(visitor);
+  }
+
+  /**
+   * Delegates the visitor to the columns and lines of the chart and calls
+   * {@link ChartVisitor#endVisit(Chart)}.
+   */
+  private void endAccept(ChartVisitor visitor) {
     int rowCount = getRowCount();
     for (ChartColumn column : columns) {
       column.setRowCount(rowCount);
@@ -14,7 +14,7 @@
 
 package com.google.devtools.build.lib.profiler.chart;
 
-import com.google.devtools.build.lib.profiler.chart.Chart;
+import java.io.IOException;
 
 /**
  * Interface for classes that are capable of creating {@link Chart}s.
@@ -22,7 +22,16 @@ import com.google.devtools.build.lib.profiler.chart.Chart;
 public interface ChartCreator {
 
   /**
-   * Creates a {@link Chart}.
+   * Creates a {@link Chart} with the types, rows and columns of the profile, and as long as its
+   * tasks, but without the bars of the tasks.
    */
   Chart create();
+
+  /**
+   * Adds the bars of the tasks of the profile to a chart returned by {@link #create()}.
+   *
+   * @throws IOException if the profile file can't be read
+   * @see Chart#accept(ChartVisitor, ChartCreator)
+   */
+  void addBars(Chart chart) throws IOException;
 }
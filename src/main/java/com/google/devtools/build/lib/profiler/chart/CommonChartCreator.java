@@ -14,29 +14,30 @@
 
 package com.google.devtools.build.lib.profiler.chart;
 
-import com.google.devtools.build.lib.profiler.ProfileInfo;
+import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
+import com.google.devtools.build.lib.profiler.ProfileSummary;
 
 /**
  * Provides some common functions for {@link ChartCreator}s.
  */
 public final class CommonChartCreator {
 
-  static void createCommonChartItems(Chart chart, ProfileInfo info) {
+  static void createCommonChartItems(Chart chart, ProfileSummary summary) {
     createTypes(chart);
 
     // add common info
     for (ProfilePhase phase : ProfilePhase.values()) {
-      addColumn(chart,info,phase);
+      addColumn(chart, summary, phase);
     }
   }
 
-  private static void addColumn(Chart chart, ProfileInfo info, ProfilePhase phase) {
-    ProfileInfo.Task task = info.getPhaseTask(phase);
+  private static void addColumn(Chart chart, ProfileSummary summary, ProfilePhase phase) {
+    Task task = summary.getPhaseTask(phase);
     if (task != null) {
       String label = task.type.description + ": " + task.getDescription();
       ChartBarType type = chart.lookUpType(task.getDescription());
-      long stop = task.startTime + info.getPhaseDuration(task);
+      long stop = task.startTime + summary.getPhaseDuration(task);
       chart.addTimeRange(task.startTime, stop, type, label);
     }
   }
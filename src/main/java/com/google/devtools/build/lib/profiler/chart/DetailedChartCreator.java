@@ -14,12 +14,19 @@
 
 package com.google.devtools.build.lib.profiler.chart;
 
-import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.CriticalPathEntry;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
+import com.google.devtools.build.lib.profiler.ProfileSummary;
+import com.google.devtools.build.lib.profiler.ProfileSummary.PhaseTaskVisitor;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 
+import java.io.IOException;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
 
 /**
  * Implementation of {@link ChartCreator} that creates Gantt Charts that contain
@@ -28,54 +35,70 @@ import java.util.EnumSet;
 public class DetailedChartCreator implements ChartCreator {
 
   /** The data of the profiled build. */
-  private final ProfileInfo info;
+  private final ProfileSummary summary;
+
+  /** The entries of the critical path for root tasks, by task id. */
+  private final Map<Integer, CriticalPathEntry> criticalPathEntries = new HashMap<>();
 
   /**
    * Creates the chart creator.
    *
-   * @param info the data of the profiled build
+   * @param summary the data of the profiled build
+   * @param criticalPath the critical path of the build, whose root tasks are highlighted
    */
-  public DetailedChartCreator(ProfileInfo info) {
-    this.info = info;
+  public DetailedChartCreator(ProfileSummary summary, @Nullable CriticalPathEntry criticalPath) {
+    this.summary = summary;
+    for (CriticalPathEntry entry = criticalPath; entry != null; entry = entry.next) {
+      if (entry.task.parentId == 0 && !criticalPathEntries.containsKey(entry.task.id)) {
+        criticalPathEntries.put(entry.task.id, entry);
+      }
+    }
   }
 
   @Override
   public Chart create() {
     Chart chart = new Chart();
-    CommonChartCreator.createCommonChartItems(chart, info);
+    CommonChartCreator.createCommonChartItems(chart, summary);
     createTypes(chart);
 
-    // calculate the critical path
-    EnumSet<ProfilerTask> typeFilter = EnumSet.noneOf(ProfilerTask.class);
-    CriticalPathEntry criticalPath = info.getCriticalPath(typeFilter);
-    info.analyzeCriticalPath(typeFilter, criticalPath);
+    Set<ProfilerTask> types = EnumSet.allOf(ProfilerTask.class);
+    for (long threadId : summary.getThreadIds(types)) {
+      chart.addRow(threadId);
+    }
+    chart.extendTo(summary.getMaxStop(types));
 
-    for (Task task : info.allTasksById) {
-      String label = task.type.description + ": " + task.getDescription();
-      ChartBarType type = chart.lookUpType(task.type.description);
-      long stop = task.startTime + task.durationNanos;
-      CriticalPathEntry entry = null;
+    return chart;
+  }
 
-      // for top level tasks, check if they are on the critical path
-      if (task.parentId == 0 && criticalPath != null) {
-        entry = info.getNextCriticalPathEntryForTask(criticalPath, task);
-        // find next top-level entry
-        if (entry != null) {
-          CriticalPathEntry nextEntry = entry.next;
-          while (nextEntry != null && nextEntry.task.parentId != 0) {
-            nextEntry = nextEntry.next;
-          }
-          if (nextEntry != null) {
-            // time is start and not stop as we traverse the critical back backwards
-            chart.addVerticalLine(task.threadId, nextEntry.task.threadId, task.startTime);
+  @Override
+  public void addBars(final Chart chart) throws IOException {
+    summary.visitTasks(new PhaseTaskVisitor() {
+      @Override
+      public void visit(Task task, Task phaseTask) {
+        String label = task.type.description + ": " + task.getDescription();
+        ChartBarType type = chart.lookUpType(task.type.description);
+        long stop = task.startTime + task.durationNanos;
+        CriticalPathEntry entry = null;
+
+        // for top level tasks, check if they are on the critical path
+        if (task.parentId == 0) {
+          entry = criticalPathEntries.get(task.id);
+          // find next top-level entry
+          if (entry != null) {
+            CriticalPathEntry nextEntry = entry.next;
+            while (nextEntry != null && nextEntry.task.parentId != 0) {
+              nextEntry = nextEntry.next;
+            }
+            if (nextEntry != null) {
+              // time is start and not stop as we traverse the critical back backwards
+              chart.addVerticalLine(task.threadId, nextEntry.task.threadId, task.startTime);
+            }
           }
         }
-      }
 
-      chart.addBar(task.threadId, task.startTime, stop, type, (entry != null), label);
-    }
-
-    return chart;
+        chart.addBar(task.threadId, task.startTime, stop, type, (entry != null), label);
+      }
+    });
   }
 
   /**
@@ -0,0 +1,214 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler.output;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.profiler.ProfileInfo;
+import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Converts a profile file to the JSON trace event format, which can be displayed by the Chrome
+ * trace viewer (chrome://tracing) and Perfetto.
+ *
+ * <p>Every thread gets its own lane with the tasks it executed. Two counters are added: the number
+ * of actions in progress and the resources in use according to the {@code ResourceManager}.
+ *
+ * <p>Tasks are converted while the profile is read, so that only the times needed for the action
+ * counter are held in memory.
+ */
+public final class ChromeTraceCreator implements ProfileInfo.TaskVisitor {
+
+  private static final int PID = 1;
+
+  private final JsonWriter json;
+  private final Set<Long> threadIds = new TreeSet<>();
+  private long[] actionStartTimes = new long[1024];
+  private long[] actionEndTimes = new long[1024];
+  private int actionCount = 0;
+  // The first error writing the trace. Stops the conversion.
+  private IOException writeError = null;
+
+  private ChromeTraceCreator(Writer out) {
+    json = new JsonWriter(out);
+  }
+
+  /**
+   * Converts the profile file and writes the trace to the given file.
+   *
+   * @return ProfileInfo object that contains no tasks, see
+   *     {@link ProfileInfo#visitProfile(Path, ProfileInfo.TaskVisitor)}
+   * @throws IOException if the profile can't be read or the trace can't be written
+   */
+  public static ProfileInfo create(Path profileFile, Path traceFile) throws IOException {
+    try (Writer out =
+        new BufferedWriter(new OutputStreamWriter(traceFile.getOutputStream(), UTF_8))) {
+      ChromeTraceCreator creator = new ChromeTraceCreator(out);
+      creator.json.beginObject();
+      creator.json.name("displayTimeUnit").value("ms");
+      creator.json.name("traceEvents").beginArray();
+      ProfileInfo info = ProfileInfo.visitProfile(profileFile, creator);
+      if (creator.writeError != null) {
+        throw creator.writeError;
+      }
+      creator.writeThreadNames(info.comment);
+      creator.writeActionCounter();
+      creator.json.endArray();
+      creator.json.endObject();
+      creator.json.flush();
+      return info;
+    }
+  }
+
+  @Override
+  public void visit(Task task) {
+    if (writeError != null) {
+      return;
+    }
+    try {
+      if (task.type == ProfilerTask.RESOURCE_USAGE) {
+        writeCounter("resources", task.startTime, task.getDescription());
+        return;
+      }
+      threadIds.add(task.threadId);
+      if (task.type == ProfilerTask.ACTION) {
+        addAction(task.startTime, task.startTime + task.durationNanos);
+      }
+      json.beginObject();
+      json.name("name").value(task.getDescription());
+      json.name("cat").value(task.type.description);
+      if (task.durationNanos > 0) {
+        json.name("ph").value("X");
+        json.name("dur").value(toMicros(task.durationNanos));
+      } else {
+        json.name("ph").value("i");
+        json.name("s").value("t");
+      }
+      json.name("ts").value(toMicros(task.startTime));
+      json.name("pid").value(PID);
+      json.name("tid").value(task.threadId);
+      json.name("args").beginObject();
+      json.name("id").value(task.id);
+      if (task.parentId != 0) {
+        json.name("parent").value(task.parentId);
+      }
+      json.endObject();
+      json.endObject();
+    } catch (IOException e) {
+      writeError = e;
+    }
+  }
+
+  private static double toMicros(long nanos) {
+    return nanos / 1000.0;
+  }
+
+  private void addAction(long startTime, long endTime) {
+    if (actionCount == actionStartTimes.length) {
+      actionStartTimes = Arrays.copyOf(actionStartTimes, actionCount * 2);
+      actionEndTimes = Arrays.copyOf(actionEndTimes, actionCount * 2);
+    }
+    actionStartTimes[actionCount] = startTime;
+    actionEndTimes[actionCount] = endTime;
+    actionCount++;
+  }
+
+  /**
+   * Writes a counter event. The values are given as comma-separated name=value pairs.
+   */
+  private void writeCounter(String name, long time, String values) throws IOException {
+    json.beginObject();
+    json.name("name").value(name);
+    json.name("ph").value("C");
+    json.name("ts").value(toMicros(time));
+    json.name("pid").value(PID);
+    json.name("args").beginObject();
+    for (String pair : values.split(",")) {
+      int separator = pair.indexOf('=');
+      if (separator > 0) {
+        try {
+          double value = Double.parseDouble(pair.substring(separator + 1));
+          json.name(pair.substring(0, separator)).value(value);
+        } catch (NumberFormatException e) {
+          // Not a counter value; skip it.
+        }
+      }
+    }
+    json.endObject();
+    json.endObject();
+  }
+
+  private void writeThreadNames(String comment) throws IOException {
+    json.beginObject();
+    json.name("name").value("process_name");
+    json.name("ph").value("M");
+    json.name("pid").value(PID);
+    json.name("args").beginObject().name("name").value(comment).endObject();
+    json.endObject();
+    for (long threadId : threadIds) {
+      json.beginObject();
+      json.name("name").value("thread_name");
+      json.name("ph").value("M");
+      json.name("pid").value(PID);
+      json.name("tid").value(threadId);
+      json.name("args").beginObject().name("name").value("Thread " + threadId).endObject();
+      json.endObject();
+    }
+  }
+
+  /**
+   * Writes the number of actions in progress whenever it changes. Actions can only be counted once
+   * all of them are known, since the profile is not ordered by time.
+   */
+  private void writeActionCounter() throws IOException {
+    long[] starts = Arrays.copyOf(actionStartTimes, actionCount);
+    long[] ends = Arrays.copyOf(actionEndTimes, actionCount);
+    actionStartTimes = null;
+    actionEndTimes = null;
+    Arrays.sort(starts);
+    Arrays.sort(ends);
+    int running = 0;
+    int startIndex = 0;
+    int endIndex = 0;
+    while (endIndex < ends.length) {
+      long time;
+      if (startIndex < starts.length && starts[startIndex] <= ends[endIndex]) {
+        time = starts[startIndex];
+      } else {
+        time = ends[endIndex];
+      }
+      // Process all changes at the same time at once.
+      while (startIndex < starts.length && starts[startIndex] == time) {
+        running++;
+        startIndex++;
+      }
+      while (endIndex < ends.length && ends[endIndex] == time) {
+        running--;
+        endIndex++;
+      }
+      writeCounter("actions", time, "running=" + running);
+    }
+  }
+}
@@ -14,8 +14,8 @@
 package com.google.devtools.build.lib.profiler.output;
 
 import com.google.common.base.Optional;
-import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
+import com.google.devtools.build.lib.profiler.ProfileSummary;
 import com.google.devtools.build.lib.profiler.chart.AggregatingChartCreator;
 import com.google.devtools.build.lib.profiler.chart.Chart;
 import com.google.devtools.build.lib.profiler.chart.ChartCreator;
@@ -40,6 +40,7 @@ import java.util.EnumMap;
 public final class HtmlCreator extends HtmlPrinter {
 
   private final Optional<Chart> chart;
+  private final Optional<ChartCreator> chartCreator;
   private final HtmlChartVisitor chartVisitor;
   private final Optional<SkylarkHtml> skylarkStats;
   private final Optional<MultiProfilePhaseHtml> multiFileStats;
@@ -50,6 +51,7 @@ public final class HtmlCreator extends HtmlPrinter {
       PrintStream out,
       String title,
       Optional<Chart> chart,
+      Optional<ChartCreator> chartCreator,
       Optional<SkylarkHtml> skylarkStats,
       Optional<MultiProfilePhaseHtml> multiFileStats,
       PhaseHtml phases,
@@ -57,6 +59,7 @@ public final class HtmlCreator extends HtmlPrinter {
     super(out);
     this.title = title;
     this.chart = chart;
+    this.chartCreator = chartCreator;
     this.skylarkStats = skylarkStats;
     this.phases = phases;
     this.multiFileStats = multiFileStats;
@@ -64,12 +67,13 @@ public final class HtmlCreator extends HtmlPrinter {
   }
 
   /**
-   * Output the HTML depending on which statistics should be printed.
+   * Output the HTML depending on which statistics should be printed. The bars of the chart are
+   * printed as they are read from the profile file.
    */
-  private void print() {
+  private void print() throws IOException {
     htmlFrontMatter();
     if (chart.isPresent()) {
-      chart.get().accept(chartVisitor);
+      chart.get().accept(chartVisitor, chartCreator.get());
     }
 
     element("a", "name", "Statistics");
@@ -143,16 +147,18 @@ public final class HtmlCreator extends HtmlPrinter {
   }
 
   /**
-   * Writes the HTML profiling information.
+   * Writes the HTML profiling information. The chart is read from the profile file again while
+   * it is written, and the Skylark statistics are only written with details.
    *
    * @throws IOException
    */
   public static void create(
-      ProfileInfo info,
+      ProfileSummary summary,
       Path htmlFile,
       PhaseSummaryStatistics phaseSummaryStats,
       EnumMap<ProfilePhase, PhaseStatistics> statistics,
       CriticalPathStatistics criticalPathStats,
+      SkylarkStatistics skylarkStatistics,
       int missingActionsCount,
       boolean detailed,
       int htmlPixelsPerSecond,
@@ -171,23 +177,24 @@ public final class HtmlCreator extends HtmlPrinter {
               vfsStatsLimit);
       Optional<SkylarkHtml> skylarkStats = Optional.absent();
       Optional<Chart> chart = Optional.absent();
+      Optional<ChartCreator> chartCreator = Optional.absent();
       if (detailed) {
-        skylarkStats =
-            Optional.of(new SkylarkHtml(out, new SkylarkStatistics(info), generateHistograms));
+        skylarkStats = Optional.of(new SkylarkHtml(out, skylarkStatistics, generateHistograms));
       }
       if (generateChart) {
-        ChartCreator chartCreator;
         if (detailed) {
-          chartCreator = new DetailedChartCreator(info);
+          chartCreator = Optional.<ChartCreator>of(
+              new DetailedChartCreator(summary, criticalPathStats.getTotalPath()));
         } else {
-          chartCreator = new AggregatingChartCreator(info);
+          chartCreator = Optional.<ChartCreator>of(new AggregatingChartCreator(summary));
         }
-        chart = Optional.of(chartCreator.create());
+        chart = Optional.of(chartCreator.get().create());
       }
       new HtmlCreator(
               out,
-              info.comment,
+              summary.getComment(),
               chart,
+              chartCreator,
               skylarkStats,
               Optional.<MultiProfilePhaseHtml>absent(),
               phaseHtml,
@@ -206,7 +213,8 @@ public final class HtmlCreator extends HtmlPrinter {
       MultiProfileStatistics statistics,
       boolean detailed,
       int htmlPixelsPerSecond,
-      int vfsStatsLimit) {
+      int vfsStatsLimit)
+      throws IOException {
     PhaseHtml phaseHtml =
         new PhaseHtml(
             out,
@@ -223,6 +231,7 @@ public final class HtmlCreator extends HtmlPrinter {
             out,
             "Statistics from multiple profile files",
             Optional.<Chart>absent(),
+            Optional.<ChartCreator>absent(),
             skylarkStats,
             Optional.of(new MultiProfilePhaseHtml(out, statistics)),
             phaseHtml,
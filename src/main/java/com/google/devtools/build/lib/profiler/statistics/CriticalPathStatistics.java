@@ -18,6 +18,7 @@ import com.google.devtools.build.lib.actions.MiddlemanAction;
 import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.CriticalPathEntry;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
+import com.google.devtools.build.lib.profiler.ProfileSummary;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Pair;
 
@@ -120,6 +121,20 @@ public final class CriticalPathStatistics implements Iterable<Pair<String, Doubl
     criticalPathDurations = getCriticalPathDurations(info);
   }
 
+  /**
+   * Uses the critical path that the build recorded. Its entries are already analyzed, so there
+   * are no wait times and no durations without filtered task types.
+   *
+   * @see ProfileSummary#getCriticalPath
+   */
+  public CriticalPathStatistics(ProfileSummary summary) {
+    totalPath = summary.getCriticalPath();
+    optimalPath = summary.getCriticalPath();
+    workerWaitTime = 0;
+    mainThreadWaitTime = 0;
+    criticalPathDurations = Collections.emptyList();
+  }
+
   /**
    * @return the critical path obtained by not filtering out any {@link ProfilerTask}
    */
@@ -13,9 +13,9 @@
 // limitations under the License.
 package com.google.devtools.build.lib.profiler.statistics;
 
-import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.InfoListener;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
+import com.google.devtools.build.lib.profiler.ProfileSummary;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
@@ -34,7 +34,6 @@ public final class MultiProfileStatistics implements Iterable<Path> {
   private final Map<Path, EnumMap<ProfilePhase, PhaseStatistics>> filePhaseStatistics;
   private final SkylarkStatistics skylarkStatistics;
 
-  private int missingActionsCount;
   private boolean generateVfsStatistics;
 
   public MultiProfileStatistics(
@@ -69,8 +68,12 @@ public final class MultiProfileStatistics implements Iterable<Path> {
     return skylarkStatistics;
   }
 
+  /**
+   * Returns 0, as profiles are summarized without rebuilding their action graph, which is where
+   * missing actions are found.
+   */
   public int getMissingActionsCount() {
-    return missingActionsCount;
+    return 0;
   }
 
   public EnumMap<ProfilePhase, PhaseStatistics> getPhaseStatistics(Path file) {
@@ -87,25 +90,24 @@ public final class MultiProfileStatistics implements Iterable<Path> {
    */
   private void loadProfileFile(
       Path workingDirectory, String workSpaceName, String file, InfoListener listener) {
-    ProfileInfo info;
     Path profileFile = workingDirectory.getRelative(file);
+    ProfileSummary summary;
+    EnumMap<ProfilePhase, PhaseStatistics> fileStatistics;
     try {
-      info = ProfileInfo.loadProfileVerbosely(profileFile, listener);
-      ProfileInfo.aggregateProfile(info, listener);
+      summary = ProfileSummary.readVerbosely(profileFile, listener);
+      fileStatistics =
+          PhaseStatistics.create(summary, workSpaceName, generateVfsStatistics, skylarkStatistics);
     } catch (IOException e) {
       listener.warn("Ignoring file " + file + " - cannot load: " + e.getMessage());
       return;
     }
 
-    summaryStatistics.addProfileInfo(info);
+    summaryStatistics.addProfileSummary(summary);
 
-    EnumMap<ProfilePhase, PhaseStatistics> fileStatistics = new EnumMap<>(ProfilePhase.class);
     filePhaseStatistics.put(profileFile, fileStatistics);
 
     for (ProfilePhase phase : ProfilePhase.values()) {
-      PhaseStatistics filePhaseStat =
-          new PhaseStatistics(phase, info, workSpaceName, generateVfsStatistics);
-      fileStatistics.put(phase, filePhaseStat);
+      PhaseStatistics filePhaseStat = fileStatistics.get(phase);
 
       PhaseStatistics summaryPhaseStats;
       if (summaryPhaseStatistics.containsKey(phase)) {
@@ -116,9 +118,5 @@ public final class MultiProfileStatistics implements Iterable<Path> {
       }
       summaryPhaseStats.add(filePhaseStat);
     }
-
-    skylarkStatistics.addProfileInfo(info);
-
-    missingActionsCount += info.getMissingActionsCount();
   }
 }
@@ -15,16 +15,19 @@ package com.google.devtools.build.lib.profiler.statistics;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterators;
-import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.AggregateAttr;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
+import com.google.devtools.build.lib.profiler.ProfileSummary;
+import com.google.devtools.build.lib.profiler.ProfileSummary.PhaseTaskVisitor;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Preconditions;
 
+import java.io.IOException;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 
 /**
  * Extracts and keeps statistics for one {@link ProfilePhase} for formatting to various outputs.
@@ -51,41 +54,66 @@ public final class PhaseStatistics implements Iterable<ProfilerTask> {
     }
   }
 
-  public PhaseStatistics(ProfilePhase phase, ProfileInfo info, String workSpaceName, boolean vfs) {
-    this(phase, vfs);
-    addProfileInfo(workSpaceName, info);
-  }
-
   /**
-   * Add statistics from {@link ProfileInfo} to the ones already accumulated for this phase.
+   * Creates the statistics of every {@link ProfilePhase} of a profile, reading its tasks once.
+   *
+   * @param visitors also receive the tasks of the profile, so that other statistics can be
+   *     collected in the same pass
+   * @throws IOException if the profile file can't be read
    */
-  public void addProfileInfo(String workSpaceName, ProfileInfo info) {
-    Task phaseTask = info.getPhaseTask(phase);
-    if (phaseTask != null) {
-      if (vfsStatistics != null) {
-        vfsStatistics.addProfileInfo(workSpaceName, info);
+  public static EnumMap<ProfilePhase, PhaseStatistics> create(
+      ProfileSummary summary,
+      final String workSpaceName,
+      boolean generateVfsStatistics,
+      final PhaseTaskVisitor... visitors)
+      throws IOException {
+    EnumMap<ProfilePhase, PhaseStatistics> statistics = new EnumMap<>(ProfilePhase.class);
+    final Map<Task, PhaseTasks> tasksByPhaseTask = new HashMap<>();
+    for (ProfilePhase phase : ProfilePhase.values()) {
+      PhaseStatistics phaseStatistics = new PhaseStatistics(phase, generateVfsStatistics);
+      statistics.put(phase, phaseStatistics);
+      Task phaseTask = summary.getPhaseTask(phase);
+      if (phaseTask != null) {
+        tasksByPhaseTask.put(phaseTask, new PhaseTasks(phaseStatistics.vfsStatistics));
       }
-      wasExecuted = true;
-      long infoPhaseDuration = info.getPhaseDuration(phaseTask);
-      phaseDurationNanos += infoPhaseDuration;
-      List<Task> taskList = info.getTasksForPhase(phaseTask);
-      long duration = infoPhaseDuration;
-      for (Task task : taskList) {
-        // Tasks on the phaseTask thread already accounted for in the phaseDuration.
-        if (task.threadId != phaseTask.threadId) {
-          duration += task.durationNanos;
+    }
+    summary.visitTasks(new PhaseTaskVisitor() {
+      @Override
+      public void visit(Task task, Task phaseTask) {
+        PhaseTasks tasks = phaseTask != null ? tasksByPhaseTask.get(phaseTask) : null;
+        if (tasks != null) {
+          tasks.add(workSpaceName, task, phaseTask);
+        }
+        for (PhaseTaskVisitor visitor : visitors) {
+          visitor.visit(task, phaseTask);
         }
       }
-      totalDurationNanos += duration;
-      for (ProfilerTask type : ProfilerTask.values()) {
-        AggregateAttr attr = info.getStatsForType(type, taskList);
-        long totalTime = Math.max(0, attr.totalTime);
-        long count = Math.max(0, attr.count);
-        add(taskCounts, type, count);
-        add(taskDurations, type, totalTime);
+    });
+    for (PhaseStatistics phaseStatistics : statistics.values()) {
+      Task phaseTask = summary.getPhaseTask(phaseStatistics.phase);
+      if (phaseTask != null) {
+        phaseStatistics.add(summary.getPhaseDuration(phaseTask), tasksByPhaseTask.get(phaseTask));
       }
-      count++;
     }
+    return statistics;
+  }
+
+  /**
+   * Add the statistics of the tasks of one profile to the ones already accumulated for this
+   * phase.
+   */
+  private void add(long infoPhaseDuration, PhaseTasks tasks) {
+    wasExecuted = true;
+    phaseDurationNanos += infoPhaseDuration;
+    // Tasks on the phaseTask thread already accounted for in the phaseDuration.
+    totalDurationNanos += infoPhaseDuration + tasks.otherThreadsDurationNanos;
+    for (ProfilerTask type : ProfilerTask.values()) {
+      long totalTime = Math.max(0, tasks.durations[type.ordinal()]);
+      long count = Math.max(0, tasks.counts[type.ordinal()]);
+      add(taskCounts, type, count);
+      add(taskDurations, type, totalTime);
+    }
+    count++;
   }
 
   /**
@@ -238,5 +266,44 @@ public final class PhaseStatistics implements Iterable<ProfilerTask> {
     }
     map.put(key, previous + value);
   }
-}
 
+  /**
+   * Sums up the statistics of the tasks of one phase of a profile. The statistics of each task
+   * cover its own time and the time of its subtasks by type, so the time of a subtask is
+   * subtracted from the type of its parent, as {@link
+   * com.google.devtools.build.lib.profiler.ProfileInfo#getStatsForType} does for whole trees.
+   */
+  private static final class PhaseTasks {
+    private final long[] counts = new long[ProfilerTask.TASK_COUNT];
+    private final long[] durations = new long[ProfilerTask.TASK_COUNT];
+    private long otherThreadsDurationNanos;
+    private final PhaseVfsStatistics vfsStatistics;
+
+    private PhaseTasks(PhaseVfsStatistics vfsStatistics) {
+      this.vfsStatistics = vfsStatistics;
+    }
+
+    private void add(String workSpaceName, Task task, Task phaseTask) {
+      AggregateAttr[] stats = task.getStatAttrArray();
+      for (int i = 0; i < stats.length; i++) {
+        if (stats[i] != null) {
+          counts[i] += stats[i].count;
+          durations[i] += stats[i].totalTime;
+        }
+      }
+      int type = task.type.ordinal();
+      if (task.parentId == 0) {
+        counts[type]++;
+        durations[type] += task.durationNanos - task.getInheritedDuration();
+        if (task.threadId != phaseTask.threadId) {
+          otherThreadsDurationNanos += task.durationNanos;
+        }
+      } else {
+        durations[type] -= task.getInheritedDuration();
+      }
+      if (vfsStatistics != null) {
+        vfsStatistics.addTask(workSpaceName, task);
+      }
+    }
+  }
+}
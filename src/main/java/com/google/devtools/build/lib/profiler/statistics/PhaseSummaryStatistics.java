@@ -13,8 +13,9 @@
 // limitations under the License.
 package com.google.devtools.build.lib.profiler.statistics;
 
-import com.google.devtools.build.lib.profiler.ProfileInfo;
+import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
+import com.google.devtools.build.lib.profiler.ProfileSummary;
 
 import java.util.EnumMap;
 import java.util.Iterator;
@@ -34,19 +35,19 @@ public final class PhaseSummaryStatistics implements Iterable<ProfilePhase> {
     totalDurationNanos = 0;
   }
 
-  public PhaseSummaryStatistics(ProfileInfo info) {
+  public PhaseSummaryStatistics(ProfileSummary summary) {
     this();
-    addProfileInfo(info);
+    addProfileSummary(summary);
   }
 
   /**
-   * Add a summary of the {@link ProfilePhase}s durations from a {@link ProfileInfo}.
+   * Add a summary of the {@link ProfilePhase}s durations from a {@link ProfileSummary}.
    */
-  public void addProfileInfo(ProfileInfo info) {
+  public void addProfileSummary(ProfileSummary summary) {
     for (ProfilePhase phase : ProfilePhase.values()) {
-      ProfileInfo.Task phaseTask = info.getPhaseTask(phase);
+      Task phaseTask = summary.getPhaseTask(phase);
       if (phaseTask != null) {
-        long phaseDuration = info.getPhaseDuration(phaseTask);
+        long phaseDuration = summary.getPhaseDuration(phaseTask);
         totalDurationNanos += phaseDuration;
         durations.put(phase, phaseDuration);
       }
@@ -19,16 +19,13 @@ import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Table;
 import com.google.common.collect.Table.Cell;
 import com.google.common.collect.Tables;
-import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 
-import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.SortedSet;
@@ -117,20 +114,23 @@ public final class PhaseVfsStatistics implements Iterable<ProfilerTask> {
             });
   }
 
-  public PhaseVfsStatistics(final String workSpaceName, ProfilePhase phase, ProfileInfo info) {
-    this(phase);
-    addProfileInfo(workSpaceName, info);
-  }
-
   /**
-   * Accumulate statistics from another {@link ProfileInfo} in this object.
+   * Adds a task of this phase to the statistics if it is a VFS operation.
    */
-  public void addProfileInfo(final String workSpaceName, ProfileInfo info) {
-    Task phaseTask = info.getPhaseTask(phase);
-    if (phaseTask == null) {
+  public void addTask(String workSpaceName, Task task) {
+    if (!task.type.name().startsWith("VFS_")) {
       return;
     }
-    collectVfsEntries(workSpaceName, info.getTasksForPhase(phaseTask));
+
+    String path = pathMapping(workSpaceName, task.getDescription());
+
+    Stat stat = statistics.get(task.type, path);
+    if (stat == null) {
+      stat = new Stat(path);
+      statistics.put(task.type, path, stat);
+    }
+
+    stat.add(task.durationNanos);
   }
 
   public ProfilePhase getProfilePhase() {
@@ -175,28 +175,6 @@ public final class PhaseVfsStatistics implements Iterable<ProfilerTask> {
     }
   }
 
-  /**
-   * Add the VFS operations from the list of tasks to the {@link #statistics} table
-   */
-  private void collectVfsEntries(String workSpaceName, List<Task> taskList) {
-    for (Task task : taskList) {
-      collectVfsEntries(workSpaceName, Arrays.asList(task.subtasks));
-      if (!task.type.name().startsWith("VFS_")) {
-        continue;
-      }
-
-      String path = pathMapping(workSpaceName, task.getDescription());
-
-      Stat stat = statistics.get(task.type, path);
-      if (stat == null) {
-        stat = new Stat(path);
-        statistics.put(task.type, path, stat);
-      }
-
-      stat.add(task.durationNanos);
-    }
-  }
-
   private String pathMapping(String workSpaceName, String input) {
     if (workSpaceName.isEmpty()) {
       return input;
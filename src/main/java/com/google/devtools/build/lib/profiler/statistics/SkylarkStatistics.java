@@ -15,15 +15,13 @@ package com.google.devtools.build.lib.profiler.statistics;
 
 import com.google.common.collect.Maps;
 import com.google.common.collect.Maps.EntryTransformer;
-import com.google.common.collect.Multimap;
-import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
+import com.google.devtools.build.lib.profiler.ProfileSummary.PhaseTaskVisitor;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.LongArrayList;
 
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 
 /**
  * Extracts the execution times of user-defined and built-in Skylark functions and computes
@@ -33,7 +31,7 @@ import java.util.Map.Entry;
  * "self duration" taken only within the function itself, but not within any subtask of the
  * corresponding {@link Task}.
  */
-public final class SkylarkStatistics {
+public final class SkylarkStatistics implements PhaseTaskVisitor {
 
   private final Map<String, LongArrayList> userFunctionDurations;
   private final Map<String, LongArrayList> userCompiledDurations;
@@ -58,19 +56,21 @@ public final class SkylarkStatistics {
     builtinFunctionSelfDurations = new HashMap<>();
   }
 
-  public SkylarkStatistics(ProfileInfo info) {
-    this();
-    addProfileInfo(info);
-  }
-
   /**
-   * Adds Skylark function task durations from a {@link ProfileInfo} file.
+   * Adds the durations of the task if it is a Skylark function call. Receives the tasks of all
+   * phases.
    */
-  public void addProfileInfo(ProfileInfo info) {
-    computeStatistics(
-        info.getSkylarkUserFunctionTasks(),
-        info.getCompiledSkylarkUserFunctionTasks(),
-        info.getSkylarkBuiltinFunctionTasks());
+  @Override
+  public void visit(Task task, Task phaseTask) {
+    if (task.type == ProfilerTask.SKYLARK_USER_FN) {
+      userTotalNanos += addDuration(task, userFunctionDurations, userFunctionSelfDurations);
+    } else if (task.type == ProfilerTask.SKYLARK_USER_COMPILED_FN) {
+      userCompiledTotalNanos +=
+          addDuration(task, userCompiledDurations, userCompiledSelfDurations);
+    } else if (task.type == ProfilerTask.SKYLARK_BUILTIN_FN) {
+      builtinTotalNanos +=
+          addDuration(task, builtinFunctionDurations, builtinFunctionSelfDurations);
+    }
   }
 
   /**
@@ -188,62 +188,27 @@ public final class SkylarkStatistics {
   }
 
   /**
-   * For each Skylark function get the list of durations and self durations from the task maps.
-   */
-  private void computeStatistics(
-      Multimap<String, Task> userTasks,
-      Multimap<String, Task> userCompiledTasks,
-      Multimap<String, Task> builtinTasks) {
-    userTotalNanos += addDurations(userTasks, userFunctionDurations, userFunctionSelfDurations);
-    userCompiledTotalNanos +=
-        addDurations(userCompiledTasks, userCompiledDurations, userCompiledSelfDurations);
-    builtinTotalNanos +=
-        addDurations(builtinTasks, builtinFunctionDurations, builtinFunctionSelfDurations);
-  }
-
-  /**
-   * Add all new durations to previously collected durations for all functions mapped to tasks.
-   * @return The sum of the execution times of all {@link Task} values in the map.
+   * Add the duration and self-time of a call to the durations of its function.
+   * @return The execution time of the {@link Task}.
    */
-  private static long addDurations(
-      Multimap<String, Task> functionTasks,
+  private static long addDuration(
+      Task task,
       Map<String, LongArrayList> durationsMap,
       Map<String, LongArrayList> selfDurationsMap) {
-    long totalTime = 0;
-    for (Entry<String, Collection<Task>> entry : functionTasks.asMap().entrySet()) {
-      String function = entry.getKey();
-      Collection<Task> tasks = entry.getValue();
-      LongArrayList durations;
-      LongArrayList selfDurations;
-      if (durationsMap.containsKey(function)) {
-        durations = durationsMap.get(function);
-        selfDurations = selfDurationsMap.get(function);
-      } else {
-        durations = new LongArrayList(tasks.size());
-        selfDurations = new LongArrayList(tasks.size());
-        durationsMap.put(function, durations);
-        selfDurationsMap.put(function, selfDurations);
-      }
-      totalTime += addDurations(tasks, durations, selfDurations);
-    }
-    return totalTime;
-  }
-
-  /**
-   * Add all durations and self-times of the given function to the maps.
-   * @return The sum of the execution times of all {@link Task} values in the collection.
-   */
-  private static long addDurations(
-      Collection<Task> tasks, LongArrayList durations, LongArrayList selfDurations) {
-    long totalTime = 0;
-    durations.ensureCapacity(durations.size() + tasks.size());
-    selfDurations.ensureCapacity(selfDurations.size() + tasks.size());
-    for (Task task : tasks) {
-      durations.add(task.durationNanos);
-      selfDurations.add(task.durationNanos - task.getInheritedDuration());
-      totalTime += task.durationNanos;
+    String function = task.getDescription();
+    LongArrayList durations = durationsMap.get(function);
+    LongArrayList selfDurations;
+    if (durations != null) {
+      selfDurations = selfDurationsMap.get(function);
+    } else {
+      durations = new LongArrayList();
+      selfDurations = new LongArrayList();
+      durationsMap.put(function, durations);
+      selfDurationsMap.put(function, selfDurations);
     }
-    return totalTime;
+    durations.add(task.durationNanos);
+    selfDurations.add(task.durationNanos - task.getInheritedDuration());
+    return task.durationNanos;
   }
 
   /**
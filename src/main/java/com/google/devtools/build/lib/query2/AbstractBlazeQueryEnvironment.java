@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.query2;
 
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
@@ -211,6 +212,19 @@ public abstract class AbstractBlazeQueryEnvironment<T> implements QueryEnvironme
     return letBindings.put(name, value);
   }
 
+  /** Returns whether some variable is bound, so that expressions may depend on its value. */
+  protected boolean hasBoundVariables() {
+    return Iterables.any(letBindings.values(), Predicates.notNull());
+  }
+
+  /**
+   * Returns the settings of this environment that the result of an expression depends on, other
+   * than the targets it is evaluated on.
+   */
+  protected List<Object> getEvaluationSettings() {
+    return ImmutableList.<Object>of(keepGoing, strictScope, labelFilter, settings);
+  }
+
   protected boolean validateScope(Label label, boolean strict) throws QueryException {
     if (!labelFilter.apply(label)) {
       String error = String.format("target '%s' is not within the scope of the query", label);
@@ -0,0 +1,181 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.concurrent.ErrorClassifier;
+import com.google.devtools.build.lib.concurrent.ForkJoinQuiescingExecutor;
+import com.google.devtools.build.lib.concurrent.QuiescingExecutor;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Visits the targets reachable from some roots along the edges given by {@link #getNeighbors},
+ * up to some depth, on a work-stealing pool. Each target is passed to the callback once, in the
+ * batch in which it was found, without waiting for the visitation to finish.
+ *
+ * <p>Targets are visited in no particular order. A target first found through a longer path than
+ * its shortest one is visited again when the shorter path is found, so that depth bounds are
+ * respected as in a breadth-first search.
+ */
+abstract class ParallelTargetVisitor {
+
+  private static final ErrorClassifier ERROR_CLASSIFIER = new ErrorClassifier() {
+    @Override
+    protected ErrorClassification classifyException(Exception e) {
+      // Only bugs get here: stop the visitation, as a sequential one would.
+      return ErrorClassification.CRITICAL;
+    }
+  };
+
+  private final QuiescingExecutor executor;
+  private final Callback<Target> callback;
+  private final Predicate<Target> universe;
+  private final int depthBound;
+  private final int batchSize;
+  /** The depth at which each target was found, or 0 for all if the depth is unbounded. */
+  private final ConcurrentMap<Label, Integer> depths = new ConcurrentHashMap<>();
+  /**
+   * The first exception thrown by the callback, after which no more targets are visited. It is
+   * not thrown in the tasks, so that the executor still waits for them and shuts its pool down.
+   */
+  private final AtomicReference<Exception> callbackException = new AtomicReference<>();
+
+  /**
+   * @param callback the callback for the targets found, which is called by one thread at a time
+   * @param universe the targets that may be visited
+   * @param batchSize the maximum number of targets that a single task visits
+   */
+  ParallelTargetVisitor(int parallelism, Callback<Target> callback, Predicate<Target> universe,
+      int depthBound, int batchSize) {
+    this.executor =
+        new ForkJoinQuiescingExecutor(new ForkJoinPool(parallelism), ERROR_CLASSIFIER);
+    this.callback = callback;
+    this.universe = universe;
+    this.depthBound = depthBound;
+    this.batchSize = batchSize;
+  }
+
+  /** Returns the targets that the given targets have edges to. Called by several threads. */
+  protected abstract Collection<Target> getNeighbors(Iterable<Target> targets);
+
+  /** Starts visiting from {@code roots}, which may be called before the visitation finished. */
+  void visitRoots(Iterable<Target> roots) {
+    enqueue(roots, 0);
+  }
+
+  /** Waits until all targets were visited. */
+  void awaitCompletion() throws QueryException, InterruptedException {
+    executor.awaitQuiescence(/*interruptWorkers=*/true);
+    Exception e = callbackException.get();
+    if (e instanceof InterruptedException) {
+      throw (InterruptedException) e;
+    } else if (e != null) {
+      throw (QueryException) e;
+    }
+  }
+
+  /**
+   * Stops the visitation, for when the roots could not all be found. Interrupts the tasks in flight
+   * and waits for them to finish, so that the pool is shut down.
+   */
+  void abort() {
+    boolean wasInterrupted = Thread.currentThread().isInterrupted();
+    // Interrupting this thread makes the executor interrupt and drain its workers right away.
+    Thread.currentThread().interrupt();
+    try {
+      executor.awaitQuiescence(/*interruptWorkers=*/true);
+    } catch (InterruptedException | RuntimeException e) {
+      // Expected, and the exception that made the caller stop is more relevant.
+    }
+    Thread.interrupted();
+    if (wasInterrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void enqueue(Iterable<Target> targets, int depth) {
+    if (callbackException.get() != null) {
+      return;
+    }
+    List<Target> newTargets = new ArrayList<>();
+    List<Target> revisitedTargets = new ArrayList<>();
+    for (Target target : Iterables.filter(targets, universe)) {
+      Label label = target.getLabel();
+      while (true) {
+        Integer oldDepth = depths.putIfAbsent(label, depth);
+        if (oldDepth == null) {
+          newTargets.add(target);
+          break;
+        }
+        if (oldDepth <= depth) {
+          break;
+        }
+        if (depths.replace(label, oldDepth, depth)) {
+          revisitedTargets.add(target);
+          break;
+        }
+      }
+    }
+    for (List<Target> batch : Iterables.partition(newTargets, batchSize)) {
+      executor.execute(new VisitTask(batch, /*isNew=*/true, depth));
+    }
+    for (List<Target> batch : Iterables.partition(revisitedTargets, batchSize)) {
+      executor.execute(new VisitTask(batch, /*isNew=*/false, depth));
+    }
+  }
+
+  private class VisitTask implements Runnable {
+    private final List<Target> targets;
+    private final boolean isNew;
+    private final int depth;
+
+    private VisitTask(List<Target> targets, boolean isNew, int depth) {
+      this.targets = targets;
+      this.isNew = isNew;
+      this.depth = depth;
+    }
+
+    @Override
+    public void run() {
+      if (callbackException.get() != null) {
+        return;
+      }
+      if (isNew) {
+        try {
+          synchronized (callback) {
+            callback.process(targets);
+          }
+        } catch (QueryException | InterruptedException e) {
+          callbackException.compareAndSet(null, e);
+          return;
+        }
+      }
+      if (depth < depthBound) {
+        enqueue(getNeighbors(targets), depthBound == Integer.MAX_VALUE ? 0 : depth + 1);
+      }
+    }
+  }
+}
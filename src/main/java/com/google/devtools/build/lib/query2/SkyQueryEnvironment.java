@@ -49,17 +49,22 @@ import com.google.devtools.build.lib.query2.engine.Callback;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.QueryUtil;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.AbstractUniquifier;
+import com.google.devtools.build.lib.query2.engine.StreamableQueryEnvironment;
 import com.google.devtools.build.lib.query2.engine.Uniquifier;
 import com.google.devtools.build.lib.skyframe.FileValue;
 import com.google.devtools.build.lib.skyframe.GraphBackedRecursivePackageProvider;
 import com.google.devtools.build.lib.skyframe.PackageLookupValue;
 import com.google.devtools.build.lib.skyframe.PackageValue;
 import com.google.devtools.build.lib.skyframe.PrepareDepsOfPatternsFunction;
+import com.google.devtools.build.lib.skyframe.QueryResultCache;
 import com.google.devtools.build.lib.skyframe.RecursivePackageProviderBackedTargetPatternResolver;
 import com.google.devtools.build.lib.skyframe.SkyFunctions;
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor;
 import com.google.devtools.build.lib.skyframe.TargetPatternValue;
 import com.google.devtools.build.lib.skyframe.TargetPatternValue.TargetPatternKey;
+import com.google.devtools.build.lib.skyframe.TargetReverseDepsIndex;
 import com.google.devtools.build.lib.skyframe.TransitiveTraversalValue;
 import com.google.devtools.build.lib.util.BatchCallback;
 import com.google.devtools.build.lib.util.Preconditions;
@@ -93,12 +98,17 @@ import javax.annotation.Nullable;
  * any particular order. As well, this class eagerly loads the full transitive closure of targets,
  * even if the full closure isn't needed.
  */
-public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
+public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
+    implements StreamableQueryEnvironment<Target> {
   // 10k is likely a good balance between using batch efficiently and not blowing up memory.
   // TODO(janakr): Unify with RecursivePackageProviderBackedTargetPatternResolver's constant.
   private static final int BATCH_CALLBACK_SIZE = 10000;
+  // Small enough that the deps and rdeps of a few wide targets are spread over all threads.
+  private static final int VISIT_BATCH_SIZE = 100;
 
   private WalkableGraph graph;
+  @Nullable private TargetReverseDepsIndex reverseDepsIndex;
+  @Nullable private QueryResultCache resultCache;
 
   private ImmutableList<TargetPatternKey> universeTargetPatternKeys;
 
@@ -148,6 +158,10 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
           eventHandler);
     }
     graph = result.getWalkableGraph();
+    if (graphFactory instanceof SkyframeExecutor) {
+      reverseDepsIndex = ((SkyframeExecutor) graphFactory).getTargetReverseDepsIndex();
+      resultCache = ((SkyframeExecutor) graphFactory).getQueryResultCache();
+    }
 
     SkyKey universeKey = graphFactory.getUniverseKey(universeScope, parserPrefix);
     universeTargetPatternKeys =
@@ -177,11 +191,35 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
     // errors here.
     eventHandler.resetErrors();
     init();
-    QueryEvalResult result = super.evaluateQuery(expr, callback);
+    Object cacheKey = getResultCacheKey(expr);
+    ImmutableList<Target> cachedResult = cacheKey == null ? null : resultCache.get(cacheKey);
+    QueryEvalResult result;
+    if (cachedResult != null) {
+      // The target patterns need not be resolved either.
+      if (!cachedResult.isEmpty()) {
+        callback.process(cachedResult);
+      }
+      result = new QueryEvalResult(/*success=*/true, cachedResult.isEmpty());
+    } else {
+      result = super.evaluateQuery(expr, callback);
+    }
     graphFactory.afterUse(graph);
     return result;
   }
 
+  /**
+   * Returns the key of the result of {@code expr} in {@link #resultCache}, or null if the result
+   * should not be cached.
+   */
+  @Nullable
+  private Object getResultCacheKey(QueryExpression expr) {
+    if (resultCache == null || hasBoundVariables()) {
+      return null;
+    }
+    return ImmutableList.of(
+        expr.toString(), universeScope, parserPrefix, pkgPath, getEvaluationSettings());
+  }
+
   private Map<Target, Collection<Target>> makeTargetsMap(Map<SkyKey, Iterable<SkyKey>> input) {
     ImmutableMap.Builder<Target, Collection<Target>> result = ImmutableMap.builder();
     
@@ -207,9 +245,35 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
   }
 
   private Map<Target, Collection<Target>> getRawReverseDeps(Iterable<Target> targets) {
+    if (reverseDepsIndex != null) {
+      return getIndexedReverseDeps(targets);
+    }
     return makeTargetsMap(graph.getReverseDeps(makeTransitiveTraversalKeys(targets)));
   }
 
+  /**
+   * Looks up the reverse deps of {@code targets} in {@link #reverseDepsIndex}, which also has the
+   * targets of loaded packages that are not in the graph, so only those that are in the graph are
+   * kept.
+   */
+  private Map<Target, Collection<Target>> getIndexedReverseDeps(Iterable<Target> targets) {
+    ImmutableMap.Builder<Target, Collection<Target>> result = ImmutableMap.builder();
+    for (Map.Entry<Target, Collection<Target>> entry :
+        reverseDepsIndex.getReverseDeps(targets).entrySet()) {
+      if (!graph.exists(TransitiveTraversalValue.key(entry.getKey().getLabel()))) {
+        continue;
+      }
+      Set<Target> parents = CompactHashSet.createWithExpectedSize(entry.getValue().size());
+      for (Target parent : entry.getValue()) {
+        if (graph.exists(TransitiveTraversalValue.key(parent.getLabel()))) {
+          parents.add(parent);
+        }
+      }
+      result.put(entry.getKey(), parents);
+    }
+    return result.build();
+  }
+
   private Set<Label> getAllowedDeps(Rule rule) {
     Set<Label> allowedLabels = new HashSet<>(rule.getTransitions(dependencyFilter).values());
     allowedLabels.addAll(rule.getVisibility().getDependencyLabels());
@@ -252,6 +316,39 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
     return result;
   }
 
+  /**
+   * Returns the rdeps of each of the targets that is in the graph, filtered like {@link
+   * #getReverseDeps}, except that a rule is only an rdep of the targets that it is allowed to
+   * depend on.
+   */
+  private Map<Target, Collection<Target>> getReverseDepsOfEach(Iterable<Target> targets) {
+    Map<Target, Collection<Target>> rawReverseDeps = getRawReverseDeps(targets);
+    warnIfMissingTargets(targets, rawReverseDeps.keySet());
+    if (dependencyFilter == DependencyFilter.ALL_DEPS) {
+      return rawReverseDeps;
+    }
+    Map<Rule, Set<Label>> allowedDeps = new HashMap<>();
+    ImmutableMap.Builder<Target, Collection<Target>> result = ImmutableMap.builder();
+    for (Map.Entry<Target, Collection<Target>> entry : rawReverseDeps.entrySet()) {
+      List<Target> parents = new ArrayList<>(entry.getValue().size());
+      for (Target parent : entry.getValue()) {
+        if (parent instanceof Rule) {
+          Set<Label> allowedLabels = allowedDeps.get(parent);
+          if (allowedLabels == null) {
+            allowedLabels = getAllowedDeps((Rule) parent);
+            allowedDeps.put((Rule) parent, allowedLabels);
+          }
+          if (!allowedLabels.contains(entry.getKey().getLabel())) {
+            continue;
+          }
+        }
+        parents.add(parent);
+      }
+      result.put(entry.getKey(), parents);
+    }
+    return result.build();
+  }
+
   @Override
   public Collection<Target> getReverseDeps(Iterable<Target> targets) {
     Set<Target> result = CompactHashSet.create();
@@ -322,10 +419,139 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
   @Override
   public void eval(QueryExpression expr, Callback<Target> callback)
       throws QueryException, InterruptedException {
+    Object cacheKey = getResultCacheKey(expr);
+    if (cacheKey == null) {
+      BatchStreamedCallback aggregator =
+          new BatchStreamedCallback(callback, BATCH_CALLBACK_SIZE, createUniquifier());
+      expr.eval(this, aggregator);
+      aggregator.processLastPending();
+      return;
+    }
+    ImmutableList<Target> cachedResult = resultCache.get(cacheKey);
+    if (cachedResult != null) {
+      if (!cachedResult.isEmpty()) {
+        callback.process(cachedResult);
+      }
+      return;
+    }
+    RecordingCallback recorder = new RecordingCallback(callback);
     BatchStreamedCallback aggregator =
-        new BatchStreamedCallback(callback, BATCH_CALLBACK_SIZE, createUniquifier());
+        new BatchStreamedCallback(recorder, BATCH_CALLBACK_SIZE, createUniquifier());
     expr.eval(this, aggregator);
     aggregator.processLastPending();
+    // Results with errors are not cached, so that the errors are reported again.
+    ImmutableList<Target> result = recorder.getResult();
+    if (result != null && !eventHandler.hasErrors()) {
+      resultCache.put(cacheKey, result);
+    }
+  }
+
+  @Override
+  public void getDepsBounded(final QueryExpression caller, QueryExpression expression,
+      int depthBound, Callback<Target> callback) throws QueryException, InterruptedException {
+    final ParallelTargetVisitor visitor = new ParallelTargetVisitor(loadingPhaseThreads, callback,
+        Predicates.<Target>alwaysTrue(), depthBound, VISIT_BATCH_SIZE) {
+      @Override
+      protected Collection<Target> getNeighbors(Iterable<Target> targets) {
+        return getFwdDeps(targets);
+      }
+    };
+    final int maxDepth = depthBound;
+    boolean rootsVisited = false;
+    try {
+      eval(expression, new Callback<Target>() {
+        @Override
+        public void process(Iterable<Target> partialResult) throws QueryException {
+          Set<Target> roots = ImmutableSet.copyOf(partialResult);
+          buildTransitiveClosure(caller, roots, maxDepth);
+          visitor.visitRoots(roots);
+        }
+      });
+      rootsVisited = true;
+    } finally {
+      if (!rootsVisited) {
+        visitor.abort();
+      }
+    }
+    visitor.awaitCompletion();
+  }
+
+  @Override
+  public void getRdepsBounded(QueryExpression expression, Predicate<Target> universe,
+      int depthBound, Callback<Target> callback) throws QueryException, InterruptedException {
+    final ParallelTargetVisitor visitor = new ParallelTargetVisitor(loadingPhaseThreads, callback,
+        universe, depthBound, VISIT_BATCH_SIZE) {
+      @Override
+      protected Collection<Target> getNeighbors(Iterable<Target> targets) {
+        return getReverseDeps(targets);
+      }
+    };
+    boolean rootsVisited = false;
+    try {
+      eval(expression, new Callback<Target>() {
+        @Override
+        public void process(Iterable<Target> partialResult) {
+          visitor.visitRoots(ImmutableList.copyOf(partialResult));
+        }
+      });
+      rootsVisited = true;
+    } finally {
+      if (!rootsVisited) {
+        visitor.abort();
+      }
+    }
+    visitor.awaitCompletion();
+  }
+
+  @Override
+  public void getRdepsInUniverseBounded(QueryExpression expression, Set<Target> universe,
+      int depthBound, Callback<Target> callback) throws QueryException, InterruptedException {
+    // All the rdeps of the roots, with the depth at which each was found first, and the edges
+    // between them, from rdep to dep.
+    Map<Target, Integer> depths = new HashMap<>();
+    Multimap<Target, Target> deps = ArrayListMultimap.create();
+    Collection<Target> current = QueryUtil.evalAll(this, expression);
+    for (Target root : current) {
+      depths.put(root, 0);
+    }
+    for (int depth = 1; !current.isEmpty(); depth++) {
+      List<Target> next = new ArrayList<>();
+      for (Map.Entry<Target, Collection<Target>> entry : getReverseDepsOfEach(current).entrySet()) {
+        for (Target parent : entry.getValue()) {
+          deps.put(parent, entry.getKey());
+          if (!depths.containsKey(parent)) {
+            depths.put(parent, depth);
+            next.add(parent);
+          }
+        }
+      }
+      current = next;
+    }
+
+    // A path from the universe to an rdep of the roots only goes through rdeps of the roots, so the
+    // rdeps in the transitive closure of the universe are those reachable from the universe over
+    // the edges found above. They are as far from the roots as in the whole graph.
+    Set<Target> inUniverse = new HashSet<>();
+    Deque<Target> toVisit = new ArrayDeque<>();
+    for (Target target : universe) {
+      if (depths.containsKey(target) && inUniverse.add(target)) {
+        toVisit.add(target);
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      for (Target dep : deps.get(toVisit.removeFirst())) {
+        if (inUniverse.add(dep)) {
+          toVisit.add(dep);
+        }
+      }
+    }
+    List<Target> result = new ArrayList<>();
+    for (Target target : inUniverse) {
+      if (depths.get(target) <= depthBound) {
+        result.add(target);
+      }
+    }
+    callback.process(result);
   }
 
   private static Uniquifier<Target> uniquifier() {
@@ -796,6 +1022,40 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
         .build();
   }
 
+  /**
+   * Passes results on to a callback and records them, up to {@link
+   * QueryResultCache#MAX_RESULT_SIZE} targets.
+   */
+  private static class RecordingCallback implements Callback<Target> {
+    private final Callback<Target> callback;
+    @Nullable private ImmutableList.Builder<Target> result = ImmutableList.builder();
+    private int resultSize = 0;
+
+    private RecordingCallback(Callback<Target> callback) {
+      this.callback = callback;
+    }
+
+    @Override
+    public void process(Iterable<Target> partialResult)
+        throws QueryException, InterruptedException {
+      if (result != null) {
+        resultSize += Iterables.size(partialResult);
+        if (resultSize <= QueryResultCache.MAX_RESULT_SIZE) {
+          result.addAll(partialResult);
+        } else {
+          result = null;
+        }
+      }
+      callback.process(partialResult);
+    }
+
+    /** Returns all the results, or null if there were too many to record. */
+    @Nullable
+    private ImmutableList<Target> getResult() {
+      return result == null ? null : result.build();
+    }
+  }
+
   private static class BatchStreamedCallback implements Callback<Target> {
 
     private final Callback<Target> callback;
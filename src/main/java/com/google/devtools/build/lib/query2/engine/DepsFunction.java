@@ -57,6 +57,11 @@ final class DepsFunction implements QueryFunction {
       List<Argument> args, final Callback<T> callback)
       throws QueryException, InterruptedException {
     final int depthBound = args.size() > 1 ? args.get(1).getInteger() : Integer.MAX_VALUE;
+    if (env instanceof StreamableQueryEnvironment) {
+      ((StreamableQueryEnvironment<T>) env).getDepsBounded(expression,
+          args.get(0).getExpression(), depthBound, callback);
+      return;
+    }
     final Uniquifier<T> uniquifier = env.createUniquifier();
     env.eval(args.get(0).getExpression(), new Callback<T>() {
       @Override
@@ -51,7 +51,8 @@ final class RdepsFunction extends AllRdepsFunction {
 
   /**
    * Compute the transitive closure of the universe, then breadth-first search from the argument
-   * towards the universe while staying within the transitive closure.
+   * towards the universe while staying within the transitive closure. A {@link
+   * StreamableQueryEnvironment} searches from the argument first instead.
    */
   @Override
   public <T> void eval(QueryEnvironment<T> env, QueryExpression expression,
@@ -59,6 +60,12 @@ final class RdepsFunction extends AllRdepsFunction {
       throws QueryException, InterruptedException {
     Set<T> universeValue = QueryUtil.evalAll(env, args.get(0).getExpression());
     env.buildTransitiveClosure(expression, universeValue, Integer.MAX_VALUE);
+    if (env instanceof StreamableQueryEnvironment) {
+      int depthBound = args.size() > 2 ? args.get(2).getInteger() : Integer.MAX_VALUE;
+      ((StreamableQueryEnvironment<T>) env).getRdepsInUniverseBounded(
+          args.get(1).getExpression(), universeValue, depthBound, callback);
+      return;
+    }
 
     Predicate<T> universe = Predicates.in(env.getTransitiveClosure(universeValue));
     eval(env, args.subList(1, args.size()), callback, universe);
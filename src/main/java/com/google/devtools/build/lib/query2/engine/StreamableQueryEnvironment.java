@@ -0,0 +1,55 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.common.base.Predicate;
+
+import java.util.Set;
+
+/**
+ * A {@link QueryEnvironment} that visits the transitive deps and rdeps of targets itself, for
+ * example in parallel, and passes the targets it finds to the callback as soon as it finds them.
+ *
+ * <p>Results are not in any particular order, so this is only for environments whose results are
+ * unordered anyway.
+ */
+public interface StreamableQueryEnvironment<T> extends QueryEnvironment<T> {
+
+  /**
+   * Passes the results of {@code expression} and their deps, up to {@code depthBound} edges away,
+   * to {@code callback}. Like {@code deps(expression, depthBound)}.
+   *
+   * @param caller the expression to report errors for
+   */
+  void getDepsBounded(QueryExpression caller, QueryExpression expression, int depthBound,
+      Callback<T> callback) throws QueryException, InterruptedException;
+
+  /**
+   * Passes the results of {@code expression} that satisfy {@code universe} and their rdeps that
+   * satisfy it, up to {@code depthBound} edges away, to {@code callback}. The rdeps are only
+   * visited through targets that satisfy {@code universe}. Like {@code allrdeps(expression,
+   * depthBound)} restricted to {@code universe}.
+   */
+  void getRdepsBounded(QueryExpression expression, Predicate<T> universe, int depthBound,
+      Callback<T> callback) throws QueryException, InterruptedException;
+
+  /**
+   * Passes the results of {@code expression} and their rdeps, up to {@code depthBound} edges away,
+   * that are in the transitive closure of {@code universe} to {@code callback}. Like {@code
+   * rdeps(universe, expression, depthBound)}, but only the rdeps of {@code expression} are visited,
+   * not the transitive closure of {@code universe}.
+   */
+  void getRdepsInUniverseBounded(QueryExpression expression, Set<T> universe, int depthBound,
+      Callback<T> callback) throws QueryException, InterruptedException;
+}
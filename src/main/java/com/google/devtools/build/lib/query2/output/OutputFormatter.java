@@ -71,6 +71,7 @@ public abstract class OutputFormatter implements Serializable {
     GRAPH,
     XML,
     PROTO,
+    STREAMED_PROTO,
     RECORD,
   }
 
@@ -109,7 +110,8 @@ public abstract class OutputFormatter implements Serializable {
         new LocationOutputFormatter(),
         new GraphOutputFormatter(),
         new XmlOutputFormatter(),
-        new ProtoOutputFormatter());
+        new ProtoOutputFormatter(),
+        new StreamedProtoOutputFormatter());
   }
 
   public static String formatterNames(Iterable<OutputFormatter> formatters) {
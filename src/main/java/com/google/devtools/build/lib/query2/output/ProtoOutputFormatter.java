@@ -82,14 +82,18 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
     return "proto";
   }
 
-  @Override
-  public OutputFormatterCallback<Target> createStreamCallback(QueryOptions options,
-      final PrintStream out, AspectResolver aspectResolver) {
+  /** Sets up the conversion of targets to protocol buffers for the given options. */
+  protected void setOptions(QueryOptions options, AspectResolver aspectResolver) {
     relativeLocations = options.relativeLocations;
     this.aspectResolver = aspectResolver;
     this.includeDefaultValues = options.protoIncludeDefaultValues;
     setDependencyFilter(options);
+  }
 
+  @Override
+  public OutputFormatterCallback<Target> createStreamCallback(QueryOptions options,
+      final PrintStream out, AspectResolver aspectResolver) {
+    setOptions(options, aspectResolver);
     return new OutputFormatterCallback<Target>() {
 
       private Builder queryResult;
@@ -46,7 +46,7 @@ public class QueryOptions extends OptionsBase {
       category = "query",
       help = "The format in which the query results should be printed."
           + " Allowed values are: label, label_kind, minrank, maxrank, package, location, graph,"
-          + " xml, proto, record.")
+          + " xml, proto, streamed_proto, record.")
   public String outputFormat;
 
   @Option(
@@ -76,47 +76,61 @@ class XmlOutputFormatter extends AbstractUnorderedFormatter {
     this.dependencyFilter = OutputFormatter.getDependencyFilter(options);
     return new OutputFormatterCallback<Target>() {
 
-      private Document doc;
-      private Element queryElem;
-
+      private Transformer transformer;
 
       @Override
       public void start() {
         try {
-          DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-          doc = factory.newDocumentBuilder().newDocument();
-        } catch (ParserConfigurationException e) {
+          transformer = TransformerFactory.newInstance().newTransformer();
+        } catch (TransformerFactoryConfigurationError | TransformerException e) {
           // This shouldn't be possible: all the configuration is hard-coded.
           throw new IllegalStateException("XML output failed", e);
         }
-        doc.setXmlVersion("1.1");
-        queryElem = doc.createElement("query");
-        queryElem.setAttribute("version", "2");
-        doc.appendChild(queryElem);
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.setOutputProperty(OutputKeys.VERSION, "1.1");
+        // The declaration and the query element are written by hand, so that the element of each
+        // target can be written as soon as it is found.
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        out.print("<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+        out.print("<query version=\"2\">\n");
       }
 
       @Override
       protected void processOutput(Iterable<Target> partialResult)
           throws IOException, InterruptedException {
+        Document doc = newDocument();
         for (Target target : partialResult) {
-          queryElem.appendChild(createTargetElement(doc, target));
+          try {
+            transformer.transform(
+                new DOMSource(createTargetElement(doc, target)), new StreamResult(out));
+          } catch (TransformerException e) {
+            // This shouldn't be possible: all the configuration is hard-coded.
+            throw new IllegalStateException("XML output failed", e);
+          }
         }
       }
 
       @Override
       public void close() throws IOException {
-        try {
-          Transformer transformer = TransformerFactory.newInstance().newTransformer();
-          transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-          transformer.transform(new DOMSource(doc), new StreamResult(out));
-        } catch (TransformerFactoryConfigurationError | TransformerException e) {
-          // This shouldn't be possible: all the configuration is hard-coded.
-          throw new IllegalStateException("XML output failed", e);
-        }
+        out.print("</query>\n");
       }
     };
   }
 
+  /** Returns a new document, for creating the elements of targets. */
+  private static Document newDocument() {
+    Document doc;
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      doc = factory.newDocumentBuilder().newDocument();
+    } catch (ParserConfigurationException e) {
+      // This shouldn't be possible: all the configuration is hard-coded.
+      throw new IllegalStateException("XML output failed", e);
+    }
+    doc.setXmlVersion("1.1");
+    return doc;
+  }
+
   /**
    * Creates and returns a new DOM tree for the specified build target.
    *
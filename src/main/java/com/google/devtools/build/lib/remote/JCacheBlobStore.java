@@ -0,0 +1,79 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+
+import javax.cache.Cache;
+import javax.cache.processor.EntryProcessor;
+import javax.cache.processor.EntryProcessorResult;
+import javax.cache.processor.MutableEntry;
+
+/**
+ * A {@link SimpleBlobStore} backed by a JCache, e.g. a Hazelcast cluster.
+ */
+@ThreadSafe
+public final class JCacheBlobStore implements SimpleBlobStore {
+  private final Cache<String, byte[]> cache;
+
+  public JCacheBlobStore(Cache<String, byte[]> cache) {
+    this.cache = cache;
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return cache.containsKey(key);
+  }
+
+  @Override
+  public ImmutableSet<String> getMissingKeys(Collection<String> keys) {
+    // The entry processor runs where the entries are stored, so that neither the blobs nor one
+    // request per key have to go over the wire.
+    Map<String, EntryProcessorResult<Boolean>> results =
+        cache.invokeAll(new HashSet<>(keys), new ContainsKeyProcessor());
+    ImmutableSet.Builder<String> missing = ImmutableSet.builder();
+    for (String key : keys) {
+      EntryProcessorResult<Boolean> result = results.get(key);
+      if (result == null || !result.get()) {
+        missing.add(key);
+      }
+    }
+    return missing.build();
+  }
+
+  @Override
+  public byte[] get(String key) {
+    return cache.get(key);
+  }
+
+  @Override
+  public void put(String key, byte[] value) {
+    cache.put(key, value);
+  }
+
+  private static final class ContainsKeyProcessor
+      implements EntryProcessor<String, byte[], Boolean>, Serializable {
+    @Override
+    public Boolean process(MutableEntry<String, byte[]> entry, Object... arguments) {
+      return entry.exists();
+    }
+  }
+}
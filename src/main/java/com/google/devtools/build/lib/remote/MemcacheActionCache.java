@@ -14,19 +14,22 @@
 
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
-import com.google.common.io.Files;
-import com.google.common.io.BaseEncoding;
-
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
-import com.google.devtools.build.lib.util.Preconditions;
-import com.google.devtools.build.lib.vfs.FileSystemUtils;
-import com.google.devtools.build.lib.vfs.Path;
-import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.remote.RemoteProtocol.CacheEntry;
 import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.protobuf.ByteString;
 
 import java.io.IOException;
@@ -34,7 +37,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.Semaphore;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 import javax.cache.Cache;
 
@@ -42,28 +49,49 @@ import javax.cache.Cache;
  * A RemoteActionCache implementation that uses memcache as a distributed storage
  * for files and action output.
  *
- * The thread satefy is guranteed by the underlying memcache client.
+ * <p>Files are stored under a key derived from their content. Files larger than the chunk size are
+ * split into chunks that are stored under the hash of their own content, and the entry for the
+ * file only lists the chunk keys; neither uploads nor downloads ever hold more than one chunk per
+ * file in memory. The entry for a file is written after all of its chunks, so a file is only ever
+ * considered present once it can be read completely.
+ *
+ * <p>Uploads of several files first ask the store which of them are missing in a single batch,
+ * and then transfer the missing files in parallel on the transfer executor.
+ *
+ * The thread satefy is guranteed by the underlying blob store.
  */
 @ThreadSafe
 public class MemcacheActionCache implements RemoteActionCache {
+  @VisibleForTesting
+  static final int CHUNK_SIZE_BYTES = 1024 * 1024;
+
   private final Path execRoot;
   private final RemoteOptions options;
-  private final Cache<String, byte[]> cache;
-  private static final int MAX_MEMORY_KBYTES = 512 * 1024;
-  private final Semaphore uploadMemoryAvailable = new Semaphore(MAX_MEMORY_KBYTES, true);
+  private final SimpleBlobStore blobStore;
+  private final ListeningExecutorService transferService;
 
   /**
-   * Construct an action cache using JCache API.
+   * Construct an action cache using JCache API. Files are transferred on the calling thread.
    */
   public MemcacheActionCache(Path execRoot, RemoteOptions options, Cache<String, byte[]> cache) {
+    this(execRoot, options, new JCacheBlobStore(cache), MoreExecutors.newDirectExecutorService());
+  }
+
+  /**
+   * Construct an action cache on top of the given blob store. Files are transferred in parallel on
+   * {@code transferService}, which must not be used to run work that itself waits for transfers.
+   */
+  public MemcacheActionCache(Path execRoot, RemoteOptions options, SimpleBlobStore blobStore,
+      ListeningExecutorService transferService) {
     this.execRoot = execRoot;
     this.options = options;
-    this.cache = cache;
+    this.blobStore = blobStore;
+    this.transferService = transferService;
   }
 
   @Override
   public String putFileIfNotExist(Path file) throws IOException {
-    String contentKey = HashCode.fromBytes(file.getMD5Digest()).toString();
+    String contentKey = HashCode.fromBytes(file.getDigest()).toString();
     if (containsFile(contentKey))
       return contentKey;
     putFile(contentKey, file);
@@ -72,101 +100,198 @@ public class MemcacheActionCache implements RemoteActionCache {
 
   @Override
   public String putFileIfNotExist(ActionInputFileCache cache, ActionInput file) throws IOException {
-    // PerActionFileCache already converted this to a lowercase ascii string.. it's not consistent!
-    String contentKey = new String(cache.getDigest(file).toByteArray());
+    String contentKey = getContentKey(cache, file);
     if (containsFile(contentKey))
       return contentKey;
     putFile(contentKey, execRoot.getRelative(file.getExecPathString()));
     return contentKey;
   }
 
+  @Override
+  public ImmutableList<String> putFilesIfNotExist(ActionInputFileCache cache,
+      Collection<? extends ActionInput> files) throws IOException {
+    ImmutableList.Builder<String> contentKeys = ImmutableList.builder();
+    Map<String, Path> filesByKey = new LinkedHashMap<>();
+    for (ActionInput file : files) {
+      String contentKey = getContentKey(cache, file);
+      contentKeys.add(contentKey);
+      filesByKey.put(contentKey, execRoot.getRelative(file.getExecPathString()));
+    }
+    putFilesIfNotExist(filesByKey);
+    return contentKeys.build();
+  }
+
+  private static String getContentKey(ActionInputFileCache cache, ActionInput file)
+      throws IOException {
+    // PerActionFileCache already converted this to a lowercase ascii string.. it's not consistent!
+    return new String(cache.getDigest(file).toByteArray());
+  }
+
+  /**
+   * Uploads those of the files that are not in the store yet, in parallel.
+   */
+  private void putFilesIfNotExist(Map<String, Path> filesByKey) throws IOException {
+    ImmutableSet<String> missing = blobStore.getMissingKeys(filesByKey.keySet());
+    List<ListenableFuture<Void>> uploads = new ArrayList<>(missing.size());
+    for (final String key : missing) {
+      final Path file = filesByKey.get(key);
+      uploads.add(transferService.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          putFile(key, file);
+          return null;
+        }
+      }));
+    }
+    waitForTransfers(uploads);
+  }
+
   private void putFile(String key, Path file) throws IOException {
-    try {
-      int fileSizeKBytes = (int)(file.getFileSize() / 1024);
-      Preconditions.checkArgument(fileSizeKBytes < MAX_MEMORY_KBYTES);
-      uploadMemoryAvailable.acquire(fileSizeKBytes);
-      // TODO(alpha): I should put the file content as chunks to avoid reading the entire
-      // file into memory.
-      InputStream stream = file.getInputStream();
-      cache.put(key,
-                CacheEntry.newBuilder()
-                .setFileContent(ByteString.readFrom(stream))
-                .build().toByteArray());
-      stream.close();
-      uploadMemoryAvailable.release(fileSizeKBytes);
-    } catch (InterruptedException e) {
-        throw new IOException("Failed to put file to memory cache.", e);
+    try (InputStream stream = file.getInputStream()) {
+      if (file.getFileSize() <= CHUNK_SIZE_BYTES) {
+        blobStore.put(key, CacheEntry.newBuilder()
+            .setFileContent(ByteString.readFrom(stream))
+            .build().toByteArray());
+        return;
+      }
+      CacheEntry.Builder index = CacheEntry.newBuilder();
+      byte[] buffer = new byte[CHUNK_SIZE_BYTES];
+      for (int length = ByteStreams.read(stream, buffer, 0, buffer.length);
+           length > 0;
+           length = ByteStreams.read(stream, buffer, 0, buffer.length)) {
+        String chunkKey =
+            FileSystem.getDigestFunction().getHash().hashBytes(buffer, 0, length).toString();
+        if (!blobStore.containsKey(chunkKey)) {
+          blobStore.put(chunkKey, CacheEntry.newBuilder()
+              .setFileContent(ByteString.copyFrom(buffer, 0, length))
+              .build().toByteArray());
+        }
+        index.addChunkKeys(chunkKey);
+      }
+      // Only publish the file once all of its chunks are stored.
+      blobStore.put(key, index.build().toByteArray());
     }
   }
 
   @Override
   public void writeFile(String key, Path dest, boolean executable) throws IOException, CacheNotFoundException {
-    byte[] data = cache.get(key);
-    if (data == null) {
-      throw new CacheNotFoundException("File content cannot be found with key: " + key);
+    CacheEntry entry = getEntry(key, "File content");
+    try (OutputStream stream = dest.getOutputStream()) {
+      if (entry.getChunkKeysCount() == 0) {
+        entry.getFileContent().writeTo(stream);
+      } else {
+        for (String chunkKey : entry.getChunkKeysList()) {
+          getEntry(chunkKey, "File chunk").getFileContent().writeTo(stream);
+        }
+      }
     }
-    OutputStream stream = dest.getOutputStream();
-    CacheEntry.parseFrom(data)
-        .getFileContent()
-        .writeTo(stream);
-    stream.close();
     dest.setExecutable(executable);
   }
 
-  private boolean containsFile(String key) {
-    return cache.containsKey(key);
+  private CacheEntry getEntry(String key, String what) throws IOException {
+    byte[] data = blobStore.get(key);
+    if (data == null) {
+      throw new CacheNotFoundException(what + " cannot be found with key: " + key);
+    }
+    return CacheEntry.parseFrom(data);
+  }
+
+  private boolean containsFile(String key) throws IOException {
+    return blobStore.containsKey(key);
   }
 
   @Override
   public void writeActionOutput(String key, Path execRoot) throws IOException,
       CacheNotFoundException {
-    byte[] data = cache.get(key);
+    byte[] data = blobStore.get(key);
     if (data == null)
       throw new CacheNotFoundException("Action output cannot be found with key: " + key);
-    CacheEntry cacheEntry = CacheEntry.parseFrom(data);
-    for (FileEntry file : cacheEntry.getFilesList()) {
-      writeFile(file.getContentKey(), execRoot.getRelative(file.getPath()),
-                file.getExecutable());
+    writeFiles(CacheEntry.parseFrom(data).getFilesList(), execRoot);
+  }
+
+  /**
+   * Writes the files from cache to the file system in parallel. The paths of the file entries are
+   * relative to {@code execRoot}.
+   */
+  public void writeFiles(Collection<FileEntry> files, final Path execRoot) throws IOException,
+      CacheNotFoundException {
+    List<ListenableFuture<Void>> downloads = new ArrayList<>(files.size());
+    for (final FileEntry file : files) {
+      downloads.add(transferService.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          writeFile(file.getContentKey(), execRoot.getRelative(file.getPath()),
+                    file.getExecutable());
+          return null;
+        }
+      }));
     }
+    waitForTransfers(downloads);
   }
 
   @Override
   public void putActionOutput(String key,
                               Collection<? extends ActionInput> outputs) throws IOException {
-    CacheEntry.Builder actionOutput = CacheEntry.newBuilder();
+    Map<String, Path> files = new LinkedHashMap<>();
     for (ActionInput output : outputs) {
-      Path file = execRoot.getRelative(output.getExecPathString());
-      addToActionOutput(file, output.getExecPathString(), actionOutput);
+      files.put(output.getExecPathString(), execRoot.getRelative(output.getExecPathString()));
     }
-    cache.put(key, actionOutput.build().toByteArray());
+    putActionOutput(key, files);
   }
 
   @Override
   public void putActionOutput(String key,
                               Path execRoot,
                               Collection<Path> files) throws IOException {
-    CacheEntry.Builder actionOutput = CacheEntry.newBuilder();
+    Map<String, Path> filesByExecPath = new LinkedHashMap<>();
     for (Path file : files) {
-      addToActionOutput(file, file.relativeTo(execRoot).getPathString(), actionOutput);
+      filesByExecPath.put(file.relativeTo(execRoot).getPathString(), file);
     }
-    cache.put(key, actionOutput.build().toByteArray());
+    putActionOutput(key, filesByExecPath);
   }
 
   /**
-   * Add the file to action output cache entry. Put the file to cache if necessary.
+   * Puts the content of the files into the cache if necessary and then stores the action output
+   * cache entry for them.
    */
-  private void addToActionOutput(Path file, String execPathString, CacheEntry.Builder actionOutput)
+  private void putActionOutput(String key, Map<String, Path> filesByExecPath) throws IOException {
+    CacheEntry.Builder actionOutput = CacheEntry.newBuilder();
+    Map<String, Path> filesByContentKey = new LinkedHashMap<>();
+    for (Map.Entry<String, Path> entry : filesByExecPath.entrySet()) {
+      Path file = entry.getValue();
+      if (file.isSymbolicLink() || file.isDirectory()) {
+        // TODO(alpha): Need to handle these cases.
+        continue;
+      }
+      String contentKey = HashCode.fromBytes(file.getDigest()).toString();
+      filesByContentKey.put(contentKey, file);
+      actionOutput.addFilesBuilder()
+          .setPath(entry.getKey())
+          .setContentKey(contentKey)
+          .setExecutable(file.isExecutable());
+    }
+    putFilesIfNotExist(filesByContentKey);
+    blobStore.put(key, actionOutput.build().toByteArray());
+  }
+
+  private static void waitForTransfers(List<ListenableFuture<Void>> transfers)
       throws IOException {
-    if (file.isSymbolicLink() || file.isDirectory()) {
-      // TODO(alpha): Need to handle these cases.
-      return;
+    try {
+      Futures.allAsList(transfers).get();
+    } catch (InterruptedException e) {
+      for (ListenableFuture<Void> transfer : transfers) {
+        transfer.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while transferring files to or from the cache.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Failed to transfer files to or from the cache.", cause);
     }
-    // First put the file content to cache.
-    String contentKey = putFileIfNotExist(file);
-    // Add to protobuf.
-    actionOutput.addFilesBuilder()
-        .setPath(execPathString)
-        .setContentKey(contentKey)
-        .setExecutable(file.isExecutable());
   }
 }
@@ -93,19 +93,21 @@ public class MemcacheWorkExecutor implements RemoteWorkExecutor {
     }
 
     // Save all input files to cache.
+    List<ActionInput> inputFiles = new ArrayList<>();
     for (ActionInput input : inputs) {
-      Path file = execRoot.getRelative(input.getExecPathString());
-           
-      if (file.isDirectory()) {
-        // TODO(alpha): Need to handle these cases. 
+      if (execRoot.getRelative(input.getExecPathString()).isDirectory()) {
+        // TODO(alpha): Need to handle these cases.
         continue;
       }
- 
-      String contentKey = cache.putFileIfNotExist(actionCache, input);
+      inputFiles.add(input);
+    }
+    List<String> contentKeys = cache.putFilesIfNotExist(actionCache, inputFiles);
+    for (int i = 0; i < inputFiles.size(); i++) {
+      ActionInput input = inputFiles.get(i);
       work.addInputFilesBuilder()
           .setPath(input.getExecPathString())
-          .setContentKey(contentKey)
-          .setExecutable(file.isExecutable());
+          .setContentKey(contentKeys.get(i))
+          .setExecutable(execRoot.getRelative(input.getExecPathString()).isExecutable());
     }
 
     work.addAllArguments(arguments);
@@ -131,8 +133,8 @@ public class MemcacheWorkExecutor implements RemoteWorkExecutor {
             for (FileEntry input : work.getInputFilesList()) {
               Path file = execRoot.getRelative(input.getPath());
               FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
-              cache.writeFile(input.getContentKey(), file, input.getExecutable());
             }
+            cache.writeFiles(work.getInputFilesList(), execRoot);
 
             // Prepare directories for output files.
             List<Path> outputs = new ArrayList<>();
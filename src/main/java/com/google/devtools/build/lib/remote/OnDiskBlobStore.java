@@ -0,0 +1,85 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link SimpleBlobStore} that stores every blob as a file in a directory. Blobs are written to
+ * a temporary file first and then renamed, so concurrent readers never see partial blobs.
+ */
+@ThreadSafe
+public final class OnDiskBlobStore implements SimpleBlobStore {
+  private static final Pattern VALID_KEY = Pattern.compile("[a-zA-Z0-9_-]+");
+
+  private final Path root;
+
+  public OnDiskBlobStore(Path root) throws IOException {
+    FileSystemUtils.createDirectoryAndParents(root);
+    this.root = root;
+  }
+
+  private Path getPath(String key) {
+    Preconditions.checkArgument(VALID_KEY.matcher(key).matches(), "Invalid key: %s", key);
+    return root.getChild(key);
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return getPath(key).exists();
+  }
+
+  @Override
+  public ImmutableSet<String> getMissingKeys(Collection<String> keys) {
+    ImmutableSet.Builder<String> missing = ImmutableSet.builder();
+    for (String key : keys) {
+      if (!containsKey(key)) {
+        missing.add(key);
+      }
+    }
+    return missing.build();
+  }
+
+  @Override
+  public byte[] get(String key) throws IOException {
+    try {
+      return FileSystemUtils.readContent(getPath(key));
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void put(String key, byte[] value) throws IOException {
+    Path target = getPath(key);
+    Path temp = root.getChild(key + ".tmp-" + UUID.randomUUID());
+    try {
+      FileSystemUtils.writeContent(temp, value);
+      temp.renameTo(target);
+    } finally {
+      temp.delete();
+    }
+  }
+}
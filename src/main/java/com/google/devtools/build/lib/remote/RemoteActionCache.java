@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.remote;
 
+import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
@@ -36,6 +37,14 @@ public interface RemoteActionCache {
 
   public String putFileIfNotExist(ActionInputFileCache cache, ActionInput file) throws IOException;
 
+  /**
+   * Put the files in cache that are not already in it. Implementations should check which files
+   * are missing with as few round trips as possible, and may transfer them in parallel.
+   * Returns the keys for fetching the files from cache, in the order of the given files.
+   */
+  public ImmutableList<String> putFilesIfNotExist(ActionInputFileCache cache,
+      Collection<? extends ActionInput> files) throws IOException;
+
   /**
    * Write the file in cache identified by key to the file system. The key must uniquely identify
    * the content of the file. Throws CacheNotFoundException if the file is not found in cache.
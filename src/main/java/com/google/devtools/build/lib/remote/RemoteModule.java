@@ -30,7 +30,6 @@ import com.google.devtools.common.options.OptionsBase;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
@@ -46,8 +45,12 @@ public class RemoteModule extends BlazeModule {
 
   public RemoteModule() {
     // Create a pool of daemon threads for the work executor.
-    executorService = MoreExecutors.listeningDecorator(
-        Executors.newFixedThreadPool(5,
+    executorService = newDaemonThreadPool(5);
+  }
+
+  private static ListeningExecutorService newDaemonThreadPool(int threads) {
+    return MoreExecutors.listeningDecorator(
+        Executors.newFixedThreadPool(threads,
             new ThreadFactory() {
               @Override
               public Thread newThread(Runnable runnable) {
@@ -85,12 +88,16 @@ public class RemoteModule extends BlazeModule {
     RemoteOptions options = buildRequest.getOptions(RemoteOptions.class);
 
     // Don't provide the remote spawn unless at least action cache is initialized.
-    if (actionCache == null && (
+    if (actionCache == null && (options.remoteCache != null || (
             options.memcacheProvider != null &&
-            (options.hazelcastConfiguration != null || options.hazelcastNode != null))) {
+            (options.hazelcastConfiguration != null || options.hazelcastNode != null)))) {
+      SimpleBlobStore blobStore = options.remoteCache != null
+          ? new RestBlobStore(options.remoteCache, options.remoteTransferThreads)
+          : new JCacheBlobStore(new HazelcastCacheFactory().create(options));
+      // Transfers get their own pool: the work executor pool runs work that waits for transfers.
       MemcacheActionCache cache = new MemcacheActionCache(
-          this.env.getRuntime().getExecRoot(), options,
-          new HazelcastCacheFactory().create(options));
+          this.env.getRuntime().getExecRoot(), options, blobStore,
+          newDaemonThreadPool(options.remoteTransferThreads));
       actionCache = cache;
       if (workExecutor == null && options.restWorkerUrl != null) {
         try {
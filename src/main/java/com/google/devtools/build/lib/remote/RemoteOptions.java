@@ -62,4 +62,23 @@ public class RemoteOptions extends OptionsBase {
       help = "URL for the REST worker."
   )
   public String restWorkerUrl;
+
+  @Option(
+      name = "remote_cache",
+      defaultValue = "null",
+      category = "remote",
+      help = "URL of a remote cache server as started by "
+          + "src/tools/build_worker:remote_cache_server. Takes precedence over the memcache "
+          + "options. A REST worker given by --rest_worker_url must be started with the same "
+          + "--remote_cache."
+  )
+  public String remoteCache;
+
+  @Option(
+      name = "remote_transfer_threads",
+      defaultValue = "16",
+      category = "remote",
+      help = "The number of files that are transferred to or from the remote cache in parallel."
+  )
+  public int remoteTransferThreads;
 }
@@ -110,6 +110,7 @@ public class RemoteSpawnStrategy implements SpawnActionContext {
         // remote action cache. Consider upgrading this to a better hash algorithm with
         // less collision.
         hasher.putBytes(inputFileCache.getDigest(input).toByteArray());
+      } catch (IOException e) {
         throw new UserExecException("Failed to get digest for input.", e);
       }
     }
@@ -0,0 +1,121 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * A {@link SimpleBlobStore} that talks to a remote cache server over HTTP. The server is
+ * implemented in src/tools/build_worker and exposes:
+ *
+ * <ul>
+ *   <li>{@code GET}, {@code HEAD} and {@code PUT} on {@code <url>/cas/<key>} for single blobs.
+ *   <li>{@code POST} on {@code <url>/find-missing}, which takes a newline separated list of keys
+ *       and returns those that the server has no blob for in the same format.
+ * </ul>
+ */
+@ThreadSafe
+public final class RestBlobStore implements SimpleBlobStore {
+  public static final String CAS_PATH = "/cas/";
+  public static final String FIND_MISSING_PATH = "/find-missing";
+
+  private final String baseUrl;
+  private final HttpClient httpClient;
+
+  public RestBlobStore(String baseUrl, int maxConnections) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    this.httpClient = new DefaultHttpClient(connectionManager);
+  }
+
+  @Override
+  public boolean containsKey(String key) throws IOException {
+    HttpResponse response = httpClient.execute(new HttpHead(baseUrl + CAS_PATH + key));
+    EntityUtils.consume(response.getEntity());
+    return checkStatus(response);
+  }
+
+  @Override
+  public ImmutableSet<String> getMissingKeys(Collection<String> keys) throws IOException {
+    if (keys.isEmpty()) {
+      return ImmutableSet.of();
+    }
+    HttpPost post = new HttpPost(baseUrl + FIND_MISSING_PATH);
+    post.setEntity(new StringEntity(Joiner.on('\n').join(keys), StandardCharsets.UTF_8));
+    HttpResponse response = httpClient.execute(post);
+    String body = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+      throw new IOException("Remote cache failed to find missing keys: "
+          + response.getStatusLine());
+    }
+    return ImmutableSet.copyOf(Splitter.on('\n').omitEmptyStrings().split(body));
+  }
+
+  @Override
+  public byte[] get(String key) throws IOException {
+    HttpResponse response = httpClient.execute(new HttpGet(baseUrl + CAS_PATH + key));
+    byte[] content = response.getEntity() == null
+        ? new byte[0]
+        : EntityUtils.toByteArray(response.getEntity());
+    return checkStatus(response) ? content : null;
+  }
+
+  @Override
+  public void put(String key, byte[] value) throws IOException {
+    HttpPut put = new HttpPut(baseUrl + CAS_PATH + key);
+    put.setEntity(new ByteArrayEntity(value));
+    HttpResponse response = httpClient.execute(put);
+    EntityUtils.consume(response.getEntity());
+    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+      throw new IOException("Remote cache failed to store " + key + ": "
+          + response.getStatusLine());
+    }
+  }
+
+  /**
+   * Returns true if the response is OK, false if the blob was not found, and throws otherwise.
+   */
+  private static boolean checkStatus(HttpResponse response) throws IOException {
+    int status = response.getStatusLine().getStatusCode();
+    if (status == HttpStatus.SC_OK) {
+      return true;
+    } else if (status == HttpStatus.SC_NOT_FOUND) {
+      return false;
+    }
+    throw new IOException("Unexpected response from remote cache: " + response.getStatusLine());
+  }
+}
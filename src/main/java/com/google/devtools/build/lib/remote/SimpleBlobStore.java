@@ -0,0 +1,52 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.IOException;
+import java.util.Collection;
+
+import javax.annotation.Nullable;
+
+/**
+ * A key-value store for the blobs of {@link MemcacheActionCache}. Implementations must be thread
+ * safe since blobs are transferred in parallel.
+ */
+@ThreadSafe
+public interface SimpleBlobStore {
+  /**
+   * Returns true if the store has a blob for the key.
+   */
+  boolean containsKey(String key) throws IOException;
+
+  /**
+   * Returns the subset of the keys for which the store has no blob. Implementations should answer
+   * this with a single round trip to the store if they can.
+   */
+  ImmutableSet<String> getMissingKeys(Collection<String> keys) throws IOException;
+
+  /**
+   * Returns the blob for the key, or null if there is none.
+   */
+  @Nullable
+  byte[] get(String key) throws IOException;
+
+  /**
+   * Stores the blob for the key, overwriting any existing blob.
+   */
+  void put(String key, byte[] value) throws IOException;
+}
@@ -101,6 +101,12 @@ public class AbstractCriticalPathComponent<C extends AbstractCriticalPathCompone
     return relativeFinishNanos - relativeStartNanos;
   }
 
+  /** Finish time for the action in nanoseconds. Only to be used for ordering actions. */
+  synchronized long getRelativeFinishNanos() {
+    Preconditions.checkState(!isRunning, "Still running %s", action);
+    return relativeFinishNanos;
+  }
+
   /**
    * Returns the current critical path for the action in nanoseconds.
    *
@@ -43,6 +43,7 @@ import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.config.BinTools;
 import com.google.devtools.build.lib.analysis.config.BuildOptions;
 import com.google.devtools.build.lib.analysis.config.ConfigurationFactory;
+import com.google.devtools.build.lib.buildtool.LastBuildSummary;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.OutputFilter;
 import com.google.devtools.build.lib.events.Reporter;
@@ -97,6 +98,7 @@ import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.UnixFileSystem;
+import com.google.devtools.build.lib.vfs.XattrDigestCache;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.common.options.Option;
@@ -176,6 +178,10 @@ public final class BlazeRuntime {
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable
   private Range<Long> lastExecutionRange = null;
+  // The last successful build, which identical builds reuse if nothing changed since.
+  @Nullable private LastBuildSummary lastBuildSummary = null;
+  /** Whether the last command asked for Skyframe graph snapshots. */
+  private volatile boolean graphSnapshotEnabled = false;
 
   private BlazeRuntime(BlazeDirectories directories,
       WorkspaceStatusAction.Factory workspaceStatusActionFactory,
@@ -371,6 +377,19 @@ public final class BlazeRuntime {
     return lastExecutionRange;
   }
 
+  /**
+   * Returns the request and result of the last successful build, or null if the last build failed
+   * or the server has not built anything yet.
+   */
+  @Nullable
+  public LastBuildSummary getLastBuildSummary() {
+    return lastBuildSummary;
+  }
+
+  public void setLastBuildSummary(@Nullable LastBuildSummary lastBuildSummary) {
+    this.lastBuildSummary = lastBuildSummary;
+  }
+
   public String getWorkspaceName() {
     Path workspace = directories.getWorkspace();
     if (workspace == null) {
@@ -535,6 +554,7 @@ public final class BlazeRuntime {
    * Removes in-memory caches.
    */
   public void clearCaches() throws IOException {
+    lastBuildSummary = null;
     skyframeExecutor.resetEvaluator();
     actionCache = null;
     FileSystemUtils.deleteTree(getCacheDirectory());
@@ -559,6 +579,52 @@ public final class BlazeRuntime {
     return getOutputBase().getChild("action_cache");
   }
 
+  /**
+   * Returns the file the Skyframe graph snapshot is kept in. Like the action cache, it must be
+   * inside the output base, since it is only valid for this workspace.
+   */
+  private Path getGraphSnapshotFile() {
+    return getOutputBase().getChild("skyframe_snapshot");
+  }
+
+  /**
+   * Restores the Skyframe graph from the snapshot left by a previous server, if any. Only has an
+   * effect before the first evaluation of this server.
+   */
+  private void restoreGraphSnapshot(Reporter reporter) {
+    try (AutoProfiler p = AutoProfiler.logged("restoring Skyframe graph snapshot", LOG)) {
+      int restored = skyframeExecutor.restoreGraphSnapshot(getGraphSnapshotFile());
+      LOG.info("Restored " + restored + " Skyframe values from graph snapshot");
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to restore Skyframe graph snapshot: " + e.getMessage(), e);
+      reporter.handle(Event.warn("Error while restoring Skyframe graph snapshot: "
+          + e.getMessage() + ". Blaze will start with an empty graph"));
+    }
+  }
+
+  /**
+   * Writes a snapshot of the Skyframe graph for use by a future server, if the last command asked
+   * for it. Called when the server is idle or shutting down, never in parallel with a command.
+   */
+  public void writeGraphSnapshotIfEnabled() {
+    if (!graphSnapshotEnabled) {
+      return;
+    }
+    try (AutoProfiler p = AutoProfiler.logged("writing Skyframe graph snapshot", LOG)) {
+      int written = skyframeExecutor.writeGraphSnapshot(getGraphSnapshotFile());
+      if (written < 0) {
+        LOG.info("Skyframe graph snapshot is up to date");
+      } else {
+        LOG.info("Wrote " + written + " Skyframe values to graph snapshot");
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to write Skyframe graph snapshot: " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      LOG.info("Writing Skyframe graph snapshot was interrupted");
+      Thread.currentThread().interrupt();
+    }
+  }
+
   /**
    * Returns a provider for project file objects. Can be null if no such provider was set by any of
    * the modules.
@@ -602,6 +668,11 @@ public final class BlazeRuntime {
       }
     }
 
+    if (options.skyframeGraphSnapshot) {
+      restoreGraphSnapshot(env.getReporter());
+    }
+    graphSnapshotEnabled = options.skyframeGraphSnapshot;
+
     // Initialize exit code to dummy value for afterCommand.
     storedExitCode.set(ExitCode.RESERVED.getNumericExitCode());
   }
@@ -703,6 +774,7 @@ public final class BlazeRuntime {
   }
 
   public void shutdown() {
+    writeGraphSnapshotIfEnabled();
     for (BlazeModule module : blazeModules) {
       module.blazeShutdown();
     }
@@ -1040,8 +1112,15 @@ public final class BlazeRuntime {
       }
     };
 
+    Runnable idleTask = new Runnable() {
+      @Override
+      public void run() {
+        runtime.writeGraphSnapshotIfEnabled();
+      }
+    };
     RPCServer server = RPCServer.newServerWith(runtime.getClock(), blazeCommand,
-        runtime.getServerDirectory(), runtime.getWorkspace(), startupOptions.maxIdleSeconds);
+        runtime.getServerDirectory(), runtime.getWorkspace(), startupOptions.maxIdleSeconds,
+        idleTask);
     return server;
   }
 
@@ -1112,6 +1191,9 @@ public final class BlazeRuntime {
     PathFragment outputBase = startupOptions.outputBase;
 
     OsUtils.maybeForceJNI(installBase);  // Must be before first use of JNI.
+    // Must be before any digest is computed.
+    FileSystem.setDigestFunction(startupOptions.digestFunction);
+    XattrDigestCache.setEnabled(startupOptions.digestXattrCache);
 
     // From the point of view of the Java program --install_base and --output_base
     // are mandatory options, despite the comment in their declarations.
@@ -1336,7 +1418,8 @@ public final class BlazeRuntime {
         }
       }
       if (skyframeExecutorFactory == null) {
-        skyframeExecutorFactory = new SequencedSkyframeExecutorFactory();
+        skyframeExecutorFactory = new SequencedSkyframeExecutorFactory(startupOptionsProvider
+            .getOptions(BlazeServerStartupOptions.class).compactSkyframeGraph);
       }
       if (preprocessorFactorySupplier == null) {
         preprocessorFactorySupplier = Preprocessor.Factory.Supplier.NullSupplier.INSTANCE;
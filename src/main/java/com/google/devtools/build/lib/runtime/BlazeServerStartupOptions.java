@@ -15,8 +15,10 @@ package com.google.devtools.build.lib.runtime;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.util.OptionsUtils;
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converter;
+import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionsBase;
 
@@ -242,6 +244,36 @@ public class BlazeServerStartupOptions extends OptionsBase {
           + "changes instead of scanning every file for a change.")
   public boolean watchFS;
 
+  @Option(name = "experimental_compact_skyframe_graph",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, the server stores the Skyframe graph in a representation that uses less "
+          + "memory for the dependency edges.")
+  public boolean compactSkyframeGraph;
+
+  /**
+   * Converter for the <code>digest_function</code> option.
+   */
+  public static class HashFunctionConverter extends EnumConverter<HashFunction> {
+    public HashFunctionConverter() {
+      super(HashFunction.class, "hash function");
+    }
+  }
+
+  @Option(name = "digest_function",
+      defaultValue = "md5",
+      category = "undocumented",
+      converter = HashFunctionConverter.class,
+      help = "The hash function used for file digests and fingerprints.")
+  public HashFunction digestFunction;
+
+  @Option(name = "experimental_digest_xattr_cache",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, the digests of files on the local disk are stored in an extended attribute "
+          + "of the files, so that unchanged files need not be read again, even by a new server.")
+  public boolean digestXattrCache;
+
 
   @Option(name = "invocation_policy",
       defaultValue = "",
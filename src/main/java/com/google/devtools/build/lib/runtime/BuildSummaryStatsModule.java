@@ -16,14 +16,19 @@ package com.google.devtools.build.lib.runtime;
 import com.google.common.base.Joiner;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
+import com.google.devtools.build.lib.actions.ActionPriorities;
 import com.google.devtools.build.lib.buildtool.buildevent.BuildCompleteEvent;
 import com.google.devtools.build.lib.buildtool.buildevent.ExecutionStartingEvent;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.common.options.OptionsProvider;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -31,26 +36,60 @@ import java.util.logging.Logger;
 
 /**
  * Blaze module for the build summary message that reports various stats to the user.
+ *
+ * <p>With --experimental_critical_path_scheduling, it also keeps the {@link CriticalPathHistory}
+ * that prioritizes the actions of later builds.
  */
 public class BuildSummaryStatsModule extends BlazeModule {
 
   private static final Logger LOG = Logger.getLogger(BuildSummaryStatsModule.class.getName());
 
+  private static final String CRITICAL_PATH_HISTORY_FILE = "critical_path_history";
+
   private SimpleCriticalPathComputer criticalPathComputer;
   private EventBus eventBus;
   private Reporter reporter;
+  private CommandEnvironment env;
+  private boolean criticalPathScheduling;
+  // Loaded lazily and kept for the lifetime of the server.
+  private CriticalPathHistory criticalPathHistory;
 
   @Override
   public void beforeCommand(Command command, CommandEnvironment env) {
+    this.env = env;
     this.reporter = env.getReporter();
     this.eventBus = env.getEventBus();
     eventBus.register(this);
   }
 
+  @Override
+  public void handleOptions(OptionsProvider optionsProvider) {
+    ExecutionOptions options = optionsProvider.getOptions(ExecutionOptions.class);
+    criticalPathScheduling = options != null && options.criticalPathScheduling;
+  }
+
+  @Override
+  public void afterCommand() {
+    env = null;
+  }
+
   @Subscribe
   public void executionPhaseStarting(ExecutionStartingEvent event) {
     criticalPathComputer = new SimpleCriticalPathComputer(BlazeClock.instance());
     eventBus.register(criticalPathComputer);
+    if (criticalPathScheduling) {
+      if (criticalPathHistory == null) {
+        criticalPathHistory = CriticalPathHistory.load(getCriticalPathHistoryFile());
+      }
+      eventBus.register(criticalPathHistory);
+      env.getSkyframeExecutor().setActionPriorities(criticalPathHistory);
+    } else {
+      env.getSkyframeExecutor().setActionPriorities(ActionPriorities.NONE);
+    }
+  }
+
+  private Path getCriticalPathHistoryFile() {
+    return env.getDirectories().getOutputBase().getRelative(CRITICAL_PATH_HISTORY_FILE);
   }
 
   @Subscribe
@@ -78,6 +117,15 @@ public class BuildSummaryStatsModule extends BlazeModule {
               ProfilerTask.CRITICAL_PATH_COMPONENT, stat.getAction());
         }
         Profiler.instance().completeTask(ProfilerTask.CRITICAL_PATH);
+
+        if (criticalPathScheduling) {
+          criticalPathHistory.update(criticalPathComputer);
+          try {
+            criticalPathHistory.save(getCriticalPathHistoryFile());
+          } catch (IOException e) {
+            LOG.warning("Failed to save the critical path history: " + e);
+          }
+        }
       }
 
       reporter.handle(Event.info(Joiner.on(", ").join(items)));
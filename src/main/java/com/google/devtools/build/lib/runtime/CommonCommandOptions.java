@@ -206,6 +206,14 @@ public class CommonCommandOptions extends OptionsBase {
       help = "Deprecated.")
   public boolean gcWatchdog;
 
+  @Option(name = "experimental_skyframe_graph_snapshot",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, Blaze saves a snapshot of the file system related parts of its Skyframe "
+          + "graph in the output base whenever the server is idle or shuts down, and a new server "
+          + "starts out from that snapshot instead of an empty graph.")
+  public boolean skyframeGraphSnapshot;
+
   @Option(name = "startup_time",
       defaultValue = "0",
       category = "hidden",
@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.runtime;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.Action;
@@ -33,6 +34,7 @@ import java.util.Comparator;
 import java.util.PriorityQueue;
 import java.util.concurrent.ConcurrentMap;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -185,6 +187,17 @@ public abstract class CriticalPathComputer<C extends AbstractCriticalPathCompone
     }
   }
 
+  /** The component of the action that generated the artifact in this build, if any. */
+  @Nullable
+  C getComponent(Artifact artifact) {
+    return outputArtifactToComponent.get(artifact);
+  }
+
+  /** All components recorded during the build. */
+  ImmutableSet<C> getComponents() {
+    return ImmutableSet.copyOf(outputArtifactToComponent.values());
+  }
+
   /**
    * The list of slowest individual components, ignoring the time to build dependencies.
    */
@@ -0,0 +1,204 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.primitives.Ints;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionPriorities;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.CachedActionEvent;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Remembers how long actions took in previous builds and how much time remained after them, and
+ * gives the actions with the most remaining time the highest priority, so that the longest chains
+ * of actions start first.
+ *
+ * <p>The remaining time of an action is its own duration plus the largest remaining time of the
+ * actions that consume its outputs. It is computed at the end of every build from the components
+ * of the {@link CriticalPathComputer}, and can be saved in and loaded from a file so that it
+ * survives server restarts. Actions are identified by the exec path of their primary output.
+ */
+@ThreadSafe
+public final class CriticalPathHistory implements ActionPriorities {
+
+  private static final Logger LOG = Logger.getLogger(CriticalPathHistory.class.getName());
+
+  private static final int VERSION = 1;
+  // Limits the size of the history if the actions differ a lot between builds.
+  private static final int MAX_ENTRIES = 1000000;
+
+  private volatile ImmutableMap<String, Entry> entries;
+  private final Set<Artifact> cachedOutputs = Sets.newConcurrentHashSet();
+
+  public CriticalPathHistory() {
+    this(ImmutableMap.<String, Entry>of());
+  }
+
+  private CriticalPathHistory(ImmutableMap<String, Entry> entries) {
+    this.entries = entries;
+  }
+
+  @Override
+  public int getPriority(Action action) {
+    Entry entry = entries.get(action.getPrimaryOutput().getExecPathString());
+    return entry == null ? 0 : entry.remainingMillis;
+  }
+
+  /**
+   * Records that an action was not executed because it was in the (disk) cache, so that its
+   * duration is not mistaken for the time it takes to execute it.
+   */
+  @Subscribe
+  public void actionCached(CachedActionEvent event) {
+    cachedOutputs.add(event.getAction().getPrimaryOutput());
+  }
+
+  /**
+   * Updates the history with the actions of a build that just completed.
+   */
+  public <C extends AbstractCriticalPathComponent<C>> void update(
+      CriticalPathComputer<C, ?> computer) {
+    List<C> components = new ArrayList<>();
+    for (C component : computer.getComponents()) {
+      // Actions of interrupted or failed builds may not have finished.
+      if (!component.isRunning) {
+        components.add(component);
+      }
+    }
+    // An action finishes after the actions it depends on, so every action is visited after the
+    // actions that consume its outputs.
+    Collections.sort(components, new Comparator<C>() {
+      @Override
+      public int compare(C first, C second) {
+        return Long.compare(second.getRelativeFinishNanos(), first.getRelativeFinishNanos());
+      }
+    });
+    ImmutableMap<String, Entry> previous = entries;
+    Map<String, Entry> updated = new HashMap<>();
+    Map<C, Long> consumerRemainingMillis = new IdentityHashMap<>();
+    for (C component : components) {
+      Action action = component.getAction();
+      String key = action.getPrimaryOutput().getExecPathString();
+      long durationMillis = component.getElapsedTimeMillis();
+      if (cachedOutputs.contains(action.getPrimaryOutput())) {
+        Entry entry = previous.get(key);
+        durationMillis = entry == null ? 0 : entry.durationMillis;
+      }
+      Long consumerMillis = consumerRemainingMillis.remove(component);
+      long remainingMillis = durationMillis + (consumerMillis == null ? 0 : consumerMillis);
+      for (Artifact input : action.getInputs()) {
+        C dep = computer.getComponent(input);
+        if (dep != null && dep != component) {
+          Long depConsumerMillis = consumerRemainingMillis.get(dep);
+          if (depConsumerMillis == null || depConsumerMillis < remainingMillis) {
+            consumerRemainingMillis.put(dep, remainingMillis);
+          }
+        }
+      }
+      updated.put(key, new Entry(Ints.saturatedCast(durationMillis),
+          Ints.saturatedCast(remainingMillis)));
+    }
+    cachedOutputs.clear();
+
+    if (previous.size() + updated.size() <= MAX_ENTRIES) {
+      for (Map.Entry<String, Entry> entry : previous.entrySet()) {
+        if (!updated.containsKey(entry.getKey())) {
+          updated.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    entries = ImmutableMap.copyOf(updated);
+  }
+
+  /**
+   * Loads a history saved by {@link #save}. Returns an empty history if the file does not exist or
+   * cannot be read.
+   */
+  public static CriticalPathHistory load(Path file) {
+    if (!file.exists()) {
+      return new CriticalPathHistory();
+    }
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(file.getInputStream()))) {
+      if (in.readInt() != VERSION) {
+        return new CriticalPathHistory();
+      }
+      int size = in.readInt();
+      ImmutableMap.Builder<String, Entry> entries = ImmutableMap.builder();
+      for (int i = 0; i < size; i++) {
+        entries.put(in.readUTF(), new Entry(in.readInt(), in.readInt()));
+      }
+      return new CriticalPathHistory(entries.build());
+    } catch (IOException e) {
+      LOG.warning("Failed to load the critical path history from " + file + ": " + e);
+      return new CriticalPathHistory();
+    }
+  }
+
+  /**
+   * Saves the history to the file, replacing it atomically.
+   */
+  public void save(Path file) throws IOException {
+    ImmutableMap<String, Entry> entries = this.entries;
+    Path tmpFile = file.getParentDirectory().getRelative(file.getBaseName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(tmpFile.getOutputStream()))) {
+      out.writeInt(VERSION);
+      out.writeInt(entries.size());
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue().durationMillis);
+        out.writeInt(entry.getValue().remainingMillis);
+      }
+    }
+    tmpFile.renameTo(file);
+  }
+
+  @VisibleForTesting
+  int size() {
+    return entries.size();
+  }
+
+  /** What is known about an action from previous builds. */
+  private static final class Entry {
+    private final int durationMillis;
+    private final int remainingMillis;
+
+    private Entry(int durationMillis, int remainingMillis) {
+      this.durationMillis = durationMillis;
+      this.remainingMillis = remainingMillis;
+    }
+  }
+}
@@ -25,6 +25,7 @@ import com.google.devtools.build.lib.runtime.Command;
 import com.google.devtools.build.lib.runtime.CommandEnvironment;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.skyframe.SkyFunctionStats;
 import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionsBase;
@@ -94,7 +95,9 @@ public class DumpCommand implements BlazeCommand {
         defaultValue = "off",
         category = "verbosity",
         converter = SkyframeDumpEnumConverter.class,
-        help = "Dump Skyframe graph: 'off', 'summary', or 'detailed'.")
+        help = "Dump Skyframe graph: 'off', 'summary', or 'detailed'. 'stats' instead dumps "
+            + "the evaluations, restarts, time and dep group sizes of each SkyFunction since the "
+            + "server started.")
     public SkyframeDumpOption dumpSkyframe;
   }
 
@@ -104,7 +107,8 @@ public class DumpCommand implements BlazeCommand {
   public enum SkyframeDumpOption {
     OFF,
     SUMMARY,
-    DETAILED;
+    DETAILED,
+    STATS;
   }
 
   /**
@@ -175,8 +179,7 @@ public class DumpCommand implements BlazeCommand {
       }
 
       if (dumpOptions.dumpSkyframe != SkyframeDumpOption.OFF) {
-        success &= dumpSkyframe(runtime, dumpOptions.dumpSkyframe == SkyframeDumpOption.SUMMARY,
-            out);
+        success &= dumpSkyframe(runtime, dumpOptions.dumpSkyframe, out);
         out.println();
       }
 
@@ -197,8 +200,13 @@ public class DumpCommand implements BlazeCommand {
     return true;
   }
 
-  private boolean dumpSkyframe(BlazeRuntime runtime, boolean summarize, PrintStream out) {
-    runtime.getSkyframeExecutor().dump(summarize, out);
+  private boolean dumpSkyframe(BlazeRuntime runtime, SkyframeDumpOption option,
+      PrintStream out) {
+    if (option == SkyframeDumpOption.STATS) {
+      SkyFunctionStats.global().dump(out);
+    } else {
+      runtime.getSkyframeExecutor().dump(option == SkyframeDumpOption.SUMMARY, out);
+    }
     return true;
   }
 
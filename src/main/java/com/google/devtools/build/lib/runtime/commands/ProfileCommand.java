@@ -22,13 +22,16 @@ import com.google.devtools.build.lib.profiler.ProfileInfo;
 import com.google.devtools.build.lib.profiler.ProfileInfo.InfoListener;
 import com.google.devtools.build.lib.profiler.ProfileInfo.Task;
 import com.google.devtools.build.lib.profiler.ProfilePhase;
+import com.google.devtools.build.lib.profiler.ProfileSummary;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.profiler.output.ChromeTraceCreator;
 import com.google.devtools.build.lib.profiler.output.HtmlCreator;
 import com.google.devtools.build.lib.profiler.output.PhaseText;
 import com.google.devtools.build.lib.profiler.statistics.CriticalPathStatistics;
 import com.google.devtools.build.lib.profiler.statistics.MultiProfileStatistics;
 import com.google.devtools.build.lib.profiler.statistics.PhaseStatistics;
 import com.google.devtools.build.lib.profiler.statistics.PhaseSummaryStatistics;
+import com.google.devtools.build.lib.profiler.statistics.SkylarkStatistics;
 import com.google.devtools.build.lib.runtime.BlazeCommand;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.Command;
@@ -95,6 +98,13 @@ public final class ProfileCommand implements BlazeCommand {
             + " script-friendly 'raw' format, either sorted or unsorted.")
     public String dumpMode;
 
+    @Option(name = "chrome_trace",
+        defaultValue = "false",
+        help = "If present, the tasks of the profiled build are converted to the JSON trace event "
+            + "format, which can be displayed by the Chrome trace viewer and Perfetto. The name of "
+            + "the trace file is the name of the profile file plus '.trace.json'.")
+    public boolean chromeTrace;
+
     @Option(name = "html",
         defaultValue = "false",
         help = "If present, an HTML file visualizing the tasks of the profiled build is created. "
@@ -227,33 +237,58 @@ public final class ProfileCommand implements BlazeCommand {
         for (String name : options.getResidue()) {
           Path profileFile = env.getWorkingDirectory().getRelative(name);
           try {
-            ProfileInfo info = ProfileInfo.loadProfileVerbosely(profileFile, getInfoListener(env));
-
-            if (opts.dumpMode == null || !opts.dumpMode.contains("unsorted")) {
-              ProfileInfo.aggregateProfile(info, getInfoListener(env));
+            if (opts.chromeTrace) {
+              Path traceFile = profileFile.getParentDirectory()
+                  .getChild(profileFile.getBaseName() + ".trace.json");
+              env.getReporter().handle(Event.info("Creating trace event output in " + traceFile));
+              ProfileInfo info = ChromeTraceCreator.create(profileFile, traceFile);
+              if (info.isCorruptedOrIncomplete()) {
+                getInfoListener(env).warn(
+                    "Profile file is incomplete or corrupted - not all records were parsed");
+              }
+              continue;
             }
 
-            if (opts.taskTree != null) {
-              printTaskTree(out, name, info, opts.taskTree, opts.taskTreeThreshold);
+            if (opts.dumpMode != null && opts.dumpMode.contains("unsorted")
+                && opts.taskTree == null) {
+              dumpUnsortedProfile(profileFile, out, opts.dumpMode, getInfoListener(env));
               continue;
             }
 
-            if (opts.dumpMode != null) {
-              dumpProfile(info, out, opts.dumpMode);
+            if (opts.taskTree != null || opts.dumpMode != null) {
+              ProfileInfo info =
+                  ProfileInfo.loadProfileVerbosely(profileFile, getInfoListener(env));
+
+              if (opts.dumpMode == null || !opts.dumpMode.contains("unsorted")) {
+                ProfileInfo.aggregateProfile(info, getInfoListener(env));
+              }
+
+              if (opts.taskTree != null) {
+                printTaskTree(out, name, info, opts.taskTree, opts.taskTreeThreshold);
+              } else {
+                dumpProfile(info, out, opts.dumpMode);
+              }
               continue;
             }
 
-            PhaseSummaryStatistics phaseSummaryStatistics = new PhaseSummaryStatistics(info);
-            EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics =
-                new EnumMap<>(ProfilePhase.class);
-            for (ProfilePhase phase : ProfilePhase.values()) {
-              phaseStatistics.put(
-                  phase,
-                  new PhaseStatistics(
-                      phase, info, runtime.getWorkspaceName(), opts.vfsStatsLimit > 0));
+            // The statistics and the chart are computed from one task at a time, without
+            // loading the task tree.
+            ProfileSummary summary =
+                ProfileSummary.readVerbosely(profileFile, getInfoListener(env));
+            PhaseSummaryStatistics phaseSummaryStatistics = new PhaseSummaryStatistics(summary);
+            SkylarkStatistics skylarkStatistics = new SkylarkStatistics();
+            EnumMap<ProfilePhase, PhaseStatistics> phaseStatistics;
+            if (opts.html && opts.htmlDetails) {
+              phaseStatistics = PhaseStatistics.create(
+                  summary, runtime.getWorkspaceName(), opts.vfsStatsLimit > 0, skylarkStatistics);
+            } else {
+              phaseStatistics = PhaseStatistics.create(
+                  summary, runtime.getWorkspaceName(), opts.vfsStatsLimit > 0);
             }
 
-            CriticalPathStatistics critPathStats = new CriticalPathStatistics(info);
+            CriticalPathStatistics critPathStats = new CriticalPathStatistics(summary);
+            // Without the action graph, no actions are found missing.
+            int missingActionsCount = 0;
             if (opts.html) {
               Path htmlFile =
                   profileFile.getParentDirectory().getChild(profileFile.getBaseName() + ".html");
@@ -261,12 +296,13 @@ public final class ProfileCommand implements BlazeCommand {
               env.getReporter().handle(Event.info("Creating HTML output in " + htmlFile));
 
               HtmlCreator.create(
-                  info,
+                  summary,
                   htmlFile,
                   phaseSummaryStatistics,
                   phaseStatistics,
                   critPathStats,
-                  info.getMissingActionsCount(),
+                  skylarkStatistics,
+                  missingActionsCount,
                   opts.htmlDetails,
                   opts.htmlPixelsPerSecond,
                   opts.vfsStatsLimit,
@@ -278,7 +314,7 @@ public final class ProfileCommand implements BlazeCommand {
                       phaseSummaryStatistics,
                       phaseStatistics,
                       Optional.of(critPathStats),
-                      info.getMissingActionsCount(),
+                      missingActionsCount,
                       opts.vfsStatsLimit)
                   .print();
             }
@@ -330,10 +366,6 @@ public final class ProfileCommand implements BlazeCommand {
       for (ProfileInfo.Task task : info.allTasksById) {
         dumpRaw(task, out);
       }
-    } else if (dumpMode.contains("unsorted")) {
-      for (ProfileInfo.Task task : info.allTasksById) {
-        dumpTask(task, out, 0);
-      }
     } else {
       for (ProfileInfo.Task task : info.rootTasksById) {
         dumpTask(task, out, 0);
@@ -341,6 +373,28 @@ public final class ProfileCommand implements BlazeCommand {
     }
   }
 
+  /**
+   * Dumps all tasks in the requested format in the order in which they are
+   * stored, reading the profile incrementally.
+   */
+  private void dumpUnsortedProfile(Path profileFile, final PrintStream out, final String dumpMode,
+      InfoListener listener) throws IOException {
+    listener.info("Loading " + profileFile.getPathString());
+    ProfileInfo info = ProfileInfo.visitProfile(profileFile, new ProfileInfo.TaskVisitor() {
+      @Override
+      public void visit(Task task) {
+        if (dumpMode.contains("raw")) {
+          dumpRaw(task, out);
+        } else {
+          dumpTask(task, out, 0);
+        }
+      }
+    });
+    if (info.isCorruptedOrIncomplete()) {
+      listener.warn("Profile file is incomplete or corrupted - not all records were parsed");
+    }
+  }
+
   /**
    * Dumps the task information and all subtasks.
    */
@@ -23,6 +23,7 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.Symlinks;
 
 import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -37,17 +38,23 @@ import javax.annotation.Nullable;
 class IdleServerTasks {
 
   private final Path workspaceDir;
+  @Nullable private final Runnable idleTask;
   private final ScheduledThreadPoolExecutor executor;
+  @Nullable private ScheduledFuture<?> idleTaskFuture;
   private static final Logger LOG = Logger.getLogger(IdleServerTasks.class.getName());
 
   private static final long FIVE_MIN_MILLIS = 1000 * 60 * 5;
 
   /**
    * Must be called from the main thread.
+   *
+   * @param idleTask an optional task to run once the server has been idle for a while. It is
+   *     interrupted when the server gets to work again.
    */
-  public IdleServerTasks(@Nullable Path workspaceDir) {
+  public IdleServerTasks(@Nullable Path workspaceDir, @Nullable Runnable idleTask) {
     this.executor = new ScheduledThreadPoolExecutor(1);
     this.workspaceDir = workspaceDir;
+    this.idleTask = idleTask;
   }
 
   /**
@@ -65,6 +72,16 @@ class IdleServerTasks {
           }
         }
       }, 10, TimeUnit.SECONDS);
+
+    if (idleTask != null) {
+      idleTaskFuture = executor.schedule(new Runnable() {
+          @Override public void run() {
+            try (AutoProfiler p = AutoProfiler.logged("Idle task", LOG)) {
+              idleTask.run();
+            }
+          }
+        }, 30, TimeUnit.SECONDS);
+    }
   }
 
   /**
@@ -75,7 +92,11 @@ class IdleServerTasks {
     Preconditions.checkState(!executor.isShutdown());
 
     // Make sure tasks are finished after shutdown(), so they do not intefere
-    // with subsequent server invocations.
+    // with subsequent server invocations. Only a running idle task is
+    // interrupted rather than waited for.
+    if (idleTaskFuture != null) {
+      idleTaskFuture.cancel(true);
+    }
     executor.shutdown();
     executor.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
     executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
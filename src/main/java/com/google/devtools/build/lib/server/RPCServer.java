@@ -47,6 +47,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import javax.annotation.Nullable;
+
 /**
  * An RPCServer server is a Java object that sits and waits for RPC requests
  * (the sit-and-wait is implemented in {@link #serve()}).  These requests
@@ -75,6 +77,7 @@ public final class RPCServer {
   private final long statusCheckMillis;
   private final Path serverDirectory;
   private final Path workspaceDir;
+  @Nullable private final Runnable idleTask;
   private static final Logger LOG = Logger.getLogger(RPCServer.class.getName());
   private volatile boolean lameDuck;
 
@@ -93,11 +96,12 @@ public final class RPCServer {
    * @param statusCheckPeriodMillis How long to wait between system status checks.
    * @param serverDirectory    Directory to put file socket and pid files, etc.
    * @param workspaceDir The workspace. Used solely to ensure it persists.
+   * @param idleTask An optional task to run each time the server becomes idle.
    * @throws IOException
    */
   public RPCServer(Clock clock, RPCService rpcService,
                    long maxIdleMillis, long statusCheckPeriodMillis,
-                   Path serverDirectory, Path workspaceDir)
+                   Path serverDirectory, Path workspaceDir, @Nullable Runnable idleTask)
       throws IOException {
     this.clock = clock;
     this.rpcService = rpcService;
@@ -105,6 +109,7 @@ public final class RPCServer {
     this.statusCheckMillis = statusCheckPeriodMillis;
     this.serverDirectory = serverDirectory;
     this.workspaceDir = workspaceDir;
+    this.idleTask = idleTask;
 
     this.serverSocket = openServerSocket();
     serverSocket.setSoTimeout(Math.min(maxIdleMillis, statusCheckMillis));
@@ -122,13 +127,14 @@ public final class RPCServer {
    * @param maxIdleMillis      The maximum time the server will wait idly.
    * @param serverDirectory    Directory to put file socket and pid files, etc.
    * @param workspaceDir       The workspace. Used solely to ensure it persists.
+   * @param idleTask           An optional task to run each time the server becomes idle.
    * @throws IOException
    */
   public RPCServer(Clock clock, RPCService rpcService,
-      long maxIdleMillis, Path serverDirectory, Path workspaceDir)
+      long maxIdleMillis, Path serverDirectory, Path workspaceDir, @Nullable Runnable idleTask)
       throws IOException {
     this(clock, rpcService, maxIdleMillis, STATUS_CHECK_PERIOD_MILLIS,
-        serverDirectory, workspaceDir);
+        serverDirectory, workspaceDir, idleTask);
   }
 
   private static void printStack(IOException e) {
@@ -198,7 +204,7 @@ public final class RPCServer {
     try {
       while (!lameDuck) {
         try {
-          IdleServerTasks idleChecker = new IdleServerTasks(workspaceDir);
+          IdleServerTasks idleChecker = new IdleServerTasks(workspaceDir, idleTask);
           idleChecker.idle();
           RequestIo requestIo;
 
@@ -555,12 +561,14 @@ public final class RPCServer {
    * @param workspaceDir The workspace, used solely to ensure it persists.
    * @param maxIdleSeconds The idle time in seconds after which the rpc
    * server will die unless it receives a request.
+   * @param idleTask An optional task to run each time the server becomes idle.
    */
   public static RPCServer newServerWith(Clock clock,
                                         ServerCommand appCommand,
                                         Path serverDirectory,
                                         Path workspaceDir,
-                                        int maxIdleSeconds)
+                                        int maxIdleSeconds,
+                                        @Nullable Runnable idleTask)
       throws IOException {
     if (!serverDirectory.exists()) {
       serverDirectory.createDirectory();
@@ -570,7 +578,7 @@ public final class RPCServer {
     RPCService service = new RPCService(appCommand);
 
     return new RPCServer(clock, service, maxIdleSeconds * 1000L,
-                         serverDirectory, workspaceDir);
+                         serverDirectory, workspaceDir, idleTask);
   }
 
 }
@@ -17,6 +17,7 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Range;
 import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -42,6 +43,7 @@ import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -169,14 +171,6 @@ public class FilesystemValueChecker {
         actionSkyKeys.add(key);
       }
     }
-    final Sharder<Pair<SkyKey, ActionExecutionValue>> outputShards =
-        new Sharder<>(numOutputJobs, actionSkyKeys.size());
-
-    for (SkyKey key : actionSkyKeys) {
-      outputShards.add(Pair.of(key, (ActionExecutionValue) valuesMap.get(key)));
-    }
-    LOG.info("Sharded action values for batching");
-
     ExecutorService executor = Executors.newFixedThreadPool(
         numOutputJobs,
         new ThreadFactoryBuilder().setNameFormat("FileSystem Output File Invalidator %d").build());
@@ -191,11 +185,50 @@ public class FilesystemValueChecker {
             modifiedOutputFiles == ModifiedFileSet.EVERYTHING_MODIFIED
                     ? null
                     : modifiedOutputFiles.modifiedSourceFiles();
-    for (List<Pair<SkyKey, ActionExecutionValue>> shard : outputShards) {
-      Runnable job = (batchStatter == null)
-          ? outputStatJob(dirtyKeys, shard, knownModifiedOutputFiles)
-          : batchStatJob(dirtyKeys, shard, batchStatter, knownModifiedOutputFiles);
-      executor.submit(wrapper.wrap(job));
+    if (batchStatter == null) {
+      final Sharder<Pair<SkyKey, ActionExecutionValue>> outputShards =
+          new Sharder<>(numOutputJobs, actionSkyKeys.size());
+      for (SkyKey key : actionSkyKeys) {
+        outputShards.add(Pair.of(key, (ActionExecutionValue) valuesMap.get(key)));
+      }
+      LOG.info("Sharded action values for batching");
+      for (List<Pair<SkyKey, ActionExecutionValue>> shard : outputShards) {
+        executor.submit(wrapper.wrap(outputStatJob(dirtyKeys, shard, knownModifiedOutputFiles)));
+      }
+    } else {
+      // The outputs of a directory all go to the same shard, so that the batch statter can stat
+      // them together.
+      Map<PathFragment, List<ActionOutput>> outputsByDirectory = new HashMap<>();
+      for (SkyKey key : actionSkyKeys) {
+        ActionExecutionValue actionValue = (ActionExecutionValue) valuesMap.get(key);
+        if (actionValue == null) {
+          dirtyKeys.add(key);
+          continue;
+        }
+        for (Map.Entry<Artifact, FileValue> entry :
+            actionValue.getAllOutputArtifactData().entrySet()) {
+          Artifact artifact = entry.getKey();
+          if (shouldCheckArtifact(knownModifiedOutputFiles, artifact)) {
+            PathFragment directory = artifact.getExecPath().getParentDirectory();
+            List<ActionOutput> outputs = outputsByDirectory.get(directory);
+            if (outputs == null) {
+              outputs = new ArrayList<>();
+              outputsByDirectory.put(directory, outputs);
+            }
+            outputs.add(new ActionOutput(key, artifact, entry.getValue()));
+          }
+        }
+      }
+      Sharder<List<ActionOutput>> outputShards =
+          new Sharder<>(numOutputJobs, outputsByDirectory.size());
+      for (List<ActionOutput> outputs : outputsByDirectory.values()) {
+        outputShards.add(outputs);
+      }
+      LOG.info("Sharded output directories for batching");
+      for (List<List<ActionOutput>> shard : outputShards) {
+        executor.submit(wrapper.wrap(batchStatJob(dirtyKeys,
+            ImmutableList.copyOf(Iterables.concat(shard)), batchStatter)));
+      }
     }
 
     boolean interrupted = ExecutorUtil.interruptibleShutdown(executor);
@@ -207,62 +240,63 @@ public class FilesystemValueChecker {
     return dirtyKeys;
   }
 
+  /** An output file of an action, and its data at the end of the last build. */
+  private static final class ActionOutput {
+    private final SkyKey key;
+    private final Artifact artifact;
+    private final FileValue lastKnownData;
+
+    private ActionOutput(SkyKey key, Artifact artifact, FileValue lastKnownData) {
+      this.key = key;
+      this.artifact = artifact;
+      this.lastKnownData = lastKnownData;
+    }
+  }
+
   private Runnable batchStatJob(final Collection<SkyKey> dirtyKeys,
-          final List<Pair<SkyKey, ActionExecutionValue>> shard,
-          final BatchStat batchStatter, final ImmutableSet<PathFragment> knownModifiedOutputFiles) {
+      final List<ActionOutput> outputs, final BatchStat batchStatter) {
     return new Runnable() {
       @Override
       public void run() {
-        Map<Artifact, Pair<SkyKey, ActionExecutionValue>> artifactToKeyAndValue = new HashMap<>();
-        for (Pair<SkyKey, ActionExecutionValue> keyAndValue : shard) {
-          ActionExecutionValue actionValue = keyAndValue.getSecond();
-          if (actionValue == null) {
-            dirtyKeys.add(keyAndValue.getFirst());
-          } else {
-            for (Artifact artifact : actionValue.getAllOutputArtifactData().keySet()) {
-              if (shouldCheckArtifact(knownModifiedOutputFiles, artifact)) {
-                artifactToKeyAndValue.put(artifact, keyAndValue);
-              }
-            }
-          }
+        List<PathFragment> paths = new ArrayList<>(outputs.size());
+        for (ActionOutput output : outputs) {
+          paths.add(output.artifact.getExecPath());
         }
-
-        List<Artifact> artifacts = ImmutableList.copyOf(artifactToKeyAndValue.keySet());
         List<FileStatusWithDigest> stats;
         try {
-          stats = batchStatter.batchStat(/*includeDigest=*/true, /*includeLinks=*/true,
-                                         Artifact.asPathFragments(artifacts));
+          stats = batchStatter.batchStat(/*includeDigest=*/true, /*includeLinks=*/true, paths);
         } catch (IOException e) {
           // Batch stat did not work. Log an exception and fall back on system calls.
           LoggingUtil.logToRemote(Level.WARNING, "Unable to process batch stat", e);
-          outputStatJob(dirtyKeys, shard, knownModifiedOutputFiles).run();
+          for (ActionOutput output : outputs) {
+            if (artifactIsDirtyWithDirectSystemCalls(output.artifact, output.lastKnownData)) {
+              dirtyKeys.add(output.key);
+            }
+          }
           return;
         } catch (InterruptedException e) {
           // We handle interrupt in the main thread.
           return;
         }
 
-        Preconditions.checkState(artifacts.size() == stats.size(),
-            "artifacts.size() == %s stats.size() == %s", artifacts.size(), stats.size());
-        for (int i = 0; i < artifacts.size(); i++) {
-          Artifact artifact = artifacts.get(i);
+        Preconditions.checkState(outputs.size() == stats.size(),
+            "outputs.size() == %s stats.size() == %s", outputs.size(), stats.size());
+        for (int i = 0; i < outputs.size(); i++) {
+          ActionOutput output = outputs.get(i);
           FileStatusWithDigest stat = stats.get(i);
-          Pair<SkyKey, ActionExecutionValue> keyAndValue = artifactToKeyAndValue.get(artifact);
-          ActionExecutionValue actionValue = keyAndValue.getSecond();
-          SkyKey key = keyAndValue.getFirst();
-          FileValue lastKnownData = actionValue.getAllOutputArtifactData().get(artifact);
           try {
-            FileValue newData = ActionMetadataHandler.fileValueFromArtifact(artifact, stat, tsgm);
-            if (!newData.equals(lastKnownData)) {
+            FileValue newData =
+                ActionMetadataHandler.fileValueFromArtifact(output.artifact, stat, tsgm);
+            if (!newData.equals(output.lastKnownData)) {
               updateIntraBuildModifiedCounter(stat != null ? stat.getLastChangeTime() : -1,
-                  lastKnownData.isSymlink(), newData.isSymlink());
+                  output.lastKnownData.isSymlink(), newData.isSymlink());
               modifiedOutputFilesCounter.getAndIncrement();
-              dirtyKeys.add(key);
+              dirtyKeys.add(output.key);
             }
           } catch (IOException e) {
             // This is an unexpected failure getting a digest or symlink target.
             modifiedOutputFilesCounter.getAndIncrement();
-            dirtyKeys.add(key);
+            dirtyKeys.add(output.key);
           }
         }
       }
@@ -313,27 +347,33 @@ public class FilesystemValueChecker {
     for (Map.Entry<Artifact, FileValue> entry :
         actionValue.getAllOutputArtifactData().entrySet()) {
       Artifact artifact = entry.getKey();
-      FileValue lastKnownData = entry.getValue();
-      if (shouldCheckArtifact(knownModifiedOutputFiles, artifact)) {
-        try {
-          FileValue fileValue = ActionMetadataHandler.fileValueFromArtifact(artifact, null, tsgm);
-          if (!fileValue.equals(lastKnownData)) {
-            updateIntraBuildModifiedCounter(fileValue.exists()
-                ? fileValue.realRootedPath().asPath().getLastModifiedTime()
-                : -1, lastKnownData.isSymlink(), fileValue.isSymlink());
-            modifiedOutputFilesCounter.getAndIncrement();
-            isDirty = true;
-          }
-        } catch (IOException e) {
-          // This is an unexpected failure getting a digest or symlink target.
-          modifiedOutputFilesCounter.getAndIncrement();
-          isDirty = true;
-        }
+      if (shouldCheckArtifact(knownModifiedOutputFiles, artifact)
+          && artifactIsDirtyWithDirectSystemCalls(artifact, entry.getValue())) {
+        isDirty = true;
       }
     }
     return isDirty;
   }
 
+  private boolean artifactIsDirtyWithDirectSystemCalls(Artifact artifact,
+      FileValue lastKnownData) {
+    try {
+      FileValue fileValue = ActionMetadataHandler.fileValueFromArtifact(artifact, null, tsgm);
+      if (!fileValue.equals(lastKnownData)) {
+        updateIntraBuildModifiedCounter(fileValue.exists()
+            ? fileValue.realRootedPath().asPath().getLastModifiedTime()
+            : -1, lastKnownData.isSymlink(), fileValue.isSymlink());
+        modifiedOutputFilesCounter.getAndIncrement();
+        return true;
+      }
+    } catch (IOException e) {
+      // This is an unexpected failure getting a digest or symlink target.
+      modifiedOutputFilesCounter.getAndIncrement();
+      return true;
+    }
+    return false;
+  }
+
   private static boolean shouldCheckArtifact(ImmutableSet<PathFragment> knownModifiedOutputFiles,
       Artifact artifact) {
     return knownModifiedOutputFiles == null
@@ -0,0 +1,523 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.unix.Inotify;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * File system watcher for local file systems on Linux, which watches every directory under a
+ * package path entry with inotify(7).
+ *
+ * <p>Unlike {@link LocalDiffAwareness}, a background thread reads the events as they happen, so
+ * that the event queue of the kernel doesn't overflow during large changes such as checkouts, and
+ * events are kept deduplicated by directory and name. Watches are plain ints, and watching the
+ * tree needs no stat calls, so this scales to hundreds of thousands of directories.
+ *
+ * <p>If the event queue overflows anyway, the next diff says that everything may have been
+ * modified, and the whole tree is watched again. The same happens when a directory is moved out
+ * of the path entry, since its former contents are unknown. Directories moved within the path
+ * entry are diffed precisely.
+ */
+public final class InotifyDiffAwareness implements DiffAwareness {
+
+  private static final Logger LOG = Logger.getLogger(InotifyDiffAwareness.class.getName());
+
+  /** Factory for creating {@link InotifyDiffAwareness} instances. */
+  public static class Factory implements DiffAwareness.Factory {
+    private final ImmutableList<String> prefixBlacklist;
+    private final OS os;
+
+    /**
+     * Creates a new factory. inotify doesn't see changes made by other machines to network file
+     * systems, which can be excluded with the prefix blacklist.
+     */
+    public Factory(ImmutableList<String> prefixBlacklist) {
+      this(prefixBlacklist, OS.getCurrent());
+    }
+
+    @VisibleForTesting
+    Factory(ImmutableList<String> prefixBlacklist, OS os) {
+      this.prefixBlacklist = prefixBlacklist;
+      this.os = os;
+    }
+
+    @Override
+    @Nullable
+    public DiffAwareness maybeCreate(Path pathEntry) {
+      if (os != OS.LINUX) {
+        return null;
+      }
+      Path resolvedPathEntry;
+      try {
+        resolvedPathEntry = pathEntry.resolveSymbolicLinks();
+      } catch (IOException e) {
+        return null;
+      }
+      for (String prefix : prefixBlacklist) {
+        if (resolvedPathEntry.asFragment().startsWith(new PathFragment(prefix))) {
+          return null;
+        }
+      }
+      try {
+        return new InotifyDiffAwareness(resolvedPathEntry, new Watcher(createInotify()));
+      } catch (IOException | LinkageError e) {
+        LOG.info("inotify is not available: " + e);
+        return null;
+      }
+    }
+
+    /**
+     * Creates the inotify instance, loading the native library first.
+     *
+     * @throws LinkageError if the native library could not be loaded
+     */
+    @VisibleForTesting
+    Inotify createInotify() throws IOException {
+      return Inotify.create();
+    }
+  }
+
+  /** The events of directory entries that are watched. */
+  private static final int WATCH_MASK = Inotify.IN_CREATE | Inotify.IN_DELETE | Inotify.IN_MODIFY
+      | Inotify.IN_ATTRIB | Inotify.IN_MOVED_FROM | Inotify.IN_MOVED_TO | Inotify.IN_DELETE_SELF
+      | Inotify.IN_MOVE_SELF | Inotify.IN_ONLYDIR | Inotify.IN_DONT_FOLLOW
+      | Inotify.IN_EXCL_UNLINK;
+
+  /** Events after which a watched directory is no longer at its path. */
+  private static final int SELF_MASK =
+      Inotify.IN_DELETE_SELF | Inotify.IN_MOVE_SELF | Inotify.IN_UNMOUNT;
+
+  /** Events of new directories, whose contents must be watched and reported. */
+  private static final int NEW_DIRECTORY_MASK = Inotify.IN_CREATE | Inotify.IN_MOVED_TO;
+
+  /** How long the reader waits for events before checking whether it should stop. */
+  private static final int READ_TIMEOUT_MILLIS = 500;
+
+  /** Beyond this many changed entries between two views, the changes are treated as overflow. */
+  private static final int MAX_PENDING_ENTRIES = 1000000;
+
+  private final Path root;
+  private Watcher watcher;
+  private int numGetCurrentViewCalls = 0;
+
+  /** The path of every watched directory relative to the root, by watch descriptor. */
+  private final Map<Integer, PathFragment> directories = new HashMap<>();
+
+  private InotifyDiffAwareness(Path root, Watcher watcher) {
+    this.root = root;
+    this.watcher = watcher;
+  }
+
+  /** Only consecutive views can be diffed, since events are consumed when a view is created. */
+  private static class SequentialView implements DiffAwareness.View {
+    private final InotifyDiffAwareness owner;
+    private final int position;
+    // Null if everything may have been modified.
+    @Nullable private final Set<PathFragment> modifiedPaths;
+
+    private SequentialView(InotifyDiffAwareness owner, int position,
+        @Nullable Set<PathFragment> modifiedPaths) {
+      this.owner = owner;
+      this.position = position;
+      this.modifiedPaths = modifiedPaths;
+    }
+
+    private static boolean areInSequence(SequentialView oldView, SequentialView newView) {
+      return oldView.owner == newView.owner && (oldView.position + 1) == newView.position;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("SequentialView[owner=%s, position=%d, modifiedPaths=%s]", owner,
+          position, modifiedPaths == null ? "all" : modifiedPaths.size());
+    }
+  }
+
+  @Override
+  public View getCurrentView() throws BrokenDiffAwarenessException {
+    try {
+      Set<PathFragment> modifiedPaths;
+      if (numGetCurrentViewCalls++ == 0) {
+        watcher.start();
+        watchTree(PathFragment.EMPTY_FRAGMENT, null);
+        modifiedPaths = ImmutableSet.of();
+      } else {
+        modifiedPaths = collectChanges();
+      }
+      return new SequentialView(this, numGetCurrentViewCalls, modifiedPaths);
+    } catch (BrokenDiffAwarenessException e) {
+      close();
+      throw e;
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException(
+          "Error encountered with inotify file system watcher " + e);
+    }
+  }
+
+  @Override
+  public ModifiedFileSet getDiff(View oldView, View newView)
+      throws IncompatibleViewException, BrokenDiffAwarenessException {
+    SequentialView oldSequentialView;
+    SequentialView newSequentialView;
+    try {
+      oldSequentialView = (SequentialView) oldView;
+      newSequentialView = (SequentialView) newView;
+    } catch (ClassCastException e) {
+      throw new IncompatibleViewException("Given views are not from InotifyDiffAwareness");
+    }
+    if (!SequentialView.areInSequence(oldSequentialView, newSequentialView)
+        || newSequentialView.modifiedPaths == null) {
+      return ModifiedFileSet.EVERYTHING_MODIFIED;
+    }
+    return ModifiedFileSet.builder().modifyAll(newSequentialView.modifiedPaths).build();
+  }
+
+  @Override
+  public String name() {
+    return "inotify";
+  }
+
+  @Override
+  public void close() {
+    watcher.stopReading();
+  }
+
+  /** Makes the next view say that everything was modified, as if the event queue overflowed. */
+  @VisibleForTesting
+  void simulateOverflow() {
+    synchronized (watcher) {
+      watcher.events.setOverflow();
+    }
+  }
+
+  /**
+   * Returns the paths that changed since the last view, or null if everything may have changed,
+   * and watches the new directories.
+   */
+  @Nullable
+  private Set<PathFragment> collectChanges() throws IOException, BrokenDiffAwarenessException {
+    PendingEvents events = watcher.takeEvents();
+    if (events.rootWatchRemoved) {
+      throw new BrokenDiffAwarenessException("Root directory " + root + " was removed");
+    }
+    if (events.overflow) {
+      LOG.info("Too many changes under " + root + ", watching it again");
+      watcher.stopReading();
+      watcher = new Watcher(Inotify.create());
+      directories.clear();
+      watcher.start();
+      watchTree(PathFragment.EMPTY_FRAGMENT, null);
+      return null;
+    }
+
+    Set<PathFragment> modifiedPaths = new HashSet<>();
+    for (Map.Entry<Integer, Set<String>> entry : events.changedEntries.entrySet()) {
+      PathFragment directory = directories.get(entry.getKey());
+      if (directory == null) {
+        // Events of a directory that was moved away before they were processed.
+        continue;
+      }
+      for (String name : entry.getValue()) {
+        modifiedPaths.add(directory.getRelative(name));
+      }
+    }
+
+    // Renames of directories are reported to both parents, with the same cookie.
+    Map<Integer, PathFragment> movedFrom = new HashMap<>();
+    Map<Integer, PathFragment> movedTo = new HashMap<>();
+    List<PathFragment> newDirectories = new ArrayList<>();
+    for (Inotify.Event event : events.directoryEvents) {
+      PathFragment directory = directories.get(event.getWatchDescriptor());
+      if (directory == null) {
+        continue;
+      }
+      PathFragment path = directory.getRelative(event.getName());
+      if ((event.getMask() & Inotify.IN_MOVED_FROM) != 0) {
+        movedFrom.put(event.getCookie(), path);
+      } else {
+        newDirectories.add(path);
+        if ((event.getMask() & Inotify.IN_MOVED_TO) != 0) {
+          movedTo.put(event.getCookie(), path);
+        }
+      }
+    }
+
+    boolean everythingModified = false;
+    Map<PathFragment, PathFragment> formerPaths = new HashMap<>();
+    for (Map.Entry<Integer, PathFragment> entry : movedFrom.entrySet()) {
+      PathFragment newPath = movedTo.get(entry.getKey());
+      // The watches of a directory stay with it when it is moved. If it is still under the root,
+      // watching it again reuses them.
+      forgetTree(entry.getValue(), /*removeWatches=*/newPath == null);
+      if (newPath == null) {
+        everythingModified = true;
+      } else {
+        formerPaths.put(newPath, entry.getValue());
+      }
+    }
+    for (int wd : events.removedWatches) {
+      directories.remove(wd);
+    }
+    for (PathFragment directory : newDirectories) {
+      PathFragment formerPath = formerPaths.get(directory);
+      for (PathFragment path : watchTree(directory, modifiedPaths)) {
+        if (formerPath != null) {
+          modifiedPaths.add(formerPath.getRelative(path.relativeTo(directory)));
+        }
+      }
+    }
+    return everythingModified ? null : modifiedPaths;
+  }
+
+  /**
+   * Watches {@code directory} and all directories under it, and adds the paths of all entries
+   * under it to {@code paths}, if not null.
+   *
+   * @return the paths that were added, if any
+   */
+  private List<PathFragment> watchTree(PathFragment directory, @Nullable Set<PathFragment> paths)
+      throws IOException, BrokenDiffAwarenessException {
+    List<PathFragment> visited = new ArrayList<>();
+    Deque<PathFragment> pending = new ArrayDeque<>();
+    pending.add(directory);
+    while (!pending.isEmpty()) {
+      PathFragment current = pending.pop();
+      Path path = root.getRelative(current);
+      Collection<Dirent> dirents;
+      try {
+        // The directory must be watched before it is listed, so that no entry created in between
+        // is missed.
+        int wd = watcher.inotify.addWatch(path.getPathString(), WATCH_MASK);
+        if (current.equals(PathFragment.EMPTY_FRAGMENT)) {
+          watcher.rootWatch = wd;
+        }
+        directories.put(wd, current);
+        dirents = path.readdir(Symlinks.NOFOLLOW);
+      } catch (FileNotFoundException e) {
+        // Deleted since it was created, which its parent reported.
+        continue;
+      } catch (IOException e) {
+        if (e.getMessage() != null && e.getMessage().contains("No space left on device")) {
+          throw new BrokenDiffAwarenessException("Cannot watch all directories under " + root
+              + ", increase fs.inotify.max_user_watches");
+        }
+        if (!path.isDirectory(Symlinks.NOFOLLOW)) {
+          continue;
+        }
+        throw e;
+      }
+      if (paths != null) {
+        visited.add(current);
+        paths.add(current);
+      }
+      for (Dirent dirent : dirents) {
+        PathFragment child = current.getRelative(dirent.getName());
+        Dirent.Type type = dirent.getType();
+        if (type == Dirent.Type.UNKNOWN) {
+          type = root.getRelative(child).isDirectory(Symlinks.NOFOLLOW)
+              ? Dirent.Type.DIRECTORY : Dirent.Type.FILE;
+        }
+        if (type == Dirent.Type.DIRECTORY) {
+          pending.push(child);
+        } else if (paths != null) {
+          visited.add(child);
+          paths.add(child);
+        }
+      }
+    }
+    return visited;
+  }
+
+  /** Forgets the watches of {@code directory} and the directories under it. */
+  private void forgetTree(PathFragment directory, boolean removeWatches) throws IOException {
+    Iterator<Map.Entry<Integer, PathFragment>> iterator = directories.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Integer, PathFragment> entry = iterator.next();
+      if (entry.getValue().startsWith(directory)) {
+        iterator.remove();
+        if (removeWatches) {
+          watcher.inotify.removeWatch(entry.getKey());
+        }
+      }
+    }
+  }
+
+  /** The events read since the last view, deduplicated by directory and name. */
+  private static final class PendingEvents {
+    /** The names of the changed entries, by watch descriptor of their directory. */
+    private final Map<Integer, Set<String>> changedEntries = new HashMap<>();
+    /** The creations and renames of directories, in order. */
+    private final List<Inotify.Event> directoryEvents = new ArrayList<>();
+    /** The watches removed by the kernel, because their directory was deleted. */
+    private final Set<Integer> removedWatches = new HashSet<>();
+    private int entryCount = 0;
+    private boolean overflow = false;
+    private boolean rootWatchRemoved = false;
+
+    private void add(Inotify.Event event, int rootWatch) {
+      int mask = event.getMask();
+      if ((mask & Inotify.IN_Q_OVERFLOW) != 0 || entryCount > MAX_PENDING_ENTRIES) {
+        setOverflow();
+        return;
+      }
+      int wd = event.getWatchDescriptor();
+      if ((mask & Inotify.IN_IGNORED) != 0) {
+        removedWatches.add(wd);
+        rootWatchRemoved |= wd == rootWatch;
+        return;
+      }
+      if ((mask & SELF_MASK) != 0) {
+        // The parent of the directory reports it, except for the root.
+        rootWatchRemoved |= wd == rootWatch;
+        return;
+      }
+      if (overflow) {
+        return;
+      }
+      Set<String> names = changedEntries.get(wd);
+      if (names == null) {
+        names = new HashSet<>();
+        changedEntries.put(wd, names);
+      }
+      if (names.add(event.getName())) {
+        entryCount++;
+      }
+      if (event.isDirectory()
+          && (mask & (NEW_DIRECTORY_MASK | Inotify.IN_MOVED_FROM)) != 0) {
+        directoryEvents.add(event);
+      }
+    }
+
+    /** Drops the changes, which are no longer complete. */
+    private void setOverflow() {
+      if (!overflow) {
+        overflow = true;
+        changedEntries.clear();
+        directoryEvents.clear();
+      }
+    }
+  }
+
+  /** An inotify instance, and the thread reading its events. */
+  private static final class Watcher extends Thread {
+    private final Inotify inotify;
+    private volatile boolean stopped = false;
+    // Guarded by this.
+    private PendingEvents events = new PendingEvents();
+    private IOException failure = null;
+    private boolean closed = false;
+    private volatile int rootWatch = -1;
+
+    private Watcher(Inotify inotify) {
+      super("inotify-diff-awareness");
+      setDaemon(true);
+      this.inotify = inotify;
+    }
+
+    @Override
+    public void run() {
+      while (!stopped) {
+        try {
+          // Events are only read under the lock, so that none is between being read and being
+          // added when they are taken.
+          if (inotify.waitForEvents(READ_TIMEOUT_MILLIS)) {
+            synchronized (this) {
+              readAvailableEvents();
+            }
+          }
+        } catch (IOException e) {
+          synchronized (this) {
+            failure = e;
+          }
+          return;
+        }
+      }
+    }
+
+    /** Adds the events that the kernel has queued so far. */
+    private void readAvailableEvents() throws IOException {
+      List<Inotify.Event> newEvents;
+      while (!(newEvents = inotify.readEvents(0)).isEmpty()) {
+        for (Inotify.Event event : newEvents) {
+          events.add(event, rootWatch);
+        }
+      }
+    }
+
+    /**
+     * Returns the events since the last call, including those that the thread hasn't read yet, so
+     * that every change made before this call is reported.
+     */
+    private synchronized PendingEvents takeEvents() throws IOException {
+      if (failure != null) {
+        throw failure;
+      }
+      readAvailableEvents();
+      PendingEvents result = events;
+      events = new PendingEvents();
+      return result;
+    }
+
+    /** Stops the thread and closes the inotify instance. Does nothing if already closed. */
+    private void stopReading() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      stopped = true;
+      boolean interrupted = false;
+      while (isAlive()) {
+        try {
+          join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      try {
+        inotify.close();
+      } catch (IOException e) {
+        LOG.warning("Failed to close inotify instance: " + e);
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
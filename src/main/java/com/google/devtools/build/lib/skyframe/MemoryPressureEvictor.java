@@ -0,0 +1,156 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.skyframe.MemoizingEvaluator;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Evicts Skyframe values that are cheap to recompute when the heap is still nearly full after a
+ * garbage collection, so that the server degrades to recomputing them instead of running out of
+ * memory.
+ *
+ * <p>Eviction is experimental and disabled by default. It is enabled by setting
+ * {@code --experimental_skyframe_eviction_threshold} to the percentage of the heap that may be in
+ * use after a collection, for instance to 85. The option is read at the start of every command.
+ *
+ * <p>Garbage collection notifications arrive on a JVM thread at any time, but the graph can't be
+ * changed during an evaluation. So the notification only requests an eviction, and the values are
+ * evicted at the start of the next command.
+ */
+@ThreadSafe
+final class MemoryPressureEvictor {
+  private static final Logger LOG = Logger.getLogger(MemoryPressureEvictor.class.getName());
+
+  /**
+   * Values that are large, have dependencies and are cheap to recompute from the file system:
+   * globs. A recomputed glob is compared with its old value if that is still in memory, and is
+   * otherwise considered changed, which reloads the packages that use it. Parsed BUILD files are
+   * not evicted, since they don't compare equal when parsed again, so every package would be
+   * reloaded, and neither are action executions, whose outputs may differ when they are executed
+   * again.
+   */
+  @VisibleForTesting
+  static final ImmutableSet<SkyFunctionName> EVICTABLE_FUNCTIONS =
+      ImmutableSet.of(SkyFunctions.GLOB);
+
+  private static MemoryPressureEvictor instance = null;
+
+  private final AtomicBoolean evictionRequested = new AtomicBoolean(false);
+  private int thresholdPercent = 0;
+
+  @VisibleForTesting
+  MemoryPressureEvictor() {
+  }
+
+  /**
+   * Returns the evictor of this JVM with its threshold set to {@code thresholdPercent}, or null if
+   * eviction is disabled, that is, if the threshold is not between 0 and 100. The first call that
+   * enables eviction installs the garbage collection listener.
+   */
+  @Nullable
+  static synchronized MemoryPressureEvictor getInstance(int thresholdPercent) {
+    if (thresholdPercent <= 0 || thresholdPercent >= 100) {
+      if (instance != null) {
+        instance.setThreshold(0);
+      }
+      return null;
+    }
+    if (instance == null) {
+      instance = new MemoryPressureEvictor();
+      instance.install();
+    }
+    instance.setThreshold(thresholdPercent);
+    return instance;
+  }
+
+  /** Sets the threshold of the tenured pool. A threshold of 0 disables the notifications. */
+  private void setThreshold(int thresholdPercent) {
+    if (thresholdPercent == this.thresholdPercent) {
+      return;
+    }
+    this.thresholdPercent = thresholdPercent;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      long max = pool.getUsage().getMax();
+      if (isTenuredPool(pool) && max > 0) {
+        pool.setCollectionUsageThreshold(max / 100 * thresholdPercent);
+      }
+    }
+    if (thresholdPercent == 0) {
+      evictionRequested.set(false);
+    }
+  }
+
+  private void install() {
+    ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(
+        new NotificationListener() {
+          @Override
+          public void handleNotification(Notification notification, Object handback) {
+            if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(
+                notification.getType())) {
+              requestEviction();
+            }
+          }
+        }, null, null);
+  }
+
+  /**
+   * Returns whether {@code pool} holds the objects that survived several collections. Only that
+   * pool supports usage thresholds. The young generation pools are not watched: the survivor
+   * spaces are routinely nearly full right after a minor collection, which says nothing about the
+   * memory the server retains.
+   */
+  @VisibleForTesting
+  static boolean isTenuredPool(MemoryPoolMXBean pool) {
+    return pool.getType() == MemoryType.HEAP
+        && pool.isUsageThresholdSupported()
+        && pool.isCollectionUsageThresholdSupported();
+  }
+
+  @VisibleForTesting
+  void requestEviction() {
+    if (!evictionRequested.getAndSet(true)) {
+      LOG.info("Heap nearly full after garbage collection, evicting Skyframe values");
+    }
+  }
+
+  /**
+   * Marks the {@link #EVICTABLE_FUNCTIONS} values for eviction if the heap was nearly full after a
+   * garbage collection since the last call. Must not be called during an evaluation.
+   *
+   * @return whether values were marked for eviction
+   */
+  boolean maybeEvict(MemoizingEvaluator evaluator) {
+    if (!evictionRequested.getAndSet(false)) {
+      return false;
+    }
+    evaluator.evict(SkyFunctionName.functionIsIn(EVICTABLE_FUNCTIONS));
+    return true;
+  }
+}
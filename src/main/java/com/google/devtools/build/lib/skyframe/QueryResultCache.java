@@ -0,0 +1,79 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+
+import javax.annotation.Nullable;
+
+/**
+ * A cache of the results of query expressions, which the query environment keys by the text of
+ * the expression and everything else that the result depends on, except for the loaded packages.
+ * It is enabled by {@code --experimental_query_result_cache}.
+ *
+ * <p>All the results are dropped when a package or the set of packages changes, that is, when a
+ * {@link PackageValue} or a {@link PackageLookupValue} is built or deleted, and when the
+ * dependencies of a target may have changed, that is, when a {@link TransitiveTraversalValue} is
+ * built or deleted. The latter also covers the reverse edges that rdeps follow. Builds that load
+ * new packages therefore also drop them.
+ */
+@ThreadSafe
+public final class QueryResultCache {
+  /** The maximum number of targets in all results, which bounds the memory used by the cache. */
+  private static final long MAX_TARGETS = 5000000;
+
+  /** The maximum number of targets in a single result. */
+  public static final int MAX_RESULT_SIZE = 1000000;
+
+  private final Cache<Object, ImmutableList<Target>> results = CacheBuilder.newBuilder()
+      .maximumWeight(MAX_TARGETS)
+      .weigher(new Weigher<Object, ImmutableList<Target>>() {
+        @Override
+        public int weigh(Object key, ImmutableList<Target> result) {
+          return result.size() + 1;
+        }
+      })
+      .build();
+
+  /** Returns the result for {@code key}, or null if it is not cached. */
+  @Nullable
+  public ImmutableList<Target> get(Object key) {
+    return results.getIfPresent(key);
+  }
+
+  /** Caches {@code result}, which must have at most {@link #MAX_RESULT_SIZE} targets. */
+  public void put(Object key, ImmutableList<Target> result) {
+    results.put(key, result);
+  }
+
+  /**
+   * Drops all results if the node affects which packages there are, what they contain or which
+   * targets depend on each other.
+   */
+  void nodeChanged(SkyKey skyKey) {
+    SkyFunctionName functionName = skyKey.functionName();
+    if (functionName.equals(SkyFunctions.PACKAGE)
+        || functionName.equals(SkyFunctions.PACKAGE_LOOKUP)
+        || functionName.equals(SkyFunctions.TRANSITIVE_TRAVERSAL)) {
+      results.invalidateAll();
+    }
+  }
+}
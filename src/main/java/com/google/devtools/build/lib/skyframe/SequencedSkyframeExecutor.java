@@ -141,9 +141,39 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       ImmutableMap<SkyFunctionName, SkyFunction> extraSkyFunctions,
       ImmutableList<PrecomputedValue.Injected> extraPrecomputedValues,
       Iterable<SkyValueDirtinessChecker> customDirtinessCheckers) {
+    return create(
+        InMemoryMemoizingEvaluator.SUPPLIER,
+        pkgFactory,
+        tsgm,
+        directories,
+        binTools,
+        workspaceStatusActionFactory,
+        buildInfoFactories,
+        diffAwarenessFactories,
+        allowedMissingInputs,
+        preprocessorFactorySupplier,
+        extraSkyFunctions,
+        extraPrecomputedValues,
+        customDirtinessCheckers);
+  }
+
+  public static SequencedSkyframeExecutor create(
+      EvaluatorSupplier evaluatorSupplier,
+      PackageFactory pkgFactory,
+      TimestampGranularityMonitor tsgm,
+      BlazeDirectories directories,
+      BinTools binTools,
+      Factory workspaceStatusActionFactory,
+      ImmutableList<BuildInfoFactory> buildInfoFactories,
+      Iterable<? extends DiffAwareness.Factory> diffAwarenessFactories,
+      Predicate<PathFragment> allowedMissingInputs,
+      Preprocessor.Factory.Supplier preprocessorFactorySupplier,
+      ImmutableMap<SkyFunctionName, SkyFunction> extraSkyFunctions,
+      ImmutableList<PrecomputedValue.Injected> extraPrecomputedValues,
+      Iterable<SkyValueDirtinessChecker> customDirtinessCheckers) {
     SequencedSkyframeExecutor skyframeExecutor =
         new SequencedSkyframeExecutor(
-            InMemoryMemoizingEvaluator.SUPPLIER,
+            evaluatorSupplier,
             pkgFactory,
             tsgm,
             directories,
@@ -223,6 +253,11 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     super.sync(eventHandler, packageCacheOptions, outputBase, workingDirectory,
         defaultsPackageContents, commandId);
     handleDiffs(eventHandler);
+    MemoryPressureEvictor evictor =
+        MemoryPressureEvictor.getInstance(packageCacheOptions.skyframeEvictionThreshold);
+    if (evictor != null) {
+      evictor.maybeEvict(memoizingEvaluator);
+    }
   }
 
   /**
@@ -247,6 +282,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
 
   @Override
   protected void invalidate(Predicate<SkyKey> pred) {
+    recordChange();
     recordingDiffer.invalidate(Iterables.filter(memoizingEvaluator.getValues().keySet(), pred));
   }
 
@@ -255,6 +291,9 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     for (PackageIdentifier deletedPackage : deletedPackages) {
       packagesToInvalidate.add(PackageLookupValue.key(deletedPackage));
     }
+    if (!packagesToInvalidate.isEmpty()) {
+      recordChange();
+    }
     recordingDiffer.invalidate(packagesToInvalidate);
   }
 
@@ -376,6 +415,9 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     logDiffInfo(diffPackageRootsUnderWhichToCheck, changedKeysWithoutNewValues,
         changedKeysWithNewValues);
 
+    if (!changedKeysWithoutNewValues.isEmpty() || !changedKeysWithNewValues.isEmpty()) {
+      recordChange();
+    }
     recordingDiffer.invalidate(changedKeysWithoutNewValues);
     recordingDiffer.inject(changedKeysWithNewValues);
     modifiedFiles += getNumberOfModifiedFiles(changedKeysWithoutNewValues);
@@ -454,6 +496,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       diff = getDiff(modifiedFileSet.modifiedSourceFiles(), pathEntry);
     }
     syscalls.set(newPerBuildSyscallCache(/*concurrencyLevel=*/42));
+    recordChange();
     recordingDiffer.invalidate(diff.changedKeysWithoutNewValues());
     recordingDiffer.inject(diff.changedKeysWithNewValues());
     // Blaze invalidates transient errors on every build.
@@ -468,6 +511,9 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
 
   @Override
   protected void invalidateDirtyActions(Iterable<SkyKey> dirtyActionValues) {
+    if (!Iterables.isEmpty(dirtyActionValues)) {
+      recordChange();
+    }
     recordingDiffer.invalidate(dirtyActionValues);
   }
 
@@ -24,6 +24,8 @@ import com.google.devtools.build.lib.packages.PackageFactory;
 import com.google.devtools.build.lib.packages.Preprocessor;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 
@@ -31,6 +33,21 @@ import com.google.devtools.build.skyframe.SkyFunctionName;
  * A factory of SkyframeExecutors that returns SequencedSkyframeExecutor.
  */
 public class SequencedSkyframeExecutorFactory implements SkyframeExecutorFactory {
+  private final EvaluatorSupplier evaluatorSupplier;
+
+  public SequencedSkyframeExecutorFactory() {
+    this(/*compactGraph=*/false);
+  }
+
+  /**
+   * @param compactGraph whether the executors store the graph in a {@link
+   *     com.google.devtools.build.skyframe.CompactInMemoryGraph}
+   */
+  public SequencedSkyframeExecutorFactory(boolean compactGraph) {
+    this.evaluatorSupplier = compactGraph
+        ? InMemoryMemoizingEvaluator.COMPACT_SUPPLIER
+        : InMemoryMemoizingEvaluator.SUPPLIER;
+  }
 
   @Override
   public SkyframeExecutor create(
@@ -47,6 +64,7 @@ public class SequencedSkyframeExecutorFactory implements SkyframeExecutorFactory
       ImmutableList<PrecomputedValue.Injected> extraPrecomputedValues,
       Iterable<SkyValueDirtinessChecker> customDirtinessCheckers) {
     return SequencedSkyframeExecutor.create(
+        evaluatorSupplier,
         pkgFactory,
         tsgm,
         directories,
@@ -34,6 +34,7 @@ import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.ActionLogBufferPathGenerator;
 import com.google.devtools.build.lib.actions.ActionMiddlemanEvent;
+import com.google.devtools.build.lib.actions.ActionPriorities;
 import com.google.devtools.build.lib.actions.ActionStartedEvent;
 import com.google.devtools.build.lib.actions.Actions;
 import com.google.devtools.build.lib.actions.AlreadyReportedActionExecutionException;
@@ -133,6 +134,7 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
   private ActionCompletedReceiver completionReceiver;
   private final AtomicReference<ActionExecutionStatusReporter> statusReporterRef;
   private OutputService outputService;
+  private ActionPriorities actionPriorities = ActionPriorities.NONE;
 
   SkyframeActionExecutor(ResourceManager resourceManager,
       AtomicReference<EventBus> eventBus,
@@ -353,6 +355,10 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
     this.actionLogBufferPathGenerator = actionLogBufferPathGenerator;
   }
 
+  void setActionPriorities(ActionPriorities actionPriorities) {
+    this.actionPriorities = Preconditions.checkNotNull(actionPriorities);
+  }
+
   void executionOver() {
     this.reporter = null;
     // This transitively holds a bunch of heavy objects, so it's important to clear it at the
@@ -709,7 +715,7 @@ public final class SkyframeActionExecutor implements ActionExecutionContextFacto
       } else {
         // If estimated resource consumption is null, action will manually call
         // resource manager when it knows what resources are needed.
-        resourceManager.acquireResources(action, estimate);
+        resourceManager.acquireResources(action, estimate, actionPriorities.getPriority(action));
       }
       boolean outputDumped = executeActionTask(action, context);
       completeAction(action, context.getMetadataHandler(),
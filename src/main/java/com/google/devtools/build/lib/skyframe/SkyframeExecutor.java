@@ -41,6 +41,7 @@ import com.google.devtools.build.lib.actions.ActionExecutionStatusReporter;
 import com.google.devtools.build.lib.actions.ActionGraph;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.ActionLogBufferPathGenerator;
+import com.google.devtools.build.lib.actions.ActionPriorities;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactFactory;
 import com.google.devtools.build.lib.actions.ArtifactOwner;
@@ -119,6 +120,7 @@ import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.UnixBatchStat;
 import com.google.devtools.build.lib.vfs.UnixGlob;
 import com.google.devtools.build.skyframe.BuildDriver;
 import com.google.devtools.build.skyframe.CycleInfo;
@@ -129,6 +131,7 @@ import com.google.devtools.build.skyframe.ErrorInfo;
 import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.ImmutableDiff;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
 import com.google.devtools.build.skyframe.Injectable;
 import com.google.devtools.build.skyframe.MemoizingEvaluator;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
@@ -140,7 +143,11 @@ import com.google.devtools.build.skyframe.WalkableGraph;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 import com.google.devtools.common.options.OptionsClassProvider;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -245,6 +252,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final SkyframeActionExecutor skyframeActionExecutor;
   private CompletionReceiver actionExecutionFunction;
   protected SkyframeProgressReceiver progressReceiver;
+  @Nullable private TargetReverseDepsIndex reverseDepsIndex;
+  @Nullable private QueryResultCache queryResultCache;
   private final AtomicReference<CyclesReporter> cyclesReporter = new AtomicReference<>();
 
   private final BinTools binTools;
@@ -253,6 +262,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   protected int modifiedFiles;
   protected int outputDirtyFiles;
   protected int modifiedFilesDuringPreviousBuild;
+  // Incremented whenever values are invalidated because of changes, or the graph is reset.
+  private long changeCount = 0;
   private final Predicate<PathFragment> allowedMissingInputs;
   private final boolean errorOnExternalFiles;
 
@@ -522,6 +533,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
    * factory methods and as an implementation detail of {@link #resetEvaluator}).
    */
   protected void init() {
+    // The graph is empty, and so is the index if it is enabled.
+    reverseDepsIndex = reverseDepsIndex == null ? null : new TargetReverseDepsIndex();
+    queryResultCache = queryResultCache == null ? null : new QueryResultCache();
     progressReceiver = newSkyframeProgressReceiver();
     Map<SkyFunctionName, SkyFunction> skyFunctions = skyFunctions(
         directories.getBuildDataDirectory(), pkgFactory, allowedMissingInputs);
@@ -535,6 +549,52 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return new SkyframeProgressReceiver();
   }
 
+  /**
+   * Returns the index of the reverse dependencies of the targets of the loaded packages, or null
+   * if it is not enabled.
+   */
+  @Nullable
+  public TargetReverseDepsIndex getTargetReverseDepsIndex() {
+    return reverseDepsIndex;
+  }
+
+  /**
+   * Enables or disables the index of reverse deps. A new index is filled with the packages that
+   * are already in the graph.
+   */
+  private void setTargetReverseDepsIndexEnabled(boolean enabled) {
+    if (!enabled) {
+      reverseDepsIndex = null;
+      return;
+    }
+    if (reverseDepsIndex != null) {
+      return;
+    }
+    TargetReverseDepsIndex index = new TargetReverseDepsIndex();
+    for (Map.Entry<SkyKey, SkyValue> entry : memoizingEvaluator.getDoneValues().entrySet()) {
+      if (entry.getKey().functionName().equals(SkyFunctions.PACKAGE)) {
+        index.packageEvaluated((PackageIdentifier) entry.getKey().argument(),
+            ((PackageValue) entry.getValue()).getPackage());
+      }
+    }
+    reverseDepsIndex = index;
+  }
+
+  /** Returns the cache of query results, or null if it is not enabled. */
+  @Nullable
+  public QueryResultCache getQueryResultCache() {
+    return queryResultCache;
+  }
+
+  /** Enables or disables the cache of query results. A new cache is empty. */
+  private void setQueryResultCacheEnabled(boolean enabled) {
+    if (!enabled) {
+      queryResultCache = null;
+    } else if (queryResultCache == null) {
+      queryResultCache = new QueryResultCache();
+    }
+  }
+
   /**
    * Reinitializes the Skyframe evaluator, dropping all previously computed values.
    *
@@ -543,12 +603,88 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
    * put in {@link #reinjectConstantValuesLazily}.
    */
   public void resetEvaluator() {
+    recordChange();
     init();
     emittedEventState.clear();
     skyframeBuildView.clearLegacyData();
     reinjectConstantValuesLazily();
   }
 
+  /**
+   * The value types that are written to graph snapshots. These only depend on the file system and
+   * on precomputed values, all of which are checked again by the first build of a new server, and
+   * are plain data that survives serialization.
+   */
+  private static final ImmutableSet<SkyFunctionName> GRAPH_SNAPSHOT_FUNCTIONS =
+      ImmutableSet.of(
+          SkyFunctions.PRECOMPUTED,
+          SkyFunctions.FILE_STATE,
+          SkyFunctions.DIRECTORY_LISTING_STATE,
+          SkyFunctions.FILE,
+          SkyFunctions.DIRECTORY_LISTING,
+          SkyFunctions.BLACKLISTED_PACKAGE_PREFIXES,
+          SkyFunctions.PACKAGE_LOOKUP,
+          SkyFunctions.CONTAINING_PACKAGE_LOOKUP,
+          SkyFunctions.GLOB);
+
+  /**
+   * Writes the done values of {@link #GRAPH_SNAPSHOT_FUNCTIONS} to {@code snapshotFile}, replacing
+   * any previous snapshot atomically. Must not be called in parallel with a build.
+   *
+   * <p>Does nothing if the graph has not been evaluated since the last snapshot, which is then
+   * still up to date. Idle servers call this every time they become idle.
+   *
+   * @return the number of values written, or -1 if the last snapshot is still up to date
+   */
+  public int writeGraphSnapshot(Path snapshotFile) throws IOException, InterruptedException {
+    if (!(memoizingEvaluator instanceof InMemoryMemoizingEvaluator)) {
+      return 0;
+    }
+    if (!((InMemoryMemoizingEvaluator) memoizingEvaluator).hasEvaluatedSinceLastSnapshot()) {
+      return -1;
+    }
+    Path tmpFile = snapshotFile.getParentDirectory().getChild(snapshotFile.getBaseName() + ".tmp");
+    int written;
+    synchronized (valueLookupLock) {
+      try (OutputStream out = new BufferedOutputStream(tmpFile.getOutputStream())) {
+        written = ((InMemoryMemoizingEvaluator) memoizingEvaluator).writeSnapshot(
+            SkyFunctionName.functionIsIn(GRAPH_SNAPSHOT_FUNCTIONS), graphSnapshotCompatibilityKey(),
+            out);
+      } catch (IOException | InterruptedException e) {
+        tmpFile.delete();
+        throw e;
+      }
+    }
+    tmpFile.renameTo(snapshotFile);
+    return written;
+  }
+
+  /**
+   * Populates the graph with the values in {@code snapshotFile}, if it exists and was written by
+   * the same Blaze binary. Does nothing once the graph has been evaluated.
+   *
+   * <p>This is safe because a new server has no diff information for any package path entry, so
+   * the first build checks every file system value in the graph for changes and invalidates the
+   * restored values that are out of date before anything is evaluated on top of them.
+   *
+   * @return the number of values restored
+   */
+  public int restoreGraphSnapshot(Path snapshotFile) throws IOException {
+    if (!(memoizingEvaluator instanceof InMemoryMemoizingEvaluator) || !snapshotFile.exists()) {
+      return 0;
+    }
+    synchronized (valueLookupLock) {
+      try (InputStream in = new BufferedInputStream(snapshotFile.getInputStream())) {
+        return ((InMemoryMemoizingEvaluator) memoizingEvaluator).restoreSnapshot(
+            graphSnapshotCompatibilityKey(), in);
+      }
+    }
+  }
+
+  private String graphSnapshotCompatibilityKey() {
+    return String.valueOf(directories.getInstallMD5());
+  }
+
   protected abstract Differencer evaluatorDiffer();
 
   protected abstract BuildDriver newBuildDriver();
@@ -958,6 +1094,13 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.skyframeActionExecutor.setActionLogBufferPathGenerator(actionLogBufferPathGenerator);
   }
 
+  /**
+   * Sets the priorities with which actions that wait for local resources are run.
+   */
+  public void setActionPriorities(ActionPriorities actionPriorities) {
+    skyframeActionExecutor.setActionPriorities(actionPriorities);
+  }
+
   @VisibleForTesting
   public void setConfigurationDataForTesting(BlazeDirectories directories,
       ConfigurationFactory configurationFactory) {
@@ -1613,6 +1756,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         packageCacheOptions.defaultVisibility, packageCacheOptions.showLoadingProgress,
         packageCacheOptions.globbingThreads, defaultsPackageContents, commandId);
     setDeletedPackages(ImmutableSet.copyOf(packageCacheOptions.deletedPackages));
+    setTargetReverseDepsIndexEnabled(packageCacheOptions.targetReverseDepsIndex);
+    setQueryResultCacheEnabled(packageCacheOptions.queryResultCache);
+    memoizingEvaluator.setBlockOnMissingDeps(packageCacheOptions.skyframeBlockingEvaluation);
 
     incrementalBuildMonitor = new SkyframeIncrementalBuildMonitor();
     invalidateTransientErrors();
@@ -1658,6 +1804,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     // Detect external modifications in the output tree.
     FilesystemValueChecker fsvc = new FilesystemValueChecker(tsgm, lastExecutionTimeRange);
     BatchStat batchStatter = outputService == null ? null : outputService.getBatchStatter();
+    if (batchStatter == null) {
+      batchStatter = UnixBatchStat.create(directories.getExecRoot());
+    }
     invalidateDirtyActions(fsvc.getDirtyActionValues(memoizingEvaluator.getValues(),
         batchStatter, modifiedOutputFiles));
     modifiedFiles += fsvc.getNumberOfModifiedOutputFiles();
@@ -1793,6 +1942,23 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     @Override
     public void invalidated(SkyKey skyKey, InvalidationState state) {
+      TargetReverseDepsIndex index = reverseDepsIndex;
+      if (index != null && skyKey.functionName().equals(SkyFunctions.PACKAGE)) {
+        PackageIdentifier packageId = (PackageIdentifier) skyKey.argument();
+        if (state == InvalidationState.DELETED) {
+          index.packageDeleted(packageId);
+        } else {
+          index.packageInvalidated(packageId);
+        }
+      }
+      QueryResultCache cache = queryResultCache;
+      if (cache != null && state == InvalidationState.DELETED) {
+        cache.nodeChanged(skyKey);
+      }
+      SkyframeIncrementalBuildMonitor monitor = incrementalBuildMonitor;
+      if (monitor != null && state == InvalidationState.DIRTY) {
+        monitor.accrueInvalidatedNode(skyKey);
+      }
       if (ignoreInvalidations) {
         return;
       }
@@ -1815,6 +1981,16 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     @Override
     public void evaluated(SkyKey skyKey, Supplier<SkyValue> valueSupplier, EvaluationState state) {
+      TargetReverseDepsIndex index = reverseDepsIndex;
+      if (index != null && skyKey.functionName().equals(SkyFunctions.PACKAGE)) {
+        PackageValue value = (PackageValue) valueSupplier.get();
+        index.packageEvaluated(
+            (PackageIdentifier) skyKey.argument(), value == null ? null : value.getPackage());
+      }
+      QueryResultCache cache = queryResultCache;
+      if (cache != null && state == EvaluationState.BUILT) {
+        cache.nodeChanged(skyKey);
+      }
       if (ignoreInvalidations) {
         return;
       }
@@ -1836,4 +2012,20 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     modifiedFilesDuringPreviousBuild = 0;
     return result;
   }
+
+  /**
+   * Returns a number that changes whenever source files, output files, packages or other values
+   * are invalidated because something changed, or the graph is reset. If it is the same after the
+   * sync of two commands, nothing that the evaluator knows about changed in between, apart from
+   * the options of the commands.
+   */
+  @ThreadCompatible
+  public long getChangeCount() {
+    return changeCount;
+  }
+
+  @ThreadCompatible
+  protected void recordChange() {
+    changeCount++;
+  }
 }
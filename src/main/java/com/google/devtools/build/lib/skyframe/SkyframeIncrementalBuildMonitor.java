@@ -13,25 +13,39 @@
 // limitations under the License.
 package com.google.devtools.build.lib.skyframe;
 
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Multisets;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.actions.ChangedFilesMessage;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.logging.Logger;
 
 /**
  * A package-private class intended to track a small number of modified files during the build. This
  * class should stop recording changed files if there are too many of them, instead of holding onto
  * a large collection of files.
+ *
+ * <p>It also counts the nodes dirtied by the invalidation, by {@link SkyFunctionName}, to show
+ * which kinds of nodes a change costs the most to re-check.
  */
 @ThreadSafety.ThreadCompatible
 class SkyframeIncrementalBuildMonitor {
+  private static final Logger LOG =
+      Logger.getLogger(SkyframeIncrementalBuildMonitor.class.getName());
+
   private Set<PathFragment> files = new HashSet<>();
   private static final int MAX_FILES = 100;
+  private final ConcurrentHashMultiset<SkyFunctionName> invalidatedNodes =
+      ConcurrentHashMultiset.create();
 
   public void accrue(Iterable<SkyKey> invalidatedValues) {
     for (SkyKey skyKey : invalidatedValues) {
@@ -51,9 +65,30 @@ class SkyframeIncrementalBuildMonitor {
     }
   }
 
+  /**
+   * Records that the node of {@code skyKey} was dirtied. Unlike the other methods, this one is
+   * thread-safe, since nodes are dirtied by many threads.
+   */
+  @ThreadSafety.ThreadSafe
+  public void accrueInvalidatedNode(SkyKey skyKey) {
+    invalidatedNodes.add(skyKey.functionName());
+  }
+
+  /** Returns the number of dirtied nodes of each function, most frequent first. */
+  public ImmutableMultiset<SkyFunctionName> getInvalidatedNodeCounts() {
+    return Multisets.copyHighestCountFirst(invalidatedNodes);
+  }
+
   public void alertListeners(EventBus eventBus) {
     if (files != null) {
       eventBus.post(new ChangedFilesMessage(files));
     }
+    if (!invalidatedNodes.isEmpty()) {
+      StringBuilder message = new StringBuilder("Invalidated nodes by function:");
+      for (Multiset.Entry<SkyFunctionName> entry : getInvalidatedNodeCounts().entrySet()) {
+        message.append(' ').append(entry.getElement()).append('=').append(entry.getCount());
+      }
+      LOG.info(message.toString());
+    }
   }
 }
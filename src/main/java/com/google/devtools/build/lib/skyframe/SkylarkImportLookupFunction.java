@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -68,6 +69,14 @@ import javax.annotation.Nullable;
  */
 public class SkylarkImportLookupFunction implements SkyFunction {
 
+  private static final Supplier<State> NEW_STATE =
+      new Supplier<State>() {
+        @Override
+        public State get() {
+          return new State();
+        }
+      };
+
   private final RuleClassProvider ruleClassProvider;
   private final PackageFactory packageFactory;
 
@@ -120,17 +129,25 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       throw SkylarkImportFailedException.noExternalLoadsFromWorkspace(fileLabel);
     }
 
+    // The file and the labels of its imports are usually looked up in earlier rounds than the
+    // imports themselves, so they are kept across restarts. Inlined calls share the environment of
+    // another key, so they can't keep a state.
+    State state = visited == null ? env.getState(NEW_STATE) : new State();
+
     // Load the AST corresponding to this file.
-    ASTFileLookupValue astLookupValue;
-    try {
-      SkyKey astLookupKey = ASTFileLookupValue.key(fileLabel);
-      astLookupValue = (ASTFileLookupValue) env.getValueOrThrow(astLookupKey,
-          ErrorReadingSkylarkExtensionException.class, InconsistentFilesystemException.class);
-    } catch (ErrorReadingSkylarkExtensionException e) {
-      throw SkylarkImportFailedException.errorReadingFile(filePath, e.getMessage());
-    }
+    ASTFileLookupValue astLookupValue = state.astLookupValue;
     if (astLookupValue == null) {
-      return null;
+      try {
+        SkyKey astLookupKey = ASTFileLookupValue.key(fileLabel);
+        astLookupValue = (ASTFileLookupValue) env.getValueOrThrow(astLookupKey,
+            ErrorReadingSkylarkExtensionException.class, InconsistentFilesystemException.class);
+      } catch (ErrorReadingSkylarkExtensionException e) {
+        throw SkylarkImportFailedException.errorReadingFile(filePath, e.getMessage());
+      }
+      if (astLookupValue == null) {
+        return null;
+      }
+      state.astLookupValue = astLookupValue;
     }
     if (!astLookupValue.lookupSuccessful()) {
       // Skylark import files have to exist.
@@ -145,12 +162,15 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     ImmutableList<SkylarkImport> imports = ast.getImports();
     Map<String, Extension> extensionsForImports = Maps.newHashMapWithExpectedSize(imports.size());
     ImmutableList.Builder<SkylarkFileDependency> fileDependencies = ImmutableList.builder();
-    ImmutableMap<String, Label> labelsForImports;
+    ImmutableMap<String, Label> labelsForImports = state.labelsForImports;
 
     // Find the labels corresponding to the load statements.
-    labelsForImports = findLabelsForLoadStatements(imports, fileLabel, env);
     if (labelsForImports == null) {
-      return null;
+      labelsForImports = findLabelsForLoadStatements(imports, fileLabel, env);
+      if (labelsForImports == null) {
+        return null;
+      }
+      state.labelsForImports = labelsForImports;
     }
 
     // Look up and load the imports.
@@ -217,6 +237,12 @@ public class SkylarkImportLookupFunction implements SkyFunction {
         extension, new SkylarkFileDependency(fileLabel, fileDependencies.build()));
   }
 
+  /** The lookups of a file that don't need to be repeated when its computation is restarted. */
+  private static class State implements SkyKeyComputeState {
+    @Nullable ASTFileLookupValue astLookupValue;
+    @Nullable ImmutableMap<String, Label> labelsForImports;
+  }
+
   /**
    * Computes the set of Labels corresponding to a collection of PathFragments representing
    * absolute import paths.
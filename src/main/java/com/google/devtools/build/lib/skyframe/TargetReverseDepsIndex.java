@@ -0,0 +1,344 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.collect.CompactHashSet;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.DependencyFilter;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * An index of the reverse dependencies of the targets of all loaded packages, which is kept up to
+ * date as packages are loaded, reloaded and invalidated, so that the rdeps of a target can be
+ * looked up without walking the Skyframe graph.
+ *
+ * <p>Each label that is indexed or depended on gets an integer id, and the rdeps of a label are
+ * stored as an array of ids. The labels are spread over {@link #STRIPES} stripes, each locked on
+ * its own, so that packages evaluated in parallel rarely contend. The id of a label is dropped as
+ * soon as the label is neither indexed nor depended on, so the index only grows with the loaded
+ * packages. A target depends on the labels that its {@link TransitiveTraversalValue} depends on,
+ * plus all the labels that aspects may add to a rule. The index may therefore contain some rdeps
+ * through aspects that are not in the graph.
+ *
+ * <p>The rdeps in packages that were invalidated and not reloaded since are left out. Lookups see
+ * all the packages evaluated before them, but should not run concurrently with package evaluation:
+ * the id of an rdep may then be dropped and given to another label while it is looked up.
+ */
+@ThreadSafe
+public final class TargetReverseDepsIndex {
+  private static final int STRIPES = 64;
+
+  /**
+   * The labels whose ids are congruent to the index of the stripe modulo {@link #STRIPES}. The
+   * data of the label with id {@code id} is at {@code id / STRIPES} in the arrays. Synchronized
+   * using the monitor of the stripe.
+   */
+  private static final class Stripe {
+    private final int index;
+    private final Map<Label, Integer> ids = new HashMap<>();
+    private Label[] labels = new Label[16];
+    /** The target of each label, or null if the package of the label is not indexed. */
+    private Target[] targets = new Target[16];
+    /** The ids of the rdeps of each label, in the first {@code reverseDepCounts[i]} elements. */
+    private int[][] reverseDeps = new int[16][];
+    private int[] reverseDepCounts = new int[16];
+    /** The slots of dropped labels, in the first {@code freeSlotCount} elements. */
+    private int[] freeSlots = new int[16];
+    private int freeSlotCount;
+    private int slotCount;
+
+    private Stripe(int index) {
+      this.index = index;
+    }
+  }
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  /** The indexed version of each package. */
+  private final ConcurrentMap<PackageIdentifier, Package> packages = new ConcurrentHashMap<>();
+
+  private final Set<PackageIdentifier> invalidatedPackages = Sets.newConcurrentHashSet();
+
+  public TargetReverseDepsIndex() {
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(i);
+    }
+  }
+
+  /** Leaves out the rdeps in the package until it is reloaded. */
+  void packageInvalidated(PackageIdentifier packageId) {
+    invalidatedPackages.add(packageId);
+  }
+
+  /** Removes the rdeps in the package, which will not be reloaded as it is. */
+  void packageDeleted(PackageIdentifier packageId) {
+    invalidatedPackages.add(packageId);
+    Package oldPkg = packages.remove(packageId);
+    if (oldPkg != null) {
+      updateReverseDeps(oldPkg, null);
+    }
+  }
+
+  /**
+   * Indexes the rdeps in the package that was just evaluated, or removes those of the previous
+   * version if {@code pkg} is null because the package could not be loaded. A package is only
+   * evaluated by one thread at a time.
+   */
+  void packageEvaluated(PackageIdentifier packageId, @Nullable Package pkg) {
+    Package oldPkg = pkg == null ? packages.remove(packageId) : packages.put(packageId, pkg);
+    if (oldPkg != pkg) {
+      updateReverseDeps(oldPkg, pkg);
+    }
+    invalidatedPackages.remove(packageId);
+  }
+
+  /**
+   * Returns the rdeps of each of the given targets that is indexed. Targets that are not indexed
+   * are left out of the result.
+   */
+  public Map<Target, Collection<Target>> getReverseDeps(Iterable<Target> targets) {
+    ImmutableMap.Builder<Target, Collection<Target>> result = ImmutableMap.builder();
+    Set<Target> seen = CompactHashSet.create();
+    for (Target target : targets) {
+      if (!seen.add(target)) {
+        continue;
+      }
+      Stripe stripe = getStripe(target.getLabel());
+      int[] parentIds;
+      synchronized (stripe) {
+        Integer id = stripe.ids.get(target.getLabel());
+        if (id == null || stripe.targets[id / STRIPES] == null) {
+          continue;
+        }
+        int slot = id / STRIPES;
+        parentIds = stripe.reverseDepCounts[slot] == 0
+            ? new int[0]
+            : Arrays.copyOf(stripe.reverseDeps[slot], stripe.reverseDepCounts[slot]);
+      }
+      Set<Target> parents = CompactHashSet.createWithExpectedSize(parentIds.length);
+      for (int parentId : parentIds) {
+        Target parent = getTarget(parentId);
+        if (parent != null
+            && !invalidatedPackages.contains(parent.getLabel().getPackageIdentifier())) {
+          parents.add(parent);
+        }
+      }
+      result.put(target, parents);
+    }
+    return result.build();
+  }
+
+  /** Returns the number of labels that are indexed or depended on. */
+  int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.ids.size();
+      }
+    }
+    return size;
+  }
+
+  private static Set<Label> getLabelDeps(Target target) {
+    Set<Label> labels = CompactHashSet.create();
+    Iterables.addAll(labels, TransitiveBaseTraversalFunction.getLabelDeps(target));
+    if (target instanceof Rule) {
+      labels.addAll(((Rule) target).getAspectLabelsSuperset(DependencyFilter.ALL_DEPS));
+    }
+    return labels;
+  }
+
+  /**
+   * Replaces the rdeps in {@code oldPkg} with those in {@code pkg}, either of which may be null.
+   * Only the deps that differ between the two versions of a target are updated, and the targets of
+   * the new version are indexed before those of the old one are removed, so that the labels of a
+   * reloaded package keep their ids.
+   */
+  private void updateReverseDeps(@Nullable Package oldPkg, @Nullable Package pkg) {
+    Map<String, Target> oldTargets = new HashMap<>();
+    if (oldPkg != null) {
+      for (Target oldTarget : oldPkg.getTargets()) {
+        oldTargets.put(oldTarget.getName(), oldTarget);
+      }
+    }
+    if (pkg != null) {
+      for (Target target : pkg.getTargets()) {
+        Target oldTarget = oldTargets.remove(target.getName());
+        Set<Label> labels = getLabelDeps(target);
+        Set<Label> oldLabels =
+            oldTarget == null ? Collections.<Label>emptySet() : getLabelDeps(oldTarget);
+        int id = setTarget(target);
+        for (Label label : labels) {
+          if (!oldLabels.contains(label)) {
+            addReverseDep(label, id);
+          }
+        }
+        for (Label label : oldLabels) {
+          if (!labels.contains(label)) {
+            removeReverseDep(label, id);
+          }
+        }
+      }
+    }
+    // The targets that are not in the new version.
+    for (Target oldTarget : oldTargets.values()) {
+      int id = getId(oldTarget.getLabel());
+      for (Label label : getLabelDeps(oldTarget)) {
+        removeReverseDep(label, id);
+      }
+      clearTarget(oldTarget);
+    }
+  }
+
+  /** Returns the id of the label of a target that is indexed. */
+  private int getId(Label label) {
+    Stripe stripe = getStripe(label);
+    synchronized (stripe) {
+      return stripe.ids.get(label);
+    }
+  }
+
+  @Nullable
+  private Target getTarget(int id) {
+    Stripe stripe = stripes[id % STRIPES];
+    synchronized (stripe) {
+      return stripe.targets[id / STRIPES];
+    }
+  }
+
+  /** Indexes the target and returns the id of its label. */
+  private int setTarget(Target target) {
+    Stripe stripe = getStripe(target.getLabel());
+    synchronized (stripe) {
+      int id = getOrCreateId(stripe, target.getLabel());
+      stripe.targets[id / STRIPES] = target;
+      return id;
+    }
+  }
+
+  private void clearTarget(Target target) {
+    Stripe stripe = getStripe(target.getLabel());
+    synchronized (stripe) {
+      Integer id = stripe.ids.get(target.getLabel());
+      if (id != null && stripe.targets[id / STRIPES] == target) {
+        stripe.targets[id / STRIPES] = null;
+        maybeDropId(stripe, id);
+      }
+    }
+  }
+
+  private void addReverseDep(Label label, int parentId) {
+    Stripe stripe = getStripe(label);
+    synchronized (stripe) {
+      int slot = getOrCreateId(stripe, label) / STRIPES;
+      int count = stripe.reverseDepCounts[slot];
+      if (stripe.reverseDeps[slot] == null) {
+        stripe.reverseDeps[slot] = new int[2];
+      } else if (count == stripe.reverseDeps[slot].length) {
+        stripe.reverseDeps[slot] = Arrays.copyOf(stripe.reverseDeps[slot], count * 2);
+      }
+      stripe.reverseDeps[slot][count] = parentId;
+      stripe.reverseDepCounts[slot] = count + 1;
+    }
+  }
+
+  private void removeReverseDep(Label label, int parentId) {
+    Stripe stripe = getStripe(label);
+    synchronized (stripe) {
+      Integer id = stripe.ids.get(label);
+      if (id == null) {
+        return;
+      }
+      int slot = id / STRIPES;
+      int[] reverseDeps = stripe.reverseDeps[slot];
+      int count = stripe.reverseDepCounts[slot];
+      for (int i = 0; i < count; i++) {
+        if (reverseDeps[i] == parentId) {
+          reverseDeps[i] = reverseDeps[count - 1];
+          stripe.reverseDepCounts[slot] = count - 1;
+          maybeDropId(stripe, id);
+          return;
+        }
+      }
+    }
+  }
+
+  private Stripe getStripe(Label label) {
+    // Spreads the bits of the hash code like HashMap, so that similar labels are spread too.
+    int hash = label.hashCode();
+    hash ^= (hash >>> 16);
+    return stripes[(hash & Integer.MAX_VALUE) % STRIPES];
+  }
+
+  /** Must be called with the monitor of the stripe of the label held. */
+  private int getOrCreateId(Stripe stripe, Label label) {
+    Integer id = stripe.ids.get(label);
+    if (id != null) {
+      return id;
+    }
+    int slot;
+    if (stripe.freeSlotCount > 0) {
+      slot = stripe.freeSlots[--stripe.freeSlotCount];
+    } else {
+      slot = stripe.slotCount++;
+      if (slot == stripe.labels.length) {
+        int length = slot * 2;
+        stripe.labels = Arrays.copyOf(stripe.labels, length);
+        stripe.targets = Arrays.copyOf(stripe.targets, length);
+        stripe.reverseDeps = Arrays.copyOf(stripe.reverseDeps, length);
+        stripe.reverseDepCounts = Arrays.copyOf(stripe.reverseDepCounts, length);
+      }
+    }
+    id = slot * STRIPES + stripe.index;
+    stripe.labels[slot] = label;
+    stripe.ids.put(label, id);
+    return id;
+  }
+
+  /**
+   * Drops the id of the label if it is neither indexed nor depended on. Must be called with the
+   * monitor of the stripe held.
+   */
+  private static void maybeDropId(Stripe stripe, int id) {
+    int slot = id / STRIPES;
+    if (stripe.targets[slot] != null || stripe.reverseDepCounts[slot] > 0) {
+      return;
+    }
+    stripe.ids.remove(stripe.labels[slot]);
+    stripe.labels[slot] = null;
+    stripe.reverseDeps[slot] = null;
+    if (stripe.freeSlotCount == stripe.freeSlots.length) {
+      stripe.freeSlots = Arrays.copyOf(stripe.freeSlots, stripe.freeSlotCount * 2);
+    }
+    stripe.freeSlots[stripe.freeSlotCount++] = slot;
+  }
+}
@@ -204,6 +204,19 @@ public final class FilesystemUtils {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  /**
+   * Native wrapper around POSIX fstatat(2) with AT_SYMLINK_NOFOLLOW, which
+   * lstats several entries of one directory but resolves its path only once.
+   *
+   * @param directory the directory containing the entries.
+   * @param names the names of the entries to lstat.
+   * @return an ErrnoFileStatus instance for each entry, in the same order.
+   *   If the directory can't be opened, all of them have the error of
+   *   opening it.
+   */
+  public static native ErrnoFileStatus[] errnoLstatEntries(String directory,
+                                                           String[] names);
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
@@ -0,0 +1,185 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import com.google.devtools.build.lib.UnixJniLoader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Java interface to the Linux inotify(7) API, which reports the changes to the entries of watched
+ * directories. Only available on Linux.
+ *
+ * <p>Watches can be added and removed while another thread waits for events, but {@link #close}
+ * must only be called when no thread is waiting.
+ */
+public final class Inotify implements Closeable {
+
+  static {
+    UnixJniLoader.loadJni();
+  }
+
+  // Event kinds and flags of inotify(7).
+  public static final int IN_MODIFY = 0x00000002;
+  public static final int IN_ATTRIB = 0x00000004;
+  public static final int IN_MOVED_FROM = 0x00000040;
+  public static final int IN_MOVED_TO = 0x00000080;
+  public static final int IN_CREATE = 0x00000100;
+  public static final int IN_DELETE = 0x00000200;
+  public static final int IN_DELETE_SELF = 0x00000400;
+  public static final int IN_MOVE_SELF = 0x00000800;
+  public static final int IN_UNMOUNT = 0x00002000;
+  public static final int IN_Q_OVERFLOW = 0x00004000;
+  public static final int IN_IGNORED = 0x00008000;
+  public static final int IN_ONLYDIR = 0x01000000;
+  public static final int IN_DONT_FOLLOW = 0x02000000;
+  public static final int IN_EXCL_UNLINK = 0x04000000;
+  public static final int IN_ISDIR = 0x40000000;
+
+  /** Enough for hundreds of events, since most names are short. */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The size of struct inotify_event without the name. */
+  private static final int EVENT_HEADER_SIZE = 16;
+
+  /** An event of a watched directory. */
+  public static final class Event {
+    private final int wd;
+    private final int mask;
+    private final int cookie;
+    private final String name;
+
+    private Event(int wd, int mask, int cookie, String name) {
+      this.wd = wd;
+      this.mask = mask;
+      this.cookie = cookie;
+      this.name = name;
+    }
+
+    /** Returns the watch descriptor of the directory, or -1 for {@link #IN_Q_OVERFLOW}. */
+    public int getWatchDescriptor() {
+      return wd;
+    }
+
+    public int getMask() {
+      return mask;
+    }
+
+    /** Returns the number that relates the two halves of a rename. */
+    public int getCookie() {
+      return cookie;
+    }
+
+    /** Returns the name of the changed entry, or the empty string if the directory changed. */
+    public String getName() {
+      return name;
+    }
+
+    public boolean isDirectory() {
+      return (mask & IN_ISDIR) != 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Event[wd=" + wd + ", mask=" + Integer.toHexString(mask) + ", cookie=" + cookie
+          + ", name=" + name + "]";
+    }
+  }
+
+  private final int fd;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  private Inotify(int fd) {
+    this.fd = fd;
+  }
+
+  /** Creates a new inotify instance with no watches. */
+  public static Inotify create() throws IOException {
+    return new Inotify(init());
+  }
+
+  /**
+   * Watches the directory at {@code path} for the events in {@code mask}, or changes the events of
+   * its existing watch.
+   *
+   * @return the watch descriptor of the directory, which is the same for all paths of a directory
+   * @throws IOException if the directory can't be watched. This is an IOException with "No space
+   *     left on device" if the limit of watches (fs.inotify.max_user_watches) was reached.
+   */
+  public int addWatch(String path, int mask) throws IOException {
+    return addWatch(fd, path.getBytes(StandardCharsets.ISO_8859_1), mask);
+  }
+
+  /** Removes a watch, unless the kernel already removed it because its directory was deleted. */
+  public void removeWatch(int wd) throws IOException {
+    removeWatch(fd, wd);
+  }
+
+  /**
+   * Waits up to {@code timeoutMillis} for events without reading them, and returns whether there
+   * are any. May be called while another thread reads the events.
+   */
+  public boolean waitForEvents(int timeoutMillis) throws IOException {
+    return waitForEvents(fd, timeoutMillis);
+  }
+
+  /**
+   * Waits up to {@code timeoutMillis} for events, and returns the ones that were read, in the
+   * order in which they happened. Returns an empty list if there were none. Must not be called
+   * by several threads at once.
+   */
+  public List<Event> readEvents(int timeoutMillis) throws IOException {
+    int count = read(fd, buffer, timeoutMillis);
+    List<Event> events = new ArrayList<>();
+    ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count).order(ByteOrder.nativeOrder());
+    while (bytes.remaining() >= EVENT_HEADER_SIZE) {
+      int wd = bytes.getInt();
+      int mask = bytes.getInt();
+      int cookie = bytes.getInt();
+      int length = bytes.getInt();
+      // The name is padded with nul bytes.
+      int nameLength = 0;
+      while (nameLength < length && buffer[bytes.position() + nameLength] != 0) {
+        nameLength++;
+      }
+      String name = new String(buffer, bytes.position(), nameLength, StandardCharsets.ISO_8859_1);
+      bytes.position(bytes.position() + length);
+      events.add(new Event(wd, mask, cookie, name));
+    }
+    return events;
+  }
+
+  @Override
+  public void close() throws IOException {
+    close(fd);
+  }
+
+  private static native int init() throws IOException;
+
+  private static native int addWatch(int fd, byte[] path, int mask) throws IOException;
+
+  private static native void removeWatch(int fd, int wd) throws IOException;
+
+  private static native boolean waitForEvents(int fd, int timeoutMillis) throws IOException;
+
+  private static native int read(int fd, byte[] buffer, int timeoutMillis) throws IOException;
+
+  private static native void close(int fd) throws IOException;
+}
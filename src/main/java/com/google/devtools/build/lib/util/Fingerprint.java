@@ -17,16 +17,17 @@ package com.google.devtools.build.lib.util;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Map;
 import java.util.UUID;
 
 /**
- * Simplified wrapper for MD5 message digests. See also
+ * Simplified wrapper for message digests computed with the
+ * {@link FileSystem#getDigestFunction digest function}, which is MD5 by default. See also
  * com.google.math.crypto.MD5HMAC for a similar interface.
  *
  * @see java.security.MessageDigest
@@ -36,15 +37,11 @@ public final class Fingerprint {
   private final MessageDigest md;
 
   /**
-   * Creates and initializes a new MD5 object; if this fails, Java must be
+   * Creates and initializes a new digest object; if this fails, Java must be
    * installed incorrectly.
    */
   public Fingerprint() {
-    try {
-      md = MessageDigest.getInstance("md5");
-    } catch (NoSuchAlgorithmException e) {
-      throw new IllegalStateException("MD5 not available", e);
-    }
+    md = FileSystem.getDigestFunction().newMessageDigest();
   }
 
   /**
@@ -52,7 +49,7 @@ public final class Fingerprint {
    *
    * <p>This method has the side-effect of resetting the underlying digest computer.
    *
-   * @return the MD5 digest as a 16-byte array
+   * @return the digest, e.g. a 16-byte array for MD5
    * @see java.security.MessageDigest#digest()
    */
   public byte[] digestAndReset() {
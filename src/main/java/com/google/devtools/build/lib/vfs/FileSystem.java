@@ -28,6 +28,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.List;
 
@@ -37,6 +39,58 @@ import java.util.List;
 @ThreadSafe
 public abstract class FileSystem {
 
+  /**
+   * The hash functions that may be used for file digests and fingerprints.
+   */
+  public enum HashFunction {
+    MD5("MD5", Hashing.md5()),
+    SHA1("SHA-1", Hashing.sha1()),
+    SHA256("SHA-256", Hashing.sha256());
+
+    private final String algorithm;
+    private final com.google.common.hash.HashFunction hash;
+
+    HashFunction(String algorithm, com.google.common.hash.HashFunction hash) {
+      this.algorithm = algorithm;
+      this.hash = hash;
+    }
+
+    public com.google.common.hash.HashFunction getHash() {
+      return hash;
+    }
+
+    /** Returns the length in bytes of the digests computed by this function. */
+    public int getDigestLength() {
+      return hash.bits() / 8;
+    }
+
+    /** Returns a new {@link MessageDigest} computing this function. */
+    public MessageDigest newMessageDigest() {
+      try {
+        return MessageDigest.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(algorithm + " not available", e);
+      }
+    }
+  }
+
+  private static volatile HashFunction digestFunction = HashFunction.MD5;
+
+  /**
+   * Returns the hash function used for file digests and fingerprints.
+   */
+  public static HashFunction getDigestFunction() {
+    return digestFunction;
+  }
+
+  /**
+   * Sets the hash function used for file digests and fingerprints. Since digests computed with
+   * different functions cannot be compared, this may only be called before any digest is computed.
+   */
+  public static void setDigestFunction(HashFunction function) {
+    digestFunction = function;
+  }
+
   /**
    * An exception thrown when attempting to resolve an ordinary file as a symlink.
    */
@@ -242,6 +296,23 @@ public abstract class FileSystem {
     return null;
   }
 
+  /**
+   * Returns the digest of the file denoted by {@code path}, computed with the
+   * {@link #getDigestFunction digest function}. See {@link Path#getDigest} for specification.
+   */
+  protected byte[] getDigest(final Path path) throws IOException {
+    HashFunction function = getDigestFunction();
+    if (function == HashFunction.MD5) {
+      return getMD5Digest(path);
+    }
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        return getInputStream(path);
+      }
+    }.hash(function.getHash()).asBytes();
+  }
+
   /**
    * Returns the MD5 digest of the file denoted by {@code path}. See
    * {@link Path#getMD5Digest} for specification.
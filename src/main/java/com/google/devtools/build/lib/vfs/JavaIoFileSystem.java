@@ -355,6 +355,17 @@ public class JavaIoFileSystem extends AbstractFileSystemWithCustomStat {
     }
   }
 
+  @Override
+  protected byte[] getDigest(Path path) throws IOException {
+    return XattrDigestCache.getDigest(path, getDigestFunction(),
+        new XattrDigestCache.DigestComputer() {
+          @Override
+          public byte[] compute(Path path) throws IOException {
+            return JavaIoFileSystem.super.getDigest(path);
+          }
+        });
+  }
+
   @Override
   protected byte[] getMD5Digest(Path path) throws IOException {
     String name = path.toString();
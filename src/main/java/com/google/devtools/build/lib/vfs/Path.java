@@ -29,13 +29,12 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.Serializable;
-import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.IdentityHashMap;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * <p>Instances of this class represent pathnames, forming a tree
@@ -82,6 +81,11 @@ public class Path implements Comparable<Path>, Serializable {
   private static class PathWeakReferenceForCleanup extends WeakReference<Path> {
     final Path parent;
     final String baseName;
+    /**
+     * The next reference in the same bucket of {@code parent.children}. Written while {@code
+     * parent} is synchronized.
+     */
+    volatile PathWeakReferenceForCleanup next;
 
     PathWeakReferenceForCleanup(Path referent, ReferenceQueue<Path> referenceQueue) {
       super(referent, referenceQueue);
@@ -99,12 +103,9 @@ public class Path implements Comparable<Path>, Serializable {
           Path parent = ref.parent;
           synchronized (parent) {
             // It's possible that since this reference was enqueued for deletion, the Path was
-            // recreated with a new entry in the map. We definitely shouldn't delete that entry, so
-            // check to make sure they're the same.
-            Reference<Path> currentRef = ref.parent.children.get(ref.baseName);
-            if (currentRef == ref) {
-              ref.parent.children.remove(ref.baseName);
-            }
+            // recreated with a new entry in the table. We definitely shouldn't delete that entry,
+            // so only this very reference is removed.
+            parent.removeChild(ref);
           }
         } catch (InterruptedException e) {
           // Ignored.
@@ -119,21 +120,19 @@ public class Path implements Comparable<Path>, Serializable {
   }
 
   /**
-   * A mapping from a child file name to the {@link Path} representing it.
+   * A hash table from a child file name to the {@link Path} representing it, whose buckets are
+   * chains of references linked by {@link PathWeakReferenceForCleanup#next}, or null if no child
+   * was ever created.
    *
    * <p>File names must be a single path segment.  The strings must be
-   * canonical.  We use IdentityHashMap instead of HashMap for reasons of space
-   * efficiency: instances are smaller by a single word.  Also, since all path
-   * segments are interned, the universe of Paths holds a minimal number of
-   * references to strings.  (It's doubtful that there's any time gain from use
-   * of an IdentityHashMap, since the time saved by avoiding string equality
-   * tests during hash lookups is probably equal to the time spent eagerly
-   * interning strings, unless the collision rate is high.)
+   * canonical, and are compared by identity.  Since all path segments are
+   * interned, the universe of Paths holds a minimal number of references to
+   * strings.
    *
    * <p>The Paths are stored as weak references to ensure that a live
    * Path for a directory does not hold a strong reference to all of its
    * descendants, which would prevent collection of paths we never intend to
-   * use again.  Stale references in the map must be treated as absent.
+   * use again.  Stale references in the table must be treated as absent.
    *
    * <p>A Path may be recycled once there is no Path that refers to it or
    * to one of its descendants.  This means that any data stored in the
@@ -141,15 +140,17 @@ public class Path implements Comparable<Path>, Serializable {
    * store data in Paths as an optimization, but there must be another
    * source for that data in case the Path is recycled.
    *
-   * <p>We intentionally avoid using the existing library classes for reasons of
-   * space efficiency: while ConcurrentHashMap would reduce our locking
-   * overhead, and ReferenceMap would simplify the code a little, both of those
-   * classes have much higher per-instance overheads than IdentityHashMap.
-   *
-   * <p>The Path object must be synchronized while children is being
-   * accessed.
+   * <p>Hot directories such as the exec root are looked up by many threads at once, so lookups
+   * read the table without locking. The table and the chains are only changed while the Path
+   * object is synchronized, and a lookup that misses is repeated while synchronized, because it
+   * may have raced with the addition of the child or with rehashing. We intentionally avoid using
+   * ConcurrentHashMap for reasons of space efficiency: it has a much higher per-instance overhead
+   * than this table, and most Paths have very few children.
    */
-  private volatile IdentityHashMap<String, Reference<Path>> children;
+  private volatile AtomicReferenceArray<PathWeakReferenceForCleanup> children;
+
+  /** The number of references in {@link #children}. The Path object must be synchronized. */
+  private int childCount;
 
   /**
    * Create a path instance.  Should only be called by {@link #createChildPath}.
@@ -216,31 +217,108 @@ public class Path implements Comparable<Path>, Serializable {
    * if it doesn't already exist.
    */
   private Path getCachedChildPath(String childName) {
-    // We get a canonical instance since 'children' is an IdentityHashMap.
+    // We get a canonical instance since children are compared by identity.
     childName = StringCanonicalizer.intern(childName);
-    // We use double-checked locking so that we only hold the lock when we might need to mutate the
-    // 'children' variable. 'children' will never become null if it's already non-null, so we only
-    // need to worry about the case where it's currently null and we race with another thread
-    // executing getCachedChildPath(<doesn't matter>) trying to set 'children' to a non-null value.
-    if (children == null) {
-      synchronized (this) {
-        if (children == null) {
-          // 66% of Paths have size == 1, 80% <= 2
-          children = new IdentityHashMap<>(1);
-        }
-      }
+    Path child = findChild(children, childName);
+    if (child != null) {
+      return child;
     }
     synchronized (this) {
-      Reference<Path> childRef = children.get(childName);
-      Path child;
-      if (childRef == null || (child = childRef.get()) == null) {
+      child = findChild(children, childName);
+      if (child == null) {
         child = createChildPath(childName);
-        children.put(childName, new PathWeakReferenceForCleanup(child, REFERENCE_QUEUE));
+        addChild(new PathWeakReferenceForCleanup(child, REFERENCE_QUEUE));
       }
       return child;
     }
   }
 
+  private static int bucket(String childName, int tableLength) {
+    int hash = childName.hashCode();
+    return (hash ^ (hash >>> 16)) & (tableLength - 1);
+  }
+
+  /**
+   * Returns the live child named {@code childName} in {@code table}, or null. Without
+   * synchronization, it may also return null if a child is being added or rehashed.
+   */
+  private static Path findChild(
+      AtomicReferenceArray<PathWeakReferenceForCleanup> table, String childName) {
+    if (table == null) {
+      return null;
+    }
+    for (PathWeakReferenceForCleanup ref = table.get(bucket(childName, table.length()));
+        ref != null; ref = ref.next) {
+      if (ref.baseName == childName) {
+        Path child = ref.get();
+        if (child != null) {
+          return child;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Adds a reference to {@link #children}. The Path object must be synchronized. */
+  private void addChild(PathWeakReferenceForCleanup ref) {
+    AtomicReferenceArray<PathWeakReferenceForCleanup> table = children;
+    if (table == null) {
+      // 66% of Paths have size == 1, 80% <= 2
+      table = new AtomicReferenceArray<>(1);
+    } else if (childCount == table.length()) {
+      table = rehash(table);
+    }
+    int index = bucket(ref.baseName, table.length());
+    ref.next = table.get(index);
+    table.set(index, ref);
+    childCount++;
+    children = table;
+  }
+
+  /**
+   * Returns a table twice as large with the references of {@code table}. Lookups that are reading
+   * {@code table} at the same time may miss the references that were moved.
+   */
+  private static AtomicReferenceArray<PathWeakReferenceForCleanup> rehash(
+      AtomicReferenceArray<PathWeakReferenceForCleanup> table) {
+    AtomicReferenceArray<PathWeakReferenceForCleanup> newTable =
+        new AtomicReferenceArray<>(table.length() * 2);
+    for (int i = 0; i < table.length(); i++) {
+      PathWeakReferenceForCleanup ref = table.get(i);
+      while (ref != null) {
+        PathWeakReferenceForCleanup next = ref.next;
+        int index = bucket(ref.baseName, newTable.length());
+        ref.next = newTable.get(index);
+        newTable.set(index, ref);
+        ref = next;
+      }
+    }
+    return newTable;
+  }
+
+  /**
+   * Removes {@code ref} from {@link #children} if it is there. The Path object must be
+   * synchronized.
+   */
+  private void removeChild(PathWeakReferenceForCleanup ref) {
+    AtomicReferenceArray<PathWeakReferenceForCleanup> table = children;
+    int index = bucket(ref.baseName, table.length());
+    PathWeakReferenceForCleanup current = table.get(index);
+    if (current == ref) {
+      table.set(index, ref.next);
+      childCount--;
+      return;
+    }
+    for (; current != null; current = current.next) {
+      if (current.next == ref) {
+        // Lookups at ref still find the rest of the chain through ref.next.
+        current.next = ref.next;
+        childCount--;
+        return;
+      }
+    }
+  }
+
   /**
    * Applies the specified function to each {@link Path} that is an existing direct
    * descendant of this one.  The Predicate is evaluated only for its
@@ -254,10 +332,12 @@ public class Path implements Comparable<Path>, Serializable {
    */
   protected synchronized void applyToChildren(Predicate<Path> function) {
     if (children != null) {
-      for (Reference<Path> childRef : children.values()) {
-        Path child = childRef.get();
-        if (child != null) {
-          function.apply(child);
+      for (int i = 0; i < children.length(); i++) {
+        for (PathWeakReferenceForCleanup ref = children.get(i); ref != null; ref = ref.next) {
+          Path child = ref.get();
+          if (child != null) {
+            function.apply(child);
+          }
         }
       }
     }
@@ -962,6 +1042,20 @@ public class Path implements Comparable<Path>, Serializable {
     return fileSystem.getMD5Digest(this);
   }
 
+  /**
+   * Returns the digest of the file denoted by the current path, following symbolic links,
+   * computed with {@link FileSystem#getDigestFunction}.
+   *
+   * <p>This method runs in O(n) time where n is the length of the file, but certain
+   * implementations may be much faster than the worst case.
+   *
+   * @return a new array containing the file's digest
+   * @throws IOException if the digest could not be computed for any reason
+   */
+  public byte[] getDigest() throws IOException {
+    return fileSystem.getDigest(this);
+  }
+
   /**
    * Opens the file denoted by this path, following symbolic links, for reading,
    * and returns an input stream to it.
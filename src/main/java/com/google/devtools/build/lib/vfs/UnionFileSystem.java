@@ -176,6 +176,12 @@ public class UnionFileSystem extends FileSystem {
     return delegate.getMD5Digest(adjustPath(path, delegate));
   }
 
+  @Override
+  protected byte[] getDigest(Path path) throws IOException {
+    FileSystem delegate = getDelegate(path);
+    return delegate.getDigest(adjustPath(path, delegate));
+  }
+
   @Override
   protected boolean createDirectory(Path path) throws IOException {
     checkModifiable();
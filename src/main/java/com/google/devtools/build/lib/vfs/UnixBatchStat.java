@@ -0,0 +1,102 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.unix.ErrnoFileStatus;
+import com.google.devtools.build.lib.unix.FilesystemUtils;
+import com.google.devtools.build.lib.util.Preconditions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link BatchStat} for the local file system, which lstats the consecutive paths of each
+ * directory with a single native call. The paths of a directory should therefore be passed
+ * together.
+ *
+ * <p>Returns null for paths that don't exist, never includes digests, and never follows
+ * symbolic links, whatever {@code includeDigest} and {@code includeLinks} are.
+ */
+@ThreadSafe
+public final class UnixBatchStat implements BatchStat {
+  private static final Profiler profiler = Profiler.instance();
+
+  private final Path execRoot;
+
+  private UnixBatchStat(Path execRoot) {
+    this.execRoot = execRoot;
+  }
+
+  /**
+   * Returns a batch statter for paths relative to {@code execRoot}, or null if it is not on a
+   * {@link UnixFileSystem}.
+   */
+  @Nullable
+  public static BatchStat create(Path execRoot) {
+    return execRoot.getFileSystem() instanceof UnixFileSystem ? new UnixBatchStat(execRoot) : null;
+  }
+
+  @Override
+  public List<FileStatusWithDigest> batchStat(boolean includeDigest, boolean includeLinks,
+      Iterable<PathFragment> paths) throws IOException {
+    List<FileStatusWithDigest> result = new ArrayList<>();
+    PathFragment directory = null;
+    List<String> names = new ArrayList<>();
+    for (PathFragment path : paths) {
+      Preconditions.checkArgument(path.segmentCount() > 0, path);
+      PathFragment parent = path.getParentDirectory();
+      if (!parent.equals(directory)) {
+        statEntries(directory, names, result);
+        directory = parent;
+        names.clear();
+      }
+      names.add(path.getBaseName());
+    }
+    statEntries(directory, names, result);
+    return result;
+  }
+
+  private void statEntries(PathFragment directory, List<String> names,
+      List<FileStatusWithDigest> result) throws IOException {
+    if (names.isEmpty()) {
+      return;
+    }
+    String name = execRoot.getRelative(directory).getPathString();
+    long startTime = Profiler.nanoTimeMaybe();
+    ErrnoFileStatus[] stats;
+    try {
+      stats = FilesystemUtils.errnoLstatEntries(name, names.toArray(new String[names.size()]));
+    } finally {
+      profiler.logSimpleTask(startTime, ProfilerTask.VFS_STAT, name);
+    }
+    for (int i = 0; i < stats.length; i++) {
+      ErrnoFileStatus stat = stats[i];
+      if (!stat.hasError()) {
+        result.add(FileStatusWithDigestAdapter.adapt(new UnixFileSystem.UnixFileStatus(stat)));
+      } else if (stat.getErrno() == ErrnoFileStatus.ENOENT
+          || stat.getErrno() == ErrnoFileStatus.ENOTDIR) {
+        result.add(null);
+      } else {
+        throw new IOException(
+            "lstat of " + name + "/" + names.get(i) + " failed with errno " + stat.getErrno());
+      }
+    }
+  }
+}
@@ -566,6 +566,17 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
     }
   }
 
+  @Override
+  protected byte[] getDigest(Path path) throws IOException {
+    return XattrDigestCache.getDigest(path, getDigestFunction(),
+        new XattrDigestCache.DigestComputer() {
+          @Override
+          public byte[] compute(Path path) throws IOException {
+            return UnixFileSystem.super.getDigest(path);
+          }
+        });
+  }
+
   @Override
   protected byte[] getMD5Digest(Path path) throws IOException {
     String name = path.toString();
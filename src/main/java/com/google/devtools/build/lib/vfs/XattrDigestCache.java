@@ -0,0 +1,166 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+import javax.annotation.Nullable;
+
+/**
+ * Stores the digests of files on the local disk in a user extended attribute of the files, so
+ * that files that did not change need not be read again to compute their digests, not even by a
+ * new server.
+ *
+ * <p>A stored digest is only used if the size, modification time and inode number of the file are
+ * the same as when the digest was computed. Digests of files that were modified very recently are
+ * not stored, since a further modification within the granularity of the file system timestamps
+ * would go unnoticed.
+ *
+ * <p>Writing an extended attribute changes the ctime of a file, but not its mtime, which is what
+ * Blaze uses for change detection.
+ */
+@ThreadSafe
+public final class XattrDigestCache {
+
+  // On Linux, this is stored as "user.bazel.digest".
+  private static final String ATTRIBUTE_NAME = "bazel.digest";
+  private static final byte FORMAT_VERSION = 1;
+  // Version, function, size, mtime and inode.
+  private static final int HEADER_LENGTH = 2 + 3 * 8;
+  private static final long MIN_AGE_MILLIS = 2000;
+
+  private static volatile boolean enabled;
+
+  private XattrDigestCache() {}
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  public static void setEnabled(boolean enabled) {
+    XattrDigestCache.enabled = enabled;
+  }
+
+  /**
+   * Returns the digest of the file computed with {@code function}, from the extended attribute if
+   * it is still valid and from {@code computer} otherwise. In the latter case, the digest is
+   * stored in the extended attribute if the file system supports that.
+   *
+   * <p>The file systems of the local disk use this for {@link Path#getDigest}. Other ways of
+   * computing digests of local files must use it as well, so that they store and reuse the same
+   * digests.
+   */
+  public static byte[] getDigest(Path path, HashFunction function, DigestComputer computer)
+      throws IOException {
+    if (!enabled) {
+      return computer.compute(path);
+    }
+    FileStatus before = path.stat();
+    UserDefinedFileAttributeView view = getView(path);
+    byte[] cached = view == null ? null : read(view, function, before);
+    if (cached != null) {
+      return cached;
+    }
+    byte[] digest = computer.compute(path);
+    if (view != null && before.getLastModifiedTime() < System.currentTimeMillis() - MIN_AGE_MILLIS
+        && sameFile(before, path.stat())) {
+      write(view, function, before, digest);
+    }
+    return digest;
+  }
+
+  /**
+   * Returns the digest of the file computed with {@code function} from the extended attribute, or
+   * null if the cache is disabled or does not hold a valid digest of the file.
+   */
+  @Nullable
+  public static byte[] getCachedDigest(Path path, HashFunction function) throws IOException {
+    if (!enabled) {
+      return null;
+    }
+    UserDefinedFileAttributeView view = getView(path);
+    return view == null ? null : read(view, function, path.stat());
+  }
+
+  /** Computes a digest of a file the expensive way. */
+  public interface DigestComputer {
+    byte[] compute(Path path) throws IOException;
+  }
+
+  @Nullable
+  private static UserDefinedFileAttributeView getView(Path path) {
+    try {
+      return Files.getFileAttributeView(
+          path.getPathFile().toPath(), UserDefinedFileAttributeView.class);
+    } catch (RuntimeException e) {
+      // E.g. the path cannot be represented as a java.nio path.
+      return null;
+    }
+  }
+
+  private static boolean sameFile(FileStatus first, FileStatus second) throws IOException {
+    return first.getSize() == second.getSize()
+        && first.getLastModifiedTime() == second.getLastModifiedTime()
+        && first.getNodeId() == second.getNodeId();
+  }
+
+  @Nullable
+  private static byte[] read(UserDefinedFileAttributeView view, HashFunction function,
+      FileStatus stat) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + function.getDigestLength());
+    try {
+      if (view.read(ATTRIBUTE_NAME, buffer) != buffer.capacity()) {
+        return null;
+      }
+    } catch (IOException | UnsupportedOperationException | SecurityException e) {
+      // The attribute does not exist or extended attributes are not supported.
+      return null;
+    }
+    buffer.flip();
+    if (buffer.get() != FORMAT_VERSION
+        || buffer.get() != function.ordinal()
+        || buffer.getLong() != stat.getSize()
+        || buffer.getLong() != stat.getLastModifiedTime()
+        || buffer.getLong() != stat.getNodeId()) {
+      return null;
+    }
+    byte[] digest = new byte[function.getDigestLength()];
+    buffer.get(digest);
+    return digest;
+  }
+
+  private static void write(UserDefinedFileAttributeView view, HashFunction function,
+      FileStatus stat, byte[] digest) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + digest.length);
+    buffer.put(FORMAT_VERSION);
+    buffer.put((byte) function.ordinal());
+    buffer.putLong(stat.getSize());
+    buffer.putLong(stat.getLastModifiedTime());
+    buffer.putLong(stat.getNodeId());
+    buffer.put(digest);
+    buffer.flip();
+    try {
+      view.write(ATTRIBUTE_NAME, buffer);
+    } catch (IOException | UnsupportedOperationException | SecurityException e) {
+      // Read-only files and file systems without extended attributes simply don't get the
+      // digest cached.
+    }
+  }
+}
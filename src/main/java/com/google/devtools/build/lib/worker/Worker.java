@@ -17,12 +17,14 @@ import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.util.ProcMeminfoParser;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.Field;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -132,6 +134,42 @@ final class Worker {
     return workerFilesHash;
   }
 
+  /**
+   * Returns the resident set size of the worker process in kilobytes, or -1 if it cannot be
+   * determined on this platform.
+   */
+  long getResidentMemoryKb() {
+    int pid = getProcessId(process);
+    if (pid <= 0) {
+      return -1;
+    }
+    try {
+      return new ProcMeminfoParser("/proc/" + pid + "/status").getRamKb("VmRSS");
+    } catch (IOException | IllegalArgumentException e) {
+      // The process exited or there is no procfs.
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the operating system's id of the process, or -1 if it is not known. Prior to Java 9 the
+   * id is only available from a private field of the UNIX process implementation.
+   */
+  private static int getProcessId(Process process) {
+    try {
+      return ((Number) Process.class.getMethod("pid").invoke(process)).intValue();
+    } catch (ReflectiveOperationException e) {
+      // Not Java 9 yet.
+    }
+    try {
+      Field pidField = process.getClass().getDeclaredField("pid");
+      pidField.setAccessible(true);
+      return pidField.getInt(process);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return -1;
+    }
+  }
+
   boolean isAlive() {
     // This is horrible, but Process.isAlive() is only available from Java 8 on and this is the
     // best we can do prior to that.
@@ -21,6 +21,10 @@ import org.apache.commons.pool2.BaseKeyedPooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * Factory used by the pool to create / destroy / validate worker processes.
  */
@@ -28,6 +32,8 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
   private Path logDir;
   private Reporter reporter;
   private boolean verbose;
+  // All worker processes that were created and not destroyed yet, pooled or multiplexed.
+  private final Map<Worker, WorkerKey> liveWorkers = new ConcurrentHashMap<>();
 
   public void setLogDirectory(Path logDir) {
     this.logDir = logDir;
@@ -43,7 +49,9 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
 
   @Override
   public Worker create(WorkerKey key) throws Exception {
-    return Worker.create(key, logDir, reporter, verbose);
+    Worker worker = Worker.create(key, logDir, reporter, verbose);
+    liveWorkers.put(worker, key);
+    return worker;
   }
 
   /**
@@ -59,16 +67,29 @@ final class WorkerFactory extends BaseKeyedPooledObjectFactory<WorkerKey, Worker
    */
   @Override
   public void destroyObject(WorkerKey key, PooledObject<Worker> p) throws Exception {
+    destroyWorker(key, p.getObject());
+  }
+
+  void destroyWorker(WorkerKey key, Worker worker) {
     if (verbose) {
       reporter.handle(
           Event.info(
               "Destroying "
                   + key.getMnemonic()
                   + " worker (id "
-                  + p.getObject().getWorkerId()
+                  + worker.getWorkerId()
                   + ")."));
     }
-    p.getObject().destroy();
+    liveWorkers.remove(worker);
+    worker.destroy();
+  }
+
+  /**
+   * Returns all worker processes that were created and not destroyed yet, pooled or multiplexed,
+   * with their keys.
+   */
+  Map<Worker, WorkerKey> getLiveWorkers() {
+    return Collections.unmodifiableMap(liveWorkers);
   }
 
   /**
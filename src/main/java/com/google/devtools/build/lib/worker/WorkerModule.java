@@ -98,9 +98,9 @@ public class WorkerModule extends BlazeModule {
     this.buildRequest = event.getRequest();
 
     WorkerOptions options = buildRequest.getOptions(WorkerOptions.class);
-    workers.setMaxTotalPerKey(options.workerMaxInstances);
-    workers.setMaxIdlePerKey(options.workerMaxInstances);
+    workers.setMaxInstances(options.workerMaxInstances);
     workers.setMinIdlePerKey(options.workerMaxInstances);
+    workers.setMemoryLimitMb(options.workerMemoryLimitMb);
     workers.setVerbose(options.workerVerbose);
     this.verbose = options.workerVerbose;
   }
@@ -0,0 +1,188 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Sends the requests of many concurrent actions to a single worker process and dispatches its
+ * responses back to them.
+ *
+ * <p>Every request is tagged with a request id that the worker copies into its response, so the
+ * worker may process the requests concurrently and respond in any order. Requests are written to
+ * the worker's stdin as soon as they are made, up to a maximum number of requests in flight; a
+ * single reader thread reads the responses from its stdout.
+ *
+ * <p>A request occupies its slot until the worker responds to it, even if the action that made it
+ * is interrupted in the meantime, since the worker is still processing it. If the worker exits or
+ * writes something that is not a response, all requests in flight fail, their slots are released
+ * and the multiplexer cannot be used anymore.
+ */
+@ThreadSafe
+final class WorkerMultiplexer {
+  @Nullable private final Worker worker;
+  private final OutputStream requestStream;
+  private final Semaphore requestSlots;
+  // Requests that hold a slot, by request id. Whoever removes a request from here releases its
+  // slot.
+  private final ConcurrentMap<Integer, SettableFuture<WorkResponse>> pendingResponses =
+      new ConcurrentHashMap<>();
+  private final AtomicInteger requestIdCounter = new AtomicInteger();
+  private final Thread responseReader;
+  private volatile IOException failure;
+
+  @VisibleForTesting
+  WorkerMultiplexer(@Nullable Worker worker, final InputStream responseStream,
+      OutputStream requestStream, int maxRequests, String name) {
+    Preconditions.checkArgument(maxRequests > 0);
+    this.worker = worker;
+    this.requestStream = requestStream;
+    this.requestSlots = new Semaphore(maxRequests);
+    this.responseReader = new Thread("worker-multiplexer-" + name) {
+      @Override
+      public void run() {
+        readResponses(responseStream);
+      }
+    };
+    responseReader.setDaemon(true);
+    responseReader.start();
+  }
+
+  static WorkerMultiplexer create(Worker worker, int maxRequests, String name) {
+    return new WorkerMultiplexer(
+        worker, worker.getInputStream(), worker.getOutputStream(), maxRequests, name);
+  }
+
+  /**
+   * Sends the request to the worker and waits for its response. Blocks while the maximum number
+   * of requests is in flight.
+   */
+  WorkResponse execute(WorkRequest request) throws IOException, InterruptedException {
+    requestSlots.acquire();
+    int requestId = nextRequestId();
+    SettableFuture<WorkResponse> response = SettableFuture.create();
+    pendingResponses.put(requestId, response);
+    try {
+      // The reader fails all pending responses after setting the failure, so either it sees this
+      // response or this sees the failure.
+      checkNotFailed();
+      synchronized (requestStream) {
+        request.toBuilder().setRequestId(requestId).build().writeDelimitedTo(requestStream);
+        requestStream.flush();
+      }
+    } catch (IOException e) {
+      // The worker never got the request.
+      removePendingResponse(requestId);
+      throw e;
+    }
+    // If this is interrupted, the request keeps its slot until the worker responds to it.
+    try {
+      return response.get();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Removes the pending response for the request and releases the request's slot, unless that was
+   * done already. Returns the pending response, or null if it was removed already.
+   */
+  @Nullable
+  private SettableFuture<WorkResponse> removePendingResponse(int requestId) {
+    SettableFuture<WorkResponse> pendingResponse = pendingResponses.remove(requestId);
+    if (pendingResponse != null) {
+      requestSlots.release();
+    }
+    return pendingResponse;
+  }
+
+  private int nextRequestId() {
+    int requestId;
+    do {
+      requestId = requestIdCounter.incrementAndGet();
+      // Requests without an id are not multiplexed, so 0 is never used.
+    } while (requestId == 0);
+    return requestId;
+  }
+
+  private void checkNotFailed() throws IOException {
+    IOException failure = this.failure;
+    if (failure != null) {
+      throw new IOException(failure.getMessage(), failure);
+    }
+  }
+
+  private void readResponses(InputStream responseStream) {
+    IOException failure;
+    try {
+      while (true) {
+        WorkResponse response = WorkResponse.parseDelimitedFrom(responseStream);
+        if (response == null) {
+          failure = new IOException("Worker process exited.");
+          break;
+        }
+        SettableFuture<WorkResponse> pendingResponse =
+            removePendingResponse(response.getRequestId());
+        // Nobody waits for the responses to requests that were interrupted in the meantime.
+        if (pendingResponse != null) {
+          pendingResponse.set(response);
+        }
+      }
+    } catch (IOException e) {
+      failure = new IOException("Worker process did not return a correct WorkResponse. This is "
+          + "probably caused by a bug in the worker, writing unexpected other data to stdout.", e);
+    }
+    this.failure = failure;
+    for (Integer requestId : pendingResponses.keySet()) {
+      SettableFuture<WorkResponse> pendingResponse = removePendingResponse(requestId);
+      if (pendingResponse != null) {
+        pendingResponse.setException(failure);
+      }
+    }
+  }
+
+  /** Returns true if requests can still be sent to the worker. */
+  boolean isAlive() {
+    return failure == null && (worker == null || worker.isAlive());
+  }
+
+  /** Returns the worker process, or null if this multiplexer is not backed by one. */
+  @Nullable
+  Worker getWorker() {
+    return worker;
+  }
+
+  /** Destroys the worker process, which fails all requests in flight. */
+  void destroy() {
+    if (worker != null) {
+      worker.destroy();
+    }
+  }
+}
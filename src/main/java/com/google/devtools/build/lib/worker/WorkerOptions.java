@@ -80,4 +80,36 @@ public class WorkerOptions extends OptionsBase {
     help = "If enabled, prints verbose messages when workers are started, shutdown, ..."
   )
   public boolean workerVerbose;
+
+  @Option(
+    name = "experimental_worker_multiplex",
+    defaultValue = "false",
+    category = "strategy",
+    help =
+        "If enabled, a single worker process per kind of worker handles all concurrent requests "
+            + "of that kind. The worker must copy the request_id of each WorkRequest into its "
+            + "WorkResponse."
+  )
+  public boolean workerMultiplex;
+
+  @Option(
+    name = "worker_max_multiplex_requests",
+    defaultValue = "8",
+    category = "strategy",
+    help =
+        "How many requests may be sent to a multiplexed worker process at the same time if "
+            + "--experimental_worker_multiplex is enabled."
+  )
+  public int workerMaxMultiplexRequests;
+
+  @Option(
+    name = "worker_memory_limit_mb",
+    defaultValue = "0",
+    category = "strategy",
+    help =
+        "If set, fewer than <worker_max_instances> instances of a worker are kept if the "
+            + "resident memory of all worker processes would otherwise exceed this many "
+            + "megabytes. 0 means no limit."
+  )
+  public int workerMemoryLimitMb;
 }
@@ -19,18 +19,38 @@ import com.google.devtools.build.lib.vfs.Path;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * A worker pool that spawns multiple workers and delegates work to them.
  *
  * <p>This is useful when the worker cannot handle multiple parallel requests on its own and we need
- * to pre-fork a couple of them instead.
+ * to pre-fork a couple of them instead. Workers that can handle parallel requests are instead
+ * started once per key and shared through a {@link WorkerMultiplexer}.
+ *
+ * <p>If a memory limit is set, the number of workers per key is chosen such that the resident
+ * memory of all workers stays below it, based on how much memory the running workers use.
  */
 @ThreadSafe
 final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
+  private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
   final WorkerFactory workerFactory;
 
+  // Guarded by this.
+  private final Map<WorkerKey, WorkerMultiplexer> multiplexers = new HashMap<>();
+
+  private volatile int maxInstances = 1;
+  private volatile int memoryLimitMb;
+  private final AtomicLong lastAdjustNanos = new AtomicLong(System.nanoTime());
+
   public WorkerPool(WorkerFactory factory, GenericKeyedObjectPoolConfig config) {
     super(factory, config);
     this.workerFactory = factory;
@@ -47,4 +67,96 @@ final class WorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
   public void setVerbose(boolean verbose) {
     this.workerFactory.setVerbose(verbose);
   }
+
+  /**
+   * Sets the maximum number of workers per key. With a memory limit, fewer workers may be used.
+   */
+  public void setMaxInstances(int maxInstances) {
+    this.maxInstances = Math.max(maxInstances, 1);
+    setMaxTotalPerKey(this.maxInstances);
+    setMaxIdlePerKey(this.maxInstances);
+  }
+
+  /**
+   * Sets the limit for the resident memory of all workers in megabytes. 0 means no limit.
+   */
+  public void setMemoryLimitMb(int memoryLimitMb) {
+    this.memoryLimitMb = memoryLimitMb;
+  }
+
+  /**
+   * Returns the multiplexer for the given key, starting a new worker process if there is none yet
+   * or the previous one died or is outdated.
+   */
+  synchronized WorkerMultiplexer getMultiplexer(WorkerKey key, int maxRequests) throws Exception {
+    WorkerMultiplexer multiplexer = multiplexers.get(key);
+    if (multiplexer != null) {
+      if (multiplexer.isAlive()
+          && key.getWorkerFilesHash().equals(multiplexer.getWorker().getWorkerFilesHash())) {
+        return multiplexer;
+      }
+      workerFactory.destroyWorker(key, multiplexer.getWorker());
+    }
+    Worker worker = workerFactory.create(key);
+    multiplexer = WorkerMultiplexer.create(worker, maxRequests, key.getMnemonic());
+    multiplexers.put(key, multiplexer);
+    return multiplexer;
+  }
+
+  /**
+   * Destroys the worker process of the multiplexer, unless it was already replaced.
+   */
+  synchronized void invalidateMultiplexer(WorkerKey key, WorkerMultiplexer multiplexer) {
+    if (multiplexers.get(key) == multiplexer) {
+      multiplexers.remove(key);
+      workerFactory.destroyWorker(key, multiplexer.getWorker());
+    }
+  }
+
+  /**
+   * Adapts the maximum number of workers per key to the memory limit. Measuring the memory of the
+   * workers is not free, so this does nothing if it was done less than a second ago.
+   */
+  void adjustToMemoryLimit() {
+    int limitMb = memoryLimitMb;
+    long lastNanos = lastAdjustNanos.get();
+    long now = System.nanoTime();
+    if (limitMb <= 0 || now - lastNanos < ADJUST_INTERVAL_NANOS
+        || !lastAdjustNanos.compareAndSet(lastNanos, now)) {
+      return;
+    }
+    long totalKb = 0;
+    int measured = 0;
+    Set<WorkerKey> keys = new HashSet<>();
+    for (Map.Entry<Worker, WorkerKey> entry : workerFactory.getLiveWorkers().entrySet()) {
+      long kb = entry.getKey().getResidentMemoryKb();
+      if (kb >= 0) {
+        totalKb += kb;
+        measured++;
+        keys.add(entry.getValue());
+      }
+    }
+    if (measured == 0) {
+      return;
+    }
+    long perWorkerKb = Math.max(totalKb / measured, 1);
+    long perKey = limitMb * 1024L / (perWorkerKb * keys.size());
+    int maxPerKey = (int) Math.max(1, Math.min(perKey, maxInstances));
+    if (maxPerKey != getMaxTotalPerKey()) {
+      // Returned workers above the idle limit are destroyed, so the pool shrinks as they finish.
+      setMaxTotalPerKey(maxPerKey);
+      setMaxIdlePerKey(maxPerKey);
+    }
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    synchronized (this) {
+      for (Map.Entry<WorkerKey, WorkerMultiplexer> entry : multiplexers.entrySet()) {
+        workerFactory.destroyWorker(entry.getKey(), entry.getValue().getWorker());
+      }
+      multiplexers.clear();
+    }
+  }
 }
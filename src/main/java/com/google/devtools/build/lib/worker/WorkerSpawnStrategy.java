@@ -172,7 +172,10 @@ final class WorkerSpawnStrategy implements SpawnActionContext {
             .build();
       }
 
-      WorkResponse response = execInWorker(eventHandler, key, requestBuilder.build(), maxRetries);
+      WorkResponse response = options.workerMultiplex
+          ? execInMultiplexer(eventHandler, key, requestBuilder.build(), maxRetries)
+          : execInWorker(eventHandler, key, requestBuilder.build(), maxRetries);
+      workers.adjustToMemoryLimit();
 
       outErr.getErrorStream().write(response.getOutputBytes().toByteArray());
 
@@ -271,6 +274,35 @@ final class WorkerSpawnStrategy implements SpawnActionContext {
     return response;
   }
 
+  private WorkResponse execInMultiplexer(
+      EventHandler eventHandler, WorkerKey key, WorkRequest request, int retriesLeft)
+      throws Exception {
+    WorkerMultiplexer multiplexer = null;
+    try {
+      multiplexer = workers.getMultiplexer(key, options.workerMaxMultiplexRequests);
+      return multiplexer.execute(request);
+    } catch (InterruptedException e) {
+      // The user pressed Ctrl-C. The worker keeps serving the other requests.
+      throw e;
+    } catch (Exception e) {
+      if (multiplexer != null) {
+        workers.invalidateMultiplexer(key, multiplexer);
+      }
+
+      if (retriesLeft > 0) {
+        eventHandler.handle(
+            Event.warn(
+                key.getMnemonic()
+                    + " worker failed ("
+                    + e
+                    + "), invalidating and retrying with new worker..."));
+        return execInMultiplexer(eventHandler, key, request, retriesLeft - 1);
+      } else {
+        throw e;
+      }
+    }
+  }
+
   @Override
   public String strategyLocality(String mnemonic, boolean remotable) {
     return "worker";
@@ -15,6 +15,7 @@ package com.google.devtools.build.skyframe;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
@@ -304,6 +305,12 @@ public abstract class AbstractSkyFunctionEnvironment implements SkyFunction.Envi
     return valuesMissing;
   }
 
+  /** Returns a new state at every call; implementations may keep it between restarts instead. */
+  @Override
+  public <T extends SkyFunction.SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+    return stateSupplier.get();
+  }
+
   private static final Function<ValueOrException<BottomException>, SkyValue> GET_VALUE_FROM_VOE =
       new Function<ValueOrException<BottomException>, SkyValue>() {
         @Override
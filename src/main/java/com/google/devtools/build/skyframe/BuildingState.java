@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.skyframe;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.MoreObjects.ToStringHelper;
 import com.google.common.collect.ImmutableList;
@@ -23,12 +24,15 @@ import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.skyframe.NodeEntry.DirtyState;
 
+import java.lang.ref.SoftReference;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 /**
  * Data the NodeEntry uses to maintain its state before it is done building. It allows the
  * {@link NodeEntry} to keep the current state of the entry across invalidation and successive
@@ -293,7 +297,7 @@ public class BuildingState {
           && !dirtyDirectDepIterator.hasNext()) {
         // No other dep already marked this as NEEDS_REBUILDING, no deps outstanding, and this was
         // the last block of deps to be checked.
-        dirtyState = DirtyState.VERIFIED_CLEAN;
+        dirtyState = depsVerifiedClean();
       }
     }
     return isReady();
@@ -330,6 +334,38 @@ public class BuildingState {
     throw new UnsupportedOperationException(this.toString());
   }
 
+  /**
+   * Called when all deps of this dirty node have been checked and none of them changed. Returns
+   * the next {@link DirtyState} of the node.
+   */
+  protected DirtyState depsVerifiedClean() {
+    return DirtyState.VERIFIED_CLEAN;
+  }
+
+  /**
+   * Returns a state equivalent to this one, but without the value of the last build, or null if
+   * this is not a dirty state with a value whose evaluation has not started yet. See
+   * {@link InMemoryNodeEntry#evictLastBuildValue}.
+   */
+  @Nullable
+  BuildingState evictLastBuildValue() {
+    if (dirtyState != DirtyState.CHECK_DEPENDENCIES
+        || evaluating
+        || signaledDeps > 0
+        || !directDeps.isEmpty()
+        || !REVERSE_DEPS_UTIL.getReverseDeps(this).isEmpty()
+        || getLastBuildValue() == null) {
+      return null;
+    }
+    return new EvictedBuildingState(lastBuildDirectDeps, getLastBuildValue());
+  }
+
+  /** Drops an evicted value as if it had been garbage collected. */
+  @VisibleForTesting
+  void clearEvictedValueForTesting() {
+    throw new UnsupportedOperationException(this.toString());
+  }
+
   /**
    * Gets the current state of checking this dirty entry to see if it must be re-evaluated. Must be
    * called each time evaluation of a dirty entry starts to find the proper action to perform next,
@@ -471,4 +507,52 @@ public class BuildingState {
       return getStringHelper().add("lastBuildValue", lastBuildValue).toString();
     }
   }
+
+  /**
+   * State of a dirty node whose last value was evicted to save memory. The value is only softly
+   * reachable, so the garbage collector frees it when memory runs low, and is held strongly again
+   * once the node needs it. As long as it is not collected, the node is handled like any dirty node:
+   * the value is reused if none of the deps changed, and a rebuilt value equal to it is considered
+   * unchanged. Once it is collected, the node is rebuilt even if none of its deps changed, and the
+   * new value is always considered changed, since there is nothing to compare it with.
+   */
+  private static class EvictedBuildingState extends BuildingState {
+    private final SoftReference<SkyValue> lastBuildValue;
+    // The last value, once it was found to be still in memory when the node needed it.
+    @Nullable private SkyValue retainedValue = null;
+
+    private EvictedBuildingState(GroupedList<SkyKey> lastBuildDirectDeps,
+        SkyValue lastBuildValue) {
+      super(/*isChanged=*/false, lastBuildDirectDeps);
+      this.lastBuildValue = new SoftReference<>(lastBuildValue);
+    }
+
+    @Override
+    protected SkyValue getLastBuildValue() {
+      return retainedValue != null ? retainedValue : lastBuildValue.get();
+    }
+
+    /** Holds on to the last value if it was not collected yet, and returns whether it was not. */
+    private boolean retainLastBuildValue() {
+      if (retainedValue == null) {
+        retainedValue = lastBuildValue.get();
+      }
+      return retainedValue != null;
+    }
+
+    @Override
+    protected DirtyState depsVerifiedClean() {
+      return retainLastBuildValue() ? DirtyState.VERIFIED_CLEAN : DirtyState.NEEDS_REBUILDING;
+    }
+
+    @Override
+    boolean unchangedFromLastBuild(SkyValue newValue) {
+      return retainLastBuildValue() && super.unchangedFromLastBuild(newValue);
+    }
+
+    @Override
+    void clearEvictedValueForTesting() {
+      lastBuildValue.clear();
+    }
+  }
 }
@@ -0,0 +1,133 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.util.GroupedList;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Node entry of a {@link CompactInMemoryGraph}. The direct deps of a done node are stored as an
+ * {@code int[]} of node ids. A group of more than one dep is preceded by its negated size; all
+ * other ids are single-element groups. A single dep is stored as the key of the graph instead,
+ * since a reference is smaller than an array of one id. Either way, the deps refer to the keys of
+ * the graph, not to the copies that the node requested them with.
+ */
+final class CompactNodeEntry extends InMemoryNodeEntry {
+
+  private static final int[] NO_DEPS = new int[0];
+
+  // Sizes of the objects of a node with compressed references, as measured by a heap histogram.
+  private static final int ENTRY_BYTES = 56;
+  private static final int MAP_NODE_BYTES = 32;
+  private static final int KEY_TABLE_SLOT_BYTES = 4;
+  private static final int LIST_BYTES = 24;
+  private static final int ARRAY_HEADER_BYTES = 16;
+
+  private final CompactInMemoryGraph graph;
+  final int id;
+
+  CompactNodeEntry(CompactInMemoryGraph graph, int id) {
+    this.graph = graph;
+    this.id = id;
+  }
+
+  @Override
+  protected Object compressDirectDeps(GroupedList<SkyKey> directDeps) {
+    if (directDeps.isEmpty()) {
+      return NO_DEPS;
+    }
+    if (directDeps.size() == 1) {
+      SkyKey dep = Iterables.getOnlyElement(Iterables.getOnlyElement(directDeps));
+      return graph.getKey(graph.getId(dep));
+    }
+    int length = directDeps.size();
+    for (Collection<SkyKey> group : directDeps) {
+      if (group.size() > 1) {
+        length++;
+      }
+    }
+    int[] ids = new int[length];
+    int index = 0;
+    for (Collection<SkyKey> group : directDeps) {
+      if (group.size() > 1) {
+        ids[index++] = -group.size();
+      }
+      for (SkyKey key : group) {
+        ids[index++] = graph.getId(key);
+      }
+    }
+    return ids;
+  }
+
+  @Override
+  protected GroupedList<SkyKey> decompressDirectDeps(Object compressedDirectDeps) {
+    GroupedList<SkyKey> directDeps = new GroupedList<>();
+    if (compressedDirectDeps instanceof SkyKey) {
+      directDeps.appendGroup(ImmutableList.of((SkyKey) compressedDirectDeps));
+      return directDeps;
+    }
+    int[] ids = (int[]) compressedDirectDeps;
+    int index = 0;
+    while (index < ids.length) {
+      if (ids[index] >= 0) {
+        directDeps.appendGroup(ImmutableList.of(graph.getKey(ids[index++])));
+      } else {
+        SkyKey[] group = new SkyKey[-ids[index++]];
+        for (int i = 0; i < group.length; i++) {
+          group[i] = graph.getKey(ids[index++]);
+        }
+        directDeps.appendGroup(Arrays.asList(group));
+      }
+    }
+    return directDeps;
+  }
+
+  /** Adds the estimated memory usage of this node to {@code stats}. */
+  synchronized void addMemoryStats(CompactInMemoryGraph.MemoryStats stats) {
+    stats.nodes++;
+    stats.bytes += ENTRY_BYTES + MAP_NODE_BYTES + KEY_TABLE_SLOT_BYTES;
+    if (directDeps instanceof SkyKey) {
+      stats.directDeps++;
+    } else if (directDeps != null) {
+      int[] ids = (int[]) directDeps;
+      for (int id : ids) {
+        if (id >= 0) {
+          stats.directDeps++;
+        }
+      }
+      if (ids.length > 0) {
+        stats.bytes += arrayBytes(ids.length);
+      }
+    }
+    if (reverseDepIsSingleObject) {
+      stats.reverseDeps++;
+    } else if (reverseDeps != null) {
+      int size = ((List<?>) reverseDeps).size();
+      stats.reverseDeps += size;
+      if (size > 0) {
+        stats.bytes += LIST_BYTES + arrayBytes(size);
+      }
+    }
+  }
+
+  private static long arrayBytes(int length) {
+    // Object sizes are aligned to 8 bytes.
+    return (ARRAY_HEADER_BYTES + 4L * length + 7) & ~7L;
+  }
+}
@@ -0,0 +1,269 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Predicate;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.Pair;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads and writes a serialized snapshot of the done nodes of an {@link InMemoryGraph}, so that a
+ * new server can start out with the graph of a previous one instead of an empty one.
+ *
+ * <p>Only done, error-free nodes without stored events whose key and value are
+ * {@link java.io.Serializable} are written. A node is restored only if all of its direct deps were
+ * restored as well, so the restored graph is always closed under direct deps and its reverse edges
+ * can be recomputed from the forward ones. Restored nodes carry {@link MinimalVersion}: they are
+ * older than every version the new evaluator will see, so any dep that is re-evaluated to a
+ * different value is correctly treated as changed by its restored parents.
+ *
+ * <p>A snapshot is just a cache. It says nothing about whether the restored values are still up
+ * to date, so the caller must invalidate everything that may have changed while no server was
+ * running before evaluating anything on top of it.
+ *
+ * <p>The format is a header, followed by one length-prefixed record per node holding the
+ * independently serialized key and value, followed by the direct deps of every node as groups of
+ * record indices. Records are serialized independently so that a single unserializable or
+ * incompatible value only drops that node and its reverse transitive closure.
+ */
+final class GraphSnapshot {
+
+  private static final int MAGIC = 0x534b5947;
+  private static final int FORMAT_VERSION = 1;
+  private static final int MISSING_DEP = -1;
+  private static final int INTERRUPT_CHECK_PERIOD = 1000;
+
+  private GraphSnapshot() {}
+
+  /**
+   * Writes the done nodes of {@code graph} whose keys match {@code keysToWrite} to {@code out}.
+   * {@code compatibilityKey} is stored in the header; {@link #read} refuses snapshots whose key
+   * does not match the one it is given.
+   *
+   * @return the number of nodes written
+   */
+  static int write(InMemoryGraph graph, Predicate<SkyKey> keysToWrite, String compatibilityKey,
+      OutputStream out) throws IOException, InterruptedException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(FORMAT_VERSION);
+    data.writeUTF(compatibilityKey);
+
+    Map<SkyKey, Integer> indices = new HashMap<>();
+    List<Pair<SkyKey, InMemoryNodeEntry>> written = new ArrayList<>();
+    int visited = 0;
+    for (Map.Entry<SkyKey, NodeEntry> mapEntry : graph.getAllValues().entrySet()) {
+      if (++visited % INTERRUPT_CHECK_PERIOD == 0 && Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      SkyKey key = mapEntry.getKey();
+      if (!(mapEntry.getValue() instanceof InMemoryNodeEntry) || !keysToWrite.apply(key)) {
+        continue;
+      }
+      InMemoryNodeEntry entry = (InMemoryNodeEntry) mapEntry.getValue();
+      byte[] record = serializeIfPossible(key, entry);
+      if (record != null) {
+        data.writeInt(record.length);
+        data.write(record);
+        indices.put(key, written.size());
+        written.add(Pair.of(key, entry));
+      }
+    }
+    data.writeInt(0);
+
+    for (Pair<SkyKey, InMemoryNodeEntry> pair : written) {
+      GroupedList<SkyKey> directDeps = pair.second.getGroupedDirectDeps();
+      data.writeInt(directDeps.size());
+      for (Collection<SkyKey> group : directDeps) {
+        data.writeInt(group.size());
+        for (SkyKey dep : group) {
+          Integer index = indices.get(dep);
+          data.writeInt(index == null ? MISSING_DEP : index);
+        }
+      }
+    }
+    data.flush();
+    return written.size();
+  }
+
+  /**
+   * Adds the nodes of the snapshot in {@code in} to {@code graph}, which must not contain any of
+   * them yet.
+   *
+   * @return the number of nodes restored, or 0 if the snapshot was written with a different
+   *     compatibility key
+   */
+  static int read(InMemoryGraph graph, String compatibilityKey, InputStream in)
+      throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("Not a Skyframe graph snapshot");
+    }
+    if (data.readInt() != FORMAT_VERSION || !data.readUTF().equals(compatibilityKey)) {
+      return 0;
+    }
+
+    // Nodes whose record could not be deserialized are kept as null placeholders, so that record
+    // indices stay valid.
+    List<Pair<SkyKey, SkyValue>> nodes = new ArrayList<>();
+    for (int length = data.readInt(); length > 0; length = data.readInt()) {
+      byte[] record = new byte[length];
+      data.readFully(record);
+      nodes.add(deserializeIfPossible(record));
+    }
+
+    int[][][] directDeps = new int[nodes.size()][][];
+    for (int i = 0; i < nodes.size(); i++) {
+      int[][] groups = new int[data.readInt()][];
+      for (int j = 0; j < groups.length; j++) {
+        groups[j] = new int[data.readInt()];
+        for (int k = 0; k < groups[j].length; k++) {
+          groups[j][k] = data.readInt();
+        }
+      }
+      directDeps[i] = groups;
+    }
+
+    boolean[] unusable = findUnusableNodes(nodes, directDeps);
+    // All entries are created before any of them is filled in, since graphs may need the entries
+    // of the direct deps to store them.
+    InMemoryNodeEntry[] entries = new InMemoryNodeEntry[nodes.size()];
+    for (int i = 0; i < nodes.size(); i++) {
+      if (!unusable[i]) {
+        entries[i] = graph.createEntryForSnapshot(nodes.get(i).first);
+      }
+    }
+    int restored = 0;
+    for (int i = 0; i < nodes.size(); i++) {
+      if (unusable[i]) {
+        continue;
+      }
+      GroupedList<SkyKey> deps = new GroupedList<>();
+      for (int[] group : directDeps[i]) {
+        List<SkyKey> keys = new ArrayList<>(group.length);
+        for (int index : group) {
+          keys.add(nodes.get(index).first);
+        }
+        deps.appendGroup(keys);
+      }
+      entries[i].restoreFromSnapshot(nodes.get(i).second, deps);
+      restored++;
+    }
+    // Reverse edges can only be added once all the nodes they connect are in the graph.
+    for (int i = 0; i < nodes.size(); i++) {
+      if (unusable[i]) {
+        continue;
+      }
+      SkyKey key = nodes.get(i).first;
+      for (int[] group : directDeps[i]) {
+        for (int index : group) {
+          graph.get(nodes.get(index).first).addReverseDepAndCheckIfDone(key);
+        }
+      }
+    }
+    return restored;
+  }
+
+  /**
+   * Returns which nodes must not be restored: those that could not be deserialized or that have a
+   * dep that was not written, and, transitively, all nodes depending on those.
+   */
+  private static boolean[] findUnusableNodes(
+      List<Pair<SkyKey, SkyValue>> nodes, int[][][] directDeps) {
+    List<List<Integer>> reverseDeps = new ArrayList<>(nodes.size());
+    for (int i = 0; i < nodes.size(); i++) {
+      reverseDeps.add(new ArrayList<Integer>(0));
+    }
+    boolean[] unusable = new boolean[nodes.size()];
+    Deque<Integer> toVisit = new ArrayDeque<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      if (nodes.get(i) == null) {
+        unusable[i] = true;
+      }
+      for (int[] group : directDeps[i]) {
+        for (int index : group) {
+          if (index == MISSING_DEP) {
+            unusable[i] = true;
+          } else {
+            reverseDeps.get(index).add(i);
+          }
+        }
+      }
+      if (unusable[i]) {
+        toVisit.add(i);
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      for (int parent : reverseDeps.get(toVisit.poll())) {
+        if (!unusable[parent]) {
+          unusable[parent] = true;
+          toVisit.add(parent);
+        }
+      }
+    }
+    return unusable;
+  }
+
+  @Nullable
+  private static byte[] serializeIfPossible(SkyKey key, InMemoryNodeEntry entry) {
+    if (!entry.isDone() || entry.getErrorInfo() != null) {
+      return null;
+    }
+    SkyValue value = entry.getValueMaybeWithMetadata();
+    if (value instanceof ValueWithMetadata) {
+      // Stored events would have to be replayed by the new server.
+      return null;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(key);
+      out.writeObject(value);
+    } catch (IOException | RuntimeException e) {
+      // Unserializable keys and values are simply not part of the snapshot. Their custom
+      // serialization code may also fail with unchecked exceptions.
+      return null;
+    }
+    return bytes.toByteArray();
+  }
+
+  @Nullable
+  private static Pair<SkyKey, SkyValue> deserializeIfPossible(byte[] record) throws IOException {
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record))) {
+      return Pair.of((SkyKey) in.readObject(), (SkyValue) in.readObject());
+    } catch (ObjectStreamException | ClassNotFoundException | ClassCastException e) {
+      // The class of the key or value has changed or disappeared since the snapshot was written.
+      return null;
+    }
+  }
+}
@@ -20,6 +20,7 @@ import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Maps;
+import com.google.devtools.build.lib.util.Preconditions;
 
 import java.util.Collections;
 import java.util.Map;
@@ -75,6 +76,17 @@ public class InMemoryGraph implements ProcessableGraph {
     return oldval == null ? newval : oldval;
   }
 
+  /**
+   * Adds a new {@link InMemoryNodeEntry} for {@code key}, which must not be present yet, to be
+   * filled in by {@link GraphSnapshot}.
+   */
+  InMemoryNodeEntry createEntryForSnapshot(SkyKey key) {
+    Preconditions.checkState(keepEdges, key);
+    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    Preconditions.checkState(nodeMap.putIfAbsent(key, entry) == null, key);
+    return entry;
+  }
+
   @Override
   public Map<SkyKey, NodeEntry> createIfAbsentBatch(Iterable<SkyKey> keys) {
     ImmutableMap.Builder<SkyKey, NodeEntry> builder = ImmutableMap.builder();
@@ -26,10 +26,14 @@ import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.skyframe.Differencer.Diff;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DeletingInvalidationState;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingInvalidationState;
+import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.EvictingInvalidationState;
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.InvalidationState;
 import com.google.devtools.build.skyframe.ParallelEvaluator.EventFilter;
 import com.google.devtools.build.skyframe.ParallelEvaluator.Receiver;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Collection;
 import java.util.HashMap;
@@ -38,6 +42,7 @@ import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.Nullable;
@@ -58,10 +63,13 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
   // Not final only for testing.
   private InMemoryGraph graph;
   private IntVersion lastGraphVersion = null;
+  // The graph version that the last snapshot was written at, if any.
+  @Nullable private IntVersion lastSnapshotVersion = null;
 
   // State related to invalidation and deletion.
   private Set<SkyKey> valuesToDelete = new LinkedHashSet<>();
   private Set<SkyKey> valuesToDirty = new LinkedHashSet<>();
+  private Set<SkyKey> valuesToEvict = new LinkedHashSet<>();
   private Map<SkyKey, SkyValue> valuesToInject = new HashMap<>();
   private final DirtyKeyTracker dirtyKeyTracker = new DirtyKeyTrackerImpl();
   private final InvalidationState deleterState = new DeletingInvalidationState();
@@ -75,10 +83,14 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
   // re-evaluated even if none of their children are changed.
   private final InvalidationState invalidatorState = new DirtyingInvalidationState();
 
+  private final InvalidationState evictorState = new EvictingInvalidationState();
+
   private final EmittedEventState emittedEventState;
 
   private final AtomicBoolean evaluating = new AtomicBoolean(false);
 
+  private volatile boolean blockOnMissingDeps = false;
+
   public InMemoryMemoizingEvaluator(
       Map<SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer) {
     this(skyFunctions, differencer, null);
@@ -97,10 +109,26 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       @Nullable EvaluationProgressReceiver invalidationReceiver,
       EmittedEventState emittedEventState,
       boolean keepEdges) {
+    this(skyFunctions, differencer, invalidationReceiver, emittedEventState, keepEdges,
+        /*compactGraph=*/false);
+  }
+
+  /**
+   * @param compactGraph whether to store the graph in a {@link CompactInMemoryGraph}. Only used if
+   *     {@code keepEdges} is true.
+   */
+  public InMemoryMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      Differencer differencer,
+      @Nullable EvaluationProgressReceiver invalidationReceiver,
+      EmittedEventState emittedEventState,
+      boolean keepEdges,
+      boolean compactGraph) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = invalidationReceiver;
-    this.graph = new InMemoryGraph(keepEdges);
+    this.graph =
+        keepEdges && compactGraph ? new CompactInMemoryGraph() : new InMemoryGraph(keepEdges);
     this.emittedEventState = emittedEventState;
     this.keepEdges = keepEdges;
   }
@@ -137,6 +165,26 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
         }));
   }
 
+  @Override
+  public void evict(Predicate<SkyKey> evictPredicate) {
+    if (!keepEdges) {
+      return;
+    }
+    for (Entry<SkyKey, NodeEntry> entry : graph.getAllValues().entrySet()) {
+      NodeEntry nodeEntry = entry.getValue();
+      if (evictPredicate.apply(entry.getKey())
+          && (nodeEntry.isDirty()
+              || (nodeEntry.isDone() && !Iterables.isEmpty(nodeEntry.getDirectDeps())))) {
+        valuesToEvict.add(entry.getKey());
+      }
+    }
+  }
+
+  @Override
+  public void setBlockOnMissingDeps(boolean blockOnMissingDeps) {
+    this.blockOnMissingDeps = blockOnMissingDeps;
+  }
+
   @Override
   public <T extends SkyValue> EvaluationResult<T> evaluate(Iterable<SkyKey> roots, Version version,
           boolean keepGoing, int numThreads, EventHandler eventHandler)
@@ -185,7 +233,8 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
               numThreads,
               progressReceiver,
               dirtyKeyTracker,
-              lazyDeletingReceiver);
+              lazyDeletingReceiver,
+              blockOnMissingDeps);
       EvaluationResult<T> result = evaluator.eval(roots);
       return EvaluationResult.<T>builder()
           .mergeFrom(result)
@@ -240,10 +289,28 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     // Instead, just start afresh with a new LinkedHashSet.
     valuesToDelete = new LinkedHashSet<>();
 
+    // Invalidation visits the graph in waves of reverse deps, which suits a work-stealing pool.
+    // The pool is shut down when the invalidation is done.
     EagerInvalidator.invalidate(graph, valuesToDirty, progressReceiver, invalidatorState,
-        dirtyKeyTracker);
+        dirtyKeyTracker, newInvalidationPool(), /*supportInterruptions=*/true);
     // Ditto.
     valuesToDirty = new LinkedHashSet<>();
+
+    // Evicted nodes are marked dirty like invalidated ones, so that their dependents are dirty too
+    // and check them before they are used again. Only then are their values dropped.
+    EagerInvalidator.invalidate(graph, valuesToEvict, progressReceiver, evictorState,
+        dirtyKeyTracker, newInvalidationPool(), /*supportInterruptions=*/true);
+    for (SkyKey key : valuesToEvict) {
+      NodeEntry entry = graph.get(key);
+      if (entry instanceof InMemoryNodeEntry) {
+        ((InMemoryNodeEntry) entry).evictLastBuildValue();
+      }
+    }
+    valuesToEvict = new LinkedHashSet<>();
+  }
+
+  private static ForkJoinPool newInvalidationPool() {
+    return new ForkJoinPool(Runtime.getRuntime().availableProcessors());
   }
 
   private void setAndCheckEvaluateState(boolean newValue, Object requestInfo) {
@@ -272,6 +339,55 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     return (entry == null || !entry.isDone()) ? null : entry.getErrorInfo();
   }
 
+  /**
+   * Writes a snapshot of the done nodes whose keys match {@code keysToWrite} to {@code out}, for
+   * later use by {@link #restoreSnapshot}. Nodes that are pending deletion or invalidation are
+   * left out. Must not be called in parallel with {@link #evaluate}.
+   *
+   * @return the number of nodes written
+   */
+  public int writeSnapshot(final Predicate<SkyKey> keysToWrite, String compatibilityKey,
+      OutputStream out) throws IOException, InterruptedException {
+    if (!keepEdges) {
+      return 0;
+    }
+    int written = GraphSnapshot.write(graph, new Predicate<SkyKey>() {
+      @Override
+      public boolean apply(SkyKey key) {
+        return keysToWrite.apply(key) && !valuesToDelete.contains(key)
+            && !valuesToDirty.contains(key);
+      }
+    }, compatibilityKey, out);
+    lastSnapshotVersion = lastGraphVersion;
+    return written;
+  }
+
+  /**
+   * Returns whether the graph was evaluated since the last call to {@link #writeSnapshot}, so that
+   * a new snapshot may differ from the last one. A graph that was only restored from a snapshot
+   * has not been evaluated.
+   */
+  public boolean hasEvaluatedSinceLastSnapshot() {
+    return lastGraphVersion != null && !lastGraphVersion.equals(lastSnapshotVersion);
+  }
+
+  /**
+   * Populates the still empty graph with the nodes of a snapshot written by {@link #writeSnapshot}
+   * with the same {@code compatibilityKey}. Does nothing if this evaluator has already evaluated
+   * anything.
+   *
+   * <p>The caller is responsible for invalidating all restored nodes that may have changed since
+   * the snapshot was written before the next evaluation.
+   *
+   * @return the number of nodes restored
+   */
+  public int restoreSnapshot(String compatibilityKey, InputStream in) throws IOException {
+    if (!keepEdges || lastGraphVersion != null || !graph.getAllValues().isEmpty()) {
+      return 0;
+    }
+    return GraphSnapshot.read(graph, compatibilityKey, in);
+  }
+
   public void setGraphForTesting(InMemoryGraph graph) {
     this.graph = graph;
   }
@@ -289,6 +405,13 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       }
       out.println("Node count: " + nodes);
       out.println("Edge count: " + edges);
+      if (graph instanceof CompactInMemoryGraph) {
+        out.println("Estimated memory by function:");
+        for (Entry<SkyFunctionName, CompactInMemoryGraph.MemoryStats> stats :
+            ((CompactInMemoryGraph) graph).getMemoryStats().entrySet()) {
+          out.println("  " + stats.getKey() + ": " + stats.getValue());
+        }
+      }
     } else {
       Function<SkyKey, String> keyFormatter =
           new Function<SkyKey, String>() {
@@ -352,4 +475,22 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
               skyFunctions, differencer, invalidationReceiver, emittedEventState, keepEdges);
         }
       };
+
+  /**
+   * Supplier of evaluators that store the graph in a {@link CompactInMemoryGraph}. The server uses
+   * it if it was started with {@code --experimental_compact_skyframe_graph}.
+   */
+  public static final EvaluatorSupplier COMPACT_SUPPLIER =
+      new EvaluatorSupplier() {
+        @Override
+        public MemoizingEvaluator create(
+            Map<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+            Differencer differencer,
+            @Nullable EvaluationProgressReceiver invalidationReceiver,
+            EmittedEventState emittedEventState,
+            boolean keepEdges) {
+          return new InMemoryMemoizingEvaluator(skyFunctions, differencer, invalidationReceiver,
+              emittedEventState, keepEdges, /*compactGraph=*/true);
+        }
+      };
 }
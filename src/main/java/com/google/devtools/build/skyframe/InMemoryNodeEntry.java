@@ -74,8 +74,10 @@ public class InMemoryNodeEntry implements NodeEntry {
   /**
    * This object represents a {@link GroupedList}<SkyKey> in a memory-efficient way. It stores the
    * direct dependencies of this node, in groups if the {@code SkyFunction} requested them that way.
+   *
+   * @see #compressDirectDeps
    */
-  private Object directDeps = null;
+  protected Object directDeps = null;
 
   /**
    * This list stores the reverse dependencies of this node that have been declared so far.
@@ -176,9 +178,9 @@ public class InMemoryNodeEntry implements NodeEntry {
     if (isDone()) {
       return getErrorInfo() == null ? getValue() : null;
     } else if (isChanged() || isDirty()) {
-      return (buildingState.getLastBuildValue() == null)
-              ? null
-          : ValueWithMetadata.justValue(buildingState.getLastBuildValue());
+      // Read the value once, since an evicted value may be collected at any time.
+      SkyValue lastBuildValue = buildingState.getLastBuildValue();
+      return (lastBuildValue == null) ? null : ValueWithMetadata.justValue(lastBuildValue);
     } else {
       // Value has not finished evaluating. It's probably about to be cleaned from the graph.
       return null;
@@ -189,7 +191,7 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized Iterable<SkyKey> getDirectDeps() {
     assertKeepEdges();
     Preconditions.checkState(isDone(), "no deps until done. ValueEntry: %s", this);
-    return GroupedList.<SkyKey>create(directDeps).toSet();
+    return decompressDirectDeps(directDeps).toSet();
   }
 
   /**
@@ -199,7 +201,21 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized GroupedList<SkyKey> getGroupedDirectDeps() {
     assertKeepEdges();
     Preconditions.checkState(isDone(), "no deps until done. ValueEntry: %s", this);
-    return GroupedList.create(directDeps);
+    return decompressDirectDeps(directDeps);
+  }
+
+  /**
+   * Returns the representation of {@code directDeps} that is stored in this entry once it is done.
+   * Graph implementations may override this together with {@link #decompressDirectDeps} to store
+   * the edges more compactly.
+   */
+  protected Object compressDirectDeps(GroupedList<SkyKey> directDeps) {
+    return directDeps.compress();
+  }
+
+  /** Inverse of {@link #compressDirectDeps}. */
+  protected GroupedList<SkyKey> decompressDirectDeps(Object compressedDirectDeps) {
+    return GroupedList.create(compressedDirectDeps);
   }
 
   @Override
@@ -223,7 +239,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     getReverseDepsUtil().addReverseDeps(this, reverseDepsToSignal);
     // Force consistency check and consolidate rdeps changes.
     getReverseDepsUtil().consolidateReverseDeps(this);
-    this.directDeps = buildingState.getFinishedDirectDeps().compress();
+    this.directDeps = compressDirectDeps(buildingState.getFinishedDirectDeps());
 
     markDone();
 
@@ -234,6 +250,18 @@ public class InMemoryNodeEntry implements NodeEntry {
     return reverseDepsToSignal;
   }
 
+  /**
+   * Puts this newly created entry directly in the done state, as if it had been evaluated to
+   * {@code value} with {@code directDeps} before the first version of the graph. Reverse deps must
+   * be added separately once all nodes are present. Only for use by {@link GraphSnapshot}.
+   */
+  synchronized void restoreFromSnapshot(SkyValue value, GroupedList<SkyKey> directDeps) {
+    Preconditions.checkState(!isDone() && this.value == null, "%s %s", this, value);
+    this.value = Preconditions.checkNotNull(value, this);
+    this.directDeps = compressDirectDeps(directDeps);
+    markDone();
+  }
+
   @Override
   public synchronized Set<SkyKey> getInProgressReverseDeps() {
     Preconditions.checkState(!isDone(), this);
@@ -358,7 +386,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     assertKeepEdges();
     if (isDone()) {
       buildingState =
-          BuildingState.newDirtyState(isChanged, GroupedList.<SkyKey>create(directDeps), value);
+          BuildingState.newDirtyState(isChanged, decompressDirectDeps(directDeps), value);
       value = null;
       return new MarkedDirtyResult(getReverseDepsUtil().getReverseDeps(this));
     }
@@ -388,6 +416,29 @@ public class InMemoryNodeEntry implements NodeEntry {
     return setStateFinishedAndReturnReverseDeps();
   }
 
+  /**
+   * Keeps the value this dirty node had before it was marked dirty only softly reachable, so that
+   * it can be garbage collected when memory runs low. If it is collected, the node is rebuilt when
+   * it is next evaluated, and its new value is considered changed. Returns false if the node is not
+   * dirty, is already being evaluated, or has no value to drop.
+   */
+  synchronized boolean evictLastBuildValue() {
+    if (isDone()) {
+      return false;
+    }
+    BuildingState evictedState = buildingState.evictLastBuildValue();
+    if (evictedState == null) {
+      return false;
+    }
+    buildingState = evictedState;
+    return true;
+  }
+
+  @VisibleForTesting
+  synchronized void clearEvictedValueForTesting() {
+    buildingState.clearEvictedValueForTesting();
+  }
+
   @Override
   public synchronized void forceRebuild() {
     buildingState.forceChanged();
@@ -468,7 +519,7 @@ public class InMemoryNodeEntry implements NodeEntry {
         .add("value", value)
         .add("lastChangedVersion", lastChangedVersion)
         .add("lastEvaluatedVersion", lastEvaluatedVersion)
-        .add("directDeps", directDeps == null ? null : GroupedList.create(directDeps))
+        .add("directDeps", directDeps == null ? null : decompressDirectDeps(directDeps))
         .add("reverseDeps", getReverseDepsUtil().toString(this))
         .add("buildingState", buildingState)
         .toString();
@@ -487,7 +538,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     nodeEntry.lastChangedVersion = this.lastChangedVersion;
     nodeEntry.lastEvaluatedVersion = this.lastEvaluatedVersion;
     getReverseDepsUtil().addReverseDeps(nodeEntry, getReverseDepsUtil().getReverseDeps(this));
-    nodeEntry.directDeps = directDeps;
+    nodeEntry.directDeps = nodeEntry.compressDirectDeps(decompressDirectDeps(directDeps));
     nodeEntry.buildingState = null;
     return nodeEntry;
   }
@@ -19,6 +19,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
 import com.google.devtools.build.lib.concurrent.ErrorClassifier;
@@ -32,6 +33,7 @@ import com.google.devtools.build.skyframe.ThinNodeEntry.MarkedDirtyResult;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -39,6 +41,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.Nullable;
 
@@ -69,6 +72,8 @@ public abstract class InvalidatingNodeVisitor<TGraph extends ThinNodeQueryableGr
   private static final int DEFAULT_THREAD_COUNT = Runtime.getRuntime().availableProcessors();
   private static final int EXPECTED_PENDING_SET_SIZE = DEFAULT_THREAD_COUNT * 8;
   private static final int EXPECTED_VISITED_SET_SIZE = 1024;
+  // Number of nodes dirtied by a single task. The reverse deps of a batch are enqueued together.
+  private static final int BATCH_SIZE = 64;
 
   private static final boolean MUST_EXIST = true;
 
@@ -231,6 +236,16 @@ public abstract class InvalidatingNodeVisitor<TGraph extends ThinNodeQueryableGr
     }
   }
 
+  /**
+   * State for nodes whose values are evicted. They are only marked dirty, like their reverse deps,
+   * since none of their deps changed.
+   */
+  static class EvictingInvalidationState extends InvalidationState {
+    public EvictingInvalidationState() {
+      super(InvalidationType.DIRTIED);
+    }
+  }
+
   /** A node-deleting implementation. */
   static class DeletingNodeVisitor extends InvalidatingNodeVisitor<DirtiableGraph> {
 
@@ -328,17 +343,20 @@ public abstract class InvalidatingNodeVisitor<TGraph extends ThinNodeQueryableGr
     }
   }
 
-  /** A node-dirtying implementation. */
+  /**
+   * A node-dirtying implementation.
+   *
+   * <p>Nodes are dirtied in batches: a task marks up to {@link #BATCH_SIZE} nodes dirty and then
+   * enqueues the reverse deps of all of them at once, so that each wave of the invalidation is
+   * split into a few large tasks instead of one task per node.
+   */
   static class DirtyingNodeVisitor extends InvalidatingNodeVisitor<ThinNodeQueryableGraph> {
 
-    private final Set<SkyKey> changed =
-        Collections.newSetFromMap(
-            new ConcurrentHashMap<SkyKey, Boolean>(
-                EXPECTED_VISITED_SET_SIZE, .75f, DEFAULT_THREAD_COUNT));
-    private final Set<SkyKey> dirtied =
-        Collections.newSetFromMap(
-            new ConcurrentHashMap<SkyKey, Boolean>(
-                EXPECTED_VISITED_SET_SIZE, .75f, DEFAULT_THREAD_COUNT));
+    // The nodes of a compact graph are deduplicated by id, the nodes of other graphs by key.
+    @Nullable private final ConcurrentIdSet changedIds;
+    @Nullable private final ConcurrentIdSet dirtiedIds;
+    @Nullable private final Set<SkyKey> changed;
+    @Nullable private final Set<SkyKey> dirtied;
     private final boolean supportInterruptions;
 
     protected DirtyingNodeVisitor(
@@ -348,6 +366,10 @@ public abstract class InvalidatingNodeVisitor<TGraph extends ThinNodeQueryableGr
         DirtyKeyTracker dirtyKeyTracker,
         Function<ExecutorParams, ? extends ExecutorService> executorFactory) {
       super(graph, invalidationReceiver, state, dirtyKeyTracker, executorFactory);
+      this.changedIds = newIdSet(graph);
+      this.dirtiedIds = newIdSet(graph);
+      this.changed = newKeySet(graph);
+      this.dirtied = newKeySet(graph);
       this.supportInterruptions = true;
     }
 
@@ -363,16 +385,37 @@ public abstract class InvalidatingNodeVisitor<TGraph extends ThinNodeQueryableGr
         ForkJoinPool forkJoinPool,
         boolean supportInterruptions) {
       super(graph, invalidationReceiver, state, dirtyKeyTracker, forkJoinPool);
+      this.changedIds = newIdSet(graph);
+      this.dirtiedIds = newIdSet(graph);
+      this.changed = newKeySet(graph);
+      this.dirtied = newKeySet(graph);
       this.supportInterruptions = supportInterruptions;
     }
 
+    @Nullable
+    private static ConcurrentIdSet newIdSet(ThinNodeQueryableGraph graph) {
+      // No nodes are created during invalidation, so the ids in use can't grow.
+      return graph instanceof CompactInMemoryGraph
+          ? new ConcurrentIdSet(((CompactInMemoryGraph) graph).getIdLimit())
+          : null;
+    }
+
+    @Nullable
+    private static Set<SkyKey> newKeySet(ThinNodeQueryableGraph graph) {
+      return graph instanceof CompactInMemoryGraph
+          ? null
+          : Collections.newSetFromMap(
+              new ConcurrentHashMap<SkyKey, Boolean>(
+                  EXPECTED_VISITED_SET_SIZE, .75f, DEFAULT_THREAD_COUNT));
+    }
+
     @Override
     protected boolean getSupportInterruptions() {
       return supportInterruptions;
     }
 
     /**
-     * Queues a task to dirty the nodes named by {@param keys}. May be called from multiple threads.
+     * Queues tasks to dirty the nodes named by {@param keys}. May be called from multiple threads.
      * It is possible that the same node is enqueued many times. However, we require that a node
      * is only actually marked dirty/changed once, with two exceptions:
      *
@@ -388,7 +431,8 @@ public abstract class InvalidatingNodeVisitor<TGraph extends ThinNodeQueryableGr
      * {@link NodeEntry} ignores the second marking.
      *
      * The invariant that we do not process a (SkyKey, InvalidationType) pair twice is enforced by
-     * the {@link #changed} and {@link #dirtied} sets.
+     * the {@link #changed} and {@link #dirtied} sets, or by {@link #changedIds} and
+     * {@link #dirtiedIds} for a compact graph.
      *
      * The "invariant" is also enforced across builds by checking to see if the entry is already
      * marked changed, or if it is already marked dirty and we are just going to mark it dirty
@@ -402,74 +446,142 @@ public abstract class InvalidatingNodeVisitor<TGraph extends ThinNodeQueryableGr
     public void visit(
         Iterable<SkyKey> keys, final InvalidationType invalidationType, final boolean mustExist) {
       Preconditions.checkState(invalidationType != InvalidationType.DELETED, keys);
-      final boolean isChanged = (invalidationType == InvalidationType.CHANGED);
-      Set<SkyKey> setToCheck = isChanged ? changed : dirtied;
-      int size = Iterables.size(keys);
-      ArrayList<SkyKey> keysToGet = new ArrayList<>(size);
-      for (SkyKey key : keys) {
-        if (setToCheck.add(key)) {
-          keysToGet.add(key);
-        }
-      }
+      boolean isChanged = (invalidationType == InvalidationType.CHANGED);
+      List<Pair<SkyKey, ThinNodeEntry>> entriesToDirty =
+          changedIds != null
+              ? getUnvisitedEntries(keys, isChanged ? changedIds : dirtiedIds)
+              : getUnvisitedEntries(keys, isChanged ? changed : dirtied);
       if (supportInterruptions) {
-        for (SkyKey key : keysToGet) {
-          pendingVisitations.add(Pair.of(key, invalidationType));
+        for (Pair<SkyKey, ThinNodeEntry> keyAndEntry : entriesToDirty) {
+          pendingVisitations.add(Pair.of(keyAndEntry.first, invalidationType));
         }
       }
-      final Map<SkyKey, ? extends ThinNodeEntry> entries = graph.getBatch(keysToGet);
-      for (final SkyKey key : keysToGet) {
+      for (final List<Pair<SkyKey, ThinNodeEntry>> batch :
+          Lists.partition(entriesToDirty, BATCH_SIZE)) {
         executor.execute(
             new Runnable() {
               @Override
               public void run() {
-                ThinNodeEntry entry = entries.get(key);
+                dirty(batch, invalidationType, mustExist);
+              }
+            });
+      }
+    }
 
-                if (entry == null) {
-                  Preconditions.checkState(
-                      !mustExist,
-                      "%s does not exist in the graph but was enqueued for dirtying by another "
-                          + "node",
-                      key);
-                  if (supportInterruptions) {
-                    pendingVisitations.remove(Pair.of(key, invalidationType));
-                  }
-                  return;
-                }
+    private List<Pair<SkyKey, ThinNodeEntry>> getUnvisitedEntries(
+        Iterable<SkyKey> keys, Set<SkyKey> visited) {
+      ArrayList<SkyKey> keysToGet = new ArrayList<>(Iterables.size(keys));
+      for (SkyKey key : keys) {
+        if (visited.add(key)) {
+          keysToGet.add(key);
+        }
+      }
+      Map<SkyKey, ? extends ThinNodeEntry> entries = graph.getBatch(keysToGet);
+      List<Pair<SkyKey, ThinNodeEntry>> result = new ArrayList<>(keysToGet.size());
+      for (SkyKey key : keysToGet) {
+        result.add(Pair.<SkyKey, ThinNodeEntry>of(key, entries.get(key)));
+      }
+      return result;
+    }
 
-                if (entry.isChanged() || (!isChanged && entry.isDirty())) {
-                  // If this node is already marked changed, or we are only marking this node
-                  // dirty, and it already is, move along.
-                  if (supportInterruptions) {
-                    pendingVisitations.remove(Pair.of(key, invalidationType));
-                  }
-                  return;
-                }
+    private List<Pair<SkyKey, ThinNodeEntry>> getUnvisitedEntries(
+        Iterable<SkyKey> keys, ConcurrentIdSet visited) {
+      List<Pair<SkyKey, ThinNodeEntry>> result = new ArrayList<>();
+      for (SkyKey key : keys) {
+        // Looking up the node is as expensive as adding the key to a set, and gives us its id.
+        // Keys that are not in the graph are passed on so that the task can check mustExist.
+        NodeEntry entry = ((CompactInMemoryGraph) graph).get(key);
+        if (entry == null || visited.add(((CompactNodeEntry) entry).id)) {
+          result.add(Pair.<SkyKey, ThinNodeEntry>of(key, entry));
+        }
+      }
+      return result;
+    }
 
-                // It is not safe to interrupt the logic from this point until the end of the
-                // method.
-                // Any exception thrown should be unrecoverable.
-                // This entry remains in the graph in this dirty state until it is re-evaluated.
-                MarkedDirtyResult markedDirtyResult = entry.markDirty(isChanged);
-                if (markedDirtyResult == null) {
-                  // Another thread has already dirtied this node. Don't do anything in this thread.
-                  if (supportInterruptions) {
-                    pendingVisitations.remove(Pair.of(key, invalidationType));
-                  }
-                  return;
-                }
-                // Propagate dirtiness upwards and mark this node dirty/changed. Reverse deps should
-                // only be marked dirty (because only a dependency of theirs has changed).
-                visit(
-                    markedDirtyResult.getReverseDepsUnsafe(), InvalidationType.DIRTIED, MUST_EXIST);
+    private void dirty(
+        List<Pair<SkyKey, ThinNodeEntry>> batch,
+        InvalidationType invalidationType,
+        boolean mustExist) {
+      boolean isChanged = (invalidationType == InvalidationType.CHANGED);
+      List<SkyKey> dirtiedKeys = new ArrayList<>(batch.size());
+      List<SkyKey> reverseDeps = new ArrayList<>();
+      for (Pair<SkyKey, ThinNodeEntry> keyAndEntry : batch) {
+        SkyKey key = keyAndEntry.first;
+        ThinNodeEntry entry = keyAndEntry.second;
+
+        if (entry == null) {
+          Preconditions.checkState(
+              !mustExist,
+              "%s does not exist in the graph but was enqueued for dirtying by another node",
+              key);
+          removePendingVisitation(key, invalidationType);
+          continue;
+        }
 
-                informInvalidationReceiver(key, EvaluationProgressReceiver.InvalidationState.DIRTY);
-                dirtyKeyTracker.dirty(key);
-                // Remove the node from the set as the last operation.
-                if (supportInterruptions) {
-                  pendingVisitations.remove(Pair.of(key, invalidationType));
-                }
-              }
-            });
+        if (entry.isChanged() || (!isChanged && entry.isDirty())) {
+          // If this node is already marked changed, or we are only marking this node
+          // dirty, and it already is, move along.
+          removePendingVisitation(key, invalidationType);
+          continue;
+        }
+
+        // It is not safe to interrupt the logic from this point until the end of the method.
+        // Any exception thrown should be unrecoverable.
+        // This entry remains in the graph in this dirty state until it is re-evaluated.
+        MarkedDirtyResult markedDirtyResult = entry.markDirty(isChanged);
+        if (markedDirtyResult == null) {
+          // Another thread has already dirtied this node. Don't do anything in this thread.
+          removePendingVisitation(key, invalidationType);
+          continue;
+        }
+        Iterables.addAll(reverseDeps, markedDirtyResult.getReverseDepsUnsafe());
+        dirtiedKeys.add(key);
+      }
+
+      // Propagate dirtiness upwards. Reverse deps should only be marked dirty (because only a
+      // dependency of theirs has changed).
+      if (!reverseDeps.isEmpty()) {
+        visit(reverseDeps, InvalidationType.DIRTIED, MUST_EXIST);
+      }
+
+      for (SkyKey key : dirtiedKeys) {
+        informInvalidationReceiver(key, EvaluationProgressReceiver.InvalidationState.DIRTY);
+        dirtyKeyTracker.dirty(key);
+        // Remove the node from the set as the last operation.
+        removePendingVisitation(key, invalidationType);
+      }
+    }
+
+    private void removePendingVisitation(SkyKey key, InvalidationType invalidationType) {
+      if (supportInterruptions) {
+        pendingVisitations.remove(Pair.of(key, invalidationType));
+      }
+    }
+  }
+
+  /**
+   * A set of node ids that can be updated concurrently. It is a bitmap with one bit per id, which
+   * is much smaller and less contended than a concurrent set of keys.
+   */
+  private static final class ConcurrentIdSet {
+    private final AtomicLongArray bits;
+
+    ConcurrentIdSet(int idLimit) {
+      bits = new AtomicLongArray((idLimit + 63) >>> 6);
+    }
+
+    /** Adds {@code id}, returning false if it was already in the set. */
+    boolean add(int id) {
+      int index = id >>> 6;
+      long mask = 1L << (id & 63);
+      while (true) {
+        long word = bits.get(index);
+        if ((word & mask) != 0) {
+          return false;
+        }
+        if (bits.compareAndSet(index, word, word | mask)) {
+          return true;
+        }
       }
     }
   }
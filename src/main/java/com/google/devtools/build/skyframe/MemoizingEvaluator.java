@@ -81,6 +81,29 @@ public interface MemoizingEvaluator {
    */
   void deleteDirty(long versionAgeLimit);
 
+  /**
+   * Marks values matching the predicate for eviction, to reduce memory usage.
+   *
+   * <p>At the start of the next {@link #evaluate} call, the values are only kept softly reachable,
+   * so that the garbage collector frees them when memory runs low, but unlike with {@link #delete},
+   * their nodes, edges and dependents are kept. The nodes are marked dirty. If a later call to
+   * {@link #evaluate} requests them and their values were not collected, they are handled like
+   * other dirty values. Otherwise they are recomputed, but unless one of their dependencies
+   * changed, the values they depend on are not. Since the old values are gone, the recomputed
+   * values are then considered changed, and the values that depend on them are recomputed too.
+   *
+   * <p>Values without dependencies are never evicted, since there would be no way to recompute
+   * them. Implementations may ignore this call, for instance if they do not keep edges.
+   */
+  void evict(Predicate<SkyKey> pred);
+
+  /**
+   * Sets whether later calls to {@link #evaluate} use the experimental blocking mode of
+   * {@link ParallelEvaluator}, in which functions wait for missing deps instead of being
+   * restarted.
+   */
+  void setBlockOnMissingDeps(boolean blockOnMissingDeps);
+
   /**
    * Returns the values in the graph.
    *
@@ -59,10 +59,14 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -94,6 +98,17 @@ import javax.annotation.Nullable;
  * the same data as before, its version (mtime) remains the same. If all of a node's children's
  * have the same version as before, its re-evaluation can be skipped.
  *
+ * <p>In the experimental blocking mode, enabled by the {@code blockOnMissingDeps} constructor
+ * argument, a node that requests deps that are not done is not restarted. Its thread registers the
+ * deps as usual and then waits until the node is ready again, so that the {@code SkyFunction}
+ * continues where it left off. Waiting threads are replaced by new ones in the {@link
+ * ForkJoinPool}, up to {@link #MAX_WAITING_EVALUATIONS_PER_THREAD} waiting threads per thread of
+ * the pool. Beyond that, or if the pool can't replace a waiting thread right away, nodes are
+ * restarted like in the default mode. If no evaluation can make progress because all of them are
+ * waiting, which happens when nodes are in a cycle, or if the evaluation is stopped, the waiting
+ * functions get null for the deps that are not done, like in the default mode, and the cycle
+ * detection and error bubbling below proceed as usual.
+ *
  * <p>This class is not intended for direct use, and is only exposed as public for use in
  * evaluation implementations outside of this package.
  */
@@ -108,6 +123,23 @@ public final class ParallelEvaluator implements Evaluator {
     boolean storeEvents();
   }
 
+  /**
+   * The maximum number of evaluations that wait for deps at the same time in blocking mode, per
+   * thread of the pool. Every waiting evaluation holds on to a thread, which would otherwise be
+   * created without bound in a deep graph until creating threads fails.
+   */
+  @VisibleForTesting
+  static final int MAX_WAITING_EVALUATIONS_PER_THREAD = 10;
+
+  /**
+   * The number of times that a waiting evaluation lets the pool try to replace its thread before
+   * it stops waiting and is restarted instead. The pool retries without pausing while it can't
+   * replace the thread, for instance while other threads look for work, so that many waiting
+   * threads would otherwise keep the CPUs busy, most of all when an error stops the evaluation.
+   * The waiting thread yields between attempts so that the threads looking for work can go idle.
+   */
+  private static final int MAX_COMPENSATION_ATTEMPTS = 256;
+
   private final ProcessableGraph graph;
   private final Version graphVersion;
 
@@ -145,6 +177,20 @@ public final class ParallelEvaluator implements Evaluator {
   private final DirtyKeyTracker dirtyKeyTracker;
   private final Receiver<Collection<SkyKey>> inflightKeysReceiver;
   private final EventFilter storedEventFilter;
+  private final boolean blockOnMissingDeps;
+  // Statistics of the current evaluation, added to the global statistics when it is done.
+  private final SkyFunctionStats stats = new SkyFunctionStats();
+
+  /**
+   * The maximum number of {@link SkyFunction.SkyKeyComputeState}s kept at the same time. Only keys
+   * that are being computed have a state, but there can be many of them in a large evaluation.
+   */
+  @VisibleForTesting
+  static final int MAX_COMPUTE_STATES = 1 << 16;
+
+  // States of the keys that were restarted, removed when a key is done.
+  private final ConcurrentMap<SkyKey, SkyFunction.SkyKeyComputeState> computeStates =
+      new ConcurrentHashMap<>();
 
   public ParallelEvaluator(
       ProcessableGraph graph,
@@ -158,6 +204,24 @@ public final class ParallelEvaluator implements Evaluator {
       @Nullable EvaluationProgressReceiver progressReceiver,
       DirtyKeyTracker dirtyKeyTracker,
       Receiver<Collection<SkyKey>> inflightKeysReceiver) {
+    this(graph, graphVersion, skyFunctions, reporter, emittedEventState, storedEventFilter,
+        keepGoing, threadCount, progressReceiver, dirtyKeyTracker, inflightKeysReceiver,
+        /*blockOnMissingDeps=*/false);
+  }
+
+  public ParallelEvaluator(
+      ProcessableGraph graph,
+      Version graphVersion,
+      ImmutableMap<SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      final EventHandler reporter,
+      EmittedEventState emittedEventState,
+      EventFilter storedEventFilter,
+      boolean keepGoing,
+      int threadCount,
+      @Nullable EvaluationProgressReceiver progressReceiver,
+      DirtyKeyTracker dirtyKeyTracker,
+      Receiver<Collection<SkyKey>> inflightKeysReceiver,
+      boolean blockOnMissingDeps) {
     this.graph = graph;
     this.skyFunctions = skyFunctions;
     this.graphVersion = graphVersion;
@@ -171,6 +235,7 @@ public final class ParallelEvaluator implements Evaluator {
         new NestedSetVisitor<>(new NestedSetEventReceiver(reporter), emittedEventState);
     this.storedEventFilter = storedEventFilter;
     this.forkJoinPool = null;
+    this.blockOnMissingDeps = blockOnMissingDeps;
   }
 
   public ParallelEvaluator(
@@ -198,6 +263,7 @@ public final class ParallelEvaluator implements Evaluator {
         new NestedSetVisitor<>(new NestedSetEventReceiver(reporter), emittedEventState);
     this.storedEventFilter = storedEventFilter;
     this.forkJoinPool = Preconditions.checkNotNull(forkJoinPool);
+    this.blockOnMissingDeps = false;
   }
 
   /**
@@ -230,7 +296,7 @@ public final class ParallelEvaluator implements Evaluator {
     private ErrorInfo errorInfo = null;
     private final Map<SkyKey, ValueWithMetadata> bubbleErrorInfo;
     /** The values previously declared as dependencies. */
-    private final Map<SkyKey, NodeEntry> directDeps;
+    private Map<SkyKey, NodeEntry> directDeps;
 
     /**
      * The grouped list of values requested during this build as dependencies. On a subsequent
@@ -238,7 +304,15 @@ public final class ParallelEvaluator implements Evaluator {
      * parallel for changes. In other words, if dep1 and dep2 are in the same group, then dep1 will
      * be checked in parallel with dep2. See {@link #getValues} for more.
      */
-    private final GroupedListHelper<SkyKey> newlyRequestedDeps = new GroupedListHelper<>();
+    private GroupedListHelper<SkyKey> newlyRequestedDeps = new GroupedListHelper<>();
+
+    // In blocking mode: whether deps that are not done were requested by the current call, whether
+    // the call is in a group of deps, whether directDeps was copied to add the deps this node
+    // waited for and the suspension it stopped waiting on before they were done, if any.
+    private boolean undoneDepsRequested = false;
+    private boolean inGroup = false;
+    private boolean directDepsCopied = false;
+    @Nullable private ValueVisitor.Suspension abortedSuspension = null;
 
     /**
      * The value visitor managing the thread pool. Used to enqueue parents when this value is
@@ -409,6 +483,18 @@ public final class ParallelEvaluator implements Evaluator {
         keys.add(SKY_KEY_INTERNER.intern(depKey));
       }
       depKeys = keys;
+      stats.get(skyKey.functionName()).recordDepGroup(depKeys.size());
+      boolean valuesMissingBefore = valuesMissing;
+      ImmutableMap<SkyKey, ValueOrUntypedException> result = lookUpDeps(depKeys);
+      if (waitForDeps()) {
+        // All deps are done now.
+        valuesMissing = valuesMissingBefore;
+        result = lookUpDeps(depKeys);
+      }
+      return result;
+    }
+
+    private ImmutableMap<SkyKey, ValueOrUntypedException> lookUpDeps(Set<SkyKey> depKeys) {
       Map<SkyKey, ValueWithMetadata> values = getValuesMaybeFromError(depKeys, bubbleErrorInfo);
       ImmutableMap.Builder<SkyKey, ValueOrUntypedException> builder = ImmutableMap.builder();
       for (SkyKey depKey : depKeys) {
@@ -424,6 +510,11 @@ public final class ParallelEvaluator implements Evaluator {
             continue;
           }
           if (directDeps.containsKey(depKey)) {
+            if (abortedSuspension != null) {
+              // This node stopped waiting for the dep, which is registered already.
+              builder.put(depKey, ValueOrExceptionUtils.ofNull());
+              continue;
+            }
             throw new IllegalStateException(
                 "Undone key "
                     + depKey
@@ -436,6 +527,7 @@ public final class ParallelEvaluator implements Evaluator {
           }
           addDep(depKey);
           valuesMissing = true;
+          undoneDepsRequested = true;
           builder.put(depKey, ValueOrExceptionUtils.ofNull());
           continue;
         }
@@ -510,6 +602,7 @@ public final class ParallelEvaluator implements Evaluator {
             Class<E4> exceptionClass4,
             Class<E5> exceptionClass5) {
       newlyRequestedDeps.startGroup();
+      inGroup = true;
       Map<SkyKey, ValueOrException5<E1, E2, E3, E4, E5>> result = super.getValuesOrThrow(
           depKeys,
           exceptionClass1,
@@ -517,10 +610,51 @@ public final class ParallelEvaluator implements Evaluator {
           exceptionClass3,
           exceptionClass4,
           exceptionClass5);
+      inGroup = false;
       newlyRequestedDeps.endGroup();
       return result;
     }
 
+    /**
+     * In blocking mode, if deps that are not done were requested, registers the newly requested
+     * deps like a restart does and waits until this node is ready again. Returns whether the deps
+     * are done. Otherwise the function gets null for them and must return null.
+     */
+    private boolean waitForDeps() {
+      if (!undoneDepsRequested) {
+        return false;
+      }
+      undoneDepsRequested = false;
+      if (!visitor.blocking || abortedSuspension != null || depErrorKey != null
+          || !visitor.startWaiting()) {
+        return false;
+      }
+      NodeEntry entry = graph.get(skyKey);
+      ValueVisitor.Suspension suspension = visitor.suspend(skyKey);
+      if (inGroup) {
+        newlyRequestedDeps.endGroup();
+      }
+      entry.addTemporaryDirectDeps(newlyRequestedDeps);
+      Map<SkyKey, NodeEntry> newDeps = graph.createIfAbsentBatch(newlyRequestedDeps);
+      newlyRequestedDeps = new GroupedListHelper<>();
+      if (inGroup) {
+        newlyRequestedDeps.startGroup();
+      }
+      if (!directDepsCopied) {
+        directDeps = new HashMap<>(directDeps);
+        directDepsCopied = true;
+      }
+      directDeps.putAll(newDeps);
+      for (Map.Entry<SkyKey, NodeEntry> e : newDeps.entrySet()) {
+        enqueueChild(visitor, skyKey, entry, e.getKey(), e.getValue(), /*dirtyParent=*/ false);
+      }
+      if (visitor.await(skyKey, suspension)) {
+        return true;
+      }
+      abortedSuspension = suspension;
+      return false;
+    }
+
     private void addDep(SkyKey key) {
       if (!newlyRequestedDeps.contains(key)) {
         // dep may have been requested already this evaluation. If not, add it.
@@ -543,6 +677,22 @@ public final class ParallelEvaluator implements Evaluator {
       return eventHandler;
     }
 
+    @Override
+    public <T extends SkyFunction.SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+      checkActive();
+      // A function always uses the same type of state for a key.
+      @SuppressWarnings("unchecked")
+      T state = (T) computeStates.get(skyKey);
+      if (state == null) {
+        state = stateSupplier.get();
+        // The size is only approximate, so a few more states may be kept.
+        if (computeStates.size() < MAX_COMPUTE_STATES) {
+          computeStates.put(skyKey, state);
+        }
+      }
+      return state;
+    }
+
     private void doneBuilding() {
       building = false;
     }
@@ -561,6 +711,7 @@ public final class ParallelEvaluator implements Evaluator {
      * {@code completeValue}.
      */
     void commit(boolean enqueueParents) {
+      computeStates.remove(skyKey);
       NodeEntry primaryEntry = Preconditions.checkNotNull(graph.get(skyKey), skyKey);
       // Construct the definitive error info, if there is one.
       finalizeErrorInfo();
@@ -654,13 +805,26 @@ public final class ParallelEvaluator implements Evaluator {
     private final AtomicBoolean preventNewEvaluations = new AtomicBoolean(false);
     private final Set<SkyKey> inflightNodes = Sets.newConcurrentHashSet();
     private final Set<RuntimeException> crashes = Sets.newConcurrentHashSet();
-
-    private ValueVisitor(ForkJoinPool forkJoinPool) {
+    private final boolean blocking;
+    // Only used in blocking mode: the number of evaluations that are enqueued or running and not
+    // waiting for deps, and the evaluations that are waiting or stopped waiting.
+    private final AtomicInteger runnableEvaluations = new AtomicInteger();
+    private final ConcurrentMap<SkyKey, Suspension> suspensions = new ConcurrentHashMap<>();
+    // Only used in blocking mode: the number of evaluations that wait for deps in their thread.
+    private final AtomicInteger waitingEvaluations = new AtomicInteger();
+    private final int maxWaitingEvaluations;
+
+    private ValueVisitor(ForkJoinPool forkJoinPool, boolean blocking) {
       quiescingExecutor =
           new ForkJoinQuiescingExecutor(forkJoinPool, VALUE_VISITOR_ERROR_CLASSIFIER);
+      this.blocking = blocking;
+      this.maxWaitingEvaluations =
+          forkJoinPool.getParallelism() * MAX_WAITING_EVALUATIONS_PER_THREAD;
     }
 
     private ValueVisitor(int threadCount) {
+      this.blocking = false;
+      this.maxWaitingEvaluations = 0;
       quiescingExecutor =
           new AbstractQueueVisitor(
               /*concurrent*/ true,
@@ -677,7 +841,7 @@ public final class ParallelEvaluator implements Evaluator {
       quiescingExecutor.awaitQuiescence(/*interruptWorkers=*/ true);
     }
 
-    private void enqueueEvaluation(SkyKey key) {
+    private void enqueueEvaluation(final SkyKey key) {
       // We unconditionally add the key to the set of in-flight nodes because even if evaluation is
       // never scheduled we still want to remove the previously created NodeEntry from the graph.
       // Otherwise we would leave the graph in a weird state (wasteful garbage in the best case and
@@ -692,10 +856,168 @@ public final class ParallelEvaluator implements Evaluator {
       if (preventNewEvaluations.get()) {
         return;
       }
+      if (blocking && resume(key)) {
+        return;
+      }
       if (newlyEnqueued && progressReceiver != null) {
         progressReceiver.enqueueing(key);
       }
-      quiescingExecutor.execute(new Evaluate(this, key));
+      if (!blocking) {
+        quiescingExecutor.execute(new Evaluate(this, key));
+        return;
+      }
+      runnableEvaluations.incrementAndGet();
+      final Evaluate evaluate = new Evaluate(this, key);
+      quiescingExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            evaluate.run();
+          } finally {
+            finishEvaluation(key, evaluate.env == null ? null : evaluate.env.abortedSuspension);
+          }
+        }
+      });
+    }
+
+    /**
+     * Counts the thread that enqueues the requested keys as a runnable evaluation until it calls
+     * {@link #doneEnqueueingRoots}, so that the first evaluations to wait for deps don't conclude
+     * that no evaluation can make progress.
+     */
+    private void startEnqueueingRoots() {
+      runnableEvaluations.incrementAndGet();
+    }
+
+    private void doneEnqueueingRoots() {
+      if (runnableEvaluations.decrementAndGet() == 0) {
+        abortSuspensions();
+      }
+    }
+
+    /**
+     * Reserves a waiting thread for an evaluation that is about to wait for deps. Returns false if
+     * too many evaluations wait already, in which case the node must be restarted instead.
+     */
+    private boolean startWaiting() {
+      if (waitingEvaluations.incrementAndGet() > maxWaitingEvaluations) {
+        waitingEvaluations.decrementAndGet();
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Registers the evaluation of {@code key} as waiting for deps. Must be called before its deps
+     * are registered, since it can be resumed as soon as they are. The evaluation must have
+     * {@linkplain #startWaiting reserved} a waiting thread.
+     */
+    private Suspension suspend(SkyKey key) {
+      Suspension suspension = new Suspension();
+      Preconditions.checkState(suspensions.put(key, suspension) == null, key);
+      return suspension;
+    }
+
+    /**
+     * Waits until the evaluation of {@code key} is resumed because its node is ready, or aborted.
+     * Returns whether it was resumed.
+     */
+    private boolean await(SkyKey key, Suspension suspension) {
+      if (runnableEvaluations.decrementAndGet() == 0) {
+        // Every evaluation waits for another one, so they are in a cycle or wait for one.
+        abortSuspensions();
+      }
+      if (preventNewEvaluations.get()) {
+        wake(suspension, SuspensionState.ABORTED);
+      }
+      try {
+        ForkJoinPool.managedBlock(suspension);
+      } catch (InterruptedException e) {
+        wake(suspension, SuspensionState.ABORTED);
+        Thread.currentThread().interrupt();
+      } catch (RejectedExecutionException e) {
+        // The pool can't add a thread to replace this one, so the node is restarted instead.
+        wake(suspension, SuspensionState.ABORTED);
+      } finally {
+        waitingEvaluations.decrementAndGet();
+      }
+      synchronized (suspension) {
+        if (suspension.state != SuspensionState.RESUMED) {
+          return false;
+        }
+      }
+      suspensions.remove(key, suspension);
+      return true;
+    }
+
+    /**
+     * Resumes the evaluation of {@code key} if it waits for deps. Returns whether the caller must
+     * not enqueue the node.
+     */
+    private boolean resume(SkyKey key) {
+      Suspension suspension = suspensions.get(key);
+      if (suspension == null) {
+        return false;
+      }
+      synchronized (suspension) {
+        switch (suspension.state) {
+          case WAITING:
+            wake(suspension, SuspensionState.RESUMED);
+            return true;
+          case ABORTED:
+            // The evaluation that stopped waiting is still running, so it enqueues the node when it
+            // is finished.
+            suspension.enqueueWhenFinished = true;
+            return true;
+          case FINISHED:
+            return false;
+          default:
+            throw new IllegalStateException(key + " was resumed twice");
+        }
+      }
+    }
+
+    private void wake(Suspension suspension, SuspensionState newState) {
+      synchronized (suspension) {
+        if (suspension.state == SuspensionState.WAITING) {
+          // The woken evaluation must be counted before it can finish.
+          runnableEvaluations.incrementAndGet();
+          suspension.state = newState;
+          suspension.latch.countDown();
+        }
+      }
+    }
+
+    private void abortSuspensions() {
+      for (Suspension suspension : suspensions.values()) {
+        wake(suspension, SuspensionState.ABORTED);
+      }
+    }
+
+    /**
+     * Called when an evaluation of {@code key} is finished. Another evaluation of the node may
+     * already be running, if the node was enqueued while this one was checking its dirty deps.
+     */
+    private void finishEvaluation(SkyKey key, @Nullable Suspension abortedSuspension) {
+      boolean enqueue = false;
+      if (abortedSuspension != null) {
+        suspensions.remove(key, abortedSuspension);
+        synchronized (abortedSuspension) {
+          abortedSuspension.state = SuspensionState.FINISHED;
+          enqueue = abortedSuspension.enqueueWhenFinished;
+        }
+      }
+      if (enqueue) {
+        // The evaluation may have requested more deps after it stopped waiting, in which case the
+        // last of them to be done enqueues the node.
+        NodeEntry entry = graph.get(key);
+        if (entry != null && !entry.isDone() && entry.isReady()) {
+          enqueueEvaluation(key);
+        }
+      }
+      if (runnableEvaluations.decrementAndGet() == 0) {
+        abortSuspensions();
+      }
     }
 
     /**
@@ -705,7 +1027,12 @@ public final class ParallelEvaluator implements Evaluator {
      * end.
      */
     private boolean preventNewEvaluations() {
-      return preventNewEvaluations.compareAndSet(false, true);
+      if (!preventNewEvaluations.compareAndSet(false, true)) {
+        return false;
+      }
+      // Evaluations waiting for deps would wait forever, since no node is enqueued any more.
+      abortSuspensions();
+      return true;
     }
 
     private void noteCrash(RuntimeException e) {
@@ -728,6 +1055,51 @@ public final class ParallelEvaluator implements Evaluator {
     private CountDownLatch getExceptionLatchForTestingOnly() {
       return quiescingExecutor.getExceptionLatchForTestingOnly();
     }
+
+    /** An evaluation waiting for deps in blocking mode. */
+    private final class Suspension implements ForkJoinPool.ManagedBlocker {
+      private final CountDownLatch latch = new CountDownLatch(1);
+      // Guarded by this.
+      private SuspensionState state = SuspensionState.WAITING;
+      // Whether the node became ready after the evaluation stopped waiting. Guarded by this.
+      private boolean enqueueWhenFinished = false;
+      // Only accessed by the waiting thread: how often the pool checked whether this evaluation
+      // can stop waiting before it blocked, once per attempt to replace its thread.
+      private int releasableChecks = 0;
+      private boolean blocked = false;
+
+      @Override
+      public boolean block() throws InterruptedException {
+        blocked = true;
+        latch.await();
+        return true;
+      }
+
+      @Override
+      public boolean isReleasable() {
+        if (latch.getCount() == 0) {
+          return true;
+        }
+        if (preventNewEvaluations.get()
+            || (!blocked && ++releasableChecks > MAX_COMPENSATION_ATTEMPTS)) {
+          // No node is enqueued any more, or the pool can't replace the thread soon: stop waiting
+          // so that the node is restarted instead, rather than have the pool retry.
+          wake(this, SuspensionState.ABORTED);
+          return true;
+        }
+        if (!blocked) {
+          Thread.yield();
+        }
+        return false;
+      }
+    }
+  }
+
+  private enum SuspensionState {
+    WAITING,
+    RESUMED,
+    ABORTED,
+    FINISHED
   }
 
   /**
@@ -757,6 +1129,28 @@ public final class ParallelEvaluator implements Evaluator {
     }
   }
 
+  private static void enqueueChild(ValueVisitor visitor, SkyKey skyKey, NodeEntry entry,
+      SkyKey child, NodeEntry childEntry, boolean dirtyParent) {
+    Preconditions.checkState(!entry.isDone(), "%s %s", skyKey, entry);
+    DependencyState dependencyState =
+        dirtyParent
+            ? childEntry.checkIfDoneForDirtyReverseDep(skyKey)
+            : childEntry.addReverseDepAndCheckIfDone(skyKey);
+    switch (dependencyState) {
+      case DONE:
+        if (entry.signalDep(childEntry.getVersion())) {
+          // This can only happen if there are no more children to be added.
+          visitor.enqueueEvaluation(skyKey);
+        }
+        break;
+      case ALREADY_EVALUATING:
+        break;
+      case NEEDS_SCHEDULING:
+        visitor.enqueueEvaluation(child);
+        break;
+    }
+  }
+
   private enum DirtyOutcome {
     ALREADY_PROCESSED,
     NEEDS_EVALUATION
@@ -769,34 +1163,14 @@ public final class ParallelEvaluator implements Evaluator {
     private final ValueVisitor visitor;
     /** The name of the value to be evaluated. */
     private final SkyKey skyKey;
+    // The environment of the function call, if the node was computed.
+    @Nullable private SkyFunctionEnvironment env = null;
 
     private Evaluate(ValueVisitor visitor, SkyKey skyKey) {
       this.visitor = visitor;
       this.skyKey = skyKey;
     }
 
-    private void enqueueChild(SkyKey skyKey, NodeEntry entry, SkyKey child, NodeEntry childEntry,
-        boolean dirtyParent) {
-      Preconditions.checkState(!entry.isDone(), "%s %s", skyKey, entry);
-      DependencyState dependencyState =
-          dirtyParent
-              ? childEntry.checkIfDoneForDirtyReverseDep(skyKey)
-              : childEntry.addReverseDepAndCheckIfDone(skyKey);
-      switch (dependencyState) {
-        case DONE:
-          if (entry.signalDep(childEntry.getVersion())) {
-            // This can only happen if there are no more children to be added.
-            visitor.enqueueEvaluation(skyKey);
-          }
-          break;
-        case ALREADY_EVALUATING:
-          break;
-        case NEEDS_SCHEDULING:
-          visitor.enqueueEvaluation(child);
-          break;
-      }
-    }
-
     /**
      * Returns true if this depGroup consists of the error transience value and the error transience
      * value is newer than the entry, meaning that the entry must be re-evaluated.
@@ -885,7 +1259,7 @@ public final class ParallelEvaluator implements Evaluator {
               : graph.createIfAbsentBatch(directDepsToCheck).entrySet()) {
             SkyKey directDep = e.getKey();
             NodeEntry directDepEntry = e.getValue();
-            enqueueChild(skyKey, state, directDep, directDepEntry, /*dirtyParent=*/ true);
+            enqueueChild(visitor, skyKey, state, directDep, directDepEntry, /*dirtyParent=*/ true);
           }
           return DirtyOutcome.ALREADY_PROCESSED;
         case VERIFIED_CLEAN:
@@ -933,15 +1307,24 @@ public final class ParallelEvaluator implements Evaluator {
           "%s cannot have a dep on ErrorTransienceValue during building: %s", skyKey, state);
       // Get the corresponding SkyFunction and call it on this value.
       SkyFunctionEnvironment env = new SkyFunctionEnvironment(skyKey, directDeps, visitor);
+      this.env = env;
       SkyFunctionName functionName = skyKey.functionName();
       SkyFunction factory = skyFunctions.get(functionName);
       Preconditions.checkState(factory != null, "%s %s", functionName, state);
 
+      // A node that isn't dirty and has no deps yet is computed for the first time.
+      boolean newNode = !state.isDirty() && directDeps.isEmpty();
       SkyValue value = null;
       long startTime = BlazeClock.instance().nanoTime();
+      long startCpuTime = SkyFunctionStats.currentThreadCpuTime();
       try {
         value = factory.compute(skyKey, env);
       } catch (final SkyFunctionException builderException) {
+        if (env.abortedSuspension != null && !state.isReady()) {
+          // The deps this node stopped waiting for aren't done, so it can't be committed. It is
+          // evaluated again when they are.
+          return;
+        }
         ReifiedSkyFunctionException reifiedBuilderException =
             new ReifiedSkyFunctionException(builderException, skyKey);
         // Propagated transitive errors are treated the same as missing deps.
@@ -995,6 +1378,8 @@ public final class ParallelEvaluator implements Evaluator {
       } finally {
         env.doneBuilding();
         long elapsedTimeNanos =  BlazeClock.instance().nanoTime() - startTime;
+        stats.get(functionName).recordEvaluation(newNode,
+            SkyFunctionStats.currentThreadCpuTime() - startCpuTime, elapsedTimeNanos);
         if (elapsedTimeNanos > 0)  {
           if (progressReceiver != null) {
             progressReceiver.computed(skyKey, elapsedTimeNanos);
@@ -1057,6 +1442,11 @@ public final class ParallelEvaluator implements Evaluator {
       // TODO(bazel-team): An ill-behaved SkyFunction can throw us into an infinite loop where we
       // add more dependencies on every run. [skyframe-core]
 
+      if (newDirectDeps.isEmpty() && env.abortedSuspension != null) {
+        // This node is evaluated again when the deps it stopped waiting for are done.
+        return;
+      }
+
       // Add all new keys to the set of known deps.
       state.addTemporaryDirectDeps(newDirectDeps);
 
@@ -1073,10 +1463,12 @@ public final class ParallelEvaluator implements Evaluator {
         return;
       }
 
+      stats.get(functionName).recordRestart();
       for (Map.Entry<SkyKey, NodeEntry> e : graph.createIfAbsentBatch(newDirectDeps).entrySet()) {
         SkyKey newDirectDep = e.getKey();
         NodeEntry newDirectDepEntry = e.getValue();
-        enqueueChild(skyKey, state, newDirectDep, newDirectDepEntry, /*dirtyParent=*/ false);
+        enqueueChild(visitor, skyKey, state, newDirectDep, newDirectDepEntry,
+            /*dirtyParent=*/ false);
       }
       // It is critical that there is no code below this point.
     }
@@ -1250,13 +1642,45 @@ public final class ParallelEvaluator implements Evaluator {
         "nokeep_going evaluations are not allowed if graph edges are not kept: %s", skyKeys);
 
     Profiler.instance().startTask(ProfilerTask.SKYFRAME_EVAL, skyKeySet);
+    ForkJoinPool blockingPool = null;
     try {
-      ValueVisitor valueVisitor =
-          forkJoinPool == null ? new ValueVisitor(threadCount) : new ValueVisitor(forkJoinPool);
+      ValueVisitor valueVisitor;
+      if (forkJoinPool != null) {
+        valueVisitor = new ValueVisitor(forkJoinPool, blockOnMissingDeps);
+      } else if (blockOnMissingDeps) {
+        // Only a fork-join pool can replace the threads that wait for deps.
+        blockingPool = new ForkJoinPool(threadCount);
+        valueVisitor = new ValueVisitor(blockingPool, /*blocking=*/true);
+      } else {
+        valueVisitor = new ValueVisitor(threadCount);
+      }
       return eval(skyKeySet, valueVisitor);
     } finally {
+      if (blockingPool != null) {
+        // The evaluation is quiescent, so no task is left.
+        blockingPool.shutdown();
+      }
       Profiler.instance().completeTask(ProfilerTask.SKYFRAME_EVAL);
+      publishStats();
+      // Keys that weren't done by the end of the evaluation, because of an error or an interrupt,
+      // start afresh next time.
+      computeStates.clear();
+    }
+  }
+
+  /**
+   * Adds the statistics of this evaluation to the global ones and logs them to the profile. The
+   * logged statistics aren't changed afterwards, since the next evaluation starts afresh.
+   */
+  private void publishStats() {
+    SkyFunctionStats.global().addAll(stats);
+    Profiler profiler = Profiler.instance();
+    if (profiler.isActive() && profiler.isProfiling(ProfilerTask.SKYFUNCTION_STATS)) {
+      for (SkyFunctionStats.FunctionStats functionStats : stats.getAll()) {
+        profiler.logEvent(ProfilerTask.SKYFUNCTION_STATS, functionStats);
+      }
     }
+    stats.clear();
   }
 
   @ThreadCompatible
@@ -1274,10 +1698,11 @@ public final class ParallelEvaluator implements Evaluator {
           graph,
           dirtyKeyTracker);
     }
+    visitor.startEnqueueingRoots();
     for (Map.Entry<SkyKey, NodeEntry> e : graph.createIfAbsentBatch(skyKeys).entrySet()) {
       SkyKey skyKey = e.getKey();
       NodeEntry entry = e.getValue();
-      // This must be equivalent to the code in enqueueChild above, in order to be thread-safe.
+      // This must be equivalent to the code in enqueueChild, in order to be thread-safe.
       switch (entry.addReverseDepAndCheckIfDone(null)) {
         case NEEDS_SCHEDULING:
           visitor.enqueueEvaluation(skyKey);
@@ -1291,6 +1716,7 @@ public final class ParallelEvaluator implements Evaluator {
           throw new IllegalStateException(entry + " for " + skyKey + " in unknown state");
       }
     }
+    visitor.doneEnqueueingRoots();
     try {
       return waitForCompletionAndConstructResult(visitor, skyKeys);
     } finally {
@@ -14,6 +14,7 @@
 package com.google.devtools.build.skyframe;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.EventHandler;
 
@@ -203,6 +204,20 @@ public interface SkyFunction {
         Class<E1> exceptionClass1, Class<E2> exceptionClass2, Class<E3> exceptionClass3,
         Class<E4> exceptionClass4, Class<E5> exceptionClass5);
 
+    /**
+     * Returns the state that an earlier call of {@link SkyFunction#compute} for the current key
+     * left behind when it returned {@code null} because deps were missing, or a new state from
+     * {@code stateSupplier} if there is none.
+     *
+     * <p>A function that requests its deps in several rounds is restarted from the top after each
+     * round. With this state it can skip the work of the rounds it already finished. The state is
+     * only an optimization: it is dropped when the key is done and when the evaluation ends, and
+     * it may not be kept at all, so the function must be able to start from a new state at every
+     * call. A function must always use the same type of state for a key, and must only store
+     * results that were computed without missing deps.
+     */
+    <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier);
+
     /**
      * Returns whether there was a previous getValue[s][OrThrow] that indicated a missing
      * dependency. Formally, returns true iff at least one of the following occurred:
@@ -230,4 +245,10 @@ public interface SkyFunction {
     @VisibleForTesting
     boolean inErrorBubblingForTesting();
   }
+
+  /**
+   * Partial results of a {@link SkyFunction} for a key, kept between the restarts of its
+   * computation. See {@link Environment#getState}.
+   */
+  interface SkyKeyComputeState {}
 }
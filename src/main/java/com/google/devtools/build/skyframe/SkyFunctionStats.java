@@ -0,0 +1,273 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of the evaluations of each {@link SkyFunctionName}: how often its
+ * function is called, how often it is restarted because of missing deps, how many new nodes it
+ * computes, how much time it takes and how large the groups of deps it requests are.
+ *
+ * <p>Every {@link ParallelEvaluator} records into its own instance, and adds it to the
+ * {@link #global} statistics at the end of the evaluation. The statistics of an evaluation are
+ * also logged to the profile as {@code SKYFUNCTION_STATS} events.
+ */
+@ThreadSafe
+public final class SkyFunctionStats {
+
+  private static final SkyFunctionStats GLOBAL = new SkyFunctionStats();
+
+  private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+  private static final boolean CPU_TIME_SUPPORTED =
+      THREAD_BEAN.isCurrentThreadCpuTimeSupported() && THREAD_BEAN.isThreadCpuTimeEnabled();
+
+  private static final Ordering<FunctionStats> BY_CPU_TIME =
+      new Ordering<FunctionStats>() {
+        @Override
+        public int compare(FunctionStats first, FunctionStats second) {
+          int result = Long.compare(second.getCpuTimeNanos(), first.getCpuTimeNanos());
+          if (result == 0) {
+            result = Long.compare(second.getWallTimeNanos(), first.getWallTimeNanos());
+          }
+          return result != 0
+              ? result
+              : first.getName().getName().compareTo(second.getName().getName());
+        }
+      };
+
+  private final ConcurrentMap<SkyFunctionName, FunctionStats> stats = new ConcurrentHashMap<>();
+
+  /** Returns the statistics of all evaluations since the server started. */
+  public static SkyFunctionStats global() {
+    return GLOBAL;
+  }
+
+  /**
+   * Returns the CPU time used by the current thread, or 0 if the JVM can't measure it. This is
+   * cheap enough to be called around every {@code SkyFunction#compute} call.
+   */
+  static long currentThreadCpuTime() {
+    return CPU_TIME_SUPPORTED ? THREAD_BEAN.getCurrentThreadCpuTime() : 0L;
+  }
+
+  /** Returns the statistics of {@code name}, creating them if necessary. */
+  FunctionStats get(SkyFunctionName name) {
+    FunctionStats functionStats = stats.get(name);
+    if (functionStats == null) {
+      functionStats = new FunctionStats(name);
+      FunctionStats oldStats = stats.putIfAbsent(name, functionStats);
+      if (oldStats != null) {
+        functionStats = oldStats;
+      }
+    }
+    return functionStats;
+  }
+
+  /** Returns the statistics of {@code name}, or null if none were recorded. */
+  @VisibleForTesting
+  public FunctionStats getIfPresent(SkyFunctionName name) {
+    return stats.get(name);
+  }
+
+  /** Adds the statistics of {@code other} to these. */
+  void addAll(SkyFunctionStats other) {
+    for (FunctionStats otherStats : other.stats.values()) {
+      get(otherStats.getName()).addAll(otherStats);
+    }
+  }
+
+  /** Returns the statistics of all functions, the ones using the most CPU time first. */
+  public ImmutableList<FunctionStats> getAll() {
+    return BY_CPU_TIME.immutableSortedCopy(stats.values());
+  }
+
+  public void clear() {
+    stats.clear();
+  }
+
+  /** Prints the statistics of all functions, the ones using the most CPU time first. */
+  public void dump(PrintStream out) {
+    if (!CPU_TIME_SUPPORTED) {
+      out.println("CPU time is not supported by this JVM, showing wall time only.");
+    }
+    for (FunctionStats functionStats : getAll()) {
+      out.println(functionStats);
+      out.println("  dep group sizes: " + functionStats.getDepGroupSizes());
+      out.println("  compute time (us): " + functionStats.getComputeTimes());
+    }
+  }
+
+  /** Statistics of the evaluations of a single {@link SkyFunctionName}. */
+  @ThreadSafe
+  public static final class FunctionStats {
+    private final SkyFunctionName name;
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong restarts = new AtomicLong();
+    private final AtomicLong newNodes = new AtomicLong();
+    private final AtomicLong cpuTimeNanos = new AtomicLong();
+    private final AtomicLong wallTimeNanos = new AtomicLong();
+    private final Histogram depGroupSizes = new Histogram();
+    private final Histogram computeTimes = new Histogram();
+
+    private FunctionStats(SkyFunctionName name) {
+      this.name = name;
+    }
+
+    /**
+     * Records a call of the function.
+     *
+     * @param newNode whether this is the first call for a node that was never built before
+     */
+    void recordEvaluation(boolean newNode, long cpuTimeNanos, long wallTimeNanos) {
+      evaluations.incrementAndGet();
+      if (newNode) {
+        newNodes.incrementAndGet();
+      }
+      this.cpuTimeNanos.addAndGet(cpuTimeNanos);
+      this.wallTimeNanos.addAndGet(wallTimeNanos);
+      computeTimes.add(TimeUnit.NANOSECONDS.toMicros(wallTimeNanos));
+    }
+
+    /** Records a call of the function that will be restarted, because deps were missing. */
+    void recordRestart() {
+      restarts.incrementAndGet();
+    }
+
+    /** Records a request of the function for a group of deps. */
+    void recordDepGroup(int size) {
+      depGroupSizes.add(size);
+    }
+
+    private void addAll(FunctionStats other) {
+      evaluations.addAndGet(other.evaluations.get());
+      restarts.addAndGet(other.restarts.get());
+      newNodes.addAndGet(other.newNodes.get());
+      cpuTimeNanos.addAndGet(other.cpuTimeNanos.get());
+      wallTimeNanos.addAndGet(other.wallTimeNanos.get());
+      depGroupSizes.addAll(other.depGroupSizes);
+      computeTimes.addAll(other.computeTimes);
+    }
+
+    public SkyFunctionName getName() {
+      return name;
+    }
+
+    public long getEvaluations() {
+      return evaluations.get();
+    }
+
+    public long getRestarts() {
+      return restarts.get();
+    }
+
+    public long getNewNodes() {
+      return newNodes.get();
+    }
+
+    public long getCpuTimeNanos() {
+      return cpuTimeNanos.get();
+    }
+
+    public long getWallTimeNanos() {
+      return wallTimeNanos.get();
+    }
+
+    public Histogram getDepGroupSizes() {
+      return depGroupSizes;
+    }
+
+    /** Returns the histogram of the wall times of the calls of the function, in microseconds. */
+    public Histogram getComputeTimes() {
+      return computeTimes;
+    }
+
+    @Override
+    public String toString() {
+      return name + ": evaluations=" + evaluations.get() + ", restarts=" + restarts.get()
+          + ", new nodes=" + newNodes.get()
+          + ", cpu=" + TimeUnit.NANOSECONDS.toMillis(cpuTimeNanos.get()) + "ms"
+          + ", wall=" + TimeUnit.NANOSECONDS.toMillis(wallTimeNanos.get()) + "ms";
+    }
+  }
+
+  /**
+   * A histogram of non-negative values with power-of-two buckets: bucket 0 counts the value 0, and
+   * bucket {@code i > 0} counts the values from {@code 2^(i-1)} to {@code 2^i - 1}.
+   */
+  @ThreadSafe
+  public static final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    void add(long value) {
+      counts.incrementAndGet(bucket(value));
+    }
+
+    private void addAll(Histogram other) {
+      for (int i = 0; i < BUCKETS; i++) {
+        long count = other.counts.get(i);
+        if (count != 0) {
+          counts.addAndGet(i, count);
+        }
+      }
+    }
+
+    @VisibleForTesting
+    static int bucket(long value) {
+      return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /** Returns the number of values in the bucket of {@code value}. */
+    public long getCount(long value) {
+      return counts.get(bucket(value));
+    }
+
+    /** Returns the non-empty buckets, for instance {@code "1:12 2-3:4 8-15:1"}. */
+    @Override
+    public String toString() {
+      StringBuilder result = new StringBuilder();
+      for (int i = 0; i < BUCKETS; i++) {
+        long count = counts.get(i);
+        if (count == 0) {
+          continue;
+        }
+        if (result.length() > 0) {
+          result.append(' ');
+        }
+        long low = i == 0 ? 0 : 1L << (i - 1);
+        long high = i == 0 ? 0 : (1L << (i - 1)) * 2 - 1;
+        result.append(low);
+        if (high != low) {
+          result.append('-').append(high);
+        }
+        result.append(':').append(count);
+      }
+      return result.toString();
+    }
+  }
+}
@@ -0,0 +1,165 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+// JNI wrappers of the Linux inotify(7) API, used by
+// com.google.devtools.build.lib.unix.Inotify.
+
+#include <jni.h>
+
+#include <errno.h>
+#include <poll.h>
+#include <sys/inotify.h>
+#include <unistd.h>
+
+#include <string>
+
+#include "src/main/native/unix_jni.h"
+
+// Returns the bytes of a Java byte array as a nul-terminated string.
+static std::string GetBytes(JNIEnv *env, jbyteArray bytes) {
+  jsize length = env->GetArrayLength(bytes);
+  std::string result(length, '\0');
+  env->GetByteArrayRegion(bytes, 0, length,
+                          reinterpret_cast<jbyte *>(&result[0]));
+  return result;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    init
+ * Signature: ()I
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_init(JNIEnv *env,
+                                                     jclass clazz) {
+  // Non-blocking, so that reading after another thread saw the events ready
+  // returns nothing instead of waiting for new ones.
+  int fd = inotify_init1(IN_CLOEXEC | IN_NONBLOCK);
+  if (fd == -1) {
+    ::PostException(env, errno, "inotify_init1 (" + ErrorMessage(errno) + ")");
+  }
+  return fd;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    addWatch
+ * Signature: (I[BI)I
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_addWatch(JNIEnv *env,
+                                                         jclass clazz,
+                                                         jint fd,
+                                                         jbyteArray path,
+                                                         jint mask) {
+  std::string path_chars = GetBytes(env, path);
+  int wd = inotify_add_watch(fd, path_chars.c_str(), mask);
+  if (wd == -1) {
+    ::PostFileException(env, errno, path_chars.c_str());
+  }
+  return wd;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    removeWatch
+ * Signature: (II)V
+ */
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_removeWatch(JNIEnv *env,
+                                                            jclass clazz,
+                                                            jint fd,
+                                                            jint wd) {
+  // EINVAL means that the watch was already removed by the kernel, because
+  // its directory was deleted.
+  if (inotify_rm_watch(fd, wd) == -1 && errno != EINVAL) {
+    ::PostException(env, errno,
+                    "inotify_rm_watch (" + ErrorMessage(errno) + ")");
+  }
+}
+
+// Waits up to timeout_millis for the inotify instance to have events. Returns
+// false on timeout or interruption, and if an exception was posted.
+static bool Poll(JNIEnv *env, int fd, int timeout_millis) {
+  struct pollfd poll_fd;
+  poll_fd.fd = fd;
+  poll_fd.events = POLLIN;
+  poll_fd.revents = 0;
+  int ready = poll(&poll_fd, 1, timeout_millis);
+  if (ready == 0 || (ready == -1 && errno == EINTR)) {
+    return false;
+  }
+  if (ready == -1) {
+    ::PostException(env, errno, "poll (" + ErrorMessage(errno) + ")");
+    return false;
+  }
+  return true;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    waitForEvents
+ * Signature: (II)Z
+ */
+extern "C" JNIEXPORT jboolean JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_waitForEvents(
+    JNIEnv *env, jclass clazz, jint fd, jint timeout_millis) {
+  return Poll(env, fd, timeout_millis) ? JNI_TRUE : JNI_FALSE;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    read
+ * Signature: (I[BI)I
+ *
+ * Waits up to timeout_millis for events, and reads as many as fit into the
+ * buffer. Returns the number of bytes read, or 0 if there were no events.
+ */
+extern "C" JNIEXPORT jint JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_read(JNIEnv *env,
+                                                     jclass clazz,
+                                                     jint fd,
+                                                     jbyteArray buffer,
+                                                     jint timeout_millis) {
+  if (!Poll(env, fd, timeout_millis)) {
+    return 0;
+  }
+  jsize length = env->GetArrayLength(buffer);
+  jbyte *bytes = env->GetByteArrayElements(buffer, NULL);
+  ssize_t count = ::read(fd, bytes, length);
+  int read_errno = errno;
+  env->ReleaseByteArrayElements(buffer, bytes, count > 0 ? 0 : JNI_ABORT);
+  if (count == -1) {
+    if (read_errno == EINTR || read_errno == EAGAIN) {
+      return 0;
+    }
+    ::PostException(env, read_errno, "read (" + ErrorMessage(read_errno) + ")");
+    return 0;
+  }
+  return count;
+}
+
+/*
+ * Class:     com.google.devtools.build.lib.unix.Inotify
+ * Method:    close
+ * Signature: (I)V
+ */
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_unix_Inotify_close(JNIEnv *env,
+                                                      jclass clazz,
+                                                      jint fd) {
+  if (::close(fd) == -1) {
+    ::PostException(env, errno, "close (" + ErrorMessage(errno) + ")");
+  }
+}
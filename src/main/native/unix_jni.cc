@@ -340,7 +340,7 @@ static jobject NewErrnoFileStatus(JNIEnv *env,
   }
 
   if (saved_errno != 0) {
-    return env->NewObject(errno_file_status_class, errorno_ctor, errno);
+    return env->NewObject(errno_file_status_class, errorno_ctor, saved_errno);
   }
   return env->NewObject(
       errno_file_status_class, no_error_ctor, stat_ref.st_mode,
@@ -454,6 +454,79 @@ Java_com_google_devtools_build_lib_unix_FilesystemUtils_errnoLstat(JNIEnv *env,
   return ::StatCommon(env, path, portable_lstat, false);
 }
 
+/*
+ * Class:     com.google.devtools.build.lib.unix.FilesystemUtils
+ * Method:    errnoLstatEntries
+ * Signature: (Ljava/lang/String;[Ljava/lang/String;)[Lcom/google/devtools/build/lib/unix/ErrnoFileStatus;
+ *
+ * Lstats the named entries of a directory relative to a single file
+ * descriptor of it, so that the path of the directory is resolved only once.
+ */
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_unix_FilesystemUtils_errnoLstatEntries(
+    JNIEnv *env, jclass clazz, jstring directory, jobjectArray names) {
+  static jclass errno_file_status_class = NULL;
+  if (errno_file_status_class == NULL) {  // note: harmless race condition
+    jclass local = env->FindClass("com/google/devtools/build/lib/unix/ErrnoFileStatus");
+    CHECK(local != NULL);
+    errno_file_status_class = static_cast<jclass>(env->NewGlobalRef(local));
+  }
+
+  jsize count = env->GetArrayLength(names);
+  jobjectArray result =
+      env->NewObjectArray(count, errno_file_status_class, NULL);
+  if (result == NULL) {
+    return NULL;
+  }
+  const char *directory_chars = GetStringLatin1Chars(env, directory);
+  if (directory_chars == NULL) {
+    return NULL;
+  }
+  int dirfd;
+  while ((dirfd = ::open(directory_chars, O_RDONLY | O_DIRECTORY)) == -1
+         && errno == EINTR) { }
+  // If the directory can't be opened, none of its entries can be stat'ed.
+  int open_errno = dirfd == -1 ? errno : 0;
+
+  for (jsize i = 0; i < count && !env->ExceptionOccurred(); i++) {
+    jstring name = static_cast<jstring>(env->GetObjectArrayElement(names, i));
+    const char *name_chars = GetStringLatin1Chars(env, name);
+    if (name_chars == NULL) {
+      break;
+    }
+    portable_stat_struct statbuf;
+    int saved_errno = open_errno;
+    if (dirfd != -1) {
+      int r;
+      while ((r = portable_fstatat(dirfd, const_cast<char *>(name_chars),
+                                   &statbuf, AT_SYMLINK_NOFOLLOW)) == -1
+             && errno == EINTR) { }
+      if (r == -1 && errno == ENOSYS) {
+        // No fstatat(2) with flags on this platform.
+        std::string path = std::string(directory_chars) + "/" + name_chars;
+        while ((r = portable_lstat(path.c_str(), &statbuf)) == -1
+               && errno == EINTR) { }
+      }
+      saved_errno = r == -1 ? errno : 0;
+    }
+    ::ReleaseStringLatin1Chars(name_chars);
+    env->DeleteLocalRef(name);
+
+    jobject status = NewErrnoFileStatus(env, saved_errno, statbuf);
+    if (status == NULL) {
+      break;
+    }
+    env->SetObjectArrayElement(result, i, status);
+    env->DeleteLocalRef(status);
+  }
+
+  if (dirfd != -1) {
+    ::close(dirfd);
+  }
+  ::ReleaseStringLatin1Chars(directory_chars);
+  return env->ExceptionOccurred() ? NULL : result;
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.FilesystemUtils
  * Method:    utime
@@ -14,26 +14,35 @@
 package com.google.devtools.build.lib.actions;
 
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
 import com.google.devtools.build.lib.actions.cache.DigestUtils;
 import com.google.devtools.build.lib.testutil.TestThread;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.XattrDigestCache;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 
+import org.junit.Assume;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -120,6 +129,31 @@ public class DigestUtilsTest {
     assertMd5CalculationConcurrency(true, false, 1024, 1024);
   }
 
+  @Test
+  public void testConfiguredMd5CalculationConcurrency() throws Exception {
+    try {
+      DigestUtils.configure(2, 2, -1);
+      assertMd5CalculationConcurrency(true, false, 4097, 4097);
+      // Both files are on the same device.
+      DigestUtils.configure(2, 1, -1);
+      assertMd5CalculationConcurrency(false, false, 4097, 4097);
+    } finally {
+      DigestUtils.configure(1, 1, -1);
+    }
+  }
+
+  @Test
+  public void testMappedDigestOfLocalFile() throws Exception {
+    Path path = new JavaIoFileSystem().getPath(TestUtils.makeTempDir().getPath()).getChild("f");
+    FileSystemUtils.writeContentAsLatin1(path, Strings.repeat("abc", 10000));
+    try {
+      DigestUtils.configure(1, 1, 0);
+      assertArrayEquals(path.getMD5Digest(), DigestUtils.getDigestOrFail(path, 30000));
+    } finally {
+      DigestUtils.configure(1, 1, -1);
+    }
+  }
+
   @Test
   public void testRecoverFromMalformedDigest() throws Exception {
     final byte[] malformed = {0, 0, 0};
@@ -142,4 +176,64 @@ public class DigestUtilsTest {
     assertNotSame(malformed, result);
     assertEquals(16, result.length);
   }
+
+  @Test
+  public void testMappedDigestWithEachHashFunction() throws Exception {
+    Path path = new JavaIoFileSystem().getPath(TestUtils.makeTempDir().getPath()).getChild("f");
+    String content = Strings.repeat("abc", 100000);
+    FileSystemUtils.writeContentAsLatin1(path, content);
+    try {
+      DigestUtils.configure(1, 1, 0);
+      for (HashFunction function : HashFunction.values()) {
+        FileSystem.setDigestFunction(function);
+        assertArrayEquals(function.getHash().hashBytes(content.getBytes(ISO_8859_1)).asBytes(),
+            DigestUtils.getDigestOrFail(path, content.length()));
+      }
+    } finally {
+      DigestUtils.configure(1, 1, -1);
+      FileSystem.setDigestFunction(HashFunction.MD5);
+    }
+  }
+
+  private static UserDefinedFileAttributeView xattrs(Path path) {
+    return Files.getFileAttributeView(
+        path.getPathFile().toPath(), UserDefinedFileAttributeView.class);
+  }
+
+  @Test
+  public void testMappedDigestIsStoredAndReused() throws Exception {
+    Path path = new JavaIoFileSystem().getPath(TestUtils.makeTempDir().getPath()).getChild("f");
+    FileSystemUtils.writeContentAsLatin1(path, Strings.repeat("a", 300000));
+    long mtime = System.currentTimeMillis() - 60000;
+    path.setLastModifiedTime(mtime);
+    try {
+      xattrs(path).write("bazel.test", ByteBuffer.wrap(new byte[] {1}));
+      xattrs(path).delete("bazel.test");
+    } catch (IOException | UnsupportedOperationException | NullPointerException e) {
+      Assume.assumeNoException("The file system does not support extended attributes", e);
+    }
+    try {
+      XattrDigestCache.setEnabled(true);
+      DigestUtils.configure(1, 1, 1024);
+      DigestUtils.getAndResetBytesDigested();
+      byte[] digest = DigestUtils.getDigestOrFail(path, 300000);
+      assertArrayEquals(
+          Hashing.md5().hashString(Strings.repeat("a", 300000), ISO_8859_1).asBytes(), digest);
+      assertTrue(xattrs(path).list().contains("bazel.digest"));
+
+      // Change the content of the file in place, so that its size, mtime and inode stay the same.
+      // The stored digest is returned without reading the file.
+      FileSystemUtils.writeContentAsLatin1(path, Strings.repeat("b", 300000));
+      path.setLastModifiedTime(mtime);
+      assertEquals(300000, DigestUtils.getAndResetBytesDigested());
+      assertArrayEquals(digest, DigestUtils.getDigestOrFail(path, 300000));
+      assertEquals(0, DigestUtils.getAndResetBytesDigested());
+
+      // The file system reuses the digest too.
+      assertArrayEquals(digest, path.getDigest());
+    } finally {
+      DigestUtils.configure(1, 1, -1);
+      XattrDigestCache.setEnabled(false);
+    }
+  }
 }
@@ -0,0 +1,211 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput of {@link ResourceManager} with the previous implementation, which
+ * serialized every acquisition and release on a single monitor and rescanned a linked list of
+ * waiting threads on every release.
+ *
+ * <p>Every requester thread repeatedly acquires one of a few typical resource sets, holds it for a
+ * short while, and releases it, like action execution threads with a remote strategy do. Run with
+ * {@code bazel run //src/test/java/com/google/devtools/build/lib:ResourceManagerBenchmark --
+ * <threads> <acquisitions per thread> <rounds>}.
+ */
+public class ResourceManagerBenchmark {
+
+  private static final ResourceSet AVAILABLE = ResourceSet.create(32000, 32, 1.0, 32);
+
+  private static final ImmutableList<ResourceSet> REQUESTS = ImmutableList.of(
+      ResourceSet.createWithRamCpuIo(250, 0.5, 0),
+      ResourceSet.createWithRamCpuIo(100, 0.3, 0),
+      ResourceSet.createWithRamCpuIo(50, 0.2, 0.02),
+      ResourceSet.createWithLocalTestCount(1));
+
+  /** The operations that are measured, implemented by both resource managers. */
+  private interface Scheduler {
+    void acquire(ResourceSet resources, int priority) throws InterruptedException;
+
+    void release(ResourceSet resources);
+  }
+
+  private static Scheduler newResourceManager() {
+    final ResourceManager resourceManager = ResourceManager.instanceForTestingOnly();
+    resourceManager.setRamUtilizationPercentage(100);
+    resourceManager.setAvailableResources(AVAILABLE);
+    return new Scheduler() {
+      @Override
+      public void acquire(ResourceSet resources, int priority) throws InterruptedException {
+        resourceManager.acquireResources(null, resources, priority);
+      }
+
+      @Override
+      public void release(ResourceSet resources) {
+        resourceManager.releaseResources(null, resources);
+      }
+    };
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int acquisitions = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    System.out.printf("%d threads, %d acquisitions each%n", threads, acquisitions);
+    for (int round = 0; round <= rounds; round++) {
+      // The first round only warms up.
+      String prefix = round == 0 ? "warmup" : "round " + round;
+      long synchronizedNanos = run(new SynchronizedScheduler(), threads, acquisitions);
+      long resourceManagerNanos = run(newResourceManager(), threads, acquisitions);
+      System.out.printf("%s: synchronized %,d acquisitions/s, ResourceManager %,d acquisitions/s%n",
+          prefix, perSecond(threads * (long) acquisitions, synchronizedNanos),
+          perSecond(threads * (long) acquisitions, resourceManagerNanos));
+    }
+  }
+
+  private static long perSecond(long count, long nanos) {
+    return count * 1000000000L / Math.max(nanos, 1);
+  }
+
+  /** Runs the requester threads to completion and returns the elapsed wall time. */
+  private static long run(final Scheduler scheduler, int threadCount, final int acquisitions)
+      throws Exception {
+    final AtomicLong startNanos = new AtomicLong();
+    // Starts the clock when the last thread is ready, before any of them is released.
+    final CyclicBarrier start = new CyclicBarrier(threadCount, new Runnable() {
+      @Override
+      public void run() {
+        startNanos.set(System.nanoTime());
+      }
+    });
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final Random random = new Random(i);
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int j = 0; j < acquisitions; j++) {
+              ResourceSet resources = REQUESTS.get(random.nextInt(REQUESTS.size()));
+              scheduler.acquire(resources, random.nextInt(100));
+              work(random);
+              scheduler.release(resources);
+            }
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return System.nanoTime() - startNanos.get();
+  }
+
+  private static volatile long sink;
+
+  /** Simulates holding the resources for a few microseconds. */
+  private static void work(Random random) {
+    long value = random.nextLong();
+    for (int i = 0; i < 200; i++) {
+      value = value * 31 + i;
+    }
+    sink = value;
+  }
+
+  /** The acquisition algorithm of the previous ResourceManager. */
+  private static final class SynchronizedScheduler implements Scheduler {
+    private final List<Object[]> requestList = new LinkedList<>();
+    private double usedCpu;
+    private double usedRam;
+    private double usedIo;
+    private int usedLocalTestCount;
+
+    @Override
+    public void acquire(ResourceSet resources, int priority) throws InterruptedException {
+      CountDownLatch latch;
+      synchronized (this) {
+        if (areResourcesAvailable(resources)) {
+          incrementResources(resources);
+          return;
+        }
+        latch = new CountDownLatch(1);
+        requestList.add(new Object[] {resources, latch});
+      }
+      latch.await();
+    }
+
+    @Override
+    public synchronized void release(ResourceSet resources) {
+      usedCpu -= resources.getCpuUsage();
+      usedRam -= resources.getMemoryMb();
+      usedIo -= resources.getIoUsage();
+      usedLocalTestCount -= resources.getLocalTestCount();
+      double epsilon = 0.0001;
+      if (usedCpu < epsilon) {
+        usedCpu = 0;
+      }
+      if (usedRam < epsilon) {
+        usedRam = 0;
+      }
+      if (usedIo < epsilon) {
+        usedIo = 0;
+      }
+      Iterator<Object[]> iterator = requestList.iterator();
+      while (iterator.hasNext()) {
+        Object[] request = iterator.next();
+        ResourceSet requested = (ResourceSet) request[0];
+        if (areResourcesAvailable(requested)) {
+          incrementResources(requested);
+          ((CountDownLatch) request[1]).countDown();
+          iterator.remove();
+        }
+      }
+    }
+
+    private void incrementResources(ResourceSet resources) {
+      usedCpu += resources.getCpuUsage();
+      usedRam += resources.getMemoryMb();
+      usedIo += resources.getIoUsage();
+      usedLocalTestCount += resources.getLocalTestCount();
+    }
+
+    private boolean areResourcesAvailable(ResourceSet resources) {
+      if (usedCpu == 0.0 && usedRam == 0.0 && usedIo == 0.0 && usedLocalTestCount == 0) {
+        return true;
+      }
+      double cpu = resources.getCpuUsage() * 0.6;
+      double ram = resources.getMemoryMb();
+      double io = resources.getIoUsage();
+      int localTestCount = resources.getLocalTestCount();
+      return (cpu == 0.0 || usedCpu == 0.0 || usedCpu + cpu <= AVAILABLE.getCpuUsage())
+          && (ram == 0.0 || usedRam == 0.0 || usedRam + ram <= AVAILABLE.getMemoryMb())
+          && (io == 0.0 || usedIo == 0.0 || usedIo + io <= AVAILABLE.getIoUsage())
+          && (localTestCount == 0 || usedLocalTestCount == 0
+              || usedLocalTestCount + localTestCount <= AVAILABLE.getLocalTestCount());
+    }
+  }
+}
@@ -18,6 +18,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.testutil.TestThread;
@@ -27,8 +28,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
@@ -275,51 +280,205 @@ public class ResourceManagerTest {
   }
 
   @Test
-  public void testOutOfOrderAllocation() throws Exception {
+  public void testQueuedRequestsAreGrantedInOrder() throws Exception {
     assertFalse(rm.inUse());
     TestThread thread1 = new TestThread () {
       @Override public void runTest() throws Exception {
-        sync.await();
         acquire(900, 0.5, 0, 0); // Will be blocked by the main thread.
-        validate(5);
+        validate(2);
         release(900, 0.5, 0, 0);
-        sync.await();
       }
     };
     TestThread thread2 = new TestThread() {
       @Override public void runTest() throws Exception {
-        // Wait till other thread will be locked
-        while (rm.getWaitCount() == 0) {
-          Thread.yield();
-        }
-        acquire(100, 0.1, 0, 0);
-        validate(2);
-        release(100, 0.1, 0, 0);
-        sync2.await();
-        acquire(200, 0.5, 0, 0);
-        validate(4);
-        sync2.await();
-        release(200, 0.5, 0, 0);
+        acquire(200, 0.1, 0, 0); // Will be blocked by thread1.
+        validate(3);
+        release(200, 0.1, 0, 0);
       }
     };
     acquire(900, 0.9, 0, 0);
+    thread1.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    thread2.start();
+    while (rm.getWaitCount() < 2) {
+      Thread.yield();
+    }
+    release(100, 0.4, 0, 0);
+    // Thread2's request would fit now, but it was made after thread1's.
+    assertEquals(2, rm.getWaitCount());
+    assertFalse(acquireNonblocking(100, 0.1, 0, 0));
     validate(1);
+    release(800, 0.5, 0, 0); // Thread1 acquires its resources, which leaves no room for thread2.
+    thread1.joinAndAssertState(10000);
+    thread2.joinAndAssertState(10000);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testOutOfOrderAllocation() throws Exception {
+    assertFalse(rm.inUse());
+    TestThread thread1 = new TestThread () {
+      @Override public void runTest() throws Exception {
+        acquire(500, 0.5, 0, 1); // Will be blocked by the main thread, which holds both tests.
+        validate(3);
+        release(500, 0.5, 0, 1);
+      }
+    };
+    TestThread thread2 = new TestThread() {
+      @Override public void runTest() throws Exception {
+        acquire(400, 0.3, 0, 0); // Doesn't need a test, so it doesn't delay thread1.
+        validate(1);
+        release(400, 0.3, 0, 0);
+      }
+    };
+    acquire(0, 0, 0, 2);
     thread1.start();
-    sync.await(1, TimeUnit.SECONDS);
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
     thread2.start();
-    sync2.await(1, TimeUnit.SECONDS);
-    //Waiting till both threads are locked.
+    thread2.joinAndAssertState(10000);
+    assertEquals(1, rm.getWaitCount());
+    // This would leave too little RAM for thread1 once a test is released.
+    assertFalse(acquireNonblocking(600, 0.1, 0, 0));
+    assertTrue(acquireNonblocking(100, 0.1, 0, 0));
+    validate(2);
+    release(100, 0.1, 0, 0);
+    release(0, 0, 0, 1); // Thread1 acquires its resources.
+    thread1.joinAndAssertState(10000);
+    release(0, 0, 0, 1);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testNewRequestsDoNotStarveWaitingRequest() throws Exception {
+    assertFalse(rm.inUse());
+    final AtomicBoolean largeRequestGranted = new AtomicBoolean(false);
+    TestThread[] smallRequesters = new TestThread[8];
+    for (int i = 0; i < smallRequesters.length; i++) {
+      smallRequesters[i] = new TestThread() {
+        @Override public void runTest() throws Exception {
+          // The small requests overlap, so the resources are never all free unless new requests
+          // wait for the large one.
+          while (!largeRequestGranted.get()) {
+            acquire(100, 0.1, 0, 0);
+            Thread.sleep(5);
+            release(100, 0.1, 0, 0);
+          }
+        }
+      };
+      smallRequesters[i].start();
+    }
+    TestThread largeRequester = new TestThread() {
+      @Override public void runTest() throws Exception {
+        acquire(1000, 1.0, 0, 0);
+        largeRequestGranted.set(true);
+        release(1000, 1.0, 0, 0);
+      }
+    };
+    // Let the small requesters get going first.
+    Thread.sleep(100);
+    largeRequester.start();
+    largeRequester.joinAndAssertState(10000);
+    for (TestThread thread : smallRequesters) {
+      thread.joinAndAssertState(10000);
+    }
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testHigherPriorityRequestProceedsFirst() throws Exception {
+    assertFalse(rm.inUse());
+    acquire(0, 1.0, 0, 0);
+    TestThread lowPriority = new TestThread() {
+      @Override public void runTest() throws Exception {
+        rm.acquireResources(resourceOwner, ResourceSet.create(0, 1.0, 0, 0), 1);
+        validate(2);
+        release(0, 1.0, 0, 0);
+      }
+    };
+    TestThread highPriority = new TestThread() {
+      @Override public void runTest() throws Exception {
+        rm.acquireResources(resourceOwner, ResourceSet.create(0, 1.0, 0, 0), 10);
+        validate(1);
+        release(0, 1.0, 0, 0);
+      }
+    };
+    lowPriority.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    highPriority.start();
     while (rm.getWaitCount() < 2) {
       Thread.yield();
     }
-    validate(3); // Thread1 is now first in the queue and Thread2 is second.
-    release(100, 0.4, 0, 0); // This allows Thread2 to continue out of order.
-    sync2.await(1, TimeUnit.SECONDS);
-    release(750, 0.3, 0, 0); // At this point thread1 will finally acquire resources.
-    sync.await(1, TimeUnit.SECONDS);
-    release(50, 0.2, 0, 0);
-    thread1.join();
-    thread2.join();
+    // The low priority request was made first, but the high priority one is granted first.
+    release(0, 1.0, 0, 0);
+    lowPriority.joinAndAssertState(10000);
+    highPriority.joinAndAssertState(10000);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testRequestsAreGrantedByPriorityUnderContention() throws Exception {
+    assertFalse(rm.inUse());
+    acquire(0, 0.5, 0, 0);
+    int[] priorities = {3, 1, 4, 1, 5, 9, 2, 6};
+    final List<Integer> grants = Collections.synchronizedList(new ArrayList<Integer>());
+    TestThread[] threads = new TestThread[priorities.length + 1];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      // The last request would fit right away, but has the lowest priority.
+      final int priority = i < priorities.length ? priorities[i] : 0;
+      final double cpu = i < priorities.length ? 1.0 : 0.3;
+      threads[i] = new TestThread() {
+        @Override public void runTest() throws Exception {
+          rm.acquireResources(resourceOwner, ResourceSet.create(0, cpu, 0, 0), priority);
+          grants.add(index);
+          release(0, cpu, 0, 0);
+        }
+      };
+      threads[i].start();
+      // Makes the requests in order.
+      while (rm.getWaitCount() < i + 1) {
+        Thread.yield();
+      }
+    }
+    assertTrue(rm.isAvailable(0, 0.3, 0, 0));
+    assertEquals(0, grants.size());
+
+    release(0, 0.5, 0, 0);
+    for (TestThread thread : threads) {
+      thread.joinAndAssertState(10000);
+    }
+    // By decreasing priority, and in the order of the requests for equal priorities.
+    assertEquals(ImmutableList.of(5, 7, 4, 2, 0, 6, 1, 3, 8), grants);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testManyConcurrentRequests() throws Exception {
+    assertFalse(rm.inUse());
+    TestThread[] threads = new TestThread[50];
+    for (int i = 0; i < threads.length; i++) {
+      final int priority = i % 3;
+      threads[i] = new TestThread() {
+        @Override public void runTest() throws Exception {
+          for (int j = 0; j < 200; j++) {
+            rm.acquireResources(resourceOwner, ResourceSet.create(100, 0.3, 0, priority),
+                priority);
+            release(100, 0.3, 0, priority);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (TestThread thread : threads) {
+      thread.joinAndAssertState(60000);
+    }
+    assertEquals(0, rm.getWaitCount());
     assertFalse(rm.inUse());
   }
 
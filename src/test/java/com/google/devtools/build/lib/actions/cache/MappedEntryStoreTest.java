@@ -0,0 +1,191 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link MappedEntryStore}.
+ */
+@RunWith(JUnit4.class)
+public class MappedEntryStoreTest {
+
+  private Path dataFile;
+  private Path journalFile;
+
+  @Before
+  public final void createFiles() throws Exception {
+    Path root = new Scratch().dir("/cache");
+    dataFile = root.getChild("data");
+    journalFile = root.getChild("journal");
+  }
+
+  private MappedEntryStore open() throws IOException {
+    return new MappedEntryStore(1, dataFile, journalFile);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+  private static String string(byte[] value) {
+    return value == null ? null : new String(value, UTF_8);
+  }
+
+  private static void putAll(MappedEntryStore store, int from, int to) {
+    for (int i = from; i < to; i++) {
+      store.put(i, bytes("value" + i));
+    }
+  }
+
+  @Test
+  public void testPutGetAndRemove() throws Exception {
+    MappedEntryStore store = open();
+    assertThat(store.isEmpty()).isTrue();
+    store.put(1, bytes("one"));
+    store.put(-10, bytes("validation"));
+    assertThat(string(store.get(1))).isEqualTo("one");
+    store.remove(1);
+    assertThat(store.get(1)).isNull();
+    assertThat(store.size()).isEqualTo(1);
+    assertThat(dataFile.exists()).isFalse();
+    assertThat(journalFile.exists()).isFalse();
+  }
+
+  @Test
+  public void testCompactionAndReopen() throws Exception {
+    MappedEntryStore store = open();
+    putAll(store, 0, 300);
+    store.save();
+    assertThat(dataFile.exists()).isTrue();
+    assertThat(journalFile.exists()).isFalse();
+
+    // Few changes stay in the journal.
+    store.put(7, bytes("changed"));
+    store.remove(8);
+    store.put(1000, bytes("new"));
+    store.save();
+    assertThat(journalFile.exists()).isTrue();
+
+    MappedEntryStore reopened = open();
+    assertThat(reopened.size()).isEqualTo(300);
+    assertThat(string(reopened.get(7))).isEqualTo("changed");
+    assertThat(reopened.get(8)).isNull();
+    assertThat(string(reopened.get(9))).isEqualTo("value9");
+    assertThat(string(reopened.get(1000))).isEqualTo("new");
+    assertThat(reopened.get(301)).isNull();
+
+    // Many changes are merged into the data file.
+    putAll(reopened, 2000, 2050);
+    reopened.save();
+    assertThat(journalFile.exists()).isFalse();
+    MappedEntryStore compacted = open();
+    assertThat(compacted.size()).isEqualTo(350);
+    assertThat(string(compacted.get(7))).isEqualTo("changed");
+    assertThat(compacted.get(8)).isNull();
+    assertThat(string(compacted.get(2049))).isEqualTo("value2049");
+  }
+
+  @Test
+  public void testVisitEntriesInKeyOrder() throws Exception {
+    MappedEntryStore store = open();
+    putAll(store, 0, 100);
+    store.save();
+    store.put(-10, bytes("validation"));
+    store.put(50, bytes("changed"));
+    store.remove(51);
+    final List<Integer> keys = new ArrayList<>();
+    store.visitEntries(new MappedEntryStore.EntryVisitor() {
+      @Override
+      public boolean visit(int key, byte[] value) {
+        keys.add(key);
+        if (key == 50) {
+          assertThat(string(value)).isEqualTo("changed");
+        }
+        return keys.size() < 60;
+      }
+    });
+    assertThat(keys).hasSize(60);
+    assertThat(keys.get(0)).isEqualTo(-10);
+    assertThat(keys).isStrictlyOrdered();
+    assertThat(keys).doesNotContain(51);
+  }
+
+  @Test
+  public void testPartiallyWrittenJournalEntryIsIgnored() throws Exception {
+    MappedEntryStore store = open();
+    putAll(store, 0, 100);
+    store.save();
+    store.put(1, bytes("changed"));
+    store.flushJournal();
+    try (OutputStream out = journalFile.getOutputStream(/*append=*/true)) {
+      out.write(new byte[] {(byte) 0xfe, 0, 0});
+    }
+
+    MappedEntryStore reopened = open();
+    assertThat(string(reopened.get(1))).isEqualTo("changed");
+    reopened.put(2, bytes("changed too"));
+    reopened.flushJournal();
+    MappedEntryStore reopenedAgain = open();
+    assertThat(string(reopenedAgain.get(1))).isEqualTo("changed");
+    assertThat(string(reopenedAgain.get(2))).isEqualTo("changed too");
+  }
+
+  @Test
+  public void testDifferentVersionIsIgnored() throws Exception {
+    MappedEntryStore store = open();
+    putAll(store, 0, 10);
+    store.save();
+    assertThat(new MappedEntryStore(2, dataFile, journalFile).isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testMemoryMappedDataFile() throws Exception {
+    Path root = new JavaIoFileSystem().getPath(
+        new File(TestUtils.tmpDir()).getCanonicalPath() + "/mappedentrystore");
+    FileSystemUtils.deleteTree(root);
+    FileSystemUtils.createDirectoryAndParents(root);
+    dataFile = root.getChild("data");
+    journalFile = root.getChild("journal");
+
+    MappedEntryStore store = open();
+    putAll(store, 0, 1000);
+    store.save();
+    store.put(5, bytes("changed"));
+    store.save();
+    MappedEntryStore reopened = open();
+    assertThat(reopened.size()).isEqualTo(1000);
+    assertThat(string(reopened.get(5))).isEqualTo("changed");
+    assertThat(string(reopened.get(999))).isEqualTo("value999");
+    FileSystemUtils.deleteTree(root);
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.output.ChromeTraceCreator;
+import com.google.devtools.build.lib.testutil.FoundationTestCase;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link ChromeTraceCreator}.
+ */
+@RunWith(JUnit4.class)
+public class ChromeTraceCreatorTest extends FoundationTestCase {
+
+  private List<JsonObject> events(JsonObject trace, String phase) {
+    List<JsonObject> events = new ArrayList<>();
+    JsonArray array = trace.getAsJsonArray("traceEvents");
+    for (JsonElement element : array) {
+      JsonObject event = element.getAsJsonObject();
+      if (event.get("ph").getAsString().equals(phase)) {
+        events.add(event);
+      }
+    }
+    return events;
+  }
+
+  @Test
+  public void testTasksAndCounters() throws Exception {
+    Path profileFile = scratch.resolve("/tmp/profile.dat");
+    FileSystemUtils.createDirectoryAndParents(profileFile.getParentDirectory());
+    Profiler profiler = Profiler.instance();
+    profiler.start(ProfiledTaskKinds.ALL, profileFile.getOutputStream(), "trace test", true,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    profiler.startTask(ProfilerTask.ACTION, "first action");
+    profiler.logEvent(ProfilerTask.RESOURCE_USAGE, "cpu=1.0,ram=250.0");
+    Thread.sleep(2);
+    profiler.startTask(ProfilerTask.ACTION_EXECUTE, "execute \"quoted\"");
+    Thread.sleep(2);
+    profiler.completeTask(ProfilerTask.ACTION_EXECUTE);
+    profiler.completeTask(ProfilerTask.ACTION);
+    profiler.logEvent(ProfilerTask.RESOURCE_USAGE, "cpu=0.0,ram=0.0");
+    profiler.stop();
+
+    Path traceFile = scratch.resolve("/tmp/profile.dat.trace.json");
+    ProfileInfo info = ChromeTraceCreator.create(profileFile, traceFile);
+    assertThat(info.isCorruptedOrIncomplete()).isFalse();
+    JsonObject trace = new JsonParser()
+        .parse(new String(FileSystemUtils.readContent(traceFile), UTF_8)).getAsJsonObject();
+
+    List<String> names = new ArrayList<>();
+    long threadId = Thread.currentThread().getId();
+    for (JsonObject event : events(trace, "X")) {
+      names.add(event.get("name").getAsString());
+      assertThat(event.get("tid").getAsLong()).isEqualTo(threadId);
+      assertThat(event.get("dur").getAsDouble()).isGreaterThan(1000.0);
+    }
+    assertThat(names).containsExactly("first action", "execute \"quoted\"");
+
+    List<JsonObject> counters = events(trace, "C");
+    List<Double> ram = new ArrayList<>();
+    List<Integer> runningActions = new ArrayList<>();
+    for (JsonObject counter : counters) {
+      JsonObject args = counter.getAsJsonObject("args");
+      if (counter.get("name").getAsString().equals("resources")) {
+        ram.add(args.get("ram").getAsDouble());
+      } else {
+        runningActions.add(args.get("running").getAsInt());
+      }
+    }
+    assertThat(ram).containsExactly(250.0, 0.0).inOrder();
+    assertThat(runningActions).containsExactly(1, 0).inOrder();
+
+    List<JsonObject> metadata = events(trace, "M");
+    assertThat(metadata).hasSize(2);
+    assertThat(metadata.get(1).get("tid").getAsLong()).isEqualTo(threadId);
+  }
+}
@@ -64,14 +64,14 @@ public class ProfilerChartTest extends FoundationTestCase {
       }
     };
     int threads = 4; // there is one extra thread due due the event that finalizes the profiler
-    ProfileInfo info = createProfileInfo(run, threads - 1);
-    ChartCreator aggregatingCreator = new AggregatingChartCreator(info, true);
-    Chart aggregatedChart = aggregatingCreator.create();
+    ProfileSummary summary = createProfileSummary(run, threads - 1);
+    ChartCreator aggregatingCreator = new AggregatingChartCreator(summary, true);
+    Chart aggregatedChart = createChart(aggregatingCreator);
     assertEquals(threads, aggregatedChart.getRowCount());
     assertThat(aggregatedChart.getSortedRows().get(0).getBars()).hasSize(1);
 
-    ChartCreator detailedCreator = new DetailedChartCreator(info);
-    Chart detailedChart = detailedCreator.create();
+    ChartCreator detailedCreator = new DetailedChartCreator(summary, summary.getCriticalPath());
+    Chart detailedChart = createChart(detailedCreator);
     assertThat(detailedChart.getSortedTypes()).hasSize(COMMON_CHART_TYPES + DETAILED_CHART_TYPES);
     assertEquals(threads, detailedChart.getRowCount());
     assertThat(detailedChart.getSortedRows().get(0).getBars()).hasSize(1);
@@ -93,22 +93,22 @@ public class ProfilerChartTest extends FoundationTestCase {
         task(profiler, ProfilerTask.WAIT, "wait"); // Stays
       }
     };
-    ProfileInfo info = createProfileInfo(run, 1);
+    ProfileSummary summary = createProfileSummary(run, 1);
 
-    ChartCreator aggregatingCreator = new AggregatingChartCreator(info, true);
-    Chart aggregatedChart = aggregatingCreator.create();
+    ChartCreator aggregatingCreator = new AggregatingChartCreator(summary, true);
+    Chart aggregatedChart = createChart(aggregatingCreator);
     assertThat(aggregatedChart.getSortedTypes())
         .hasSize(COMMON_CHART_TYPES + AGGREGATED_CHART_TYPES);
     assertThat(aggregatedChart.getSortedRows().get(0).getBars()).hasSize(5);
 
-    ChartCreator aggregatingNoVfsCreator = new AggregatingChartCreator(info, false);
-    Chart aggregatedNoVfsChart = aggregatingNoVfsCreator.create();
+    ChartCreator aggregatingNoVfsCreator = new AggregatingChartCreator(summary, false);
+    Chart aggregatedNoVfsChart = createChart(aggregatingNoVfsCreator);
     assertThat(aggregatedNoVfsChart.getSortedTypes())
         .hasSize(COMMON_CHART_TYPES + AGGREGATED_CHART_NO_VFS_TYPES);
     assertThat(aggregatedNoVfsChart.getSortedRows().get(0).getBars()).hasSize(4);
 
-    ChartCreator detailedCreator = new DetailedChartCreator(info);
-    Chart detailedChart = detailedCreator.create();
+    ChartCreator detailedCreator = new DetailedChartCreator(summary, summary.getCriticalPath());
+    Chart detailedChart = createChart(detailedCreator);
     assertThat(detailedChart.getSortedTypes())
         .hasSize(COMMON_CHART_TYPES + ProfilerTask.values().length);
     assertThat(detailedChart.getSortedRows().get(0).getBars()).hasSize(7);
@@ -236,7 +236,7 @@ public class ProfilerChartTest extends FoundationTestCase {
     assertEquals(0, visitor.lineCount);
   }
 
-  private ProfileInfo createProfileInfo(Runnable runnable, int noOfRows) throws Exception {
+  private ProfileSummary createProfileSummary(Runnable runnable, int noOfRows) throws Exception {
     Scratch scratch = new Scratch();
     Path cacheDir = scratch.dir("/tmp");
     Path cacheFile = cacheDir.getRelative("profile1.dat");
@@ -252,7 +252,13 @@ public class ProfilerChartTest extends FoundationTestCase {
     }
 
     profiler.stop();
-    return ProfileInfo.loadProfile(cacheFile);
+    return ProfileSummary.read(cacheFile);
+  }
+
+  private static Chart createChart(ChartCreator creator) throws Exception {
+    Chart chart = creator.create();
+    creator.addBars(chart);
+    return chart;
   }
 
   private void task(final Profiler profiler, ProfilerTask task, String name) {
@@ -21,6 +21,8 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
+import com.google.devtools.build.lib.profiler.statistics.PhaseStatistics;
+import com.google.devtools.build.lib.profiler.statistics.PhaseVfsStatistics;
 import com.google.devtools.build.lib.testutil.FoundationTestCase;
 import com.google.devtools.build.lib.testutil.Suite;
 import com.google.devtools.build.lib.testutil.TestSpec;
@@ -34,14 +36,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 /**
  * Unit tests for the profiler.
@@ -343,6 +342,60 @@ public class ProfilerTest extends FoundationTestCase {
     assertThat(info.getTasksForPhase(p3)).hasSize(103);
   }
 
+  @Test
+  public void testPhaseStatisticsFromSummaryMatchTaskTree() throws Exception {
+    Path cacheFile = cacheDir.getRelative("profile5.dat");
+    profiler.start(ProfiledTaskKinds.ALL, cacheFile.getOutputStream(), "summary test", true,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    Thread worker = new Thread() {
+      @Override public void run() {
+        profiler.startTask(ProfilerTask.ACTION, "action");
+        profiler.startTask(ProfilerTask.ACTION_EXECUTE, "execute");
+        profiler.logSimpleTask(BlazeClock.instance().nanoTime() - 2000, ProfilerTask.VFS_STAT,
+            "/stat");
+        profiler.completeTask(ProfilerTask.ACTION_EXECUTE);
+        profiler.logSimpleTask(BlazeClock.instance().nanoTime() - 3000, ProfilerTask.VFS_READ,
+            "/read");
+        profiler.completeTask(ProfilerTask.ACTION);
+      }
+    };
+    profiler.markPhase(ProfilePhase.LOAD);
+    profiler.logSimpleTask(BlazeClock.instance().nanoTime() - 1000, ProfilerTask.VFS_DIR, "/dir");
+    profiler.markPhase(ProfilePhase.EXECUTE);
+    worker.start();
+    worker.join();
+    profiler.startTask(ProfilerTask.INFO, "info");
+    profiler.logSimpleTask(BlazeClock.instance().nanoTime() - 1000, ProfilerTask.VFS_STAT, "/s");
+    profiler.completeTask(ProfilerTask.INFO);
+    profiler.stop();
+
+    ProfileInfo info = ProfileInfo.loadProfile(cacheFile);
+    info.calculateStats();
+    ProfileSummary summary = ProfileSummary.read(cacheFile);
+    EnumMap<ProfilePhase, PhaseStatistics> statistics =
+        PhaseStatistics.create(summary, "", true);
+    for (ProfilePhase phase : ProfilePhase.values()) {
+      ProfileInfo.Task phaseTask = info.getPhaseTask(phase);
+      PhaseStatistics phaseStatistics = statistics.get(phase);
+      assertEquals(phaseTask != null, phaseStatistics.wasExecuted());
+      if (phaseTask == null) {
+        continue;
+      }
+      assertEquals(info.getPhaseDuration(phaseTask), phaseStatistics.getPhaseDurationNanos());
+      List<ProfileInfo.Task> tasks = info.getTasksForPhase(phaseTask);
+      for (ProfilerTask type : ProfilerTask.values()) {
+        ProfileInfo.AggregateAttr attr = info.getStatsForType(type, tasks);
+        assertEquals(Math.max(0, attr.count), phaseStatistics.getCount(type));
+        assertEquals(
+            Math.max(0, attr.totalTime), phaseStatistics.getTotalDurationNanos(type));
+      }
+    }
+    PhaseVfsStatistics vfsStatistics = statistics.get(ProfilePhase.EXECUTE).getVfsStatistics();
+    assertThat(vfsStatistics).containsExactly(
+        ProfilerTask.VFS_STAT, ProfilerTask.VFS_READ);
+    assertEquals(2, vfsStatistics.getStatisticsCount(ProfilerTask.VFS_STAT));
+  }
+
   @Test
   public void testCorruptedFile() throws Exception {
     Path cacheFile = cacheDir.getRelative("profile5.dat");
@@ -352,6 +405,8 @@ public class ProfilerTest extends FoundationTestCase {
       profiler.startTask(ProfilerTask.TEST, "outer task " + i);
       profiler.logEvent(ProfilerTask.TEST, "inner task " + i);
       profiler.completeTask(ProfilerTask.TEST);
+      // Save every pair of tasks in its own chunk.
+      profiler.save();
     }
     profiler.stop();
 
@@ -365,13 +420,50 @@ public class ProfilerTest extends FoundationTestCase {
     info = ProfileInfo.loadProfile(corruptedFile);
     info.calculateStats();
     assertTrue(info.isCorruptedOrIncomplete());
-    // Since root tasks will appear after nested tasks in the profile file and
-    // we have exactly one nested task for each root task, then following will be
-    // always true for our corrupted file:
-    // 0 <= number_of_all_tasks - 2*number_of_root_tasks <= 1
+    // Since only complete chunks are read and every chunk contains exactly one
+    // root task and its nested task, following will be always true for our
+    // corrupted file.
+    assertThat(info.rootTasksById).isNotEmpty();
     assertEquals(info.rootTasksById.size(), info.allTasksById.size() / 2);
   }
 
+  @Test
+  public void testIncompleteFileContainsCompleteChunks() throws Exception {
+    Path cacheFile = cacheDir.getRelative("profile6.dat");
+    profiler.start(ProfiledTaskKinds.ALL, cacheFile.getOutputStream(), "chunk test", false,
+        BlazeClock.instance(), BlazeClock.instance().nanoTime());
+    for (int i = 0; i < 100; i++) {
+      profiler.logEvent(ProfilerTask.TEST, "first chunk " + i);
+    }
+    // Simulate a crash of the server after the tasks of the first save.
+    profiler.save();
+    long firstChunkEnd = cacheFile.getFileSize();
+    for (int i = 0; i < 100; i++) {
+      profiler.logEvent(ProfilerTask.TEST, "second chunk " + i);
+    }
+    profiler.stop();
+
+    Path incompleteFile = cacheDir.getRelative("profile6bad.dat");
+    FileSystemUtils.writeContent(incompleteFile,
+        Arrays.copyOf(FileSystemUtils.readContent(cacheFile), (int) firstChunkEnd + 10));
+    ProfileInfo info = ProfileInfo.loadProfile(incompleteFile);
+    assertTrue(info.isCorruptedOrIncomplete());
+    assertThat(info.allTasksById).hasSize(100);
+
+    final List<String> descriptions = new ArrayList<>();
+    info = ProfileInfo.visitProfile(cacheFile, new ProfileInfo.TaskVisitor() {
+      @Override
+      public void visit(ProfileInfo.Task task) {
+        descriptions.add(task.getDescription());
+      }
+    });
+    assertFalse(info.isCorruptedOrIncomplete());
+    assertThat(info.allTasksById).isEmpty();
+    assertThat(descriptions).hasSize(201); // 200 tasks + finalization
+    assertThat(descriptions).contains("first chunk 0");
+    assertThat(descriptions).contains("second chunk 99");
+  }
+
   @Test
   public void testUnsupportedProfilerRecord() throws Exception {
     Path dataFile = cacheDir.getRelative("profile5.dat");
@@ -392,20 +484,13 @@ public class ProfilerTest extends FoundationTestCase {
     assertEquals(2, info.getStatsForType(ProfilerTask.TEST, info.rootTasksById).count);
     assertEquals(0, info.getStatsForType(ProfilerTask.UNKNOWN, info.rootTasksById).count);
 
-    // Now replace "TEST" type with something unsupported - e.g. "XXXX".
-    InputStream in = new InflaterInputStream(dataFile.getInputStream(), new Inflater(false), 65536);
-    byte[] buffer = new byte[60000];
-    int len = in.read(buffer);
-    in.close();
-    assertTrue(len < buffer.length); // Validate that file was completely decoded.
-    String content = new String(buffer, ISO_8859_1);
+    // Now replace "TEST" type with something unsupported - e.g. "XXXX". The type
+    // table is stored before the deflated chunks.
+    String content = new String(FileSystemUtils.readContent(dataFile), ISO_8859_1);
     int infoIndex = content.indexOf("TEST");
     assertTrue(infoIndex > 0);
     content = content.substring(0, infoIndex) + "XXXX" + content.substring(infoIndex + 4);
-    OutputStream out = new DeflaterOutputStream(dataFile.getOutputStream(),
-        new Deflater(Deflater.BEST_SPEED, false), 65536);
-    out.write(content.getBytes(ISO_8859_1));
-    out.close();
+    FileSystemUtils.writeContent(dataFile, content.getBytes(ISO_8859_1));
 
     // Validate that XXXX records were classified as UNKNOWN.
     info = ProfileInfo.loadProfile(dataFile);
@@ -0,0 +1,76 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link TaskRingBuffer}.
+ */
+@RunWith(JUnit4.class)
+public class TaskRingBufferTest {
+
+  @Test
+  public void testOfferAndPollWrapAround() throws Exception {
+    TaskRingBuffer<Integer> buffer = new TaskRingBuffer<>(4);
+    assertThat(buffer.poll()).isNull();
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 4; i++) {
+        assertThat(buffer.offer(round * 4 + i)).isTrue();
+      }
+      assertThat(buffer.offer(-1)).isFalse();
+      for (int i = 0; i < 4; i++) {
+        assertThat(buffer.poll()).isEqualTo(round * 4 + i);
+      }
+      assertThat(buffer.poll()).isNull();
+    }
+  }
+
+  @Test
+  public void testConcurrentProducerAndConsumer() throws Exception {
+    final TaskRingBuffer<Integer> buffer = new TaskRingBuffer<>(16);
+    final int count = 100000;
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < count; i++) {
+          while (!buffer.offer(i)) {
+            Thread.yield();
+          }
+        }
+      }
+    };
+    producer.start();
+    int expected = 0;
+    while (expected < count) {
+      Integer value = buffer.poll();
+      if (value == null) {
+        Thread.yield();
+      } else {
+        assertThat(value).isEqualTo(expected++);
+      }
+    }
+    producer.join();
+    assertThat(buffer.poll()).isNull();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCapacityMustBePowerOfTwo() throws Exception {
+    new TaskRingBuffer<Integer>(10);
+  }
+}
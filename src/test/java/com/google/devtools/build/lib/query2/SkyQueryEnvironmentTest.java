@@ -0,0 +1,238 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
+import com.google.devtools.build.lib.pkgcache.PackageManager;
+import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryException;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.common.options.OptionsParser;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Tests that the deps and rdeps that {@link SkyQueryEnvironment} visits in parallel are the same as
+ * those that {@link BlazeQueryEnvironment} visits sequentially, and that its cached results follow
+ * changes to BUILD files.
+ */
+@RunWith(JUnit4.class)
+public class SkyQueryEnvironmentTest extends PackageLoadingTestCase {
+  private static final ImmutableList<String> UNIVERSE = ImmutableList.of("//...");
+
+  @Before
+  public final void writeBuildFiles() throws Exception {
+    // Two rails of filegroups that both depend on the level below, so that most targets are found
+    // through several paths of different lengths.
+    StringBuilder rails = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      String deps = i == 0 ? "'//leaf:leaf'" : "'left" + (i - 1) + "', 'right" + (i - 1) + "'";
+      rails.append("filegroup(name = 'left" + i + "', srcs = [" + deps + "])\n");
+      rails.append("filegroup(name = 'right" + i + "', srcs = [" + deps + "])\n");
+    }
+    scratch.file("rails/BUILD", rails.toString());
+    scratch.file("top/BUILD",
+        "filegroup(name = 'top', srcs = ['//rails:left19', '//mid:mid'])",
+        "filegroup(name = 'other', srcs = ['//mid:mid'])");
+    scratch.file("mid/BUILD", "filegroup(name = 'mid', srcs = ['//leaf:leaf'])");
+    scratch.file("leaf/BUILD", "filegroup(name = 'leaf', srcs = ['leaf.txt'])");
+    scratch.file("leaf/leaf.txt");
+  }
+
+  private AbstractBlazeQueryEnvironment<Target> newQueryEnvironment(List<String> universeScope) {
+    PackageManager packageManager = getPackageManager();
+    return AbstractBlazeQueryEnvironment.newQueryEnvironment(
+        packageManager.newTransitiveLoader(), getSkyframeExecutor(), packageManager,
+        packageManager.newTargetPatternEvaluator(), /*keepGoing=*/false,
+        /*orderedResults=*/universeScope.isEmpty(), universeScope, /*loadingPhaseThreads=*/4,
+        reporter, ImmutableSet.<Setting>of(), ImmutableList.<QueryFunction>of(),
+        packageManager.getPackagePath());
+  }
+
+  private static Set<Label> evaluate(AbstractBlazeQueryEnvironment<Target> env, String query)
+      throws Exception {
+    final Set<Label> result = new TreeSet<>();
+    env.evaluateQuery(QueryExpression.parse(query, env), new Callback<Target>() {
+      @Override
+      public void process(Iterable<Target> partialResult) {
+        for (Target target : partialResult) {
+          // A target that is reported twice would be output twice when streaming.
+          assertTrue(target.getLabel().toString(), result.add(target.getLabel()));
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Asserts that {@code query} has the same results in a {@link SkyQueryEnvironment} as {@code
+   * sequentialQuery} in a {@link BlazeQueryEnvironment}.
+   */
+  private void assertSameResults(String query, String sequentialQuery) throws Exception {
+    AbstractBlazeQueryEnvironment<Target> skyEnv = newQueryEnvironment(UNIVERSE);
+    assertThat(skyEnv).isInstanceOf(SkyQueryEnvironment.class);
+    Set<Label> expected =
+        evaluate(newQueryEnvironment(ImmutableList.<String>of()), sequentialQuery);
+    assertThat(expected).isNotEmpty();
+    assertThat(evaluate(skyEnv, query)).containsExactlyElementsIn(expected);
+  }
+
+  private void assertSameResults(String query) throws Exception {
+    assertSameResults(query, query);
+  }
+
+  @Test
+  public void testDeps() throws Exception {
+    assertSameResults("deps(//top:top)");
+    assertSameResults("deps(//top:top + //top:other)");
+  }
+
+  @Test
+  public void testBoundedDeps() throws Exception {
+    for (int depth = 0; depth < 5; depth++) {
+      assertSameResults("deps(//top:top, " + depth + ")");
+    }
+    assertSameResults("deps(//rails:left19, 21)");
+  }
+
+  @Test
+  public void testAllRdeps() throws Exception {
+    // The sequential environment has no allrdeps, but all targets are in the universe.
+    assertSameResults("allrdeps(//leaf:leaf.txt)", "rdeps(//..., //leaf:leaf.txt)");
+    for (int depth = 0; depth < 5; depth++) {
+      assertSameResults("allrdeps(//leaf:leaf, " + depth + ")",
+          "rdeps(//..., //leaf:leaf, " + depth + ")");
+    }
+  }
+
+  @Test
+  public void testRdeps() throws Exception {
+    assertSameResults("rdeps(//..., //leaf:leaf)");
+    assertSameResults("rdeps(//top:top, //leaf:leaf)");
+    assertSameResults("rdeps(//top:other, //leaf:leaf)");
+    assertSameResults("rdeps(//top:top, //leaf:leaf, 3)");
+  }
+
+  @Test
+  public void testRdepsStayWithinUniverseOfEarlierQueries() throws Exception {
+    // The first query leaves reverse edges in the graph to targets outside of the universe of the
+    // second one, which must not be returned.
+    evaluate(newQueryEnvironment(UNIVERSE), "allrdeps(//leaf:leaf)");
+    AbstractBlazeQueryEnvironment<Target> env = newQueryEnvironment(ImmutableList.of("//mid:all"));
+    assertThat(evaluate(env, "rdeps(//mid:all, //leaf:leaf)"))
+        .containsExactlyElementsIn(asLabelSet("//leaf:leaf", "//mid:mid"));
+  }
+
+  private void assertCallbackExceptionIsThrown(String query) throws Exception {
+    AbstractBlazeQueryEnvironment<Target> env = newQueryEnvironment(UNIVERSE);
+    final QueryException exception = new QueryException("callback failed");
+    try {
+      env.evaluateQuery(QueryExpression.parse(query, env), new Callback<Target>() {
+        @Override
+        public void process(Iterable<Target> partialResult) throws QueryException {
+          throw exception;
+        }
+      });
+      fail();
+    } catch (QueryException e) {
+      assertThat(e.getCause()).isSameAs(exception);
+    }
+    assertFalse(Thread.currentThread().isInterrupted());
+  }
+
+  @Test
+  public void testCallbackExceptionIsThrown() throws Exception {
+    assertCallbackExceptionIsThrown("deps(//top:top)");
+    assertCallbackExceptionIsThrown("allrdeps(//leaf:leaf)");
+    assertCallbackExceptionIsThrown("rdeps(//..., //leaf:leaf)");
+  }
+
+  @Test
+  public void testErrorInRootsStopsVisitation() throws Exception {
+    // The roots of the first operand are visited before the second one fails.
+    for (String query : ImmutableList.of(
+        "deps(//top:top + //nonexistent:target)", "allrdeps(//leaf:leaf + //nonexistent:target)")) {
+      AbstractBlazeQueryEnvironment<Target> env = newQueryEnvironment(UNIVERSE);
+      try {
+        evaluate(env, query);
+        fail(query);
+      } catch (QueryException e) {
+        assertThat(e.getMessage()).contains("nonexistent");
+      }
+      assertFalse(Thread.currentThread().isInterrupted());
+    }
+  }
+
+  /** Prepares the server for a command, like a query command does, with the given option. */
+  private void syncWithOption(String option) throws Exception {
+    OptionsParser parser = OptionsParser.newOptionsParser(PackageCacheOptions.class);
+    parser.parse("--default_visibility=public", option);
+    getSkyframeExecutor().sync(reporter, parser.getOptions(PackageCacheOptions.class), outputBase,
+        rootDirectory, ruleClassProvider.getDefaultsPackageContent(), UUID.randomUUID());
+  }
+
+  private void syncWithQueryResultCache() throws Exception {
+    syncWithOption("--experimental_query_result_cache");
+    assertThat(getSkyframeExecutor().getQueryResultCache()).isNotNull();
+  }
+
+  @Test
+  public void testRdepsWithReverseDepsIndex() throws Exception {
+    syncWithOption("--experimental_target_reverse_deps_index");
+    assertThat(getSkyframeExecutor().getTargetReverseDepsIndex()).isNotNull();
+    testAllRdeps();
+    testRdeps();
+    assertSameResults("rdeps(//rails:right5 + //mid:mid, //leaf:leaf, 2)");
+  }
+
+  @Test
+  public void testCachedResultsFollowBuildFileChanges() throws Exception {
+    syncWithQueryResultCache();
+    assertThat(evaluate(newQueryEnvironment(UNIVERSE), "deps(//mid:mid)"))
+        .containsExactlyElementsIn(asLabelSet("//mid:mid", "//leaf:leaf", "//leaf:leaf.txt"));
+    assertThat(evaluate(newQueryEnvironment(UNIVERSE), "rdeps(//..., //mid:mid)"))
+        .containsExactlyElementsIn(asLabelSet("//mid:mid", "//top:top", "//top:other"));
+
+    scratch.overwriteFile("mid/BUILD",
+        "filegroup(name = 'mid', srcs = ['//rails:left0'])",
+        "filegroup(name = 'other', srcs = [':mid'])");
+    syncWithQueryResultCache();
+    assertThat(evaluate(newQueryEnvironment(UNIVERSE), "deps(//mid:mid)"))
+        .containsExactlyElementsIn(asLabelSet(
+            "//mid:mid", "//rails:left0", "//leaf:leaf", "//leaf:leaf.txt"));
+    assertThat(evaluate(newQueryEnvironment(UNIVERSE), "rdeps(//..., //mid:mid)"))
+        .containsExactlyElementsIn(
+            asLabelSet("//mid:mid", "//mid:other", "//top:top", "//top:other"));
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.AbstractUnorderedFormatter;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.devtools.common.options.Options;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the output formatters that write each target of the result as soon as it is found.
+ */
+@RunWith(JUnit4.class)
+public class StreamedOutputFormatterTest extends PackageLoadingTestCase {
+  private QueryOptions options;
+
+  @Before
+  public final void writeBuildFiles() throws Exception {
+    options = Options.parse(QueryOptions.class, "--relative_locations").getOptions();
+    scratch.file("pkg/BUILD",
+        "filegroup(name = 'a', srcs = ['a.txt'], tags = ['<a & \"b\">'])",
+        "filegroup(name = 'b', srcs = [':a'])");
+  }
+
+  /** Returns the output of {@code formatter} for the result made of {@code batches}. */
+  private byte[] format(AbstractUnorderedFormatter formatter, List<List<String>> batches)
+      throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, /*autoFlush=*/false, UTF_8.name());
+    OutputFormatterCallback<Target> callback = formatter.createStreamCallback(options, out,
+        AspectResolver.Mode.OFF.createResolver(getPackageManager(), reporter));
+    callback.start();
+    for (List<String> batch : batches) {
+      List<Target> targets = new ArrayList<>();
+      for (String label : batch) {
+        targets.add(getTarget(label));
+      }
+      callback.process(targets);
+    }
+    callback.close();
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /** Asserts that the XML output for {@code batches} is exactly {@code lines}. */
+  private void assertXml(List<List<String>> batches, String... lines) throws Exception {
+    StringBuilder expected = new StringBuilder();
+    for (String line : lines) {
+      expected.append(line).append('\n');
+    }
+    assertThat(format(new XmlOutputFormatter(), batches))
+        .isEqualTo(expected.toString().getBytes(UTF_8));
+  }
+
+  @Test
+  public void testXmlOfEmptyResult() throws Exception {
+    assertXml(ImmutableList.<List<String>>of(),
+        "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>",
+        "<query version=\"2\">",
+        "</query>");
+  }
+
+  @Test
+  public void testXml() throws Exception {
+    assertXml(ImmutableList.<List<String>>of(
+            ImmutableList.of("//pkg:a"), ImmutableList.of("//pkg:b", "//pkg:a.txt")),
+        "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>",
+        "<query version=\"2\">",
+        "<rule class=\"filegroup\" location=\"pkg/BUILD:1:1\" name=\"//pkg:a\">",
+        "<list name=\"tags\">",
+        "<string value=\"&lt;a &amp; &quot;b&quot;&gt;\"/>",
+        "</list>",
+        "<list name=\"srcs\">",
+        "<label value=\"//pkg:a.txt\"/>",
+        "</list>",
+        "<rule-input name=\"//pkg:a.txt\"/>",
+        "</rule>",
+        "<rule class=\"filegroup\" location=\"pkg/BUILD:2:1\" name=\"//pkg:b\">",
+        "<list name=\"srcs\">",
+        "<label value=\"//pkg:a\"/>",
+        "</list>",
+        "<rule-input name=\"//pkg:a\"/>",
+        "</rule>",
+        "<source-file location=\"pkg/BUILD:1:30\" name=\"//pkg:a.txt\">",
+        "<visibility-label name=\"//visibility:public\"/>",
+        "</source-file>",
+        "</query>");
+  }
+
+  @Test
+  public void testStreamedProtoRoundTrips() throws Exception {
+    byte[] output = format(new StreamedProtoOutputFormatter(), ImmutableList.<List<String>>of(
+        ImmutableList.of("//pkg:a"), ImmutableList.of("//pkg:b", "//pkg:a.txt")));
+    List<String> names = new ArrayList<>();
+    InputStream in = new ByteArrayInputStream(output);
+    Build.Target target;
+    while ((target = Build.Target.parseDelimitedFrom(in)) != null) {
+      names.add(target.hasRule() ? target.getRule().getName() : target.getSourceFile().getName());
+    }
+    assertThat(names).containsExactly("//pkg:a", "//pkg:b", "//pkg:a.txt");
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.remote.RemoteProtocol.CacheEntry;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.common.options.Options;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Tests for {@link MemcacheActionCache}. */
+@RunWith(JUnit4.class)
+public class MemcacheActionCacheTest {
+
+  private Path execRoot;
+  private ConcurrentMap<String, byte[]> blobs;
+  private CountingBlobStore blobStore;
+  private ListeningExecutorService transferService;
+  private MemcacheActionCache cache;
+
+  @Before
+  public void setUp() throws Exception {
+    execRoot = new InMemoryFileSystem().getPath("/exec/root");
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+    blobs = new ConcurrentHashMap<>();
+    blobStore = new CountingBlobStore(new ConcurrentMapBlobStore(blobs));
+    transferService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    cache = new MemcacheActionCache(execRoot, Options.getDefaults(RemoteOptions.class), blobStore,
+        transferService);
+  }
+
+  @After
+  public void tearDown() {
+    transferService.shutdownNow();
+  }
+
+  private Path createFile(String name, byte[] content) throws IOException {
+    Path file = execRoot.getRelative(name);
+    FileSystemUtils.createDirectoryAndParents(file.getParentDirectory());
+    FileSystemUtils.writeContent(file, content);
+    return file;
+  }
+
+  private static byte[] content(int size, int seed) {
+    byte[] content = new byte[size];
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) (i * 31 + seed);
+    }
+    return content;
+  }
+
+  @Test
+  public void actionOutputRoundTrip() throws Exception {
+    byte[] small = content(100, 1);
+    byte[] large = content(MemcacheActionCache.CHUNK_SIZE_BYTES * 2 + 17, 2);
+    Path smallFile = createFile("out/small", small);
+    Path largeFile = createFile("out/large", large);
+    largeFile.setExecutable(true);
+    cache.putActionOutput("action", execRoot, ImmutableList.of(smallFile, largeFile));
+
+    FileSystemUtils.deleteTree(execRoot.getRelative("out"));
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("out"));
+    cache.writeActionOutput("action", execRoot);
+    assertThat(FileSystemUtils.readContent(smallFile)).isEqualTo(small);
+    assertThat(FileSystemUtils.readContent(largeFile)).isEqualTo(large);
+    assertThat(largeFile.isExecutable()).isTrue();
+    assertThat(smallFile.isExecutable()).isFalse();
+  }
+
+  @Test
+  public void largeFilesAreStoredInChunks() throws Exception {
+    Path file = createFile("large", content(MemcacheActionCache.CHUNK_SIZE_BYTES * 2 + 1, 3));
+    String key = cache.putFileIfNotExist(file);
+
+    CacheEntry index = CacheEntry.parseFrom(blobs.get(key));
+    assertThat(index.getFileContent().isEmpty()).isTrue();
+    assertThat(index.getChunkKeysCount()).isEqualTo(3);
+    for (String chunkKey : index.getChunkKeysList()) {
+      assertThat(CacheEntry.parseFrom(blobs.get(chunkKey)).getFileContent().size())
+          .isAtMost(MemcacheActionCache.CHUNK_SIZE_BYTES);
+    }
+  }
+
+  @Test
+  public void presentFilesAreNotUploadedAgain() throws Exception {
+    Path first = createFile("first", content(100, 4));
+    Path second = createFile("second", content(100, 5));
+    cache.putActionOutput("action1", execRoot, ImmutableList.of(first));
+    assertThat(blobStore.puts.get()).isEqualTo(2);
+
+    blobStore.puts.set(0);
+    blobStore.batches.set(0);
+    cache.putActionOutput("action2", execRoot, ImmutableList.of(first, second));
+    // Only the second file and the action output entry itself are new.
+    assertThat(blobStore.puts.get()).isEqualTo(2);
+    // The existence of both files was checked in a single batch.
+    assertThat(blobStore.batches.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void missingChunkIsNotFound() throws Exception {
+    Path file = createFile("large", content(MemcacheActionCache.CHUNK_SIZE_BYTES + 1, 6));
+    String key = cache.putFileIfNotExist(file);
+    blobs.remove(CacheEntry.parseFrom(blobs.get(key)).getChunkKeys(1));
+
+    try {
+      cache.writeFile(key, execRoot.getRelative("copy"), false);
+      fail();
+    } catch (CacheNotFoundException expected) {
+    }
+  }
+
+  private static final class CountingBlobStore implements SimpleBlobStore {
+    private final SimpleBlobStore delegate;
+    private final AtomicInteger puts = new AtomicInteger();
+    private final AtomicInteger batches = new AtomicInteger();
+
+    CountingBlobStore(SimpleBlobStore delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public boolean containsKey(String key) throws IOException {
+      return delegate.containsKey(key);
+    }
+
+    @Override
+    public ImmutableSet<String> getMissingKeys(Collection<String> keys) throws IOException {
+      batches.incrementAndGet();
+      return delegate.getMissingKeys(keys);
+    }
+
+    @Override
+    public byte[] get(String key) throws IOException {
+      return delegate.get(key);
+    }
+
+    @Override
+    public void put(String key, byte[] value) throws IOException {
+      puts.incrementAndGet();
+      delegate.put(key, value);
+    }
+  }
+}
@@ -13,13 +13,17 @@
 // limitations under the License.
 package com.google.devtools.build.lib.runtime;
 
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
 import com.google.devtools.common.options.OptionsParser;
+import com.google.devtools.common.options.OptionsParsingException;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 /**
  * A regression test for {@link BlazeServerStartupOptions}.
@@ -36,4 +40,28 @@ public class BlazeServerStartupOptionsTest {
     BlazeServerStartupOptions result = parser.getOptions(BlazeServerStartupOptions.class);
     assertNull(result.outputBase);
   }
+
+  private static HashFunction parseDigestFunction(String... args) throws Exception {
+    OptionsParser parser = OptionsParser.newOptionsParser(BlazeServerStartupOptions.class);
+    parser.parse(args);
+    return parser.getOptions(BlazeServerStartupOptions.class).digestFunction;
+  }
+
+  @Test
+  public void testDigestFunctionIsParsedCaseInsensitively() throws Exception {
+    assertEquals(HashFunction.MD5, parseDigestFunction());
+    assertEquals(HashFunction.SHA256, parseDigestFunction("--digest_function=sha256"));
+    assertEquals(HashFunction.SHA1, parseDigestFunction("--digest_function=SHA1"));
+  }
+
+  @Test
+  public void testUnknownDigestFunctionListsAllowedValues() throws Exception {
+    try {
+      parseDigestFunction("--digest_function=sha-256");
+      fail();
+    } catch (OptionsParsingException e) {
+      assertEquals("While parsing option --digest_function=sha-256: "
+          + "Not a valid hash function: 'sha-256' (should be md5, sha1 or sha256)", e.getMessage());
+    }
+  }
 }
@@ -0,0 +1,130 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionCompletionEvent;
+import com.google.devtools.build.lib.actions.ActionStartedEvent;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.CachedActionEvent;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.actions.util.TestAction;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link CriticalPathHistory}.
+ */
+@RunWith(JUnit4.class)
+public class CriticalPathHistoryTest {
+
+  private Path execRoot;
+  private Root root;
+  private ManualClock clock;
+  private SimpleCriticalPathComputer computer;
+  private CriticalPathHistory history;
+
+  @Before
+  public void setUp() throws Exception {
+    execRoot = new InMemoryFileSystem().getPath("/exec");
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("out"));
+    root = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+    clock = new ManualClock();
+    computer = new SimpleCriticalPathComputer(clock);
+    history = new CriticalPathHistory();
+  }
+
+  private Action action(String output, Artifact... inputs) {
+    return new TestAction(TestAction.NO_EFFECT, ImmutableSet.copyOf(inputs),
+        ImmutableSet.of(new Artifact(execRoot.getRelative("out/" + output), root)));
+  }
+
+  private void execute(Action action, long millis) {
+    long start = clock.nanoTime();
+    computer.actionStarted(new ActionStartedEvent(action, start));
+    clock.advanceMillis(millis);
+    computer.actionComplete(new ActionCompletionEvent(start, action));
+  }
+
+  private void cached(Action action) {
+    CachedActionEvent event = new CachedActionEvent(action, clock.nanoTime());
+    history.actionCached(event);
+    computer.actionCached(event);
+  }
+
+  @Test
+  public void testLongestRemainingChainHasHighestPriority() throws Exception {
+    Action a = action("a");
+    Action b = action("b", a.getPrimaryOutput());
+    Action c = action("c", b.getPrimaryOutput());
+    Action d = action("d", a.getPrimaryOutput());
+    Action e = action("e");
+    execute(a, 100);
+    execute(b, 200);
+    execute(d, 50);
+    execute(c, 300);
+    execute(e, 50);
+    history.update(computer);
+
+    assertThat(history.getPriority(a)).isEqualTo(600);
+    assertThat(history.getPriority(b)).isEqualTo(500);
+    assertThat(history.getPriority(c)).isEqualTo(300);
+    assertThat(history.getPriority(d)).isEqualTo(50);
+    assertThat(history.getPriority(e)).isEqualTo(50);
+    assertThat(history.getPriority(action("unknown"))).isEqualTo(0);
+  }
+
+  @Test
+  public void testCachedActionKeepsItsDuration() throws Exception {
+    Action a = action("a");
+    Action b = action("b", a.getPrimaryOutput());
+    execute(a, 100);
+    execute(b, 200);
+    history.update(computer);
+
+    computer = new SimpleCriticalPathComputer(clock);
+    cached(a);
+    execute(b, 50);
+    history.update(computer);
+    assertThat(history.getPriority(a)).isEqualTo(150);
+    assertThat(history.getPriority(b)).isEqualTo(50);
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    Action a = action("a");
+    Action b = action("b", a.getPrimaryOutput());
+    execute(a, 100);
+    execute(b, 200);
+    history.update(computer);
+    Path file = execRoot.getRelative("history");
+    history.save(file);
+
+    CriticalPathHistory loaded = CriticalPathHistory.load(file);
+    assertThat(loaded.size()).isEqualTo(2);
+    assertThat(loaded.getPriority(a)).isEqualTo(300);
+    assertThat(loaded.getPriority(b)).isEqualTo(200);
+    assertThat(CriticalPathHistory.load(execRoot.getRelative("missing")).size()).isEqualTo(0);
+  }
+}
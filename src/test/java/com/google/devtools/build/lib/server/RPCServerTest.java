@@ -90,7 +90,7 @@ public class RPCServerTest {
         outErr, serverDir.getRelative("server.socket"));
     RPCService service = new RPCService(helloWorldCommand);
     server = new RPCServer(new JavaClock(), service, MAX_IDLE_MILLIS, HEALTH_CHECK_MILLIS,
-        serverDir, workspaceDir);
+        serverDir, workspaceDir, null);
     serverThread.start();
   }
 
@@ -0,0 +1,213 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.skyframe.DiffAwareness.View;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.unix.Inotify;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.UnixFileSystem;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests for {@link InotifyDiffAwareness}, on the local file system. Only run on Linux.
+ */
+@RunWith(JUnit4.class)
+public class InotifyDiffAwarenessTest {
+  private Path root;
+  private Path outside;
+  private InotifyDiffAwareness diffAwareness;
+  private View view;
+
+  @Before
+  public final void createDiffAwareness() throws Exception  {
+    Assume.assumeTrue(OS.getCurrent() == OS.LINUX);
+    FileSystem fileSystem = new UnixFileSystem();
+    Path workingDir = fileSystem.getPath(TestUtils.makeTempDir().getCanonicalPath());
+    root = workingDir.getRelative("root");
+    outside = workingDir.getRelative("outside");
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("dir/sub"));
+    FileSystemUtils.createDirectoryAndParents(outside);
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("file"), "file");
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("dir/sub/file"), "file");
+
+    diffAwareness = (InotifyDiffAwareness)
+        new InotifyDiffAwareness.Factory(ImmutableList.<String>of()).maybeCreate(root);
+    view = diffAwareness.getCurrentView();
+  }
+
+  @After
+  public final void closeDiffAwareness() {
+    if (diffAwareness != null) {
+      diffAwareness.close();
+    }
+  }
+
+  /**
+   * Returns the paths modified since the last call, or null if everything may have been
+   * modified. The new view must see every change made before it, even those that the background
+   * thread hasn't read yet.
+   */
+  private Set<PathFragment> getModifiedPaths() throws Exception {
+    View newView = diffAwareness.getCurrentView();
+    ModifiedFileSet diff = diffAwareness.getDiff(view, newView);
+    view = newView;
+    return diff.treatEverythingAsModified() ? null : new HashSet<>(diff.modifiedSourceFiles());
+  }
+
+  private static PathFragment path(String path) {
+    return new PathFragment(path);
+  }
+
+  @Test
+  public void testNothingModified() throws Exception {
+    assertThat(getModifiedPaths()).isEmpty();
+  }
+
+  @Test
+  public void testFileCreated() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("dir/sub/new"), "new");
+    assertThat(getModifiedPaths()).containsExactly(path("dir/sub/new"));
+  }
+
+  @Test
+  public void testFileModified() throws Exception {
+    FileSystemUtils.appendIsoLatin1(root.getRelative("dir/sub/file"), "more");
+    assertThat(getModifiedPaths()).containsExactly(path("dir/sub/file"));
+  }
+
+  @Test
+  public void testFileDeleted() throws Exception {
+    root.getRelative("file").delete();
+    assertThat(getModifiedPaths()).containsExactly(path("file"));
+  }
+
+  @Test
+  public void testNewDirectoryIsWatched() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(root.getRelative("new/sub"));
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("new/sub/file"), "file");
+    assertThat(getModifiedPaths())
+        .containsExactly(path("new"), path("new/sub"), path("new/sub/file"));
+
+    FileSystemUtils.appendIsoLatin1(root.getRelative("new/sub/file"), "more");
+    assertThat(getModifiedPaths()).containsExactly(path("new/sub/file"));
+  }
+
+  @Test
+  public void testDirectoryRenamedWithinTree() throws Exception {
+    root.getRelative("dir").renameTo(root.getRelative("renamed"));
+    assertThat(getModifiedPaths()).containsExactly(
+        path("dir"), path("dir/sub"), path("dir/sub/file"),
+        path("renamed"), path("renamed/sub"), path("renamed/sub/file"));
+
+    // The watches moved with the directories.
+    FileSystemUtils.appendIsoLatin1(root.getRelative("renamed/sub/file"), "more");
+    assertThat(getModifiedPaths()).containsExactly(path("renamed/sub/file"));
+  }
+
+  @Test
+  public void testDirectoryRenamedOutOfTree() throws Exception {
+    root.getRelative("dir").renameTo(outside.getRelative("dir"));
+    assertNull(getModifiedPaths());
+
+    // Its watches were removed, and the rest is still watched.
+    FileSystemUtils.appendIsoLatin1(outside.getRelative("dir/sub/file"), "more");
+    FileSystemUtils.appendIsoLatin1(root.getRelative("file"), "more");
+    assertThat(getModifiedPaths()).containsExactly(path("file"));
+  }
+
+  @Test
+  public void testDirectoryRenamedIntoTree() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(outside.getRelative("file"), "file");
+    outside.renameTo(root.getRelative("inside"));
+    assertThat(getModifiedPaths()).containsExactly(path("inside"), path("inside/file"));
+  }
+
+  @Test
+  public void testOverflowModifiesEverythingAndWatchesAgain() throws Exception {
+    FileSystemUtils.appendIsoLatin1(root.getRelative("file"), "more");
+    diffAwareness.simulateOverflow();
+    assertNull(getModifiedPaths());
+
+    FileSystemUtils.appendIsoLatin1(root.getRelative("dir/sub/file"), "more");
+    assertThat(getModifiedPaths()).containsExactly(path("dir/sub/file"));
+  }
+
+  @Test
+  public void testRemovedRootBreaksDiffAwareness() throws Exception {
+    FileSystemUtils.deleteTree(root);
+    try {
+      diffAwareness.getCurrentView();
+      fail("Expected BrokenDiffAwarenessException, but wasn't thrown.");
+    } catch (BrokenDiffAwarenessException e) {
+      assertThat(e.getMessage()).contains("was removed");
+    }
+  }
+
+  @Test
+  public void testFactoryReturnsNullOffLinux() throws Exception {
+    assertNull(new InotifyDiffAwareness.Factory(ImmutableList.<String>of(), OS.DARWIN)
+        .maybeCreate(root));
+  }
+
+  @Test
+  public void testFactoryReturnsNullForBlacklistedPrefix() throws Exception {
+    assertNull(new InotifyDiffAwareness.Factory(ImmutableList.of(root.getPathString()))
+        .maybeCreate(root.getRelative("dir")));
+  }
+
+  @Test
+  public void testFactoryReturnsNullIfLibraryIsMissing() throws Exception {
+    InotifyDiffAwareness.Factory factory =
+        new InotifyDiffAwareness.Factory(ImmutableList.<String>of(), OS.LINUX) {
+          @Override
+          Inotify createInotify() throws IOException {
+            throw new UnsatisfiedLinkError("no unix in java.library.path");
+          }
+        };
+    assertNull(factory.maybeCreate(root));
+  }
+
+  @Test
+  public void testFactoryReturnsNullIfInotifyFails() throws Exception {
+    InotifyDiffAwareness.Factory factory =
+        new InotifyDiffAwareness.Factory(ImmutableList.<String>of(), OS.LINUX) {
+          @Override
+          Inotify createInotify() throws IOException {
+            throw new IOException("inotify_init1 (Too many open files)");
+          }
+        };
+    assertNull(factory.maybeCreate(root));
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.IntVersion;
+import com.google.devtools.build.skyframe.MemoizingEvaluator;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.TrackingInvalidationReceiver;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link MemoryPressureEvictor}.
+ */
+@RunWith(JUnit4.class)
+public class MemoryPressureEvictorTest {
+
+  private static final SkyValue VALUE = new SkyValue() {};
+
+  /** Counts its invocations and optionally depends on another key. */
+  private static class CountingFunction implements SkyFunction {
+    private final AtomicInteger count = new AtomicInteger();
+    private final SkyKey dep;
+
+    private CountingFunction(SkyKey dep) {
+      this.dep = dep;
+    }
+
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) {
+      count.incrementAndGet();
+      if (dep != null && env.getValue(dep) == null) {
+        return null;
+      }
+      return VALUE;
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  }
+
+  @Test
+  public void testEvictsOnlyAfterRequest() throws Exception {
+    SkyFunctionName leafFunction = SkyFunctionName.create("LEAF");
+    SkyKey leaf = new SkyKey(leafFunction, "leaf");
+    SkyKey glob = new SkyKey(SkyFunctions.GLOB, "glob");
+    CountingFunction leafBuilder = new CountingFunction(null);
+    CountingFunction globBuilder = new CountingFunction(leaf);
+    TrackingInvalidationReceiver receiver = new TrackingInvalidationReceiver();
+    MemoizingEvaluator evaluator = new InMemoryMemoizingEvaluator(
+        ImmutableMap.of(leafFunction, leafBuilder, SkyFunctions.GLOB, globBuilder),
+        new RecordingDifferencer(), receiver);
+    evaluator.evaluate(ImmutableList.of(glob), new IntVersion(0), false, 1,
+        NullEventHandler.INSTANCE);
+    assertThat(globBuilder.count.get()).isEqualTo(2);
+
+    MemoryPressureEvictor evictor = new MemoryPressureEvictor();
+    assertThat(evictor.maybeEvict(evaluator)).isFalse();
+    evictor.requestEviction();
+    evictor.requestEviction();
+    assertThat(evictor.maybeEvict(evaluator)).isTrue();
+    assertThat(evictor.maybeEvict(evaluator)).isFalse();
+
+    // The evicted glob is checked again, but its value is still in memory, so it is reused
+    // instead of being recomputed.
+    receiver.clear();
+    evaluator.evaluate(ImmutableList.of(glob), new IntVersion(1), false, 1,
+        NullEventHandler.INSTANCE);
+    assertThat(receiver.evaluated).containsExactly(glob);
+    assertThat(globBuilder.count.get()).isEqualTo(2);
+    assertThat(leafBuilder.count.get()).isEqualTo(1);
+  }
+
+  private static MemoryPoolMXBean pool(MemoryType type, boolean usageThresholdSupported,
+      boolean collectionUsageThresholdSupported) {
+    MemoryPoolMXBean pool = mock(MemoryPoolMXBean.class);
+    when(pool.getType()).thenReturn(type);
+    when(pool.isUsageThresholdSupported()).thenReturn(usageThresholdSupported);
+    when(pool.isCollectionUsageThresholdSupported())
+        .thenReturn(collectionUsageThresholdSupported);
+    return pool;
+  }
+
+  @Test
+  public void testWatchesOnlyTenuredPool() throws Exception {
+    // Like the old generation of the parallel and G1 collectors.
+    assertThat(MemoryPressureEvictor.isTenuredPool(pool(MemoryType.HEAP, true, true))).isTrue();
+    // Like the eden and survivor spaces, which support only collection usage thresholds.
+    assertThat(MemoryPressureEvictor.isTenuredPool(pool(MemoryType.HEAP, false, true))).isFalse();
+    // Like the metaspace.
+    assertThat(MemoryPressureEvictor.isTenuredPool(pool(MemoryType.NON_HEAP, true, false)))
+        .isFalse();
+    assertThat(MemoryPressureEvictor.isTenuredPool(pool(MemoryType.NON_HEAP, true, true)))
+        .isFalse();
+  }
+
+  @Test
+  public void testRealJvmHasOneTenuredPool() throws Exception {
+    int tenuredPools = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (MemoryPressureEvictor.isTenuredPool(pool)) {
+        tenuredPools++;
+        assertThat(pool.getName()).doesNotContain("Eden");
+        assertThat(pool.getName()).doesNotContain("Survivor");
+      }
+    }
+    assertThat(tenuredPools).isEqualTo(1);
+  }
+
+  @Test
+  public void testThresholdIsSetOnTenuredPool() throws Exception {
+    assertThat(MemoryPressureEvictor.getInstance(100)).isNull();
+    try {
+      MemoryPressureEvictor evictor = MemoryPressureEvictor.getInstance(85);
+      assertThat(evictor).isNotNull();
+      assertThat(MemoryPressureEvictor.getInstance(90)).isSameAs(evictor);
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        long max = pool.getUsage().getMax();
+        if (MemoryPressureEvictor.isTenuredPool(pool) && max > 0) {
+          assertThat(pool.getCollectionUsageThreshold()).isEqualTo(max / 100 * 90);
+        }
+      }
+    } finally {
+      assertThat(MemoryPressureEvictor.getInstance(0)).isNull();
+    }
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (MemoryPressureEvictor.isTenuredPool(pool)) {
+        assertThat(pool.getCollectionUsageThreshold()).isEqualTo(0);
+      }
+    }
+  }
+
+  @Test
+  public void testEvictsOnlyGlobs() throws Exception {
+    assertThat(MemoryPressureEvictor.EVICTABLE_FUNCTIONS).containsExactly(SkyFunctions.GLOB);
+  }
+}
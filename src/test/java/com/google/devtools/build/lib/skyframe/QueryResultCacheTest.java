@@ -0,0 +1,67 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Target;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link QueryResultCache}.
+ */
+@RunWith(JUnit4.class)
+public class QueryResultCacheTest {
+  private static final PackageIdentifier PKG = PackageIdentifier.createInDefaultRepo("pkg");
+
+  private final QueryResultCache cache = new QueryResultCache();
+
+  @Test
+  public void testResultsAreKeyedByEqualKeys() throws Exception {
+    cache.put(ImmutableList.of("deps(//pkg:a)", "//..."), ImmutableList.<Target>of());
+    assertThat(cache.get(ImmutableList.of("deps(//pkg:a)", "//..."))).isEmpty();
+    assertThat(cache.get(ImmutableList.of("deps(//pkg:a)", "//pkg/..."))).isNull();
+  }
+
+  @Test
+  public void testPackageChangesDropResults() throws Exception {
+    cache.put("a", ImmutableList.<Target>of());
+    cache.nodeChanged(PackageValue.key(PKG));
+    assertThat(cache.get("a")).isNull();
+
+    cache.put("a", ImmutableList.<Target>of());
+    cache.nodeChanged(PackageLookupValue.key(PKG));
+    assertThat(cache.get("a")).isNull();
+  }
+
+  @Test
+  public void testTransitiveTraversalChangesDropResults() throws Exception {
+    cache.put("a", ImmutableList.<Target>of());
+    cache.nodeChanged(TransitiveTraversalValue.key(Label.parseAbsolute("//pkg:a")));
+    assertThat(cache.get("a")).isNull();
+  }
+
+  @Test
+  public void testOtherChangesKeepResults() throws Exception {
+    cache.put("a", ImmutableList.<Target>of());
+    cache.nodeChanged(ContainingPackageLookupValue.key(PKG));
+    assertThat(cache.get("a")).isNotNull();
+  }
+}
@@ -0,0 +1,44 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.skyframe.SkyKey;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link SkyframeIncrementalBuildMonitor}.
+ */
+@RunWith(JUnit4.class)
+public class SkyframeIncrementalBuildMonitorTest {
+
+  @Test
+  public void testCountsInvalidatedNodesByFunction() {
+    SkyframeIncrementalBuildMonitor monitor = new SkyframeIncrementalBuildMonitor();
+    monitor.accrueInvalidatedNode(new SkyKey(SkyFunctions.GLOB, "a"));
+    monitor.accrueInvalidatedNode(new SkyKey(SkyFunctions.PACKAGE, "b"));
+    monitor.accrueInvalidatedNode(new SkyKey(SkyFunctions.PACKAGE, "c"));
+
+    assertThat(monitor.getInvalidatedNodeCounts().count(SkyFunctions.PACKAGE)).isEqualTo(2);
+    assertThat(monitor.getInvalidatedNodeCounts().count(SkyFunctions.GLOB)).isEqualTo(1);
+    // The most frequent function comes first.
+    assertThat(ImmutableList.copyOf(monitor.getInvalidatedNodeCounts().elementSet()))
+        .containsExactly(SkyFunctions.PACKAGE, SkyFunctions.GLOB).inOrder();
+  }
+}
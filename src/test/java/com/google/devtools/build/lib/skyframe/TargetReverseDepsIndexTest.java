@@ -0,0 +1,210 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.testutil.Scratch;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests for {@link TargetReverseDepsIndex}.
+ */
+@RunWith(JUnit4.class)
+public class TargetReverseDepsIndexTest {
+  private static final PackageIdentifier PKG_A = PackageIdentifier.createInDefaultRepo("a");
+  private static final PackageIdentifier PKG_B = PackageIdentifier.createInDefaultRepo("b");
+
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final Scratch scratch = new Scratch("/workspace");
+  private final PackageFactoryApparatus packages = new PackageFactoryApparatus(events.reporter());
+  private final TargetReverseDepsIndex index = new TargetReverseDepsIndex();
+
+  private Package createPackage(String name, String... lines) throws Exception {
+    Package pkg = packages.createPackage(name, scratch.overwriteFile(name + "/BUILD", lines));
+    events.assertNoWarningsOrErrors();
+    return pkg;
+  }
+
+  private Collection<Target> getReverseDeps(Target target) {
+    Map<Target, Collection<Target>> reverseDeps =
+        index.getReverseDeps(ImmutableList.of(target));
+    assertThat(reverseDeps.keySet()).containsExactly(target);
+    return reverseDeps.get(target);
+  }
+
+  @Test
+  public void testReverseDepsAcrossPackages() throws Exception {
+    Package a = createPackage("a",
+        "genrule(name = 'gen', srcs = ['//b:in', 'local'], outs = ['out'], cmd = '')");
+    Package b = createPackage("b", "exports_files(['in'])");
+    index.packageEvaluated(PKG_A, a);
+    index.packageEvaluated(PKG_B, b);
+
+    assertThat(getReverseDeps(b.getTarget("in"))).containsExactly(a.getTarget("gen"));
+    assertThat(getReverseDeps(a.getTarget("local"))).containsExactly(a.getTarget("gen"));
+    assertThat(getReverseDeps(a.getTarget("gen"))).containsExactly(a.getTarget("out"));
+    assertThat(getReverseDeps(a.getTarget("out"))).isEmpty();
+  }
+
+  @Test
+  public void testTargetsOfPackagesNotIndexedAreLeftOut() throws Exception {
+    Package a = createPackage("a",
+        "genrule(name = 'gen', srcs = ['//b:in'], outs = ['out'], cmd = '')");
+    Package b = createPackage("b", "exports_files(['in'])");
+    index.packageEvaluated(PKG_A, a);
+
+    assertThat(index.getReverseDeps(ImmutableList.of(b.getTarget("in")))).isEmpty();
+    index.packageEvaluated(PKG_B, b);
+    assertThat(getReverseDeps(b.getTarget("in"))).containsExactly(a.getTarget("gen"));
+  }
+
+  @Test
+  public void testReloadedPackageReplacesItsReverseDeps() throws Exception {
+    Package b = createPackage("b", "exports_files(['in', 'other'])");
+    index.packageEvaluated(PKG_B, b);
+    index.packageEvaluated(PKG_A, createPackage("a",
+        "genrule(name = 'gen', srcs = ['//b:in'], outs = ['out'], cmd = '')"));
+    index.packageInvalidated(PKG_A);
+    Package a = createPackage("a",
+        "genrule(name = 'gen', srcs = ['//b:other'], outs = ['out'], cmd = '')");
+    index.packageEvaluated(PKG_A, a);
+
+    assertThat(getReverseDeps(b.getTarget("in"))).isEmpty();
+    assertThat(getReverseDeps(b.getTarget("other"))).containsExactly(a.getTarget("gen"));
+  }
+
+  @Test
+  public void testReloadedPackageKeepsItsUnchangedReverseDeps() throws Exception {
+    Package b = createPackage("b", "exports_files(['in'])");
+    index.packageEvaluated(PKG_B, b);
+    index.packageEvaluated(PKG_A, createPackage("a",
+        "genrule(name = 'gen', srcs = ['//b:in'], outs = ['out'], cmd = '')"));
+    int size = index.size();
+    Package a = createPackage("a",
+        "genrule(name = 'gen', srcs = ['//b:in'], outs = ['out'], cmd = 'true')");
+    index.packageEvaluated(PKG_A, a);
+
+    assertThat(index.size()).isEqualTo(size);
+    assertThat(getReverseDeps(b.getTarget("in"))).containsExactly(a.getTarget("gen"));
+    assertThat(getReverseDeps(a.getTarget("gen"))).containsExactly(a.getTarget("out"));
+  }
+
+  @Test
+  public void testInvalidatedPackageIsLeftOutUntilReevaluated() throws Exception {
+    Package a = createPackage("a",
+        "genrule(name = 'gen', srcs = ['//b:in'], outs = ['out'], cmd = '')");
+    Package b = createPackage("b", "exports_files(['in'])");
+    index.packageEvaluated(PKG_A, a);
+    index.packageEvaluated(PKG_B, b);
+
+    index.packageInvalidated(PKG_A);
+    assertThat(getReverseDeps(b.getTarget("in"))).isEmpty();
+    // The package was found to be unchanged.
+    index.packageEvaluated(PKG_A, a);
+    assertThat(getReverseDeps(b.getTarget("in"))).containsExactly(a.getTarget("gen"));
+  }
+
+  @Test
+  public void testDeletedAndFailedPackagesAreRemoved() throws Exception {
+    Package a = createPackage("a",
+        "genrule(name = 'gen', srcs = ['//b:in'], outs = ['out'], cmd = '')");
+    Package b = createPackage("b", "exports_files(['in'])");
+    index.packageEvaluated(PKG_A, a);
+    index.packageEvaluated(PKG_B, b);
+
+    index.packageDeleted(PKG_A);
+    assertThat(getReverseDeps(b.getTarget("in"))).isEmpty();
+    assertThat(index.getReverseDeps(ImmutableList.of(a.getTarget("gen")))).isEmpty();
+
+    index.packageEvaluated(PKG_A, a);
+    index.packageEvaluated(PKG_B, null);
+    assertThat(index.getReverseDeps(ImmutableList.of(b.getTarget("in")))).isEmpty();
+    assertThat(getReverseDeps(a.getTarget("gen"))).containsExactly(a.getTarget("out"));
+  }
+
+  @Test
+  public void testLabelsOfRemovedPackagesAreDropped() throws Exception {
+    Package a = createPackage("a",
+        "genrule(name = 'gen', srcs = ['//b:in', '//c:missing'], outs = ['out'], cmd = '')");
+    Package b = createPackage("b", "exports_files(['in'])");
+    index.packageEvaluated(PKG_B, b);
+    int size = index.size();
+    index.packageEvaluated(PKG_A, a);
+    assertThat(index.size()).isGreaterThan(size);
+
+    // The labels only known through a, such as //c:missing, are dropped with it.
+    index.packageDeleted(PKG_A);
+    assertThat(index.size()).isEqualTo(size);
+    index.packageEvaluated(PKG_B, null);
+    assertThat(index.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void testPackagesEvaluatedInParallel() throws Exception {
+    final Package b = createPackage("b", "exports_files(['in'])");
+    final List<Package> parents = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      parents.add(createPackage("a" + i,
+          "genrule(name = 'gen', srcs = ['//b:in'], outs = ['out'], cmd = '')"));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<?>> futures = new ArrayList<>();
+    for (final Package parent : parents) {
+      futures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 50; i++) {
+            index.packageEvaluated(parent.getPackageIdentifier(), parent);
+            index.packageDeleted(parent.getPackageIdentifier());
+          }
+          index.packageEvaluated(parent.getPackageIdentifier(), parent);
+        }
+      }));
+    }
+    futures.add(executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        index.packageEvaluated(PKG_B, b);
+      }
+    }));
+    for (Future<?> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+
+    List<Target> expected = new ArrayList<>();
+    for (Package parent : parents) {
+      expected.add(parent.getTarget("gen"));
+    }
+    assertThat(getReverseDeps(b.getTarget("in"))).containsExactlyElementsIn(expected);
+  }
+}
@@ -0,0 +1,171 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.unix;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.OS;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link Inotify}. Only run on Linux.
+ */
+@RunWith(JUnit4.class)
+public class InotifyTest {
+  private static final int MASK = Inotify.IN_CREATE | Inotify.IN_DELETE | Inotify.IN_MODIFY
+      | Inotify.IN_MOVED_FROM | Inotify.IN_MOVED_TO | Inotify.IN_ONLYDIR;
+
+  private File workingDir;
+  private Inotify inotify;
+
+  @Before
+  public final void createInotify() throws Exception  {
+    Assume.assumeTrue(OS.getCurrent() == OS.LINUX);
+    workingDir = TestUtils.makeTempDir();
+    inotify = Inotify.create();
+  }
+
+  @After
+  public final void closeInotify() throws Exception {
+    if (inotify != null) {
+      inotify.close();
+    }
+  }
+
+  /** Reads events until there are at least {@code count} of them, or a few seconds passed. */
+  private List<Inotify.Event> readEvents(int count) throws IOException {
+    List<Inotify.Event> events = new ArrayList<>();
+    for (int i = 0; i < 50 && events.size() < count; i++) {
+      events.addAll(inotify.readEvents(100));
+    }
+    return events;
+  }
+
+  private static void write(File file, String content) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(file, true)) {
+      out.write(content.getBytes("ISO-8859-1"));
+    }
+  }
+
+  @Test
+  public void testReportsCreateModifyAndDelete() throws Exception {
+    int wd = inotify.addWatch(workingDir.getPath(), MASK);
+    File file = new File(workingDir, "file");
+    assertThat(file.createNewFile()).isTrue();
+    write(file, "hello");
+    assertThat(file.delete()).isTrue();
+
+    List<Inotify.Event> events = readEvents(3);
+    assertThat(events).hasSize(3);
+    assertEquals(Inotify.IN_CREATE, events.get(0).getMask());
+    assertEquals(Inotify.IN_MODIFY, events.get(1).getMask());
+    assertEquals(Inotify.IN_DELETE, events.get(2).getMask());
+    for (Inotify.Event event : events) {
+      assertEquals(wd, event.getWatchDescriptor());
+      assertEquals("file", event.getName());
+      assertThat(event.isDirectory()).isFalse();
+    }
+  }
+
+  @Test
+  public void testRenamesHaveTheSameCookie() throws Exception {
+    File from = new File(workingDir, "from");
+    File to = new File(workingDir, "to");
+    assertThat(from.mkdir()).isTrue();
+    assertThat(to.mkdir()).isTrue();
+    int fromWd = inotify.addWatch(from.getPath(), MASK);
+    int toWd = inotify.addWatch(to.getPath(), MASK);
+    File directory = new File(from, "directory");
+    assertThat(directory.mkdir()).isTrue();
+    assertThat(directory.renameTo(new File(to, "renamed"))).isTrue();
+
+    List<Inotify.Event> events = readEvents(3);
+    assertThat(events).hasSize(3);
+    Inotify.Event created = events.get(0);
+    Inotify.Event movedFrom = events.get(1);
+    Inotify.Event movedTo = events.get(2);
+    assertEquals(Inotify.IN_CREATE | Inotify.IN_ISDIR, created.getMask());
+    assertEquals(Inotify.IN_MOVED_FROM | Inotify.IN_ISDIR, movedFrom.getMask());
+    assertEquals(fromWd, movedFrom.getWatchDescriptor());
+    assertEquals("directory", movedFrom.getName());
+    assertEquals(Inotify.IN_MOVED_TO | Inotify.IN_ISDIR, movedTo.getMask());
+    assertEquals(toWd, movedTo.getWatchDescriptor());
+    assertEquals("renamed", movedTo.getName());
+    assertThat(movedFrom.getCookie()).isNotEqualTo(0);
+    assertEquals(movedFrom.getCookie(), movedTo.getCookie());
+  }
+
+  @Test
+  public void testSameDirectoryHasSameWatch() throws Exception {
+    int wd = inotify.addWatch(workingDir.getPath(), MASK);
+    assertEquals(wd, inotify.addWatch(workingDir.getPath() + "/.", MASK));
+  }
+
+  @Test
+  public void testReadTimesOutWithoutEvents() throws Exception {
+    inotify.addWatch(workingDir.getPath(), MASK);
+    assertThat(inotify.readEvents(10)).isEmpty();
+  }
+
+  @Test
+  public void testWaitingLeavesEventsToRead() throws Exception {
+    inotify.addWatch(workingDir.getPath(), MASK);
+    assertThat(inotify.waitForEvents(10)).isFalse();
+    assertThat(new File(workingDir, "file").createNewFile()).isTrue();
+
+    assertThat(inotify.waitForEvents(1000)).isTrue();
+    assertThat(inotify.readEvents(0)).hasSize(1);
+    // Nothing is left, and reading doesn't block.
+    assertThat(inotify.readEvents(0)).isEmpty();
+  }
+
+  @Test
+  public void testRemovingWatchOfDeletedDirectoryIsIgnored() throws Exception {
+    File directory = new File(workingDir, "directory");
+    assertThat(directory.mkdir()).isTrue();
+    int wd = inotify.addWatch(directory.getPath(), MASK);
+    assertThat(directory.delete()).isTrue();
+
+    List<Inotify.Event> events = readEvents(1);
+    assertThat(events).isNotEmpty();
+    assertEquals(Inotify.IN_IGNORED, events.get(events.size() - 1).getMask() & Inotify.IN_IGNORED);
+    inotify.removeWatch(wd);
+  }
+
+  @Test
+  public void testWatchingMissingDirectoryThrows() throws Exception {
+    try {
+      inotify.addWatch(new File(workingDir, "missing").getPath(), MASK);
+      fail("Expected FileNotFoundException, but wasn't thrown.");
+    } catch (FileNotFoundException e) {
+      assertThat(e).hasMessage(workingDir + "/missing (No such file or directory)");
+    }
+  }
+}
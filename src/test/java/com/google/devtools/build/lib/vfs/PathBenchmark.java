@@ -0,0 +1,140 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many {@link Path} lookups per second threads can do at once, to catch contention
+ * on the child table of hot directories.
+ *
+ * <p>Every scenario is run with 1, 2, 4, ... threads up to the given maximum. In the "hot"
+ * scenario, all threads look up the existing children of a single directory with many children,
+ * like the exec root. In the "deep" scenario, they look up existing paths of a few segments below
+ * it, like source files. In the "create" scenario, they all look up the same new children of a
+ * new directory, so that the first lookup of every name creates a {@link Path}. The lookups per
+ * second are averaged over all rounds but the first one, which only warms up. Run with {@code
+ * bazel run //src/test/java/com/google/devtools/build/lib:PathBenchmark -- <max threads>
+ * <lookups per thread> <rounds>}.
+ */
+public class PathBenchmark {
+
+  /** The number of children of the hot directory. */
+  private static final int CHILDREN = 1000;
+
+  private static final String[] SCENARIOS = {"hot", "deep", "create"};
+
+  private final FileSystem fileSystem = new InMemoryFileSystem();
+  private final Path root = fileSystem.getPath("/execroot");
+  private final String[] childNames = new String[CHILDREN];
+  private final String[] relativePaths = new String[CHILDREN];
+  /** Keeps the looked up paths alive, so that they aren't collected between lookups. */
+  private final Path[] paths = new Path[CHILDREN * 2];
+
+  private PathBenchmark() {
+    for (int i = 0; i < CHILDREN; i++) {
+      childNames[i] = "child" + i;
+      relativePaths[i] = "pkg" + (i % 10) + "/sub" + (i % 100) + "/File" + i + ".java";
+      paths[i] = root.getRelative(childNames[i]);
+      paths[CHILDREN + i] = root.getRelative(relativePaths[i]);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    System.out.printf("%d children, %,d lookups per thread, %d rounds%n",
+        CHILDREN, lookups, rounds);
+    PathBenchmark benchmark = new PathBenchmark();
+    int threadCounts = Integer.numberOfTrailingZeros(Integer.highestOneBit(maxThreads)) + 1;
+    long[][] totals = new long[SCENARIOS.length][threadCounts];
+    for (int round = 0; round <= rounds; round++) {
+      for (int scenario = 0; scenario < SCENARIOS.length; scenario++) {
+        for (int i = 0; i < threadCounts; i++) {
+          int threads = 1 << i;
+          long nanos = benchmark.run(scenario, round, threads, lookups);
+          // The first round only warms up.
+          if (round > 0) {
+            totals[scenario][i] += perSecond(threads * (long) lookups, nanos);
+          }
+        }
+      }
+    }
+    System.out.printf("%-8s %8s %16s%n", "scenario", "threads", "lookups/s");
+    for (int scenario = 0; scenario < SCENARIOS.length; scenario++) {
+      for (int i = 0; i < threadCounts; i++) {
+        System.out.printf("%-8s %8d %,16d%n",
+            SCENARIOS[scenario], 1 << i, totals[scenario][i] / Math.max(rounds, 1));
+      }
+    }
+  }
+
+  private static long perSecond(long count, long nanos) {
+    return count * 1000000000L / Math.max(nanos, 1);
+  }
+
+  /** Runs the lookup threads to completion and returns the elapsed wall time. */
+  private long run(final int scenario, int round, int threadCount, final int lookups)
+      throws Exception {
+    // The create scenario looks up the children of a directory that wasn't used before.
+    final Path createParent = root.getRelative("new" + round + "_" + threadCount);
+    final AtomicLong startNanos = new AtomicLong();
+    // Starts the clock when the last thread is ready, before any of them is released.
+    final CyclicBarrier start = new CyclicBarrier(threadCount, new Runnable() {
+      @Override
+      public void run() {
+        startNanos.set(System.nanoTime());
+      }
+    });
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      final int offset = i * 7;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            int hash = 0;
+            for (int j = 0; j < lookups; j++) {
+              int index = (offset + j) % CHILDREN;
+              Path path;
+              if (scenario == 0) {
+                path = root.getRelative(childNames[index]);
+              } else if (scenario == 1) {
+                path = root.getRelative(relativePaths[index]);
+              } else {
+                path = createParent.getRelative("file" + (j / 2));
+              }
+              hash += System.identityHashCode(path);
+            }
+            sink = hash;
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return System.nanoTime() - startNanos.get();
+  }
+
+  private static volatile int sink;
+}
@@ -0,0 +1,104 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Tests for {@link UnixBatchStat}.
+ */
+@RunWith(JUnit4.class)
+public class UnixBatchStatTest {
+  private Path execRoot;
+
+  @Before
+  public final void createExecRoot() throws Exception {
+    FileSystem fileSystem = new UnixFileSystem();
+    execRoot = fileSystem.getPath(
+        new File(TestUtils.tmpDir()).getCanonicalPath() + "/batchstat");
+    FileSystemUtils.deleteTree(execRoot);
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("a/dir"));
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("b"));
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("a/file"), "contents");
+    FileSystemUtils.createEmptyFile(execRoot.getRelative("b/file"));
+    execRoot.getRelative("a/link").createSymbolicLink(new PathFragment("file"));
+  }
+
+  @After
+  public final void deleteExecRoot() throws Exception {
+    FileSystemUtils.deleteTree(execRoot);
+  }
+
+  private List<FileStatusWithDigest> batchStat(String... paths) throws Exception {
+    ImmutableList.Builder<PathFragment> fragments = ImmutableList.builder();
+    for (String path : paths) {
+      fragments.add(new PathFragment(path));
+    }
+    return UnixBatchStat.create(execRoot).batchStat(/*includeDigest=*/false,
+        /*includeLinks=*/true, fragments.build());
+  }
+
+  @Test
+  public void testStatsEntriesOfSeveralDirectories() throws Exception {
+    List<FileStatusWithDigest> stats =
+        batchStat("a/file", "a/dir", "a/link", "b/file", "a/file");
+    assertThat(stats).hasSize(5);
+    assertThat(stats.get(0).isFile()).isTrue();
+    assertThat(stats.get(0).getSize()).isEqualTo(8);
+    assertThat(stats.get(0).getNodeId())
+        .isEqualTo(execRoot.getRelative("a/file").stat().getNodeId());
+    assertThat(stats.get(1).isDirectory()).isTrue();
+    assertThat(stats.get(2).isSymbolicLink()).isTrue();
+    assertThat(stats.get(3).isFile()).isTrue();
+    assertThat(stats.get(3).getSize()).isEqualTo(0);
+    assertThat(stats.get(4).getNodeId()).isEqualTo(stats.get(0).getNodeId());
+  }
+
+  @Test
+  public void testMissingEntriesAreNull() throws Exception {
+    List<FileStatusWithDigest> stats =
+        batchStat("a/missing", "a/file", "missing/file", "a/file/child");
+    assertThat(stats).hasSize(4);
+    assertThat(stats.get(0)).isNull();
+    assertThat(stats.get(1).isFile()).isTrue();
+    assertThat(stats.get(2)).isNull();
+    assertThat(stats.get(3)).isNull();
+  }
+
+  @Test
+  public void testTopLevelEntries() throws Exception {
+    List<FileStatusWithDigest> stats = batchStat("a", "b", "c");
+    assertThat(stats.get(0).isDirectory()).isTrue();
+    assertThat(stats.get(1).isDirectory()).isTrue();
+    assertThat(stats.get(2)).isNull();
+  }
+
+  @Test
+  public void testOnlyForUnixFileSystem() throws Exception {
+    assertThat(UnixBatchStat.create(new InMemoryFileSystem().getPath("/execroot"))).isNull();
+  }
+}
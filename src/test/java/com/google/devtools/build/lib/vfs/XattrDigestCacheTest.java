@@ -0,0 +1,145 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.hash.Hashing;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystem.HashFunction;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * Tests for {@link XattrDigestCache} and the selection of the digest function.
+ */
+@RunWith(JUnit4.class)
+public class XattrDigestCacheTest {
+
+  private Path workingDir;
+  private int computations;
+
+  private final XattrDigestCache.DigestComputer computer = new XattrDigestCache.DigestComputer() {
+    @Override
+    public byte[] compute(Path path) throws IOException {
+      computations++;
+      return Hashing.sha256().hashBytes(FileSystemUtils.readContent(path)).asBytes();
+    }
+  };
+
+  @Before
+  public void setUp() throws Exception {
+    FileSystem fileSystem = new JavaIoFileSystem();
+    workingDir = fileSystem.getPath(
+        new File(TestUtils.tmpDir()).getCanonicalPath() + "/xattrdigestcache");
+    FileSystemUtils.deleteTree(workingDir);
+    FileSystemUtils.createDirectoryAndParents(workingDir);
+    XattrDigestCache.setEnabled(true);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    XattrDigestCache.setEnabled(false);
+    FileSystem.setDigestFunction(HashFunction.MD5);
+    FileSystemUtils.deleteTree(workingDir);
+  }
+
+  private Path createOldFile(String name, String content) throws IOException {
+    Path file = workingDir.getRelative(name);
+    FileSystemUtils.writeContentAsLatin1(file, content);
+    file.setLastModifiedTime(System.currentTimeMillis() - 60000);
+    return file;
+  }
+
+  private static void assumeXattrsSupported(Path file) {
+    UserDefinedFileAttributeView view = Files.getFileAttributeView(
+        file.getPathFile().toPath(), UserDefinedFileAttributeView.class);
+    boolean supported;
+    try {
+      view.write("bazel.test", ByteBuffer.wrap(new byte[] {1}));
+      view.delete("bazel.test");
+      supported = true;
+    } catch (IOException | UnsupportedOperationException | NullPointerException e) {
+      supported = false;
+    }
+    Assume.assumeTrue(supported);
+  }
+
+  @Test
+  public void testDigestFunctionIsSelectable() throws Exception {
+    Path file = createOldFile("file", "hello");
+    assertThat(file.getDigest()).isEqualTo(Hashing.md5().hashString("hello", ISO_8859_1).asBytes());
+
+    FileSystem.setDigestFunction(HashFunction.SHA256);
+    assertThat(file.getDigest())
+        .isEqualTo(Hashing.sha256().hashString("hello", ISO_8859_1).asBytes());
+    assertThat(HashFunction.SHA256.getDigestLength()).isEqualTo(32);
+  }
+
+  @Test
+  public void testStoredDigestIsReused() throws Exception {
+    Path file = createOldFile("file", "hello");
+    assumeXattrsSupported(file);
+
+    byte[] first = XattrDigestCache.getDigest(file, HashFunction.SHA256, computer);
+    byte[] second = XattrDigestCache.getDigest(file, HashFunction.SHA256, computer);
+    assertThat(second).isEqualTo(first);
+    assertThat(computations).isEqualTo(1);
+  }
+
+  @Test
+  public void testModifiedFileIsDigestedAgain() throws Exception {
+    Path file = createOldFile("file", "hello");
+    assumeXattrsSupported(file);
+    XattrDigestCache.getDigest(file, HashFunction.SHA256, computer);
+
+    FileSystemUtils.writeContentAsLatin1(file, "world");
+    file.setLastModifiedTime(System.currentTimeMillis() - 30000);
+    assertThat(XattrDigestCache.getDigest(file, HashFunction.SHA256, computer))
+        .isEqualTo(Hashing.sha256().hashString("world", ISO_8859_1).asBytes());
+    assertThat(computations).isEqualTo(2);
+  }
+
+  @Test
+  public void testRecentlyModifiedFileIsNotStored() throws Exception {
+    Path file = workingDir.getRelative("new");
+    FileSystemUtils.writeContentAsLatin1(file, "hello");
+    assumeXattrsSupported(file);
+
+    XattrDigestCache.getDigest(file, HashFunction.SHA256, computer);
+    XattrDigestCache.getDigest(file, HashFunction.SHA256, computer);
+    assertThat(computations).isEqualTo(2);
+  }
+
+  @Test
+  public void testDisabledCacheAlwaysComputes() throws Exception {
+    XattrDigestCache.setEnabled(false);
+    Path file = createOldFile("file", "hello");
+    XattrDigestCache.getDigest(file, HashFunction.SHA256, computer);
+    XattrDigestCache.getDigest(file, HashFunction.SHA256, computer);
+    assertThat(computations).isEqualTo(2);
+  }
+}
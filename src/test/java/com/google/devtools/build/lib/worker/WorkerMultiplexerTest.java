@@ -0,0 +1,163 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link WorkerMultiplexer}, with the test in the role of the worker process.
+ */
+@RunWith(JUnit4.class)
+public class WorkerMultiplexerTest {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private PipedInputStream requests;
+  private PipedOutputStream responses;
+  private WorkerMultiplexer multiplexer;
+
+  @Before
+  public final void createMultiplexer() throws Exception {
+    requests = new PipedInputStream();
+    PipedInputStream responseStream = new PipedInputStream();
+    responses = new PipedOutputStream(responseStream);
+    multiplexer = new WorkerMultiplexer(
+        null, responseStream, new PipedOutputStream(requests), /*maxRequests=*/2, "test");
+  }
+
+  @After
+  public final void shutDown() throws Exception {
+    executor.shutdownNow();
+    responses.close();
+  }
+
+  private Future<WorkResponse> execute(final String argument) {
+    return executor.submit(new Callable<WorkResponse>() {
+      @Override
+      public WorkResponse call() throws Exception {
+        return multiplexer.execute(WorkRequest.newBuilder().addArguments(argument).build());
+      }
+    });
+  }
+
+  private WorkRequest readRequest(String expectedArgument) throws IOException {
+    WorkRequest request = WorkRequest.parseDelimitedFrom(requests);
+    assertThat(request.getArgumentsList()).containsExactly(expectedArgument);
+    assertThat(request.getRequestId()).isNotEqualTo(0);
+    return request;
+  }
+
+  private void respond(WorkRequest request) throws IOException {
+    WorkResponse.newBuilder()
+        .setRequestId(request.getRequestId())
+        .setOutput(request.getArguments(0))
+        .build()
+        .writeDelimitedTo(responses);
+    responses.flush();
+  }
+
+  private static String getOutput(Future<WorkResponse> response) throws Exception {
+    return response.get(TIMEOUT_SECONDS, TimeUnit.SECONDS).getOutput();
+  }
+
+  @Test
+  public void testOutOfOrderResponses() throws Exception {
+    Future<WorkResponse> first = execute("first");
+    WorkRequest firstRequest = readRequest("first");
+    Future<WorkResponse> second = execute("second");
+    WorkRequest secondRequest = readRequest("second");
+    assertThat(secondRequest.getRequestId()).isNotEqualTo(firstRequest.getRequestId());
+
+    respond(secondRequest);
+    assertThat(getOutput(second)).isEqualTo("second");
+    assertFalse(first.isDone());
+    respond(firstRequest);
+    assertThat(getOutput(first)).isEqualTo("first");
+    assertTrue(multiplexer.isAlive());
+  }
+
+  @Test
+  public void testWorkerExitFailsPendingRequests() throws Exception {
+    Future<WorkResponse> first = execute("first");
+    readRequest("first");
+    Future<WorkResponse> second = execute("second");
+    readRequest("second");
+
+    responses.close();
+    for (Future<WorkResponse> response : ImmutableList.of(first, second)) {
+      try {
+        response.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException e) {
+        assertThat(e.getCause()).isInstanceOf(IOException.class);
+        assertThat(e.getCause()).hasMessage("Worker process exited.");
+      }
+    }
+    assertFalse(multiplexer.isAlive());
+
+    // The failed requests released their slots, so a new request fails instead of blocking.
+    try {
+      getOutput(execute("third"));
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isInstanceOf(IOException.class);
+      assertThat(e.getCause()).hasMessage("Worker process exited.");
+    }
+  }
+
+  @Test
+  public void testInterruptedRequestKeepsSlotUntilResponse() throws Exception {
+    Future<WorkResponse> interrupted = execute("interrupted");
+    WorkRequest interruptedRequest = readRequest("interrupted");
+    interrupted.cancel(/*mayInterruptIfRunning=*/true);
+    Future<WorkResponse> second = execute("second");
+    WorkRequest secondRequest = readRequest("second");
+
+    // The worker is still processing the interrupted request, so there is no slot for this one.
+    Future<WorkResponse> third = execute("third");
+    Thread.sleep(100);
+    assertThat(requests.available()).isEqualTo(0);
+
+    respond(interruptedRequest);
+    WorkRequest thirdRequest = readRequest("third");
+    respond(thirdRequest);
+    respond(secondRequest);
+    assertThat(getOutput(third)).isEqualTo("third");
+    assertThat(getOutput(second)).isEqualTo("second");
+    assertTrue(multiplexer.isAlive());
+  }
+}
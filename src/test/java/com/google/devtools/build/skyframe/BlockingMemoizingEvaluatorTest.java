@@ -0,0 +1,418 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.COPY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.NotifyingInMemoryGraph.EventType;
+import com.google.devtools.build.skyframe.NotifyingInMemoryGraph.Listener;
+import com.google.devtools.build.skyframe.NotifyingInMemoryGraph.Order;
+import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Runs the {@link MemoizingEvaluatorTest} tests in the blocking mode of {@link ParallelEvaluator}.
+ *
+ * <p>Tests that count restarts, or that need deps requested one at a time to be evaluated
+ * concurrently, don't apply to this mode. The error bubbling, cycle and thread limit tests among
+ * them have equivalents below whose functions request their deps together.
+ */
+@RunWith(JUnit4.class)
+public class BlockingMemoizingEvaluatorTest extends MemoizingEvaluatorTest {
+  private static final String SEQUENTIAL_DEPS =
+      "A function waits for each dep it requests alone before requesting the next one";
+  private static final String NO_RESTARTS = "Functions aren't restarted";
+
+  @Override
+  protected MemoizingEvaluator getMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> functions,
+      Differencer differencer,
+      EvaluationProgressReceiver invalidationReceiver) {
+    MemoizingEvaluator evaluator =
+        super.getMemoizingEvaluator(functions, differencer, invalidationReceiver);
+    evaluator.setBlockOnMissingDeps(true);
+    return evaluator;
+  }
+
+  @Test
+  public void functionIsComputedOnce() throws Exception {
+    final AtomicInteger computations = new AtomicInteger();
+    final SkyKey first = GraphTester.toSkyKey("first");
+    final SkyKey second = GraphTester.toSkyKey("second");
+    tester.getOrCreate("top").setBuilder(new SkyFunction() {
+      @Override
+      public SkyValue compute(SkyKey skyKey, Environment env) {
+        computations.incrementAndGet();
+        StringValue firstValue = (StringValue) env.getValue(first);
+        StringValue secondValue = (StringValue) env.getValue(second);
+        if (env.valuesMissing()) {
+          return null;
+        }
+        return new StringValue(firstValue.getValue() + secondValue.getValue());
+      }
+
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return null;
+      }
+    });
+    tester.getOrCreate(first).addDependency("leaf").setComputedValue(COPY);
+    tester.getOrCreate(second).addDependency(first).setComputedValue(COPY);
+    tester.set("leaf", new StringValue("leaf"));
+    assertEquals(new StringValue("leafleaf"), tester.evalAndGet("top"));
+    assertEquals(1, computations.get());
+  }
+
+  /**
+   * Requests all its deps at once, and concatenates their values, or throws if it has an error.
+   */
+  private static class BatchFunction implements SkyFunction {
+    private final ImmutableList<SkyKey> deps;
+    private final boolean hasError;
+
+    private BatchFunction(boolean hasError, SkyKey... deps) {
+      this.deps = ImmutableList.copyOf(deps);
+      this.hasError = hasError;
+    }
+
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws GenericFunctionException {
+      Map<SkyKey, SkyValue> values = env.getValues(deps);
+      if (env.valuesMissing()) {
+        return null;
+      }
+      if (hasError) {
+        throw new GenericFunctionException(
+            new SomeErrorException(skyKey.toString()), Transience.PERSISTENT);
+      }
+      StringBuilder result = new StringBuilder();
+      for (SkyKey dep : deps) {
+        result.append(((StringValue) values.get(dep)).getValue());
+      }
+      return new StringValue(result.toString());
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  }
+
+  @Test
+  public void waitingEvaluationsAreLimited() throws Exception {
+    // Every node of a chain waits for the next one, which holds on to a thread per node. Beyond
+    // the limit, nodes are restarted instead.
+    int chainLength = 3 * ParallelEvaluator.MAX_WAITING_EVALUATIONS_PER_THREAD;
+    final AtomicInteger computations = new AtomicInteger();
+    final AtomicInteger waiting = new AtomicInteger();
+    final AtomicInteger maxWaiting = new AtomicInteger();
+    for (int i = 0; i < chainLength; i++) {
+      final SkyKey next = GraphTester.toSkyKey("node" + (i + 1));
+      tester.getOrCreate("node" + i).setBuilder(new SkyFunction() {
+        @Override
+        public SkyValue compute(SkyKey skyKey, Environment env) {
+          computations.incrementAndGet();
+          int nowWaiting = waiting.incrementAndGet();
+          synchronized (maxWaiting) {
+            maxWaiting.set(Math.max(maxWaiting.get(), nowWaiting));
+          }
+          StringValue value = (StringValue) env.getValue(next);
+          waiting.decrementAndGet();
+          return value == null ? null : new StringValue(value.getValue() + ".");
+        }
+
+        @Override
+        public String extractTag(SkyKey skyKey) {
+          return null;
+        }
+      });
+    }
+    tester.set("node" + chainLength, new StringValue("leaf"));
+    EvaluationResult<StringValue> result =
+        tester.eval(/*keepGoing=*/false, /*numThreads=*/1, GraphTester.toSkyKey("node0"));
+    assertEquals(new StringValue("leaf" + new String(new char[chainLength]).replace('\0', '.')),
+        result.get(GraphTester.toSkyKey("node0")));
+    // The one running evaluation may be about to wait when the others do.
+    assertThat(maxWaiting.get())
+        .isAtMost(ParallelEvaluator.MAX_WAITING_EVALUATIONS_PER_THREAD + 1);
+    assertThat(computations.get()).isGreaterThan(chainLength);
+  }
+
+  @Test
+  public void waitingEvaluationsDontExceedThreadLimit() throws Exception {
+    int numKeys = 10;
+    final AtomicInteger inProgressCount = new AtomicInteger();
+    final AtomicInteger maxInProgress = new AtomicInteger();
+    SkyKey[] subKeys = new SkyKey[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      subKeys[i] = GraphTester.toSkyKey("subKey" + i);
+      tester.getOrCreate(subKeys[i]).setBuilder(new SkyFunction() {
+        @Override
+        public SkyValue compute(SkyKey skyKey, Environment env) {
+          int inProgress = inProgressCount.incrementAndGet();
+          synchronized (maxInProgress) {
+            maxInProgress.set(Math.max(maxInProgress.get(), inProgress));
+          }
+          Uninterruptibles.sleepUninterruptibly(500, TimeUnit.MILLISECONDS);
+          inProgressCount.decrementAndGet();
+          return new StringValue("a");
+        }
+
+        @Override
+        public String extractTag(SkyKey skyKey) {
+          return null;
+        }
+      });
+    }
+    SkyKey topKey = GraphTester.toSkyKey("top");
+    tester.getOrCreate(topKey).setBuilder(new BatchFunction(/*hasError=*/false, subKeys));
+    // The thread of the waiting top-level node may be replaced, but no more threads run.
+    EvaluationResult<StringValue> result =
+        tester.eval(/*keepGoing=*/true, /*numThreads=*/5, topKey);
+    assertFalse(result.hasError());
+    assertEquals(new StringValue("aaaaaaaaaa"), result.get(topKey));
+    // Whether the pool replaces the waiting thread at once depends on the version of the JDK.
+    assertThat(maxInProgress.get()).isAtMost(5);
+  }
+
+  @Test
+  public void errorInDeepDiamondChainStopsPromptly() throws Exception {
+    // Every node of both rails waits for the two nodes below it, so that most evaluations wait when
+    // the error at the bottom stops the build. They must not keep the pool busy replacing threads.
+    int depth = 100;
+    SkyKey[] left = new SkyKey[depth];
+    SkyKey[] right = new SkyKey[depth];
+    SkyKey errorKey = GraphTester.toSkyKey("error");
+    tester.getOrCreate(errorKey).setHasError(true);
+    for (int i = 0; i < depth; i++) {
+      left[i] = GraphTester.toSkyKey("left-" + i);
+      right[i] = GraphTester.toSkyKey("right-" + i);
+      SkyKey[] deps = i == 0 ? new SkyKey[] {errorKey} : new SkyKey[] {left[i - 1], right[i - 1]};
+      tester.getOrCreate(left[i]).setBuilder(new BatchFunction(/*hasError=*/false, deps));
+      tester.getOrCreate(right[i]).setBuilder(new BatchFunction(/*hasError=*/false, deps));
+    }
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      EvaluationResult<StringValue> result =
+          tester.eval(/*keepGoing=*/false, left[depth - 1], right[depth - 1]);
+      assertThat(result.getError().getRootCauses()).containsExactly(errorKey);
+      tester.getOrCreate(errorKey, /*markAsModified=*/true);
+      tester.invalidate();
+    }
+    // This takes well under a second, but took minutes when waiting threads kept the pool busy.
+    assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos)).isLessThan(30L);
+  }
+
+  /** Like {@link #bubbleRace}, but the deps are requested together, so they are all waited for. */
+  @Test
+  public void bubbleRaceWhileWaiting() throws Exception {
+    final SkyKey sleepyKey = GraphTester.toSkyKey("sleepyValue");
+    final SkyKey badKey = GraphTester.toSkyKey("badValue");
+    final SkyKey otherKey = GraphTester.toSkyKey("otherValue1");
+    tester.getOrCreate("top").setBuilder(new SkyFunction() {
+      @Override
+      public SkyValue compute(SkyKey skyKey, Environment env) {
+        Map<SkyKey, ValueOrException<SomeErrorException>> values =
+            env.getValuesOrThrow(ImmutableList.of(sleepyKey, badKey), SomeErrorException.class);
+        try {
+          values.get(badKey).get();
+        } catch (SomeErrorException e) {
+          // Requests a dep on an already computed value, while error bubbling.
+          env.getValue(otherKey);
+        }
+        if (!env.valuesMissing()) {
+          throw new AssertionError("SleepyValue should always be unavailable");
+        }
+        return null;
+      }
+
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return null;
+      }
+    });
+    tester.getOrCreate(sleepyKey).setBuilder(new SkyFunction() {
+      @Override
+      public SkyValue compute(SkyKey skyKey, Environment env) throws InterruptedException {
+        Thread.sleep(99999);
+        throw new AssertionError("I should have been interrupted");
+      }
+
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return null;
+      }
+    });
+    tester.getOrCreate(badKey).addDependency(otherKey).setHasError(true);
+    tester.getOrCreate(otherKey).setConstantValue(new StringValue("otherVal1"));
+
+    EvaluationResult<SkyValue> result = tester.eval(/*keepGoing=*/false, "top");
+    assertTrue(result.hasError());
+    assertEquals(badKey, Iterables.getOnlyElement(result.getError().getRootCauses()));
+    assertThat(result.keyNames()).isEmpty();
+  }
+
+  /**
+   * Like {@link #incompleteDirectDepsAreClearedBeforeKeepGoing}, but the deps of the top-level
+   * node are requested together, so that it waits for them when the error is thrown.
+   */
+  @Test
+  public void incompleteDirectDepsOfWaitingNodeAreCleared() throws Exception {
+    CountDownLatch slowStart = new CountDownLatch(1);
+    CountDownLatch errorFinish = new CountDownLatch(1);
+    SkyKey errorKey = GraphTester.toSkyKey("error");
+    tester.getOrCreate(errorKey).setBuilder(
+        new ChainedFunction(/*notifyStart=*/null, /*waitToFinish=*/slowStart,
+            /*notifyFinish=*/errorFinish, /*waitForException=*/false, /*value=*/null,
+            /*deps=*/ImmutableList.<SkyKey>of()));
+    SkyKey slowKey = GraphTester.toSkyKey("slow");
+    tester.getOrCreate(slowKey).setBuilder(
+        new ChainedFunction(/*notifyStart=*/slowStart, /*waitToFinish=*/errorFinish,
+            /*notifyFinish=*/null, /*waitForException=*/true, new StringValue("slow"),
+            /*deps=*/ImmutableList.<SkyKey>of()));
+    SkyKey midKey = GraphTester.toSkyKey("mid");
+    tester.getOrCreate(midKey).addDependency(slowKey).setComputedValue(COPY);
+    SkyKey topKey = GraphTester.toSkyKey("top");
+    tester.getOrCreate(topKey).setBuilder(new BatchFunction(/*hasError=*/false, midKey, errorKey));
+    EvaluationResult<StringValue> result = tester.eval(/*keepGoing=*/false, topKey);
+    assertThat(result.getError().getRootCauses()).containsExactly(errorKey);
+    assertNull(tester.getExistingValue(midKey));
+
+    tester.getOrCreate(slowKey, /*markAsModified=*/false).setBuilder(null)
+        .setConstantValue(new StringValue("slow"));
+    tester.evalAndGet(/*keepGoing=*/false, midKey);
+    // topKey must not access midKey as if it were already registered as a dependency.
+    result = tester.eval(/*keepGoing=*/true, topKey);
+    assertThat(result.getError(topKey).getRootCauses()).containsExactly(errorKey);
+  }
+
+  @Test
+  public void cycleOfWaitingNodes() throws Exception {
+    SkyKey topKey = GraphTester.toSkyKey("top");
+    SkyKey cycle1Key = GraphTester.toSkyKey("cycle1");
+    SkyKey cycle2Key = GraphTester.toSkyKey("cycle2");
+    tester.getOrCreate(topKey).setBuilder(new BatchFunction(/*hasError=*/false, cycle1Key));
+    tester.getOrCreate(cycle1Key).setBuilder(new BatchFunction(/*hasError=*/false, cycle2Key));
+    tester.getOrCreate(cycle2Key).setBuilder(new BatchFunction(/*hasError=*/false, cycle1Key));
+    for (boolean keepGoing : new boolean[] {false, true}) {
+      EvaluationResult<StringValue> result = tester.eval(keepGoing, topKey);
+      CycleInfo cycleInfo = Iterables.getOnlyElement(result.getError(topKey).getCycleInfo());
+      assertThat(cycleInfo.getPathToCycle()).containsExactly(topKey);
+      assertThat(cycleInfo.getCycle()).containsExactly(cycle1Key, cycle2Key).inOrder();
+    }
+  }
+
+  /**
+   * Like {@link #cycleAndErrorAndReady}, an error bubbles up into a cycle, whose nodes all wait
+   * when the error is thrown.
+   */
+  @Test
+  public void errorBubblesIntoCycleOfWaitingNodes() throws Exception {
+    final SkyKey cycle1Key = GraphTester.toSkyKey("cycle1");
+    final SkyKey cycle2Key = GraphTester.toSkyKey("cycle2");
+    // Whether cycle2 depends on cycle1, so that the error is thrown into a cycle.
+    final CountDownLatch cycleComplete = new CountDownLatch(1);
+    // Since DeterministicInMemoryGraph alphabetizes reverse deps, the error bubbles up to "cycle2"
+    // before "top".
+    setGraphForTesting(new DeterministicInMemoryGraph(new Listener() {
+      @Override
+      public void accept(SkyKey key, EventType type, Order order, @Nullable Object context) {
+        if (key.equals(cycle1Key) && type == EventType.ADD_REVERSE_DEP && order == Order.AFTER
+            && cycle2Key.equals(context)) {
+          cycleComplete.countDown();
+        }
+      }
+    }));
+    SkyKey topKey = GraphTester.toSkyKey("top");
+    SkyKey errorKey = GraphTester.toSkyKey("error");
+    tester.getOrCreate(topKey).setBuilder(new BatchFunction(/*hasError=*/false, cycle1Key));
+    tester.getOrCreate(cycle1Key)
+        .setBuilder(new BatchFunction(/*hasError=*/false, errorKey, cycle2Key));
+    tester.getOrCreate(cycle2Key).setBuilder(new BatchFunction(/*hasError=*/false, cycle1Key));
+    tester.getOrCreate(errorKey).setBuilder(new ChainedFunction(/*notifyStart=*/null,
+        /*waitToFinish=*/cycleComplete, /*notifyFinish=*/null, /*waitForException=*/false,
+        /*value=*/null, ImmutableList.<SkyKey>of()));
+    EvaluationResult<StringValue> result = tester.eval(/*keepGoing=*/false, topKey);
+    TrackingAwaiter.INSTANCE.assertNoErrors();
+    assertThat(result.errorMap().keySet()).containsExactly(topKey);
+    CycleInfo cycleInfo = Iterables.getOnlyElement(result.getError(topKey).getCycleInfo());
+    assertThat(cycleInfo.getPathToCycle()).containsExactly(topKey);
+    assertThat(cycleInfo.getCycle()).containsExactly(cycle1Key, cycle2Key).inOrder();
+  }
+
+  @Override
+  @Ignore(SEQUENTIAL_DEPS)
+  @Test
+  public void bubbleRace() {}
+
+  @Override
+  @Ignore(SEQUENTIAL_DEPS)
+  @Test
+  public void cycleAndErrorAndReady() {}
+
+  @Override
+  @Ignore(SEQUENTIAL_DEPS)
+  @Test
+  public void limitEvaluatorThreads() {}
+
+  @Override
+  @Ignore(SEQUENTIAL_DEPS)
+  @Test
+  public void incompleteDirectDepsAreClearedBeforeInvalidation() {}
+
+  @Override
+  @Ignore(SEQUENTIAL_DEPS)
+  @Test
+  public void incompleteDirectDepsAreClearedBeforeKeepGoing() {}
+
+  @Override
+  @Ignore(SEQUENTIAL_DEPS)
+  @Test
+  public void incompleteDirectDepsForDirtyValue() {}
+
+  @Override
+  @Ignore(NO_RESTARTS)
+  @Test
+  public void dirtyChildEnqueuesParentDuringCheckDependencies_ThrowDoesntEnqueue() {}
+
+  @Override
+  @Ignore(NO_RESTARTS)
+  @Test
+  public void dirtyChildEnqueuesParentDuringCheckDependencies_NoThrow() {}
+
+  @Override
+  @Ignore(NO_RESTARTS)
+  @Test
+  public void changePruningWithEvent() {}
+}
@@ -0,0 +1,37 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Concurrency tests for {@link CompactInMemoryGraph}. */
+@RunWith(JUnit4.class)
+public class CompactInMemoryGraphConcurrencyTest extends GraphConcurrencyTest {
+  private ProcessableGraph graph;
+
+  @Override
+  protected void makeGraph() {
+    graph = new CompactInMemoryGraph();
+    // Deps can only be stored if they are in the graph, which the evaluator guarantees.
+    graph.createIfAbsentBatch(ImmutableList.of(key("dep")));
+  }
+
+  @Override
+  protected ProcessableGraph getGraph(Version version) {
+    return graph;
+  }
+}
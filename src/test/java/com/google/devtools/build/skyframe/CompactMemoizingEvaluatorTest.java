@@ -0,0 +1,106 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Map;
+
+/**
+ * Runs the {@link MemoizingEvaluatorTest} tests with a {@link CompactInMemoryGraph}.
+ */
+@RunWith(JUnit4.class)
+public class CompactMemoizingEvaluatorTest extends MemoizingEvaluatorTest {
+  private MemoizingEvaluator evaluator;
+
+  @Override
+  protected MemoizingEvaluator getMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> functions,
+      Differencer differencer,
+      EvaluationProgressReceiver invalidationReceiver) {
+    evaluator = new InMemoryMemoizingEvaluator(
+        functions, differencer, invalidationReceiver, emittedEventState, true,
+        /*compactGraph=*/true);
+    return evaluator;
+  }
+
+  @Test
+  public void groupedDepsAreStoredInOrder() throws Exception {
+    CompactInMemoryGraph graph = new CompactInMemoryGraph();
+    SkyKey parent = GraphTester.skyKey("parent");
+    SkyKey a = GraphTester.skyKey("a");
+    SkyKey b = GraphTester.skyKey("b");
+    SkyKey c = GraphTester.skyKey("c");
+    graph.createIfAbsentBatch(ImmutableList.of(parent, a, b, c));
+    GroupedList<SkyKey> deps = new GroupedList<>();
+    deps.appendGroup(ImmutableList.of(c));
+    deps.appendGroup(ImmutableList.of(a, b));
+    CompactNodeEntry entry = (CompactNodeEntry) graph.get(parent);
+    assertThat(entry.decompressDirectDeps(entry.compressDirectDeps(deps))).isEqualTo(deps);
+    assertThat(entry.decompressDirectDeps(entry.compressDirectDeps(new GroupedList<SkyKey>())))
+        .isEqualTo(new GroupedList<SkyKey>());
+  }
+
+  @Test
+  public void singleDepIsStoredAsKeyOfGraph() throws Exception {
+    CompactInMemoryGraph graph = new CompactInMemoryGraph();
+    SkyKey parent = GraphTester.skyKey("parent");
+    SkyKey dep = GraphTester.skyKey("dep");
+    graph.createIfAbsentBatch(ImmutableList.of(parent, dep));
+    GroupedList<SkyKey> deps = new GroupedList<>();
+    deps.appendGroup(ImmutableList.of(GraphTester.skyKey("dep")));
+    CompactNodeEntry entry = (CompactNodeEntry) graph.get(parent);
+    Object compressedDeps = entry.compressDirectDeps(deps);
+    assertThat(compressedDeps).isSameAs(dep);
+    assertThat(entry.decompressDirectDeps(compressedDeps)).isEqualTo(deps);
+  }
+
+  @Test
+  public void removedIdsAreReused() throws Exception {
+    CompactInMemoryGraph graph = new CompactInMemoryGraph();
+    SkyKey a = GraphTester.skyKey("a");
+    SkyKey b = GraphTester.skyKey("b");
+    graph.createIfAbsentBatch(ImmutableList.of(a));
+    int id = graph.getId(a);
+    graph.remove(a);
+    graph.createIfAbsentBatch(ImmutableList.of(b));
+    assertThat(graph.getId(b)).isEqualTo(id);
+    assertThat(graph.getKey(id)).isEqualTo(b);
+  }
+
+  @Test
+  public void dumpShowsMemoryByFunction() throws Exception {
+    tester.getOrCreate("top").addDependency("leaf1").addDependency("leaf2")
+        .setComputedValue(CONCATENATE);
+    tester.set("leaf1", new StringValue("a"));
+    tester.set("leaf2", new StringValue("b"));
+    assertThat(tester.evalAndGet("top")).isEqualTo(new StringValue("ab"));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    evaluator.dump(/*summarize=*/true, new PrintStream(out));
+    assertThat(out.toString())
+        .contains(GraphTester.NODE_TYPE + ": nodes=3, direct deps=2, reverse deps=2, bytes=");
+  }
+}
@@ -53,6 +53,7 @@ import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -122,6 +123,10 @@ public class EagerInvalidatorTest {
     throw new UnsupportedOperationException("Sublcasses must override");
   }
 
+  protected InMemoryGraph newGraph() {
+    return new InMemoryGraph();
+  }
+
   protected InvalidationType defaultInvalidationType() {
     throw new UnsupportedOperationException("Sublcasses must override");
   }
@@ -211,7 +216,7 @@ public class EagerInvalidatorTest {
         throw new UnsupportedOperationException();
       }
     };
-    graph = new InMemoryGraph();
+    graph = newGraph();
     set("a", "a");
     set("b", "b");
     tester.getOrCreate("ab").addDependency("a").addDependency("b")
@@ -256,7 +261,7 @@ public class EagerInvalidatorTest {
 
     // Given a graph consisting of two nodes, "a" and "ab" such that "ab" depends on "a",
     // And given "ab" is in error,
-    graph = new InMemoryGraph();
+    graph = newGraph();
     set("a", "a");
     tester.getOrCreate("ab").addDependency("a").setHasError(true);
     eval(false, skyKey("ab"));
@@ -297,7 +302,7 @@ public class EagerInvalidatorTest {
         throw new UnsupportedOperationException();
       }
     };
-    graph = new InMemoryGraph();
+    graph = newGraph();
     invalidateWithoutError(receiver, skyKey("a"));
     assertThat(invalidated).isEmpty();
     set("a", "a");
@@ -313,7 +318,7 @@ public class EagerInvalidatorTest {
     WeakReference<HeavyValue> weakRef = new WeakReference<>(heavyValue);
     tester.set("a", heavyValue);
 
-    graph = new InMemoryGraph();
+    graph = newGraph();
     eval(false, key);
     invalidate(graph, null, key);
 
@@ -331,7 +336,7 @@ public class EagerInvalidatorTest {
 
   @Test
   public void reverseDepsConsistent() throws Exception {
-    graph = new InMemoryGraph();
+    graph = newGraph();
     set("a", "a");
     set("b", "b");
     set("c", "c");
@@ -371,7 +376,7 @@ public class EagerInvalidatorTest {
 
   @Test
   public void interruptChild() throws Exception {
-    graph = new InMemoryGraph();
+    graph = newGraph();
     int numValues = 50; // More values than the invalidator has threads.
     final SkyKey[] family = new SkyKey[numValues];
     final SkyKey child = GraphTester.skyKey("child");
@@ -510,7 +515,7 @@ public class EagerInvalidatorTest {
     Random random = new Random(TestUtils.getRandomSeed());
     int graphSize = 1000;
     int tries = 5;
-    graph = new InMemoryGraph();
+    graph = newGraph();
     SkyKey[] values = constructLargeGraph(graphSize);
     eval(/*keepGoing=*/false, values);
     final Thread mainThread = Thread.currentThread();
@@ -579,7 +584,7 @@ public class EagerInvalidatorTest {
   }
 
   protected void setupInvalidatableGraph() throws Exception {
-    graph = new InMemoryGraph();
+    graph = newGraph();
     set("a", "a");
     set("b", "b");
     tester.getOrCreate("ab").addDependency("a").addDependency("b").setComputedValue(CONCATENATE);
@@ -717,5 +722,61 @@ public class EagerInvalidatorTest {
       invalidate(graph, receiver, skyKey("a"));
       assertThat(dirtyKeyTracker.getDirtyKeys()).hasSize(2);
     }
+
+    @Test
+    public void dirtiesParentsOfManyBatches() throws Exception {
+      graph = newGraph();
+      set("leaf", "leaf");
+      int parentCount = 300;
+      SkyKey[] parents = new SkyKey[parentCount];
+      for (int i = 0; i < parentCount; i++) {
+        parents[i] = skyKey("parent" + i);
+        tester.getOrCreate(parents[i]).addDependency("leaf").setComputedValue(CONCATENATE);
+        // Grandparents are shared by many parents, so they are reached from several batches.
+        tester.getOrCreate("grandparent" + (i % 10)).addDependency(parents[i])
+            .setComputedValue(CONCATENATE);
+      }
+      SkyKey[] grandparents = new SkyKey[10];
+      for (int i = 0; i < 10; i++) {
+        grandparents[i] = skyKey("grandparent" + i);
+      }
+      eval(/*keepGoing=*/false, grandparents);
+
+      TrackingInvalidationReceiver receiver = new TrackingInvalidationReceiver();
+      invalidateWithoutError(receiver, skyKey("leaf"));
+      assertThat(receiver.dirty).hasSize(1 + parentCount + 10);
+      assertThat(dirtyKeyTracker.getDirtyKeys()).hasSize(1 + parentCount + 10);
+      assertTrue(graph.get(skyKey("leaf")).isChanged());
+      for (SkyKey key : Iterables.concat(ImmutableList.copyOf(parents),
+          ImmutableList.copyOf(grandparents))) {
+        assertTrue(graph.get(key).isDirty());
+        assertFalse(graph.get(key).isChanged());
+      }
+    }
+  }
+
+  /**
+   * Test suite for the dirtying invalidator on a compact graph, which deduplicates nodes by id,
+   * running on a work-stealing pool.
+   */
+  @RunWith(JUnit4.class)
+  public static class CompactGraphDirtyingInvalidatorTest extends DirtyingInvalidatorTest {
+    @Override
+    protected InMemoryGraph newGraph() {
+      return new CompactInMemoryGraph();
+    }
+
+    @Override
+    protected void invalidate(DirtiableGraph graph, EvaluationProgressReceiver invalidationReceiver,
+        SkyKey... keys) throws InterruptedException {
+      state.update(ImmutableList.copyOf(keys));
+      if (!state.isEmpty()) {
+        DirtyingNodeVisitor dirtyingNodeVisitor =
+            new DirtyingNodeVisitor(graph, invalidationReceiver, state, dirtyKeyTracker,
+                new ForkJoinPool(4), /*supportInterruptions=*/true);
+        visitor.set(dirtyingNodeVisitor);
+        dirtyingNodeVisitor.run();
+      }
+    }
   }
 }
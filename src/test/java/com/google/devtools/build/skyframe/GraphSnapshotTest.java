@@ -0,0 +1,158 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/** Tests for {@link GraphSnapshot}. */
+@RunWith(JUnit4.class)
+public class GraphSnapshotTest {
+
+  private static final String COMPATIBILITY_KEY = "key";
+
+  private final SkyKey leaf = GraphTester.toSkyKey("leaf");
+  private final SkyKey top = GraphTester.toSkyKey("top");
+  private GraphTester tester;
+  private RecordingDifferencer differencer;
+
+  @Before
+  public void setUp() {
+    tester = new GraphTester();
+    differencer = new RecordingDifferencer();
+  }
+
+  private InMemoryMemoizingEvaluator newEvaluator() {
+    differencer = new RecordingDifferencer();
+    return new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), differencer);
+  }
+
+  private static SkyValue eval(MemoizingEvaluator evaluator, long version, SkyKey key)
+      throws InterruptedException {
+    EvaluationResult<SkyValue> result = evaluator.evaluate(ImmutableList.of(key),
+        new IntVersion(version), /*keepGoing=*/false, 1, NullEventHandler.INSTANCE);
+    return result.get(key);
+  }
+
+  private static byte[] write(InMemoryMemoizingEvaluator evaluator) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    evaluator.writeSnapshot(Predicates.<SkyKey>alwaysTrue(), COMPATIBILITY_KEY, out);
+    return out.toByteArray();
+  }
+
+  private static int restore(InMemoryMemoizingEvaluator evaluator, byte[] snapshot, String key)
+      throws Exception {
+    return evaluator.restoreSnapshot(key, new ByteArrayInputStream(snapshot));
+  }
+
+  @Test
+  public void restoredValuesAreNotRecomputed() throws Exception {
+    tester.set(leaf, new StringValue("a"));
+    tester.getOrCreate(top).addDependency(leaf).setComputedValue(GraphTester.COPY);
+    InMemoryMemoizingEvaluator evaluator = newEvaluator();
+    assertThat(eval(evaluator, 0, top)).isEqualTo(new StringValue("a"));
+    byte[] snapshot = write(evaluator);
+
+    InMemoryMemoizingEvaluator restored = newEvaluator();
+    assertThat(restore(restored, snapshot, COMPATIBILITY_KEY)).isEqualTo(2);
+    // A recomputation would now produce a different value.
+    tester.getOrCreate(top).setComputedValue(GraphTester.formatter(leaf, "recomputed %s"));
+    assertThat(eval(restored, 0, top)).isEqualTo(new StringValue("a"));
+  }
+
+  @Test
+  public void invalidatedRestoredValuesAreRecomputed() throws Exception {
+    tester.set(leaf, new StringValue("a"));
+    tester.getOrCreate(top).addDependency(leaf).setComputedValue(GraphTester.COPY);
+    InMemoryMemoizingEvaluator evaluator = newEvaluator();
+    eval(evaluator, 0, top);
+    byte[] snapshot = write(evaluator);
+
+    InMemoryMemoizingEvaluator restored = newEvaluator();
+    restore(restored, snapshot, COMPATIBILITY_KEY);
+    tester.set(leaf, new StringValue("b"));
+    differencer.invalidate(ImmutableList.of(leaf));
+    assertThat(eval(restored, 0, top)).isEqualTo(new StringValue("b"));
+    assertThat(restored.getExistingValueForTesting(leaf)).isEqualTo(new StringValue("b"));
+  }
+
+  @Test
+  public void parentsOfUnserializableValuesAreNotRestored() throws Exception {
+    tester.set(leaf, new UnserializableValue());
+    tester.getOrCreate(top).addDependency(leaf).setConstantValue(new StringValue("top"));
+    InMemoryMemoizingEvaluator evaluator = newEvaluator();
+    eval(evaluator, 0, top);
+    byte[] snapshot = write(evaluator);
+
+    InMemoryMemoizingEvaluator restored = newEvaluator();
+    assertThat(restore(restored, snapshot, COMPATIBILITY_KEY)).isEqualTo(0);
+    assertThat(restored.getExistingValueForTesting(top)).isNull();
+  }
+
+  @Test
+  public void snapshotWithOtherCompatibilityKeyIsIgnored() throws Exception {
+    tester.set(leaf, new StringValue("a"));
+    InMemoryMemoizingEvaluator evaluator = newEvaluator();
+    eval(evaluator, 0, leaf);
+    byte[] snapshot = write(evaluator);
+
+    InMemoryMemoizingEvaluator restored = newEvaluator();
+    assertThat(restore(restored, snapshot, "other key")).isEqualTo(0);
+    assertThat(restored.getExistingValueForTesting(leaf)).isNull();
+  }
+
+  @Test
+  public void snapshotIsNotRestoredAfterEvaluation() throws Exception {
+    tester.set(leaf, new StringValue("a"));
+    InMemoryMemoizingEvaluator evaluator = newEvaluator();
+    eval(evaluator, 0, leaf);
+    byte[] snapshot = write(evaluator);
+
+    assertThat(restore(evaluator, snapshot, COMPATIBILITY_KEY)).isEqualTo(0);
+  }
+
+  @Test
+  public void snapshotIsOutdatedOnlyAfterEvaluation() throws Exception {
+    tester.set(leaf, new StringValue("a"));
+    InMemoryMemoizingEvaluator evaluator = newEvaluator();
+    assertThat(evaluator.hasEvaluatedSinceLastSnapshot()).isFalse();
+    eval(evaluator, 0, leaf);
+    assertThat(evaluator.hasEvaluatedSinceLastSnapshot()).isTrue();
+    byte[] snapshot = write(evaluator);
+    assertThat(evaluator.hasEvaluatedSinceLastSnapshot()).isFalse();
+    eval(evaluator, 1, leaf);
+    assertThat(evaluator.hasEvaluatedSinceLastSnapshot()).isTrue();
+
+    InMemoryMemoizingEvaluator restored = newEvaluator();
+    restore(restored, snapshot, COMPATIBILITY_KEY);
+    assertThat(restored.hasEvaluatedSinceLastSnapshot()).isFalse();
+  }
+
+  private static class UnserializableValue implements SkyValue {
+    @SuppressWarnings("unused")
+    private final Object notSerializable = new Object();
+  }
+}
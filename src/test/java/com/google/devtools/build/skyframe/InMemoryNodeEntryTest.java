@@ -17,6 +17,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -420,6 +421,57 @@ public class InMemoryNodeEntryTest {
     assertEquals(new IntVersion(0L), entry.getVersion());
   }
 
+  /** Returns a dirty entry with a dep whose value was evicted, once it started evaluation. */
+  private static InMemoryNodeEntry evictedEntry(SkyKey dep, SkyValue value) {
+    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    addTemporaryDirectDep(entry, dep);
+    entry.signalDep();
+    setValue(entry, value, /*errorInfo=*/null, /*graphVersion=*/0L);
+    entry.markDirty(/*isChanged=*/false);
+    assertTrue(entry.evictLastBuildValue());
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    assertEquals(NodeEntry.DirtyState.CHECK_DEPENDENCIES, entry.getDirtyState());
+    assertThat(entry.getNextDirtyDirectDeps()).containsExactly(dep);
+    addTemporaryDirectDep(entry, dep);
+    return entry;
+  }
+
+  @Test
+  public void evictedValueIsReusedIfNotCollected() {
+    IntegerValue value = new IntegerValue(5);
+    InMemoryNodeEntry entry = evictedEntry(key("dep"), value);
+    entry.signalDep(new IntVersion(0L));
+    assertEquals(NodeEntry.DirtyState.VERIFIED_CLEAN, entry.getDirtyState());
+    entry.markClean();
+    assertSame(value, entry.getValue());
+    assertEquals(new IntVersion(0L), entry.getVersion());
+  }
+
+  @Test
+  public void evictedValueIsComparedWithRebuiltValue() {
+    IntegerValue value = new IntegerValue(5);
+    InMemoryNodeEntry entry = evictedEntry(key("dep"), value);
+    entry.signalDep(new IntVersion(1L));
+    assertEquals(NodeEntry.DirtyState.NEEDS_REBUILDING, entry.getDirtyState());
+    assertThat(entry.markRebuildingAndGetAllRemainingDirtyDirectDeps()).isEmpty();
+    setValue(entry, new IntegerValue(5), /*errorInfo=*/null, /*graphVersion=*/1L);
+    assertSame(value, entry.getValue());
+    assertEquals(new IntVersion(0L), entry.getVersion());
+  }
+
+  @Test
+  public void collectedEvictedValueIsRebuiltAndChanged() {
+    InMemoryNodeEntry entry = evictedEntry(key("dep"), new IntegerValue(5));
+    entry.clearEvictedValueForTesting();
+    assertNull(entry.toValue());
+    entry.signalDep(new IntVersion(0L));
+    assertEquals(NodeEntry.DirtyState.NEEDS_REBUILDING, entry.getDirtyState());
+    assertThat(entry.markRebuildingAndGetAllRemainingDirtyDirectDeps()).isEmpty();
+    setValue(entry, new IntegerValue(5), /*errorInfo=*/null, /*graphVersion=*/1L);
+    assertEquals(new IntVersion(1L), entry.getVersion());
+  }
+
   @Test
   public void noPruneWhenDetailsChange() {
     NodeEntry entry = new InMemoryNodeEntry();
@@ -385,6 +385,113 @@ public class MemoizingEvaluatorTest {
     tester.evaluator.deleteDirty(0);
   }
 
+  /** Returns a computer that concatenates the values of its deps and counts its invocations. */
+  private static ValueComputer countingConcatenate(final AtomicInteger count) {
+    return new ValueComputer() {
+      @Override
+      public SkyValue compute(Map<SkyKey, SkyValue> deps, SkyFunction.Environment env)
+          throws InterruptedException {
+        count.incrementAndGet();
+        return CONCATENATE.compute(deps, env);
+      }
+    };
+  }
+
+  @Test
+  public void evictedValueIsReusedUntilCollected() throws Exception {
+    SkyKey leaf = GraphTester.skyKey("leaf");
+    SkyKey mid = GraphTester.skyKey("mid");
+    SkyKey top = GraphTester.skyKey("top");
+    AtomicInteger midCount = new AtomicInteger();
+    AtomicInteger topCount = new AtomicInteger();
+    tester.set(leaf, new StringValue("leafy"));
+    tester.getOrCreate(mid).addDependency(leaf).setComputedValue(countingConcatenate(midCount));
+    tester.getOrCreate(top).addDependency(mid).setComputedValue(countingConcatenate(topCount));
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("leafy"));
+
+    tester.evaluator.evict(Predicates.in(ImmutableSet.of(leaf, mid)));
+    tester.eval(/*keepGoing=*/false, leaf);
+    // The leaf has no deps, so it can't be evicted.
+    assertThat(tester.driver.getExistingValueForTesting(leaf)).isNotNull();
+    assertThat(tester.getDirtyKeys()).containsExactly(mid, top);
+
+    // The evicted value was not garbage collected, so neither mid nor top is rebuilt.
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("leafy"));
+    assertEquals(1, midCount.get());
+    assertEquals(1, topCount.get());
+  }
+
+  @Test
+  public void evictedValueRecomputedEqualDoesNotRebuildParents() throws Exception {
+    SkyKey leaf = GraphTester.skyKey("leaf");
+    SkyKey mid = GraphTester.skyKey("mid");
+    SkyKey top = GraphTester.skyKey("top");
+    final AtomicInteger midCount = new AtomicInteger();
+    AtomicInteger topCount = new AtomicInteger();
+    tester.set(leaf, new StringValue("leafy"));
+    // Like a glob whose directory got a file that doesn't match, mid doesn't change with leaf.
+    tester.getOrCreate(mid).addDependency(leaf).setComputedValue(new ValueComputer() {
+      @Override
+      public SkyValue compute(Map<SkyKey, SkyValue> deps, SkyFunction.Environment env) {
+        midCount.incrementAndGet();
+        return new StringValue("mid");
+      }
+    });
+    tester.getOrCreate(top).addDependency(mid).setComputedValue(countingConcatenate(topCount));
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("mid"));
+
+    tester.evaluator.evict(Predicates.equalTo(mid));
+    tester.set(leaf, new StringValue("crunchy"));
+    tester.invalidate();
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("mid"));
+    assertEquals(2, midCount.get());
+    // The new value of mid is equal to the evicted one, so top is not rebuilt.
+    assertEquals(1, topCount.get());
+  }
+
+  @Test
+  public void parentOfCollectedEvictedValueIsPrunedIfItsValueIsUnchanged() throws Exception {
+    setGraphForTesting(new NotifyingInMemoryGraph(Listener.NULL_LISTENER));
+    SkyKey leaf = GraphTester.skyKey("leaf");
+    SkyKey mid = GraphTester.skyKey("mid");
+    SkyKey top = GraphTester.skyKey("top");
+    SkyKey root = GraphTester.skyKey("root");
+    AtomicInteger rootCount = new AtomicInteger();
+    tester.set(leaf, new StringValue("leafy"));
+    tester.getOrCreate(mid).addDependency(leaf).setComputedValue(CONCATENATE);
+    tester.getOrCreate(top).addDependency(mid).setComputedValue(CONCATENATE);
+    tester.getOrCreate(root).addDependency(top).setComputedValue(countingConcatenate(rootCount));
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, root)).isEqualTo(new StringValue("leafy"));
+
+    tester.evaluator.evict(Predicates.equalTo(mid));
+    tester.eval(/*keepGoing=*/false, leaf);
+    ((InMemoryNodeEntry) graph.get(mid)).clearEvictedValueForTesting();
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, root)).isEqualTo(new StringValue("leafy"));
+    // The value of mid was collected, so mid was considered changed and top was rebuilt. But top
+    // computed the same value as before, so root was not rebuilt.
+    assertEquals(1, rootCount.get());
+  }
+
+  @Test
+  public void evictedValueWithChangedDepIsRebuiltWithParents() throws Exception {
+    SkyKey leaf = GraphTester.skyKey("leaf");
+    SkyKey mid = GraphTester.skyKey("mid");
+    SkyKey top = GraphTester.skyKey("top");
+    AtomicInteger midCount = new AtomicInteger();
+    AtomicInteger topCount = new AtomicInteger();
+    tester.set(leaf, new StringValue("leafy"));
+    tester.getOrCreate(mid).addDependency(leaf).setComputedValue(countingConcatenate(midCount));
+    tester.getOrCreate(top).addDependency(mid).setComputedValue(countingConcatenate(topCount));
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("leafy"));
+
+    tester.evaluator.evict(Predicates.equalTo(mid));
+    tester.set(leaf, new StringValue("crunchy"));
+    tester.invalidate();
+    assertThat(tester.evalAndGet(/*keepGoing=*/false, top)).isEqualTo(new StringValue("crunchy"));
+    assertEquals(2, midCount.get());
+    assertEquals(2, topCount.get());
+  }
+
   @Test
   public void deleteNonexistentValues() throws Exception {
     tester.getOrCreate("d1").setConstantValue(new StringValue("1"));
@@ -3835,7 +3942,7 @@ public class MemoizingEvaluatorTest {
     tester.eval(/*keepGoing=*/false, parent2Key);
   }
 
-  private void setGraphForTesting(NotifyingInMemoryGraph notifyingInMemoryGraph) {
+  protected void setGraphForTesting(NotifyingInMemoryGraph notifyingInMemoryGraph) {
     graph = notifyingInMemoryGraph;
     InMemoryMemoizingEvaluator memoizingEvaluator = (InMemoryMemoizingEvaluator) tester.evaluator;
     memoizingEvaluator.setGraphForTesting(notifyingInMemoryGraph);
@@ -161,6 +161,95 @@ public class ParallelEvaluatorTest {
     assertNoEvents(eventCollector);
   }
 
+  @Test
+  public void recordsSkyFunctionStats() throws Exception {
+    graph = new InMemoryGraph();
+    set("a", "a");
+    set("b", "b");
+    final SkyFunctionName statsFunction = SkyFunctionName.create("STATS_TEST");
+    SkyKey parent = new SkyKey(statsFunction, "parent");
+    ImmutableMap<SkyFunctionName, SkyFunction> functions =
+        ImmutableMap.<SkyFunctionName, SkyFunction>builder()
+            .putAll(tester.getSkyFunctionMap())
+            .put(statsFunction, new SkyFunction() {
+              @Override
+              public SkyValue compute(SkyKey skyKey, Environment env) {
+                Map<SkyKey, SkyValue> deps =
+                    env.getValues(ImmutableList.copyOf(GraphTester.toSkyKeys("a", "b")));
+                return env.valuesMissing() ? null : new StringValue(deps.size() + " deps");
+              }
+
+              @Override
+              public String extractTag(SkyKey skyKey) {
+                return null;
+              }
+            })
+            .build();
+    makeEvaluator(graph, functions, /*keepGoing=*/false).eval(ImmutableList.of(parent));
+
+    SkyFunctionStats.FunctionStats stats = SkyFunctionStats.global().getIfPresent(statsFunction);
+    assertEquals(2, stats.getEvaluations());
+    assertEquals(1, stats.getRestarts());
+    assertEquals(1, stats.getNewNodes());
+    assertEquals(2, stats.getDepGroupSizes().getCount(2));
+    assertThat(stats.getWallTimeNanos()).isGreaterThan(0L);
+  }
+
+  /** Remembers the deps that were already requested. */
+  private static class RoundsState implements SkyFunction.SkyKeyComputeState {
+    private final List<String> values = new ArrayList<>();
+  }
+
+  @Test
+  public void computeStateIsKeptAcrossRestarts() throws Exception {
+    graph = new InMemoryGraph();
+    set("a", "a");
+    set("b", "b");
+    final AtomicInteger newStates = new AtomicInteger();
+    final AtomicInteger requestsOfA = new AtomicInteger();
+    final SkyFunctionName roundsFunction = SkyFunctionName.create("ROUNDS");
+    SkyKey parent = new SkyKey(roundsFunction, "parent");
+    ImmutableMap<SkyFunctionName, SkyFunction> functions =
+        ImmutableMap.<SkyFunctionName, SkyFunction>builder()
+            .putAll(tester.getSkyFunctionMap())
+            .put(roundsFunction, new SkyFunction() {
+              @Override
+              public SkyValue compute(SkyKey skyKey, Environment env) {
+                RoundsState state = env.getState(new Supplier<RoundsState>() {
+                  @Override
+                  public RoundsState get() {
+                    newStates.incrementAndGet();
+                    return new RoundsState();
+                  }
+                });
+                // Request the deps one at a time, so that every one of them is a restart.
+                for (String dep : ImmutableList.of("a", "b").subList(state.values.size(), 2)) {
+                  if (dep.equals("a")) {
+                    requestsOfA.incrementAndGet();
+                  }
+                  StringValue value = (StringValue) env.getValue(GraphTester.toSkyKey(dep));
+                  if (value == null) {
+                    return null;
+                  }
+                  state.values.add(value.getValue());
+                }
+                return new StringValue(state.values.get(0) + state.values.get(1));
+              }
+
+              @Override
+              public String extractTag(SkyKey skyKey) {
+                return null;
+              }
+            })
+            .build();
+    EvaluationResult<StringValue> result =
+        makeEvaluator(graph, functions, /*keepGoing=*/false).eval(ImmutableList.of(parent));
+    assertEquals("ab", result.get(parent).getValue());
+    assertEquals(1, newStates.get());
+    // "a" is requested again when it is done, but not when "b" is done.
+    assertEquals(2, requestsOfA.get());
+  }
+
   /**
    * Test interruption handling when a long-running SkyFunction gets interrupted.
    */
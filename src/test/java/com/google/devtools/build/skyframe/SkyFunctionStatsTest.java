@@ -0,0 +1,66 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Tests for {@link SkyFunctionStats}.
+ */
+@RunWith(JUnit4.class)
+public class SkyFunctionStatsTest {
+  private static final SkyFunctionName FAST = SkyFunctionName.create("FAST");
+  private static final SkyFunctionName SLOW = SkyFunctionName.create("SLOW");
+
+  @Test
+  public void histogramBuckets() {
+    SkyFunctionStats.Histogram histogram = new SkyFunctionStats.Histogram();
+    histogram.add(0);
+    histogram.add(1);
+    histogram.add(2);
+    histogram.add(3);
+    histogram.add(12);
+    assertThat(histogram.getCount(3)).isEqualTo(2);
+    assertThat(histogram.getCount(15)).isEqualTo(1);
+    assertThat(histogram.toString()).isEqualTo("0:1 1:1 2-3:2 8-15:1");
+    assertThat(SkyFunctionStats.Histogram.bucket(Long.MAX_VALUE)).isEqualTo(63);
+  }
+
+  @Test
+  public void addAllAndDumpSortsByTime() {
+    SkyFunctionStats evaluation = new SkyFunctionStats();
+    evaluation.get(FAST).recordEvaluation(/*newNode=*/true, 1000000, 2000000);
+    evaluation.get(SLOW).recordEvaluation(/*newNode=*/true, 5000000, 6000000);
+    evaluation.get(SLOW).recordRestart();
+    evaluation.get(SLOW).recordDepGroup(1);
+    SkyFunctionStats total = new SkyFunctionStats();
+    total.addAll(evaluation);
+    total.addAll(evaluation);
+
+    assertThat(total.getAll().get(0).getName()).isEqualTo(SLOW);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    total.dump(new PrintStream(out));
+    assertThat(out.toString())
+        .contains("SLOW: evaluations=2, restarts=2, new nodes=2, cpu=10ms, wall=12ms\n"
+            + "  dep group sizes: 1:2\n");
+    assertThat(out.toString().indexOf("SLOW")).isLessThan(out.toString().indexOf("FAST"));
+  }
+}
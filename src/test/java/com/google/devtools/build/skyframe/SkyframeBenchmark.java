@@ -0,0 +1,437 @@
+// Copyright 2016 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Measures the evaluation and invalidation of synthetic graphs by an {@link
+ * InMemoryMemoizingEvaluator}, to catch performance regressions in {@link ParallelEvaluator},
+ * {@link InMemoryNodeEntry}, {@link GroupedList}, {@link ReverseDepsUtilImpl} and {@link
+ * EagerInvalidator}.
+ *
+ * <p>For every {@link Shape} of graph, each round runs a clean build, a null build, an
+ * incremental build after a single leaf changed and one after a tenth of the leaves changed. The
+ * time per build and the number of bytes allocated per build are averaged over all rounds but
+ * the first one, which only warms up. Allocations are measured from the heap usage and the
+ * garbage collections of the whole JVM, so they are approximate. After each build, the heap is
+ * collected to measure how much of it the graph retains, which includes the keys and values.
+ *
+ * <p>Run with {@code bazel run //src/test/java/com/google/devtools/build/skyframe:SkyframeBenchmark
+ * -- <nodes> <threads> <rounds> [--blocking] [--compact]}. With {@code --blocking}, the evaluator
+ * blocks on missing deps instead of restarting, as with {@code
+ * --experimental_skyframe_blocking_evaluation}. With {@code --compact}, the graph is a {@link
+ * CompactInMemoryGraph}, as with {@code --experimental_compact_skyframe_graph}.
+ */
+public class SkyframeBenchmark {
+
+  private static final SkyFunctionName NODE = SkyFunctionName.create("BENCHMARK_NODE");
+  private static final SkyFunctionName LEAF = SkyFunctionName.create("BENCHMARK_LEAF");
+
+  /** Width of the layers of {@link Shape#DIAMOND} and {@link Shape#ERRORS} graphs. */
+  private static final int LAYER_WIDTH = 100;
+  /** Length of the chains of {@link Shape#DEEP} graphs. */
+  private static final int CHAIN_LENGTH = 1000;
+
+  private static final String[] SCENARIOS = {"clean", "null", "small change", "large change"};
+
+  /**
+   * The shapes of the benchmarked graphs. Node {@code i} always depends on leaf {@code i}, whose
+   * value is injected, and on the nodes returned by {@link #deps}.
+   */
+  enum Shape {
+    /** A root depending on all other nodes. */
+    WIDE {
+      @Override
+      int[] deps(int id, int nodes) {
+        return id == 0 ? range(1, nodes) : NO_DEPS;
+      }
+
+      @Override
+      int[] roots(int nodes) {
+        return new int[] {0};
+      }
+    },
+
+    /** Chains of {@code CHAIN_LENGTH} nodes. */
+    DEEP {
+      @Override
+      int[] deps(int id, int nodes) {
+        return (id + 1) % CHAIN_LENGTH != 0 && id + 1 < nodes ? new int[] {id + 1} : NO_DEPS;
+      }
+
+      @Override
+      int[] roots(int nodes) {
+        int[] roots = new int[(nodes + CHAIN_LENGTH - 1) / CHAIN_LENGTH];
+        for (int i = 0; i < roots.length; i++) {
+          roots[i] = i * CHAIN_LENGTH;
+        }
+        return roots;
+      }
+    },
+
+    /**
+     * Layers of {@code LAYER_WIDTH} nodes, each depending on two neighbouring nodes of the next
+     * layer, so there are many paths from the roots to every node.
+     */
+    DIAMOND {
+      @Override
+      int[] deps(int id, int nodes) {
+        int next = (id / LAYER_WIDTH + 1) * LAYER_WIDTH;
+        int position = id % LAYER_WIDTH;
+        if (next + LAYER_WIDTH > nodes) {
+          return NO_DEPS;
+        }
+        return new int[] {next + position, next + (position + 1) % LAYER_WIDTH};
+      }
+
+      @Override
+      int[] roots(int nodes) {
+        return range(0, Math.min(LAYER_WIDTH, nodes));
+      }
+    },
+
+    /** Like {@link #WIDE}, but one in a hundred nodes is in a cycle with the next node. */
+    CYCLIC {
+      @Override
+      int[] deps(int id, int nodes) {
+        if (id == 0) {
+          return range(1, nodes);
+        }
+        if (id + 1 < nodes && id % 100 == 1) {
+          return new int[] {id + 1};
+        }
+        return id % 100 == 2 ? new int[] {id - 1} : NO_DEPS;
+      }
+
+      @Override
+      int[] roots(int nodes) {
+        return new int[] {0};
+      }
+    },
+
+    /** Like {@link #DIAMOND}, but one in ten nodes of the last layer fails. */
+    ERRORS {
+      @Override
+      int[] deps(int id, int nodes) {
+        return DIAMOND.deps(id, nodes);
+      }
+
+      @Override
+      int[] roots(int nodes) {
+        return DIAMOND.roots(nodes);
+      }
+
+      @Override
+      boolean fails(int id, int nodes) {
+        return id % 10 == 0 && DIAMOND.deps(id, nodes).length == 0;
+      }
+    };
+
+    private static final int[] NO_DEPS = new int[0];
+
+    abstract int[] deps(int id, int nodes);
+
+    abstract int[] roots(int nodes);
+
+    boolean fails(int id, int nodes) {
+      return false;
+    }
+
+    private static int[] range(int from, int to) {
+      int[] result = new int[Math.max(to - from, 0)];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = from + i;
+      }
+      return result;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    boolean blocking = Arrays.asList(args).contains("--blocking");
+    boolean compact = Arrays.asList(args).contains("--compact");
+    System.out.printf("%,d nodes, %d threads, %d rounds%s%s%n", nodes, threads, rounds,
+        blocking ? ", blocking" : "", compact ? ", compact graph" : "");
+    AllocationMeter allocationMeter = new AllocationMeter();
+    Map<Shape, long[][]> totals = new HashMap<>();
+    for (Shape shape : Shape.values()) {
+      totals.put(shape, new long[SCENARIOS.length][3]);
+    }
+    for (int round = 0; round <= rounds; round++) {
+      for (Shape shape : Shape.values()) {
+        long[][] measurements =
+            new Benchmark(shape, nodes, threads, blocking, compact, allocationMeter).run();
+        // The first round only warms up.
+        if (round > 0) {
+          for (int i = 0; i < SCENARIOS.length; i++) {
+            for (int j = 0; j < measurements[i].length; j++) {
+              totals.get(shape)[i][j] += measurements[i][j];
+            }
+          }
+        }
+      }
+    }
+    System.out.printf("%-8s %-13s %12s %10s %15s %13s %12s%n",
+        "shape", "build", "ms/build", "builds/s", "alloc MB/build", "alloc MB/s", "retained MB");
+    for (Shape shape : Shape.values()) {
+      for (int i = 0; i < SCENARIOS.length; i++) {
+        long nanos = totals.get(shape)[i][0] / Math.max(rounds, 1);
+        long bytes = totals.get(shape)[i][1] / Math.max(rounds, 1);
+        long retainedBytes = totals.get(shape)[i][2] / Math.max(rounds, 1);
+        System.out.printf("%-8s %-13s %12.2f %10.2f %15.2f %13.2f %12.2f%n", shape, SCENARIOS[i],
+            nanos / 1e6, 1e9 / Math.max(nanos, 1), bytes / 1e6, bytes * 1e3 / Math.max(nanos, 1),
+            retainedBytes / 1e6);
+      }
+    }
+  }
+
+  /** The builds of one round for one shape of graph. */
+  private static final class Benchmark {
+    private final Shape shape;
+    private final int nodes;
+    private final int threads;
+    private final AllocationMeter allocationMeter;
+    private final Random random;
+    private final RecordingDifferencer differencer = new RecordingDifferencer();
+    private final InMemoryMemoizingEvaluator evaluator;
+    private final List<SkyKey> roots = new ArrayList<>();
+    private int version = 0;
+
+    private Benchmark(Shape shape, int nodes, int threads, boolean blocking, boolean compact,
+        AllocationMeter allocationMeter) {
+      this.shape = shape;
+      this.nodes = nodes;
+      this.threads = threads;
+      this.allocationMeter = allocationMeter;
+      this.random = new Random(shape.ordinal());
+      this.evaluator = new InMemoryMemoizingEvaluator(
+          ImmutableMap.of(NODE, new NodeFunction(shape, nodes)), differencer,
+          /*invalidationReceiver=*/null, new MemoizingEvaluator.EmittedEventState(),
+          /*keepEdges=*/true, compact);
+      evaluator.setBlockOnMissingDeps(blocking);
+      for (int root : shape.roots(nodes)) {
+        roots.add(nodeKey(root));
+      }
+    }
+
+    /**
+     * Returns the elapsed nanoseconds, the allocated bytes and the bytes retained on the heap
+     * after every scenario.
+     */
+    long[][] run() throws InterruptedException {
+      long[][] measurements = new long[SCENARIOS.length][];
+      long baselineBytes = getUsedBytesAfterGc();
+      injectLeaves();
+      measurements[0] = build(baselineBytes);
+      measurements[1] = build(baselineBytes);
+      changeLeaves(1);
+      measurements[2] = build(baselineBytes);
+      changeLeaves(nodes / 10);
+      measurements[3] = build(baselineBytes);
+      return measurements;
+    }
+
+    private void injectLeaves() {
+      Map<SkyKey, SkyValue> leaves = new HashMap<>();
+      for (int i = 0; i < nodes; i++) {
+        leaves.put(leafKey(i), new BenchmarkValue(i));
+      }
+      differencer.inject(leaves);
+    }
+
+    private void changeLeaves(int count) {
+      Map<SkyKey, SkyValue> leaves = new HashMap<>();
+      for (int i = 0; i < count; i++) {
+        leaves.put(leafKey(random.nextInt(nodes)), new BenchmarkValue(random.nextLong()));
+      }
+      differencer.inject(leaves);
+    }
+
+    private long[] build(long baselineBytes) throws InterruptedException {
+      long startBytes = allocationMeter.getAllocatedBytes();
+      long startNanos = System.nanoTime();
+      EvaluationResult<SkyValue> result = evaluator.evaluate(roots, new IntVersion(version++),
+          /*keepGoing=*/true, threads, NullEventHandler.INSTANCE);
+      long nanos = System.nanoTime() - startNanos;
+      long bytes = allocationMeter.getAllocatedBytes() - startBytes;
+      boolean expectErrors = shape == Shape.CYCLIC || shape == Shape.ERRORS;
+      if (result.hasError() != expectErrors || result.getCatastrophe() != null) {
+        throw new IllegalStateException(shape + ": unexpected result " + result);
+      }
+      return new long[] {nanos, bytes, getUsedBytesAfterGc() - baselineBytes};
+    }
+
+    /**
+     * Returns the bytes in use on the heap after collecting it, once the collections are counted
+     * by {@link #allocationMeter}, so that they are not counted in the next build.
+     */
+    private long getUsedBytesAfterGc() throws InterruptedException {
+      System.gc();
+      System.gc();
+      allocationMeter.awaitCollections();
+      return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+  }
+
+  private static SkyKey nodeKey(int id) {
+    return new SkyKey(NODE, id);
+  }
+
+  private static SkyKey leafKey(int id) {
+    return new SkyKey(LEAF, id);
+  }
+
+  /** Combines the values of the deps of a node, or fails if its shape says so. */
+  private static final class NodeFunction implements SkyFunction {
+    private final Shape shape;
+    private final int nodes;
+
+    private NodeFunction(Shape shape, int nodes) {
+      this.shape = shape;
+      this.nodes = nodes;
+    }
+
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws BenchmarkFunctionException {
+      int id = (Integer) skyKey.argument();
+      int[] deps = shape.deps(id, nodes);
+      List<SkyKey> depKeys = new ArrayList<>(deps.length + 1);
+      depKeys.add(leafKey(id));
+      for (int dep : deps) {
+        depKeys.add(nodeKey(dep));
+      }
+      Map<SkyKey, SkyValue> values = env.getValues(depKeys);
+      if (env.valuesMissing()) {
+        return null;
+      }
+      if (shape.fails(id, nodes)) {
+        throw new BenchmarkFunctionException(skyKey);
+      }
+      long result = id;
+      for (SkyKey depKey : depKeys) {
+        result = result * 31 + ((BenchmarkValue) values.get(depKey)).value;
+      }
+      return new BenchmarkValue(result);
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  }
+
+  private static final class BenchmarkValue implements SkyValue {
+    private final long value;
+
+    private BenchmarkValue(long value) {
+      this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof BenchmarkValue && ((BenchmarkValue) obj).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (value ^ (value >>> 32));
+    }
+  }
+
+  private static final class BenchmarkFunctionException extends SkyFunctionException {
+    private BenchmarkFunctionException(SkyKey skyKey) {
+      super(new IOException("failed: " + skyKey), Transience.PERSISTENT);
+    }
+  }
+
+  /**
+   * Counts the bytes allocated by the JVM as the bytes in use on the heap plus the bytes freed by
+   * all garbage collections so far. Garbage collections are reported asynchronously, so a count
+   * taken right after a collection may miss it.
+   */
+  private static final class AllocationMeter implements NotificationListener {
+    private final AtomicLong freedBytes = new AtomicLong();
+    private final AtomicLong collections = new AtomicLong();
+
+    private AllocationMeter() {
+      for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+        ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+      }
+      collections.set(getCollectionCount());
+    }
+
+    private static long getCollectionCount() {
+      long count = 0;
+      for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+        count += collector.getCollectionCount();
+      }
+      return count;
+    }
+
+    /** Waits until all garbage collections so far were reported. */
+    void awaitCollections() throws InterruptedException {
+      long count = getCollectionCount();
+      while (collections.get() < count) {
+        Thread.sleep(1);
+      }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+      if (!notification.getType().equals(
+          GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+        return;
+      }
+      GcInfo gcInfo = GarbageCollectionNotificationInfo.from(
+          (CompositeData) notification.getUserData()).getGcInfo();
+      long freed = 0;
+      for (MemoryUsage usage : gcInfo.getMemoryUsageBeforeGc().values()) {
+        freed += usage.getUsed();
+      }
+      for (MemoryUsage usage : gcInfo.getMemoryUsageAfterGc().values()) {
+        freed -= usage.getUsed();
+      }
+      freedBytes.addAndGet(freed);
+      collections.incrementAndGet();
+    }
+
+    long getAllocatedBytes() {
+      return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()
+          + freedBytes.get();
+    }
+  }
+}
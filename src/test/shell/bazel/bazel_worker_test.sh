@@ -131,6 +131,17 @@ function test_compiles_hello_library_using_persistent_javac() {
   shutdown_and_print_unkilled_workers
 }
 
+function test_compiles_hello_library_using_multiplexed_javac() {
+  write_hello_library_files
+
+  bazel build --strategy=Javac=worker --experimental_worker_multiplex //java/main:main \
+    || fail "build failed"
+  bazel-bin/java/main/main | grep -q "Hello, Library!;Hello, World!" \
+    || fail "comparison failed"
+  assert_workers_running
+  shutdown_and_print_unkilled_workers
+}
+
 function test_incremental_heuristic() {
   write_hello_library_files
 
@@ -433,4 +444,26 @@ EOF
   assert_not_equals "$hash2" "$hash3"
 }
 
+function test_multiplexed_example_worker() {
+  prepare_example_worker
+  cat >>BUILD <<'EOF'
+[work(
+  name = "hello_world_%s" % idx,
+  worker = ":worker",
+  args = ["--write_uuid", "hello world %s" % idx],
+) for idx in range(10)]
+EOF
+
+  bazel build --strategy=Work=worker --experimental_worker_multiplex \
+    --worker_max_multiplex_requests=4 :all || fail "build failed"
+  assert_workers_running
+
+  # All requests were sent to the same worker process.
+  worker_uuid_0=$(cat bazel-bin/hello_world_0.out | grep UUID | cut -d' ' -f2)
+  for idx in $(seq 0 9); do
+    assert_contains "hello world $idx" bazel-bin/hello_world_$idx.out
+    assert_contains "UUID $worker_uuid_0" bazel-bin/hello_world_$idx.out
+  done
+}
+
 run_suite "Worker integration tests"
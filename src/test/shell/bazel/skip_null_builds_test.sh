@@ -0,0 +1,118 @@
+#!/bin/bash
+#
+# Copyright 2016 The Bazel Authors. All rights reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#    http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+# Tests that --experimental_skip_null_builds reuses the result of the last
+# build only if nothing changed since.
+
+# Load test environment
+source $(cd "$(dirname "${BASH_SOURCE[0]}")" && pwd)/test-setup.sh \
+  || { echo "test-setup.sh not found!" >&2; exit 1; }
+
+function set_up() {
+  create_new_workspace
+
+  mkdir -p a
+  cat > a/BUILD <<'EOF'
+genrule(name="a", srcs=["a.in"], outs=["a.out"], cmd="cp $< $@")
+genrule(name="bad", srcs=[], outs=["bad.out"], cmd="exit 1")
+EOF
+  echo hello > a/a.in
+
+  bazel build --experimental_skip_null_builds //a >& $TEST_log \
+    || fail "build failed"
+  expect_not_log "Nothing changed since the last build"
+}
+
+function test_unchanged_build_is_skipped() {
+  bazel build --experimental_skip_null_builds //a >& $TEST_log \
+    || fail "build failed"
+  expect_log "Nothing changed since the last build"
+  assert_contains hello bazel-genfiles/a/a.out
+
+  # The result is kept for the next build too.
+  bazel build --experimental_skip_null_builds //a >& $TEST_log \
+    || fail "build failed"
+  expect_log "Nothing changed since the last build"
+}
+
+function test_source_change_is_built() {
+  echo goodbye > a/a.in
+  bazel build --experimental_skip_null_builds //a >& $TEST_log \
+    || fail "build failed"
+  expect_not_log "Nothing changed since the last build"
+  assert_contains goodbye bazel-genfiles/a/a.out
+}
+
+function test_option_change_is_built() {
+  bazel build --experimental_skip_null_builds --define=foo=bar //a \
+    >& $TEST_log || fail "build failed"
+  expect_not_log "Nothing changed since the last build"
+
+  bazel build --experimental_skip_null_builds //a >& $TEST_log \
+    || fail "build failed"
+  expect_not_log "Nothing changed since the last build"
+}
+
+function test_build_after_clean_is_built() {
+  bazel clean || fail "clean failed"
+  bazel build --experimental_skip_null_builds //a >& $TEST_log \
+    || fail "build failed"
+  expect_not_log "Nothing changed since the last build"
+  assert_contains hello bazel-genfiles/a/a.out
+}
+
+function test_build_after_failed_build_is_built() {
+  bazel build --experimental_skip_null_builds //a //a:bad >& $TEST_log \
+    && fail "build succeeded"
+  bazel build --experimental_skip_null_builds //a >& $TEST_log \
+    || fail "build failed"
+  expect_not_log "Nothing changed since the last build"
+}
+
+function test_deleted_output_is_built() {
+  local out=$(bazel info bazel-genfiles)/a/a.out
+  rm -f $out
+  bazel build --experimental_skip_null_builds //a >& $TEST_log \
+    || fail "build failed"
+  expect_not_log "Nothing changed since the last build"
+  assert_contains hello $out
+}
+
+function test_modified_output_is_built() {
+  local out=$(bazel info bazel-genfiles)/a/a.out
+  chmod +w $out
+  echo garbage > $out
+  bazel build --experimental_skip_null_builds //a >& $TEST_log \
+    || fail "build failed"
+  expect_not_log "Nothing changed since the last build"
+}
+
+function test_workspace_status_command_is_run() {
+  local cmd=$TEST_TMPDIR/status.sh
+  cat > $cmd <<EOF
+#!/bin/bash
+echo BUILD_SCM_STATUS funky
+EOF
+  chmod +x $cmd
+
+  bazel build --experimental_skip_null_builds \
+    --workspace_status_command=$cmd //a >& $TEST_log || fail "build failed"
+  bazel build --experimental_skip_null_builds \
+    --workspace_status_command=$cmd //a >& $TEST_log || fail "build failed"
+  expect_not_log "Nothing changed since the last build"
+}
+
+run_suite "skip null builds tests"
@@ -3,12 +3,14 @@ package com.google.devtools.build.remote;
 import com.google.common.io.CharStreams;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.remote.RemoteOptions;
 import com.google.devtools.build.lib.remote.RemoteWorkExecutor;
 import com.google.devtools.build.lib.remote.MemcacheActionCache;
 import com.google.devtools.build.lib.remote.MemcacheWorkExecutor;
 import com.google.devtools.build.lib.remote.RemoteProtocol.RemoteWorkRequest;
 import com.google.devtools.build.lib.remote.RemoteProtocol.RemoteWorkResponse;
+import com.google.devtools.build.lib.remote.SimpleBlobStore;
 import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
@@ -18,8 +20,8 @@ import com.google.protobuf.util.JsonFormat;
 import java.io.IOException;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 
-import javax.cache.Cache;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -29,16 +31,21 @@ public class BuildRequestServlet extends HttpServlet {
     private final Path workPath;
     private final RemoteOptions remoteOptions;
     private final BuildWorkerOptions options;
-    private final Cache<String, byte[]> cache;
+    private final SimpleBlobStore blobStore;
     private final ListeningExecutorService executorService;
+    private final ListeningExecutorService transferService;
 
     public BuildRequestServlet(Path workPath, RemoteOptions remoteOptions,
-                               BuildWorkerOptions options, Cache<String, byte[]> cache) {
+                               BuildWorkerOptions options, SimpleBlobStore blobStore) {
         this.workPath = workPath;
         this.remoteOptions = remoteOptions;
         this.options = options;
-        this.cache = cache;
+        this.blobStore = blobStore;
         this.executorService = MoreExecutors.newDirectExecutorService();
+        this.transferService = MoreExecutors.listeningDecorator(
+            Executors.newFixedThreadPool(remoteOptions.remoteTransferThreads,
+                new ThreadFactoryBuilder().setNameFormat("remote-transfer-%d").setDaemon(true)
+                    .build()));
     }
 
     @Override
@@ -58,7 +65,8 @@ public class BuildRequestServlet extends HttpServlet {
         final MemcacheActionCache actionCache = new MemcacheActionCache(
             tempRoot,
             remoteOptions,
-            cache);
+            blobStore,
+            transferService);
         final MemcacheWorkExecutor workExecutor = new MemcacheWorkExecutor(
             actionCache,
             executorService,
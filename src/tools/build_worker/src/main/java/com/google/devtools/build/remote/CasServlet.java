@@ -0,0 +1,101 @@
+package com.google.devtools.build.remote;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import com.google.devtools.build.lib.remote.RestBlobStore;
+import com.google.devtools.build.lib.remote.SimpleBlobStore;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the blobs of a {@link SimpleBlobStore} over HTTP, in the protocol spoken by
+ * {@link RestBlobStore}.
+ */
+public class CasServlet extends HttpServlet {
+  private final SimpleBlobStore blobStore;
+
+  public CasServlet(SimpleBlobStore blobStore) {
+    this.blobStore = blobStore;
+  }
+
+  @Override
+  protected void doHead(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    String key = getKey(request, response);
+    if (key != null) {
+      response.setStatus(blobStore.containsKey(key)
+          ? HttpServletResponse.SC_OK
+          : HttpServletResponse.SC_NOT_FOUND);
+    }
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    String key = getKey(request, response);
+    if (key == null) {
+      return;
+    }
+    byte[] blob = blobStore.get(key);
+    if (blob == null) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("application/octet-stream");
+    response.setContentLength(blob.length);
+    response.getOutputStream().write(blob);
+  }
+
+  @Override
+  protected void doPut(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    String key = getKey(request, response);
+    if (key != null) {
+      blobStore.put(key, ByteStreams.toByteArray(request.getInputStream()));
+      response.setStatus(HttpServletResponse.SC_OK);
+    }
+  }
+
+  /**
+   * Answers batched existence checks: the body is a newline separated list of keys, and the
+   * response lists those that are not in the store.
+   */
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws ServletException, IOException {
+    if (!RestBlobStore.FIND_MISSING_PATH.equals(request.getServletPath())) {
+      response.sendError(HttpServletResponse.SC_NOT_FOUND);
+      return;
+    }
+    List<String> keys = ImmutableList.copyOf(
+        Splitter.on('\n').omitEmptyStrings().split(CharStreams.toString(request.getReader())));
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("UTF-8");
+    response.getWriter().print(Joiner.on('\n').join(blobStore.getMissingKeys(keys)));
+  }
+
+  /**
+   * Returns the key of the blob addressed by the request, or sends an error and returns null if
+   * the request does not address a blob.
+   */
+  private static String getKey(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String pathInfo = request.getPathInfo();
+    if (pathInfo == null || pathInfo.length() <= 1 || pathInfo.indexOf('/', 1) >= 0) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+      return null;
+    }
+    return pathInfo.substring(1);
+  }
+}
@@ -0,0 +1,45 @@
+package com.google.devtools.build.remote;
+
+import com.google.devtools.build.lib.remote.ConcurrentMapBlobStore;
+import com.google.devtools.build.lib.remote.OnDiskBlobStore;
+import com.google.devtools.build.lib.remote.RestBlobStore;
+import com.google.devtools.build.lib.remote.SimpleBlobStore;
+import com.google.devtools.common.options.OptionsParser;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+/**
+ * A standalone content addressable cache that can be used with --remote_cache. Blobs are either
+ * kept in memory, which is handy for tests, or in a directory, e.g. on a cache box in the LAN.
+ */
+public class RemoteCacheServer {
+  public static void main(String[] args) throws Exception {
+    OptionsParser parser = OptionsParser.newOptionsParser(RemoteCacheServerOptions.class);
+    parser.parseAndExitUponError(args);
+    RemoteCacheServerOptions options = parser.getOptions(RemoteCacheServerOptions.class);
+
+    SimpleBlobStore blobStore = options.cachePath == null
+        ? new ConcurrentMapBlobStore()
+        : new OnDiskBlobStore(RestBuildWorker.getFileSystem().getPath(options.cachePath));
+    Server server = createServer(options.listenPort, blobStore);
+    System.out.println("Starting remote cache server on port " + options.listenPort + "...");
+    server.start();
+    server.join();
+  }
+
+  /**
+   * Returns a server that serves the blob store on the given port. Port 0 picks a free port.
+   */
+  public static Server createServer(int port, SimpleBlobStore blobStore) {
+    ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+    context.setContextPath("/");
+    ServletHolder holder = new ServletHolder(new CasServlet(blobStore));
+    context.addServlet(holder, RestBlobStore.CAS_PATH + "*");
+    context.addServlet(holder, RestBlobStore.FIND_MISSING_PATH);
+    Server server = new Server(port);
+    server.setHandler(context);
+    return server;
+  }
+}
@@ -0,0 +1,26 @@
+package com.google.devtools.build.remote;
+
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Options for the remote cache server.
+ */
+public class RemoteCacheServerOptions extends OptionsBase {
+  @Option(
+    name = "listen_port",
+    defaultValue = "8081",
+    category = "remote_cache_server",
+    help = "Listening port for the jetty server."
+  )
+  public int listenPort;
+
+  @Option(
+    name = "cache_path",
+    defaultValue = "null",
+    category = "remote_cache_server",
+    help = "A directory to store the blobs in. If unset, blobs are only kept in memory and are "
+           + "lost when the server stops."
+  )
+  public String cachePath;
+}
@@ -1,7 +1,10 @@
 package com.google.devtools.build.remote;
 
 import com.google.devtools.build.lib.remote.HazelcastCacheFactory;
+import com.google.devtools.build.lib.remote.JCacheBlobStore;
 import com.google.devtools.build.lib.remote.RemoteOptions;
+import com.google.devtools.build.lib.remote.RestBlobStore;
+import com.google.devtools.build.lib.remote.SimpleBlobStore;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
@@ -11,7 +14,6 @@ import com.google.devtools.build.lib.vfs.UnixFileSystem;
 import com.google.devtools.common.options.OptionsParser;
 
 import java.util.Collections;
-import javax.cache.Cache;
 
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.servlet.ServletContextHandler;
@@ -30,16 +32,24 @@ public class RestBuildWorker
         RemoteOptions remoteOptions = parser.getOptions(RemoteOptions.class);
         BuildWorkerOptions buildWorkerOptions = parser.getOptions(BuildWorkerOptions.class);
 
-        if (remoteOptions.memcacheProvider == null ||
-            remoteOptions.memcacheUri == null ||
-            remoteOptions.hazelcastConfiguration == null ||
+        if ((remoteOptions.remoteCache == null &&
+             (remoteOptions.memcacheProvider == null ||
+              remoteOptions.memcacheUri == null ||
+              remoteOptions.hazelcastConfiguration == null)) ||
             buildWorkerOptions.workPath == null) {
             printUsage(parser);
             return;
         }
 
-        System.out.println("Starting Hazelcast server...");
-        Cache<String, byte[]> cache = new HazelcastCacheFactory().create(remoteOptions);
+        // The worker must read the inputs from the cache that the clients upload them to.
+        SimpleBlobStore blobStore;
+        if (remoteOptions.remoteCache != null) {
+            blobStore = new RestBlobStore(
+                remoteOptions.remoteCache, remoteOptions.remoteTransferThreads);
+        } else {
+            System.out.println("Starting Hazelcast server...");
+            blobStore = new JCacheBlobStore(new HazelcastCacheFactory().create(remoteOptions));
+        }
 
         // Initialize the jetty server.
         ServletContextHandler context = new ServletContextHandler(
@@ -54,7 +64,7 @@ public class RestBuildWorker
             workPath,
             remoteOptions,
             buildWorkerOptions,
-            cache)), "/build-request");
+            blobStore)), "/build-request");
 
         System.out.println("Starting Jetty server...");
         server.start();
@@ -63,7 +73,8 @@ public class RestBuildWorker
 
     public static void printUsage(OptionsParser parser) {
         System.out.println("Usage: build_worker \n\n"
-                           + "Starts a build worker that runs as a HTTP server and memcache node.");
+                           + "Starts a build worker that runs as a HTTP server and memcache node, "
+                           + "or that uses the remote cache given by --remote_cache.");
         System.out.println(parser.describeOptions(Collections.<String, String>emptyMap(),
                                                   OptionsParser.HelpVerbosity.LONG));
     }